@@ -0,0 +1,47 @@
+package org.miracum.recruit.notify;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import java.util.concurrent.TimeUnit;
+import org.hl7.fhir.r4.model.ListResource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/** Parsing of webhook payloads and the comparison against the previous list version. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ScreeningListBenchmark {
+  @Param({"100", "1000", "10000"})
+  int listSize;
+
+  private IParser parser;
+  private String payload;
+  private ListResource currentList;
+  private ListResource previousList;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    parser = FhirContext.forR4().newJsonParser();
+    currentList = SyntheticData.screeningList("List/1", listSize, 2);
+    previousList = SyntheticData.shuffled(currentList, 42);
+    payload = parser.encodeResourceToString(currentList);
+  }
+
+  @Benchmark
+  public ListResource parseListResource() {
+    return parser.parseResource(ListResource.class, payload);
+  }
+
+  @Benchmark
+  public boolean compareResearchSubjectIds() {
+    return NotificationController.hasSameResearchSubjects(currentList, previousList);
+  }
+}
@@ -0,0 +1,41 @@
+package org.miracum.recruit.notify;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.miracum.recruit.notify.message.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/** Matching of the pending backlog against the subscribers of a schedule. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SubscriberMatchingBenchmark {
+  @Param({"1000", "10000", "50000"})
+  int backlogSize;
+
+  @Param({"10", "100", "1000"})
+  int subscriberCount;
+
+  private List<Message> backlog;
+  private List<String> scheduleSubscribers;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    backlog = SyntheticData.pendingMessages(backlogSize, subscriberCount * 2, 10, 42);
+    // only half of the recipients subscribed to the schedule being distributed
+    scheduleSubscribers = SyntheticData.subscribers(subscriberCount);
+  }
+
+  @Benchmark
+  public List<Message> filterBySubscribers() {
+    return FhirServerProvider.filterBySubscribers(backlog, scheduleSubscribers);
+  }
+}
@@ -0,0 +1,107 @@
+package org.miracum.recruit.notify;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.CommunicationRequest;
+import org.hl7.fhir.r4.model.CommunicationRequest.CommunicationRequestStatus;
+import org.hl7.fhir.r4.model.ListResource;
+import org.hl7.fhir.r4.model.Reference;
+import org.miracum.recruit.notify.message.Message;
+
+/**
+ * Generators for the synthetic screening lists, pending message backlogs and subscribers used by
+ * the benchmarks. All generators are deterministic for a given seed.
+ */
+public final class SyntheticData {
+  public static final String SCREENING_LIST_REFERENCE =
+      "https://fhir.miracum.org/uc1/StructureDefinition/belongsToStudy";
+
+  private SyntheticData() {}
+
+  /** Email addresses of the given number of subscribers. */
+  public static List<String> subscribers(int subscriberCount) {
+    var result = new ArrayList<String>(subscriberCount);
+    for (var i = 0; i < subscriberCount; i++) {
+      result.add(subscriberEmail(i));
+    }
+    return result;
+  }
+
+  public static String subscriberEmail(int index) {
+    return "subscriber-" + index + "@example.com";
+  }
+
+  public static String studyAcronym(int index) {
+    return "STUDY-" + index;
+  }
+
+  /** A screening list of the given size referencing research subjects 0 to listSize - 1. */
+  public static ListResource screeningList(String id, int listSize, int versionId) {
+    var list = new ListResource();
+    list.setId(id);
+    list.getMeta().setVersionId(Integer.toString(versionId)).setLastUpdated(new Date());
+    list.setStatus(ListResource.ListStatus.CURRENT);
+    list.setMode(ListResource.ListMode.WORKING);
+    list.addExtension(SCREENING_LIST_REFERENCE, new Reference("ResearchStudy/1").setDisplay("S"));
+    for (var i = 0; i < listSize; i++) {
+      list.addEntry().setItem(new Reference("ResearchSubject/rs-" + i));
+    }
+    return list;
+  }
+
+  /** A copy of the list with its entries shuffled, so it contains the same subjects. */
+  public static ListResource shuffled(ListResource list, long seed) {
+    var copy = list.copy();
+    var entries = new ArrayList<>(copy.getEntry());
+    Collections.shuffle(entries, new Random(seed));
+    copy.setEntry(entries);
+    return copy;
+  }
+
+  /**
+   * A backlog of pending messages, spread over the subscribers and studies. Every subscriber gets
+   * roughly backlogSize / subscriberCount messages, so each (study, recipient) group has several
+   * duplicates once the backlog is larger than subscriberCount * studyCount.
+   */
+  public static List<Message> pendingMessages(
+      int backlogSize, int subscriberCount, int studyCount, long seed) {
+    var random = new Random(seed);
+    var now = Instant.now();
+    var result = new ArrayList<Message>(backlogSize);
+    for (var i = 0; i < backlogSize; i++) {
+      var subscriber = random.nextInt(subscriberCount);
+      var study = random.nextInt(studyCount);
+      result.add(
+          new Message(
+              "cr-" + i,
+              studyAcronym(study),
+              "list-" + study,
+              "pr-" + subscriber,
+              subscriberEmail(subscriber),
+              now.minusSeconds(backlogSize - i),
+              null));
+    }
+    return result;
+  }
+
+  /** New CommunicationRequests about the study, one per subscriber, as created for a webhook. */
+  public static List<CommunicationRequest> newCommunicationRequests(
+      int subscriberCount, String acronym) {
+    var result = new ArrayList<CommunicationRequest>(subscriberCount);
+    for (var i = 0; i < subscriberCount; i++) {
+      var request =
+          new CommunicationRequest()
+              .setStatus(CommunicationRequestStatus.ACTIVE)
+              .setAuthoredOn(new Date())
+              .addRecipient(new Reference("Practitioner/pr-" + i).setDisplay(subscriberEmail(i)))
+              .setReasonCode(List.of(new CodeableConcept().setText(acronym)));
+      result.add(request);
+    }
+    return result;
+  }
+}
@@ -0,0 +1,59 @@
+package org.miracum.recruit.notify.mailsender;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.concurrent.TimeUnit;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+import org.miracum.recruit.notify.metrics.NotifyMetrics;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+import org.thymeleaf.TemplateEngine;
+import org.thymeleaf.templateresolver.ClassLoaderTemplateResolver;
+
+/** Rendering of the notification templates into a MIME message, without sending it. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MailRenderBenchmark {
+  private MailSender mailSender;
+  private NotifyInfo notifyInfo;
+  private MailInfo mailInfo;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    // resolve the templates the same way as the Spring Boot auto-configuration does
+    var templateResolver = new ClassLoaderTemplateResolver();
+    templateResolver.setPrefix("templates/");
+    templateResolver.setSuffix(".html");
+    templateResolver.setCharacterEncoding("UTF-8");
+    var templateEngine = new TemplateEngine();
+    templateEngine.setTemplateResolver(templateResolver);
+
+    mailSender =
+        new MailSender(
+            new JavaMailSenderImpl(),
+            templateEngine,
+            new NotifyMetrics(new SimpleMeterRegistry()));
+
+    notifyInfo = new NotifyInfo();
+    notifyInfo.setStudyAcronym("PROSa");
+    notifyInfo.setScreeningListLink("http://localhost:8080/recommendations/1");
+
+    mailInfo = new MailInfo();
+    mailInfo.setFrom("notify@example.com");
+    mailInfo.setTo("subscriber-0@example.com");
+    mailInfo.setSubject("New screening recommendations for PROSa");
+  }
+
+  @Benchmark
+  public MimeMessage prepareMessage() throws MessagingException {
+    return mailSender.prepareMessage(notifyInfo, mailInfo);
+  }
+}
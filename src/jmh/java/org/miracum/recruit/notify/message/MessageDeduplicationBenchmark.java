@@ -0,0 +1,42 @@
+package org.miracum.recruit.notify.message;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.hl7.fhir.r4.model.CommunicationRequest;
+import org.miracum.recruit.notify.SyntheticData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/** Deduplication of the messages created for a webhook against the pending backlog. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MessageDeduplicationBenchmark {
+  @Param({"1000", "10000", "50000"})
+  int backlogSize;
+
+  @Param({"10", "100", "1000"})
+  int subscriberCount;
+
+  private List<Message> backlog;
+  private List<CommunicationRequest> newMessages;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    backlog = SyntheticData.pendingMessages(backlogSize, subscriberCount, 10, 42);
+    newMessages =
+        SyntheticData.newCommunicationRequests(subscriberCount, SyntheticData.studyAcronym(0));
+  }
+
+  @Benchmark
+  public List<CommunicationRequest> extractMessagesToPrepare() {
+    return MessageCreator.extractMessagesToPrepare(newMessages, backlog);
+  }
+}
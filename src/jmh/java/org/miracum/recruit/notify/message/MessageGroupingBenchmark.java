@@ -0,0 +1,38 @@
+package org.miracum.recruit.notify.message;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.miracum.recruit.notify.SyntheticData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/** Grouping of the pending backlog by study and recipient before a distribution run. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MessageGroupingBenchmark {
+  @Param({"1000", "10000", "50000"})
+  int backlogSize;
+
+  @Param({"10", "100", "1000"})
+  int subscriberCount;
+
+  private List<Message> backlog;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    backlog = SyntheticData.pendingMessages(backlogSize, subscriberCount, 10, 42);
+  }
+
+  @Benchmark
+  public List<TransformedMessages> groupByStudyAndRecipient() {
+    return MessageDistributor.transformMessageListToIdentifyDuplicates(backlog);
+  }
+}
@@ -3,11 +3,25 @@ package org.miracum.recruit.notify;
 import static net.logstash.logback.argument.StructuredArguments.kv;
 import static org.hl7.fhir.instance.model.api.IBaseBundle.LINK_NEXT;
 
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.SummaryEnum;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.gclient.DateClientParam;
 import ca.uhn.fhir.rest.server.exceptions.PreconditionFailedException;
 import ca.uhn.fhir.util.BundleUtil;
+import com.google.common.collect.Lists;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.Set;
+import java.util.function.Predicate;
 import org.hl7.fhir.instance.model.api.IAnyResource;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.Bundle;
@@ -17,7 +31,10 @@ import org.hl7.fhir.r4.model.ListResource;
 import org.hl7.fhir.r4.model.Practitioner;
 import org.hl7.fhir.r4.model.ResearchStudy;
 import org.hl7.fhir.r4.model.ResearchSubject;
+import org.miracum.recruit.notify.fhirserver.AsyncFhirClient;
 import org.miracum.recruit.notify.fhirserver.FhirSystemsConfig;
+import org.miracum.recruit.notify.jfr.FhirOperationEvent;
+import org.miracum.recruit.notify.message.Message;
 import org.miracum.recruit.notify.practitioner.PractitionerUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -29,14 +46,22 @@ import org.springframework.stereotype.Service;
 public class FhirServerProvider {
   private static final Logger LOG = LoggerFactory.getLogger(FhirServerProvider.class);
 
+  // keeps the search URLs short enough for any server
+  private static final int VALUES_PER_SEARCH = 50;
+
   private final IGenericClient fhirClient;
   private final FhirSystemsConfig fhirSystemsConfig;
+  private final AsyncFhirClient asyncFhirClient;
 
   /** Constructor for Fhir Server providing search results. */
   @Autowired
-  public FhirServerProvider(IGenericClient fhirClient, FhirSystemsConfig fhirSystemsConfig) {
+  public FhirServerProvider(
+      IGenericClient fhirClient,
+      FhirSystemsConfig fhirSystemsConfig,
+      AsyncFhirClient asyncFhirClient) {
     this.fhirClient = fhirClient;
     this.fhirSystemsConfig = fhirSystemsConfig;
+    this.asyncFhirClient = asyncFhirClient;
   }
 
   /** If previous screening list is available it will be checked if list changed. */
@@ -53,135 +78,262 @@ public class FhirServerProvider {
       return null;
     }
 
-    return fhirClient
-        .read()
-        .resource(ListResource.class)
-        .withIdAndVersion(currentList.getIdElement().getIdPart(), Integer.toString(lastVersionId))
-        .execute();
+    return FhirOperationEvent.record(
+        "getPreviousScreeningListFromServer",
+        "vread",
+        "List",
+        () ->
+            fhirClient
+                .read()
+                .resource(ListResource.class)
+                .withIdAndVersion(
+                    currentList.getIdElement().getIdPart(), Integer.toString(lastVersionId))
+                .execute());
+  }
+
+  /** Read the given version of the list, or its current version if no version is given. */
+  public ListResource getScreeningList(String listId, String versionId) {
+    if (versionId == null) {
+      return FhirOperationEvent.record(
+          "getScreeningList",
+          "read",
+          "List",
+          () -> fhirClient.read().resource(ListResource.class).withId(listId).execute());
+    }
+
+    return FhirOperationEvent.record(
+        "getScreeningList",
+        "vread",
+        "List",
+        () ->
+            fhirClient
+                .read()
+                .resource(ListResource.class)
+                .withIdAndVersion(listId, versionId)
+                .execute());
   }
 
   /** Query all research subjects from list. */
   public List<ResearchSubject> getResearchSubjectsFromList(ListResource list) {
     var listBundle =
-        fhirClient
-            .search()
-            .forResource(ListResource.class)
-            .where(IAnyResource.RES_ID.exactly().identifier(list.getId()))
-            .include(IBaseResource.INCLUDE_ALL)
-            .returnBundle(Bundle.class)
-            .execute();
-
-    var researchSubjectList =
-        new ArrayList<>(
-            BundleUtil.toListOfResourcesOfType(
-                fhirClient.getFhirContext(), listBundle, ResearchSubject.class));
-
-    // Load the subsequent pages
-    while (listBundle.getLink(LINK_NEXT) != null) {
-      listBundle = fhirClient.loadPage().next(listBundle).execute();
-      researchSubjectList.addAll(
-          BundleUtil.toListOfResourcesOfType(
-              fhirClient.getFhirContext(), listBundle, ResearchSubject.class));
-    }
-
+        FhirOperationEvent.record(
+            "getResearchSubjectsFromList",
+            "search",
+            "List",
+            () ->
+                fhirClient
+                    .search()
+                    .forResource(ListResource.class)
+                    .where(IAnyResource.RES_ID.exactly().identifier(list.getId()))
+                    .include(IBaseResource.INCLUDE_ALL)
+                    .returnBundle(Bundle.class)
+                    .execute());
+
+    var researchSubjectList = new ArrayList<ResearchSubject>();
+    visitPages(
+        "getResearchSubjectsFromList",
+        listBundle,
+        ResearchSubject.class,
+        researchSubjectList::add);
     return researchSubjectList;
   }
 
   /** Query research study resource from target fhir server by given id. */
   public ResearchStudy getResearchStudyFromId(String id) {
-    return fhirClient.read().resource(ResearchStudy.class).withId(id).execute();
+    return FhirOperationEvent.record(
+        "getResearchStudyFromId",
+        "read",
+        "ResearchStudy",
+        () -> fhirClient.read().resource(ResearchStudy.class).withId(id).execute());
   }
 
-  /** Query list of practitioners from server by their email address */
-  // TODO: refactor to use a single search bundle request instead of multiple search invocations
-  public List<Practitioner> getPractitionersByEmail(List<String> subscribers) {
-    var practitionerObjects = new ArrayList<Practitioner>();
-
-    for (var subscriberName : subscribers) {
-      LOG.debug("fetching FHIR Practitioner {}", kv("subscriberName", subscriberName));
-
-      var listBundlePractitioners =
-          fhirClient
-              .search()
-              .forResource(Practitioner.class)
-              .where(Practitioner.EMAIL.exactly().code(subscriberName))
-              .returnBundle(Bundle.class)
-              .execute();
-
-      var practitionerList =
-          BundleUtil.toListOfResourcesOfType(
-              fhirClient.getFhirContext(), listBundlePractitioners, Practitioner.class);
-
-      if (practitionerList.isEmpty()) {
-        LOG.warn("no Practitioner resource with {} found", kv("email", subscriberName));
-        return List.of();
-      }
-
-      if (practitionerList.size() > 1) {
-        LOG.warn(
-            "found more than one practitioner with {}. Returning the first one.",
-            kv("email", subscriberName));
+  /**
+   * Query the practitioners with any of the given email addresses. A few addresses are searched
+   * for at once, so the number of searches only grows slowly with the number of addresses.
+   * Returns the first practitioner found per address, addresses without one are left out.
+   */
+  public Map<String, Practitioner> getPractitionersByEmails(Collection<String> emails) {
+    var chunks = Lists.partition(List.copyOf(new LinkedHashSet<>(emails)), VALUES_PER_SEARCH);
+    var practitionersPerChunk =
+        AsyncFhirClient.await(asyncFhirClient.map(chunks, this::searchPractitionersByEmails));
+
+    var result = new HashMap<String, Practitioner>();
+    for (var i = 0; i < chunks.size(); i++) {
+      for (var email : chunks.get(i)) {
+        practitionersPerChunk.get(i).stream()
+            .filter(practitioner -> PractitionerUtils.hasEmail(practitioner, email))
+            .findFirst()
+            .ifPresentOrElse(
+                practitioner -> result.put(email, practitioner),
+                () -> LOG.warn("no Practitioner resource with {} found", kv("email", email)));
       }
-
-      practitionerObjects.add(practitionerList.get(0));
     }
+    return result;
+  }
 
-    return practitionerObjects;
+  private List<Practitioner> searchPractitionersByEmails(List<String> emails) {
+    var results =
+        FhirOperationEvent.record(
+            "getPractitionersByEmails",
+            "search",
+            "Practitioner",
+            () ->
+                fhirClient
+                    .search()
+                    .forResource(Practitioner.class)
+                    .where(Practitioner.EMAIL.exactly().codes(emails))
+                    .returnBundle(Bundle.class)
+                    .execute());
+
+    var practitioners = new ArrayList<Practitioner>();
+    visitPages("getPractitionersByEmails", results, Practitioner.class, practitioners::add);
+    return practitioners;
   }
 
   /**
    * Query active CommunicationRequests from FHIR server for the given list of subscriber's email
    * addresses
    */
-  // TODO: instead of N x M loops, only fetch the active communication requests for a given
-  // subscriber.
-  public List<CommunicationRequest> getOpenMessagesForSubscribers(List<String> subscribers) {
+  public List<Message> getOpenMessagesForSubscribers(List<String> subscribers) {
     LOG.info("retrieving open messages for {}", kv("numSubscribers", subscribers.size()));
 
-    var allOpenMessages =
-        getCommunicationRequestsIncludingRecipientsByStatus(CommunicationRequestStatus.ACTIVE);
+    var allOpenMessages = getMessagesByStatus(CommunicationRequestStatus.ACTIVE);
 
     if (allOpenMessages.isEmpty()) {
       LOG.info("no active CommunicationRequest resources found");
       return List.of();
     }
 
-    var messages = new ArrayList<CommunicationRequest>();
-    for (var subscriber : subscribers) {
-      for (var message : allOpenMessages) {
-        var recipientList = message.getRecipient();
-        for (var reference : recipientList) {
-          if (reference.getResource().fhirType().equals("Practitioner")) {
-            var practitioner = (Practitioner) reference.getResource();
-
-            LOG.debug(
-                "checking if {} matches with {} {} for {}",
-                kv("subscriber", subscriber),
-                kv("communicationRequestReason", message.getReasonCodeFirstRep().getText()),
-                kv("practitionerEmail", practitioner.getTelecomFirstRep().getValue()),
-                kv("message", message.getIdElement().getIdPart()));
-
-            if (PractitionerUtils.hasEmail(practitioner, subscriber)) {
-              LOG.debug(
-                  "add {} to list for {} ({})",
-                  kv("practitioner", practitioner.getIdElement().getIdPart()),
-                  kv("message", message.getIdElement().getIdPart()),
-                  kv("subscriber", subscriber));
-              messages.add(message);
-            }
-          }
-        }
+    return filterBySubscribers(allOpenMessages, subscribers);
+  }
+
+  /**
+   * Query the active CommunicationRequests addressed to the practitioners with the given email
+   * addresses. Searches by recipient instead of fetching all active messages, so each shard of a
+   * distribution run only fetches its own messages. A few recipients are searched for at once, and
+   * the searches run concurrently.
+   */
+  public List<Message> getActiveMessagesForRecipients(List<String> subscribers) {
+    LOG.info("retrieving active messages for {}", kv("numSubscribers", subscribers.size()));
+
+    var recipients =
+        getPractitionersByEmails(subscribers).values().stream()
+            .map(practitioner -> "Practitioner/" + practitioner.getIdElement().getIdPart())
+            .distinct()
+            .toList();
+    var messagesPerChunk =
+        AsyncFhirClient.await(
+            asyncFhirClient.map(
+                Lists.partition(recipients, VALUES_PER_SEARCH),
+                this::searchActiveMessagesForRecipients));
+
+    var messages = new ArrayList<Message>();
+    messagesPerChunk.forEach(messages::addAll);
+    // the recipient ids are only resolved by email, so only keep the messages addressed by email
+    return filterBySubscribers(messages, subscribers);
+  }
+
+  private List<Message> searchActiveMessagesForRecipients(List<String> recipients) {
+    var results =
+        FhirOperationEvent.record(
+            "getActiveMessagesForRecipients",
+            "search",
+            "CommunicationRequest",
+            () ->
+                fhirClient
+                    .search()
+                    .forResource(CommunicationRequest.class)
+                    .where(
+                        CommunicationRequest.STATUS
+                            .exactly()
+                            .code(CommunicationRequestStatus.ACTIVE.toCode()))
+                    .and(
+                        CommunicationRequest.IDENTIFIER.hasSystemWithAnyCode(
+                            fhirSystemsConfig.getCommunication()))
+                    .and(CommunicationRequest.RECIPIENT.hasAnyOfIds(recipients))
+                    .include(CommunicationRequest.INCLUDE_RECIPIENT.asNonRecursive())
+                    .returnBundle(Bundle.class)
+                    .execute());
+
+    var messages = new ArrayList<Message>();
+    visitPages(
+        "getActiveMessagesForRecipients",
+        results,
+        CommunicationRequest.class,
+        request -> messages.add(Message.fromCommunicationRequest(request, fhirSystemsConfig)));
+    return messages;
+  }
+
+  /** Keep the messages whose recipient email is one of the given subscribers. */
+  public static List<Message> filterBySubscribers(
+      List<Message> messages, List<String> subscribers) {
+    var subscriberSet = Set.copyOf(subscribers);
+    var result = new ArrayList<Message>();
+    for (var message : messages) {
+      if (message.recipientEmail() != null && subscriberSet.contains(message.recipientEmail())) {
+        LOG.debug(
+            "add {} to list for {} ({})",
+            kv("practitioner", message.recipientId()),
+            kv("message", message.id()),
+            kv("subscriber", message.recipientEmail()));
+        result.add(message);
       }
     }
 
-    return messages;
+    return result;
   }
 
-  public List<CommunicationRequest> getCommunicationRequestsIncludingRecipientsByStatus(
-      CommunicationRequestStatus status) {
+  /**
+   * Query CommunicationRequests with the given status including their recipients. Each page of
+   * the search result is projected to {@link Message} instances right after it was fetched, so at
+   * most one page of HAPI resources is held in memory at any time.
+   */
+  public List<Message> getMessagesByStatus(CommunicationRequestStatus status) {
     LOG.info("retrieving CommunicationRequest with {} from server", kv("status", status));
 
     var results =
+        FhirOperationEvent.record(
+            "getMessagesByStatus",
+            "search",
+            "CommunicationRequest",
+            () ->
+                fhirClient
+                    .search()
+                    .forResource(CommunicationRequest.class)
+                    .where(CommunicationRequest.STATUS.exactly().code(status.toCode()))
+                    .and(
+                        CommunicationRequest.IDENTIFIER.hasSystemWithAnyCode(
+                            fhirSystemsConfig.getCommunication()))
+                    .include(CommunicationRequest.INCLUDE_RECIPIENT.asNonRecursive())
+                    .returnBundle(Bundle.class)
+                    .execute());
+
+    // only the projection of each CommunicationRequest is kept
+    var allMessages = new ArrayList<Message>();
+    visitPages(
+        "getMessagesByStatus",
+        results,
+        CommunicationRequest.class,
+        request -> allMessages.add(Message.fromCommunicationRequest(request, fhirSystemsConfig)));
+    return allMessages;
+  }
+
+  /**
+   * Page through the CommunicationRequests with the given status last updated before the given
+   * time including their recipients, least recently updated first. Each resource is handed to the
+   * visitor, paging stops as soon as the visitor returns false.
+   *
+   * @param updatedFrom if set, only visit the resources updated at or after this time, so callers
+   *     can continue a visit they stopped early
+   */
+  public void visitCommunicationRequestsByStatus(
+      CommunicationRequestStatus status,
+      Instant updatedBefore,
+      Instant updatedFrom,
+      Predicate<CommunicationRequest> visitor) {
+    LOG.info("visiting CommunicationRequest with {} from server", kv("status", status));
+
+    var query =
         fhirClient
             .search()
             .forResource(CommunicationRequest.class)
@@ -189,80 +341,313 @@ public class FhirServerProvider {
             .and(
                 CommunicationRequest.IDENTIFIER.hasSystemWithAnyCode(
                     fhirSystemsConfig.getCommunication()))
-            .include(CommunicationRequest.INCLUDE_RECIPIENT.asNonRecursive())
-            .returnBundle(Bundle.class)
-            .execute();
+            .and(
+                new DateClientParam(Constants.PARAM_LASTUPDATED)
+                    .before()
+                    .millis(Date.from(updatedBefore)));
+    if (updatedFrom != null) {
+      query =
+          query.and(
+              new DateClientParam(Constants.PARAM_LASTUPDATED)
+                  .afterOrEquals()
+                  .millis(Date.from(updatedFrom)));
+    }
 
-    var allMessages = new ArrayList<CommunicationRequest>();
+    var finalQuery = query;
+    var results =
+        FhirOperationEvent.record(
+            "visitCommunicationRequestsByStatus",
+            "search",
+            "CommunicationRequest",
+            () ->
+                finalQuery
+                    .include(CommunicationRequest.INCLUDE_RECIPIENT.asNonRecursive())
+                    .sort()
+                    .ascending("_lastUpdated")
+                    .returnBundle(Bundle.class)
+                    .execute());
+
+    visitPages("visitCommunicationRequestsByStatus", results, CommunicationRequest.class, visitor);
+  }
 
-    do {
-      // cast all resources in the bundle to CommunicationRequest
-      var messagesInPageBundle =
-          BundleUtil.toListOfResourcesOfType(
-              fhirClient.getFhirContext(), results, CommunicationRequest.class);
+  /**
+   * Page through the CommunicationRequests of any status updated after the given time including
+   * their recipients, least recently updated first. Lets a copy of the pending messages catch up
+   * with the changes made since it was fetched. Paging stops as soon as the visitor returns false.
+   */
+  public void visitCommunicationRequestsUpdatedAfter(
+      Instant updatedAfter, Predicate<CommunicationRequest> visitor) {
+    LOG.debug("visiting CommunicationRequest updated after {}", kv("watermark", updatedAfter));
 
-      allMessages.addAll(messagesInPageBundle);
+    var results =
+        FhirOperationEvent.record(
+            "visitCommunicationRequestsUpdatedAfter",
+            "search",
+            "CommunicationRequest",
+            () ->
+                fhirClient
+                    .search()
+                    .forResource(CommunicationRequest.class)
+                    .where(
+                        CommunicationRequest.IDENTIFIER.hasSystemWithAnyCode(
+                            fhirSystemsConfig.getCommunication()))
+                    .and(
+                        new DateClientParam(Constants.PARAM_LASTUPDATED)
+                            .after()
+                            .millis(Date.from(updatedAfter)))
+                    .include(CommunicationRequest.INCLUDE_RECIPIENT.asNonRecursive())
+                    .sort()
+                    .ascending(Constants.PARAM_LASTUPDATED)
+                    .returnBundle(Bundle.class)
+                    .execute());
+
+    visitPages(
+        "visitCommunicationRequestsUpdatedAfter", results, CommunicationRequest.class, visitor);
+  }
 
-      if (results.getLink(LINK_NEXT) != null) {
-        LOG.debug(
-            "fetching next page of results {} from server",
-            kv("link", results.getLink(LINK_NEXT).getUrl()));
-        var resultsFinal = results;
-        results = fhirClient.loadPage().next(resultsFinal).execute();
-      } else {
-        results = null;
-      }
+  /**
+   * Page through the lists matching the search criteria that were updated after the given time,
+   * least recently updated first. Each list is handed to the visitor right after its page was
+   * fetched, paging stops as soon as the visitor returns false.
+   *
+   * @param criteria a search URL relative to the server base, e.g. {@code List?code=...}
+   */
+  public void visitListsUpdatedAfter(
+      String criteria, Instant updatedAfter, int pageSize, Predicate<ListResource> visitor) {
+    LOG.debug("visiting lists updated after {}", kv("watermark", updatedAfter));
 
-    } while (results != null);
+    var results =
+        FhirOperationEvent.record(
+            "visitListsUpdatedAfter",
+            "search",
+            "List",
+            () ->
+                fhirClient
+                    .search()
+                    .byUrl(criteria)
+                    .where(
+                        new DateClientParam(Constants.PARAM_LASTUPDATED)
+                            .after()
+                            .millis(Date.from(updatedAfter)))
+                    .sort()
+                    .ascending(Constants.PARAM_LASTUPDATED)
+                    .count(pageSize)
+                    .returnBundle(Bundle.class)
+                    .execute());
+
+    visitPages("visitListsUpdatedAfter", results, ListResource.class, visitor);
+  }
 
-    return allMessages;
+  /**
+   * Count the CommunicationRequests with the given status via {@code _summary=count}, which lets
+   * the server skip loading any resource. Returns nothing if the server did not report a total, in
+   * which case the caller has to fall back to the full search.
+   *
+   * @param updatedAfter if set, only count the resources updated after this time
+   */
+  public OptionalInt countMessagesByStatus(
+      CommunicationRequestStatus status, Instant updatedAfter) {
+    var query =
+        fhirClient
+            .search()
+            .forResource(CommunicationRequest.class)
+            .where(CommunicationRequest.STATUS.exactly().code(status.toCode()))
+            .and(
+                CommunicationRequest.IDENTIFIER.hasSystemWithAnyCode(
+                    fhirSystemsConfig.getCommunication()));
+    if (updatedAfter != null) {
+      query =
+          query.and(
+              new DateClientParam(Constants.PARAM_LASTUPDATED)
+                  .after()
+                  .millis(Date.from(updatedAfter)));
+    }
+
+    var finalQuery = query;
+    var results =
+        FhirOperationEvent.record(
+            "countMessagesByStatus",
+            "search",
+            "CommunicationRequest",
+            () -> finalQuery.summaryMode(SummaryEnum.COUNT).returnBundle(Bundle.class).execute());
+
+    if (!results.hasTotal()) {
+      LOG.debug("server did not report the number of CommunicationRequests with {}", status);
+      return OptionalInt.empty();
+    }
+    return OptionalInt.of(results.getTotal());
   }
 
-  /** Query top 100 communication resources with state ONHOLD. */
-  public List<CommunicationRequest> getErrorMessages() {
-    return getCommunicationRequestsIncludingRecipientsByStatus(CommunicationRequestStatus.ONHOLD);
+  /**
+   * Query at most count completed or revoked CommunicationRequests that were last updated before
+   * the given time, least recently updated first. Only the first page is fetched, as callers delete
+   * the returned resources before asking for the next ones.
+   *
+   * @param updatedFrom if set, only return the resources updated at or after this time, so callers
+   *     can page past the resources they failed to delete
+   */
+  public List<CommunicationRequest> getTerminalMessagesUpdatedBefore(
+      Instant updatedBefore, Instant updatedFrom, int count) {
+    var query =
+        fhirClient
+            .search()
+            .forResource(CommunicationRequest.class)
+            .where(
+                CommunicationRequest.STATUS
+                    .exactly()
+                    .codes(
+                        CommunicationRequestStatus.COMPLETED.toCode(),
+                        CommunicationRequestStatus.REVOKED.toCode()))
+            .and(
+                CommunicationRequest.IDENTIFIER.hasSystemWithAnyCode(
+                    fhirSystemsConfig.getCommunication()))
+            .and(
+                new DateClientParam(Constants.PARAM_LASTUPDATED)
+                    .before()
+                    .millis(Date.from(updatedBefore)));
+    if (updatedFrom != null) {
+      query =
+          query.and(
+              new DateClientParam(Constants.PARAM_LASTUPDATED)
+                  .afterOrEquals()
+                  .millis(Date.from(updatedFrom)));
+    }
+
+    var finalQuery = query;
+    var results =
+        FhirOperationEvent.record(
+            "getTerminalMessagesUpdatedBefore",
+            "search",
+            "CommunicationRequest",
+            () ->
+                finalQuery
+                    .sort()
+                    .ascending(Constants.PARAM_LASTUPDATED)
+                    .count(count)
+                    .returnBundle(Bundle.class)
+                    .execute());
+
+    return BundleUtil.toListOfResourcesOfType(
+        fhirClient.getFhirContext(), results, CommunicationRequest.class);
+  }
+
+  /** Query communication resources with state ONHOLD. */
+  public List<Message> getErrorMessages() {
+    return getMessagesByStatus(CommunicationRequestStatus.ONHOLD);
   }
 
   /**
    * Query communication resources from target fhir server and with given fhir system that are in
    * state active to be delivered.
    */
-  public List<CommunicationRequest> getPreparedMessages() {
-    return getCommunicationRequestsIncludingRecipientsByStatus(CommunicationRequestStatus.ACTIVE);
+  public List<Message> getPreparedMessages() {
+    return getMessagesByStatus(CommunicationRequestStatus.ACTIVE);
+  }
+
+  /** Query when the longest pending active CommunicationRequest was authored, if there is any. */
+  public Optional<Instant> getOldestActiveMessageAuthoredOn() {
+    var results =
+        FhirOperationEvent.record(
+            "getOldestActiveMessageAuthoredOn",
+            "search",
+            "CommunicationRequest",
+            () ->
+                fhirClient
+                    .search()
+                    .forResource(CommunicationRequest.class)
+                    .where(
+                        CommunicationRequest.STATUS
+                            .exactly()
+                            .code(CommunicationRequestStatus.ACTIVE.toCode()))
+                    .and(
+                        CommunicationRequest.IDENTIFIER.hasSystemWithAnyCode(
+                            fhirSystemsConfig.getCommunication()))
+                    .sort()
+                    .ascending(CommunicationRequest.AUTHORED)
+                    .count(1)
+                    .returnBundle(Bundle.class)
+                    .execute());
+
+    return BundleUtil.toListOfResourcesOfType(
+            fhirClient.getFhirContext(), results, CommunicationRequest.class)
+        .stream()
+        .filter(CommunicationRequest::hasAuthoredOn)
+        .map(request -> request.getAuthoredOn().toInstant())
+        .findFirst();
   }
 
   public Bundle executeTransaction(Bundle transaction) {
-    return fhirClient.transaction().withBundle(transaction).execute();
+    return FhirOperationEvent.record(
+        "executeTransaction",
+        "transaction",
+        "Bundle",
+        () -> fhirClient.transaction().withBundle(transaction).execute());
+  }
+
+  /**
+   * Hand the resources of the given type on the first page and all pages following it to the
+   * visitor, fetching each page only once the previous one was visited. Paging stops as soon as
+   * the visitor returns false.
+   */
+  private <T extends IBaseResource> void visitPages(
+      String operation, Bundle firstPage, Class<T> type, Predicate<T> visitor) {
+    var results = firstPage;
+    while (results != null) {
+      var resourcesInPage =
+          BundleUtil.toListOfResourcesOfType(fhirClient.getFhirContext(), results, type);
+
+      for (var resource : resourcesInPage) {
+        if (!visitor.test(resource)) {
+          return;
+        }
+      }
+
+      if (results.getLink(LINK_NEXT) != null) {
+        results = loadNextPage(operation, results);
+      } else {
+        results = null;
+      }
+    }
+  }
+
+  private Bundle loadNextPage(String operation, Bundle page) {
+    LOG.debug(
+        "fetching next page of results {} from server",
+        kv("link", page.getLink(LINK_NEXT).getUrl()));
+    return FhirOperationEvent.record(
+        operation, "page", "Bundle", () -> fhirClient.loadPage().next(page).execute());
   }
 
   public void executeSingleConditionalCreate(List<Practitioner> practitioners) {
+    AsyncFhirClient.await(
+        asyncFhirClient.forEach(practitioners, this::conditionalCreatePractitioner));
+  }
 
-    for (Practitioner practitioner : practitioners) {
-      var contactPoint = PractitionerUtils.getFirstEmailFromPractitioner(practitioner);
-      if (contactPoint.isPresent()) {
-        var email = contactPoint.get().getValue();
+  private void conditionalCreatePractitioner(Practitioner practitioner) {
+    var contactPoint = PractitionerUtils.getFirstEmailFromPractitioner(practitioner);
+    if (contactPoint.isPresent()) {
+      var email = contactPoint.get().getValue();
 
-        try {
+      try {
 
-          Bundle bundle = new Bundle();
-          bundle.setType(Bundle.BundleType.TRANSACTION);
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.TRANSACTION);
 
-          bundle
-              .addEntry()
-              .setFullUrl(practitioner.getIdElement().getValue())
-              .setResource(practitioner)
-              .getRequest()
-              .setUrl("Practitioner")
-              .setIfNoneExist(String.format("email=%s", email))
-              .setMethod(Bundle.HTTPVerb.POST);
+        bundle
+            .addEntry()
+            .setFullUrl(practitioner.getIdElement().getValue())
+            .setResource(practitioner)
+            .getRequest()
+            .setUrl("Practitioner")
+            .setIfNoneExist(String.format("email=%s", email))
+            .setMethod(Bundle.HTTPVerb.POST);
 
-          executeTransaction(bundle);
+        executeTransaction(bundle);
 
-        } catch (PreconditionFailedException e) {
-          LOG.warn(
-              "adding practitioners will be skipped because filter by email caused problem",
-              kv("practitioneremail", email));
-        }
+      } catch (PreconditionFailedException e) {
+        LOG.warn(
+            "adding practitioners will be skipped because filter by email caused problem",
+            kv("practitioneremail", email));
       }
     }
   }
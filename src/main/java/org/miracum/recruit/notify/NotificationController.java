@@ -1,22 +1,38 @@
 package org.miracum.recruit.notify;
 
 import static net.logstash.logback.argument.StructuredArguments.kv;
+import static org.miracum.recruit.notify.journal.WebhookJournal.NOT_JOURNALED;
 
 import ca.uhn.fhir.parser.IParser;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
+import java.time.Instant;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.LongSupplier;
 import java.util.stream.Collectors;
 import org.hl7.fhir.r4.model.ListResource;
 import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.ResearchStudy;
 import org.hl7.fhir.r4.model.ResearchSubject;
 import org.hl7.fhir.r4.model.ResearchSubject.ResearchSubjectStatus;
+import org.miracum.recruit.notify.fhirserver.AsyncFhirClient;
 import org.miracum.recruit.notify.fhirserver.FhirSystemsConfig;
+import org.miracum.recruit.notify.idempotency.IdempotencyConfig;
+import org.miracum.recruit.notify.idempotency.ProcessedListVersions;
+import org.miracum.recruit.notify.jfr.ListWebhookEvent;
+import org.miracum.recruit.notify.journal.WebhookJournal;
+import org.miracum.recruit.notify.locking.StripedLocks;
 import org.miracum.recruit.notify.message.MessageCreator;
+import org.miracum.recruit.notify.metrics.NotifyMetrics;
+import org.miracum.recruit.notify.partitioning.ListOwnership;
+import org.miracum.recruit.notify.partitioning.WebhookForwarder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
 import org.springframework.retry.RetryCallback;
 import org.springframework.retry.RetryContext;
 import org.springframework.retry.listener.RetryListenerSupport;
@@ -24,7 +40,9 @@ import org.springframework.retry.support.RetryTemplate;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
 
 /**
  * Define endpoint for receiving PUT request from fhir server sending subscriptions for recruiting
@@ -39,6 +57,14 @@ public class NotificationController {
   private final IParser fhirParser;
   private final FhirServerProvider fhirServer;
   private final FhirSystemsConfig fhirSystems;
+  private final AsyncFhirClient asyncFhirClient;
+  private final NotifyMetrics metrics;
+  private final StripedLocks locks;
+  private final ProcessedListVersions processedListVersions;
+  private final boolean idempotencyEnabled;
+  private final ListOwnership listOwnership;
+  private final WebhookForwarder webhookForwarder;
+  private final WebhookJournal webhookJournal;
 
   /**
    * Prepare config items and email utils for receiving and handle subscription events from target
@@ -50,21 +76,51 @@ public class NotificationController {
       FhirSystemsConfig fhirSystems,
       FhirServerProvider fhirServer,
       MessageCreator messageCreator,
-      IParser fhirParser) {
+      IParser fhirParser,
+      AsyncFhirClient asyncFhirClient,
+      NotifyMetrics metrics,
+      StripedLocks locks,
+      ProcessedListVersions processedListVersions,
+      IdempotencyConfig idempotencyConfig,
+      ListOwnership listOwnership,
+      WebhookForwarder webhookForwarder,
+      WebhookJournal webhookJournal) {
     this.retryTemplate = retryTemplate;
+    // registered once, the template is shared by every webhook handled by this controller
+    retryTemplate.registerListener(
+        new RetryListenerSupport() {
+          @Override
+          public <T, E extends Throwable> void onError(
+              RetryContext context, RetryCallback<T, E> callback, Throwable throwable) {
+            LOG.warn("handleSubscription failed. {} attempt.", context.getRetryCount());
+          }
+        });
     this.fhirSystems = fhirSystems;
     this.fhirServer = fhirServer;
     this.messageCreator = messageCreator;
     this.fhirParser = fhirParser;
+    this.asyncFhirClient = asyncFhirClient;
+    this.metrics = metrics;
+    this.locks = locks;
+    this.processedListVersions = processedListVersions;
+    this.idempotencyEnabled = idempotencyConfig.isEnabled();
+    this.listOwnership = listOwnership;
+    this.webhookForwarder = webhookForwarder;
+    this.webhookJournal = webhookJournal;
   }
 
   /**
    * Expose endpoint that will be assigned to subscription and accepts application/fhir+json
-   * content.
+   * content. With multiple replicas, the webhook is passed on to the replica owning the list,
+   * unless it was already forwarded or the owner is unreachable. If the owner got the webhook but
+   * failed or did not answer, 503 is returned, so the FHIR server delivers it again.
    */
   @PutMapping(value = "/on-list-change/List/{id}", consumes = "application/fhir+json")
   public void onListChange(
-      @PathVariable(value = "id") String resourceId, @RequestBody String body) {
+      @PathVariable(value = "id") String resourceId,
+      @RequestBody String body,
+      @RequestHeader(value = WebhookForwarder.FORWARDED_HEADER, required = false)
+          String forwarded) {
     LOG.info("onListChange invoked for {}", kv("list", resourceId));
 
     if (body == null) {
@@ -72,70 +128,201 @@ public class NotificationController {
       return;
     }
 
-    var list = fhirParser.parseResource(ListResource.class, body);
+    if (webhookForwarder.isEnabled() && !webhookForwarder.isForwarded(forwarded)) {
+      var ownerUrl = listOwnership.getRemoteOwnerUrl(resourceId);
+      if (ownerUrl.isPresent()) {
+        switch (webhookForwarder.forward(ownerUrl.get(), resourceId, body)) {
+          case FORWARDED -> {
+            LOG.debug("forwarded {} to its owner {}", kv("list", resourceId), ownerUrl.get());
+            return;
+          }
+          case UNKNOWN -> {
+            // the owner may have handled it in part, the FHIR server delivers it again later
+            throw new ResponseStatusException(
+                HttpStatus.SERVICE_UNAVAILABLE, "the owner of the list failed or did not answer");
+          }
+          case NOT_FORWARDED -> {
+            // the owner never got it, so it is handled here
+          }
+        }
+      }
+    }
+
+    processListChange(resourceId, body, true);
+  }
+
+  /**
+   * Handle a list webhook body. Unless it is replayed from the journal, a webhook that needs to be
+   * handled is first recorded in the journal, so it survives a restart before it is done.
+   */
+  void processListChange(String resourceId, String body, boolean journal) {
+    var event = new ListWebhookEvent();
+    event.listId = resourceId;
+    event.outcome = NotifyMetrics.FAILURE;
+    event.begin();
+    try {
+      var list =
+          metrics.time("webhook.parse", () -> fhirParser.parseResource(ListResource.class, body));
+      event.outcome =
+          processList(
+              list,
+              event,
+              () -> journal ? webhookJournal.append(resourceId, body) : NOT_JOURNALED,
+              null);
+    } finally {
+      event.commit();
+    }
+  }
+
+  /**
+   * Handle a changed list fetched from the FHIR server by another ingestion channel, returning the
+   * outcome. A poll only sees the latest version of each list, so then the list counts as changed
+   * if its previous version was not seen either.
+   *
+   * @param changedSince the watermark of the poll, versions updated after it were never handled.
+   *     Null if every version of the list is handled on its own.
+   */
+  public String processFetchedList(ListResource list, Instant changedSince) {
+    var event = new ListWebhookEvent();
+    event.listId = list.getIdElement().getIdPart();
+    event.outcome = NotifyMetrics.FAILURE;
+    event.begin();
+    try {
+      event.outcome = processList(list, event, () -> NOT_JOURNALED, changedSince);
+      return event.outcome;
+    } finally {
+      event.commit();
+    }
+  }
+
+  private String processList(
+      ListResource list, ListWebhookEvent event, LongSupplier journal, Instant changedSince) {
+    event.entryCount = list.getEntry().size();
 
     if (!list.hasEntry()) {
       LOG.warn("Received empty screening list {}, aborting.", list.getId());
-      return;
+      return "empty";
     }
 
-    retryTemplate.registerListener(
-        new RetryListenerSupport() {
-          @Override
-          public <T, E extends Throwable> void onError(
-              RetryContext context, RetryCallback<T, E> callback, Throwable throwable) {
-            LOG.warn("handleSubscription failed. {} attempt.", context.getRetryCount());
-          }
-        });
+    if (isAlreadyProcessed(list)) {
+      LOG.info("{} was already handled, ignoring the redelivery", kv("version", list.getId()));
+      metrics.countDuplicateWebhook();
+      return "duplicate";
+    }
+
+    var sequence = journal.getAsLong();
+    try {
+      return handleListChange(list, changedSince);
+    } finally {
+      webhookJournal.complete(sequence);
+    }
+  }
+
+  private String handleListChange(ListResource list, Instant changedSince) {
+    var sample = metrics.start();
+    var outcome = NotifyMetrics.FAILURE;
+    try {
+      // versions of the same list are handled one after the other, so each one is compared
+      // against the previous version only after the messages for that one have been stored
+      var listId = list.getIdElement().getIdPart();
+      outcome =
+          retryTemplate.execute(
+              retryContext ->
+                  locks.withListLock(listId, () -> handleVersionOnce(list, changedSince)));
+      return outcome;
+    } finally {
+      metrics.stop(sample, "webhook", outcome);
+    }
+  }
+
+  /**
+   * Handle the version of the list unless a concurrent delivery of it has been handled while
+   * waiting for the list lock, and remember it once it has been handled successfully.
+   */
+  private String handleVersionOnce(ListResource list, Instant changedSince) {
+    if (isAlreadyProcessed(list)) {
+      metrics.countDuplicateWebhook();
+      return "duplicate";
+    }
+
+    var outcome = handleSubscription(list, changedSince);
+    if (idempotencyEnabled && list.getMeta().hasVersionId()) {
+      processedListVersions.add(list.getIdElement().getIdPart(), list.getMeta().getVersionId());
+    }
+    return outcome;
+  }
 
-    retryTemplate.execute(retryContext -> handleSubscription(list));
+  private boolean isAlreadyProcessed(ListResource list) {
+    return idempotencyEnabled
+        && list.getMeta().hasVersionId()
+        && processedListVersions.contains(
+            list.getIdElement().getIdPart(), list.getMeta().getVersionId());
   }
 
-  private Void handleSubscription(ListResource list) {
+  /** Handle the changed list, returning the outcome recorded for the whole webhook. */
+  private String handleSubscription(ListResource list, Instant changedSince) {
     var studyReferenceExtension = list.getExtensionByUrl(fhirSystems.getScreeningListReference());
 
     if (studyReferenceExtension == null) {
       LOG.warn(
           "studyReferenceExtension not set for {}. Impossible to determine receiver, aborting.",
           list.getId());
-      return null;
+      return "no_study";
     }
 
     MDC.put("list", list.getId());
 
-    if (!hasPatientListChanged(list)) {
+    if (!metrics.time("webhook.compare", () -> hasPatientListChanged(list, changedSince))) {
       LOG.info("list hasn't changed since last time");
-      return null;
+      return "unchanged";
     }
 
     var studyReference = (Reference) studyReferenceExtension.getValue();
 
-    var researchSubjectList = fhirServer.getResearchSubjectsFromList(list);
+    // the subject search and the study lookup are independent, so overlap their round trips
+    var researchSubjectsFuture =
+        asyncFhirClient.supply(
+            () ->
+                metrics.time(
+                    "webhook.fetch_subjects", () -> fhirServer.getResearchSubjectsFromList(list)));
+    var studyFuture =
+        studyReference.hasDisplay()
+            ? CompletableFuture.<ResearchStudy>completedFuture(null)
+            : asyncFhirClient.supply(
+                () ->
+                    metrics.time(
+                        "webhook.fetch_study",
+                        () ->
+                            fhirServer.getResearchStudyFromId(
+                                studyReference.getReferenceElement().getIdPart())));
+
+    var researchSubjectList = AsyncFhirClient.await(researchSubjectsFuture);
     if (!hasPatientListAnyCandidates(researchSubjectList)) {
       LOG.info("list doesn't contain any subjects with status 'candidate'");
-      return null;
+      studyFuture.cancel(false);
+      return "no_candidates";
     }
 
-    final var acronym = retrieveStudyAcronym(studyReference);
+    final var acronym = retrieveStudyAcronym(studyReference, AsyncFhirClient.await(studyFuture));
     if (Strings.isNullOrEmpty(acronym)) {
       LOG.error("couldn't get acronym from list");
-      return null;
+      return "no_acronym";
     }
 
     var listId = list.getIdElement().getIdPart();
-    messageCreator.temporaryStoreMessagesInFhir(acronym, listId);
+    var listUpdatedAt =
+        list.getMeta().hasLastUpdated() ? list.getMeta().getLastUpdated().toInstant() : null;
+    messageCreator.temporaryStoreMessagesInFhir(acronym, listId, listUpdatedAt);
 
-    return null;
+    return "changed";
   }
 
-  private String retrieveStudyAcronym(Reference studyReference) {
+  private String retrieveStudyAcronym(Reference studyReference, ResearchStudy study) {
     var studyAcronym = "";
 
     if (studyReference.hasDisplay()) {
       studyAcronym = studyReference.getDisplay();
     } else {
-      var study =
-          fhirServer.getResearchStudyFromId(studyReference.getReferenceElement().getIdPart());
       var studyArg = kv("study", studyReference.getReference());
 
       if (study.hasExtension(fhirSystems.getStudyAcronym())) {
@@ -164,18 +351,31 @@ public class NotificationController {
         .anyMatch(subject -> subject.getStatus() == ResearchSubjectStatus.CANDIDATE);
   }
 
-  private boolean hasPatientListChanged(ListResource newScreenList) {
+  private boolean hasPatientListChanged(ListResource newScreenList, Instant changedSince) {
     var lastScreenList = fhirServer.getPreviousScreeningListFromServer(newScreenList);
     if (lastScreenList == null) {
       return true;
     }
 
-    var newResearchSubjectIds = getResearchSubjectIds(newScreenList.getEntry());
-    var lastResearchSubjectIds = getResearchSubjectIds(lastScreenList.getEntry());
-    return !newResearchSubjectIds.equals(lastResearchSubjectIds);
+    // the previous version was never handled on its own, so it may have held the actual change
+    if (changedSince != null
+        && lastScreenList.getMeta().hasLastUpdated()
+        && lastScreenList.getMeta().getLastUpdated().toInstant().isAfter(changedSince)) {
+      return true;
+    }
+
+    return !hasSameResearchSubjects(newScreenList, lastScreenList);
+  }
+
+  /** Compare the lists by the ids of the research subjects they reference, ignoring order. */
+  @VisibleForTesting
+  static boolean hasSameResearchSubjects(ListResource first, ListResource second) {
+    var firstResearchSubjectIds = getResearchSubjectIds(first.getEntry());
+    var secondResearchSubjectIds = getResearchSubjectIds(second.getEntry());
+    return firstResearchSubjectIds.equals(secondResearchSubjectIds);
   }
 
-  private Set<String> getResearchSubjectIds(List<ListResource.ListEntryComponent> entry) {
+  private static Set<String> getResearchSubjectIds(List<ListResource.ListEntryComponent> entry) {
     return entry.stream()
         .map(item -> item.getItem().getReferenceElement().getIdPart())
         .collect(Collectors.toSet());
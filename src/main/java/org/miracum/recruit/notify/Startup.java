@@ -5,14 +5,21 @@ import ca.uhn.fhir.rest.client.api.IGenericClient;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.time.Duration;
 import java.util.List;
 import javax.annotation.PostConstruct;
 import org.hl7.fhir.r4.model.Bundle;
-import org.hl7.fhir.r4.model.CommunicationRequest;
+import org.hl7.fhir.r4.model.CommunicationRequest.CommunicationRequestStatus;
 import org.hl7.fhir.r4.model.Practitioner;
 import org.hl7.fhir.r4.model.Subscription;
+import org.miracum.recruit.notify.fhirserver.AsyncFhirClient;
 import org.miracum.recruit.notify.fhirserver.PractitionerTransmitter;
+import org.miracum.recruit.notify.ingestion.IngestionConfig;
+import org.miracum.recruit.notify.ingestion.WebSocketSubscriptionListener;
+import org.miracum.recruit.notify.mailconfig.RedeliveryConfig;
 import org.miracum.recruit.notify.mailconfig.UserConfig;
+import org.miracum.recruit.notify.message.Message;
+import org.miracum.recruit.notify.message.PendingMessageMonitor;
 import org.miracum.recruit.notify.practitioner.PractitionerCreator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,6 +48,11 @@ public class Startup {
   private final PractitionerCreator practitionerCreator;
   private final FhirServerProvider fhirServerProvider;
   private final IGenericClient fhirClient;
+  private final RedeliveryConfig redeliveryConfig;
+  private final AsyncFhirClient asyncFhirClient;
+  private final PendingMessageMonitor pendingMessageMonitor;
+  private final IngestionConfig ingestionConfig;
+  private final WebSocketSubscriptionListener webSocketSubscriptionListener;
 
   /**
    * Create util items needed for startup routine to add inital items to target fhir server and
@@ -55,6 +67,11 @@ public class Startup {
       PractitionerTransmitter practitionerTransmitter,
       IGenericClient fhirClient,
       UserConfig userConfig,
+      RedeliveryConfig redeliveryConfig,
+      AsyncFhirClient asyncFhirClient,
+      PendingMessageMonitor pendingMessageMonitor,
+      IngestionConfig ingestionConfig,
+      WebSocketSubscriptionListener webSocketSubscriptionListener,
       @Value("${fhir.subscription.criteria}") String criteria)
       throws MalformedURLException, URISyntaxException {
 
@@ -67,6 +84,11 @@ public class Startup {
     this.practitionerTransmitter = practitionerTransmitter;
     this.fhirClient = fhirClient;
     this.userConfig = userConfig;
+    this.redeliveryConfig = redeliveryConfig;
+    this.asyncFhirClient = asyncFhirClient;
+    this.pendingMessageMonitor = pendingMessageMonitor;
+    this.ingestionConfig = ingestionConfig;
+    this.webSocketSubscriptionListener = webSocketSubscriptionListener;
     this.criteria = criteria;
 
     createWebhookEndpoint(webhookEndpoint);
@@ -91,19 +113,43 @@ public class Startup {
     LOG.info("Using notification config: {}", userConfig);
 
     retryListenerSupport();
-    createSubscription(retryTemplate);
+
+    // both only need the FHIR server to be reachable, so retry them side by side. The retry
+    // template bounds how long each may take. The practitioners are created on the pool
+    // themselves, so they are awaited from this thread instead of blocking a pool thread.
+    var subscription =
+        asyncFhirClient.supply(
+            () -> {
+              createSubscription(retryTemplate);
+              return null;
+            },
+            Duration.ZERO);
     loadReceiverList(retryTemplate);
+    AsyncFhirClient.await(subscription);
 
     informAboutMessagesInErrorState();
+    pendingMessageMonitor.refresh();
   }
 
   private void informAboutMessagesInErrorState() {
-    List<CommunicationRequest> errorMessages = fhirServerProvider.getErrorMessages();
+    var errorCount =
+        fhirServerProvider.countMessagesByStatus(CommunicationRequestStatus.ONHOLD, null);
+    if (errorCount.isPresent() && errorCount.getAsInt() == 0) {
+      return;
+    }
 
-    for (CommunicationRequest messageInErrorState : errorMessages) {
-      LOG.warn(
-          "communication resource in error state: {}, please reset manually to \"active\"",
-          messageInErrorState.getIdElement().getIdPart());
+    List<Message> errorMessages = fhirServerProvider.getErrorMessages();
+
+    for (Message messageInErrorState : errorMessages) {
+      if (redeliveryConfig.isEnabled()) {
+        LOG.warn(
+            "communication resource in error state: {}, it will be retried automatically",
+            messageInErrorState.id());
+      } else {
+        LOG.warn(
+            "communication resource in error state: {}, please reset manually to \"active\"",
+            messageInErrorState.id());
+      }
     }
   }
 
@@ -122,22 +168,48 @@ public class Startup {
   }
 
   private void createSubscription(RetryTemplate retryTemplate) {
-    LOG.info(
-        "Creating subscription resource with criteria '{}' and webhook URL '{}' @ '{}'",
-        criteria,
-        webhookEndpoint,
-        fhirClient.getServerBase());
+    if (ingestionConfig.isPolling()) {
+      LOG.info("Polling for lists matching '{}', no subscription is created", criteria);
+      return;
+    }
+
+    if (ingestionConfig.isKafka()) {
+      LOG.info("Consuming list changes from Kafka, no subscription is created");
+      return;
+    }
+
+    if (ingestionConfig.isWebSocket()) {
+      LOG.info(
+          "Creating websocket subscription resource with criteria '{}' @ '{}'",
+          criteria,
+          fhirClient.getServerBase());
+    } else {
+      LOG.info(
+          "Creating subscription resource with criteria '{}' and webhook URL '{}' @ '{}'",
+          criteria,
+          webhookEndpoint,
+          fhirClient.getServerBase());
+    }
 
     var outcome = retryTemplate.execute(retryContext -> createSubscription());
     LOG.info("Subscription resource '{}' created", outcome.getId());
+
+    if (ingestionConfig.isWebSocket()) {
+      webSocketSubscriptionListener.connect(outcome.getId().getIdPart());
+    }
   }
 
   private MethodOutcome createSubscription() {
-    var channel =
-        new Subscription.SubscriptionChannelComponent()
-            .setType(Subscription.SubscriptionChannelType.RESTHOOK)
-            .setEndpoint(webhookEndpoint.toString())
-            .setPayload("application/fhir+json");
+    var channel = new Subscription.SubscriptionChannelComponent();
+    if (ingestionConfig.isWebSocket()) {
+      // the server only pings the connection bound to the subscription, without any payload
+      channel.setType(Subscription.SubscriptionChannelType.WEBSOCKET);
+    } else {
+      channel
+          .setType(Subscription.SubscriptionChannelType.RESTHOOK)
+          .setEndpoint(webhookEndpoint.toString())
+          .setPayload("application/fhir+json");
+    }
 
     var subscription =
         new Subscription()
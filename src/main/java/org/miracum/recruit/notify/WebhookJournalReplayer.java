@@ -0,0 +1,111 @@
+package org.miracum.recruit.notify;
+
+import static net.logstash.logback.argument.StructuredArguments.kv;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.miracum.recruit.notify.journal.JournalConfig;
+import org.miracum.recruit.notify.journal.WebhookJournal;
+import org.miracum.recruit.notify.journal.WebhookJournal.Entry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+/**
+ * Handles the webhooks that were accepted but not finished before the last shutdown, once the
+ * application is ready.
+ *
+ * <p>Nobody delivers these webhooks again, so an entry is only completed once it was replayed
+ * successfully. Failed entries are retried with an increasing backoff, and stay in the journal to
+ * be replayed after the next restart as well. Later entries of a list whose replay failed are held
+ * back, so the versions of a list are still handled in order.
+ */
+@Component
+public class WebhookJournalReplayer implements DisposableBean {
+  private static final Logger LOG = LoggerFactory.getLogger(WebhookJournalReplayer.class);
+
+  private final WebhookJournal webhookJournal;
+  private final NotificationController notificationController;
+  private final JournalConfig config;
+  private final ScheduledExecutorService retrier;
+
+  @Autowired
+  public WebhookJournalReplayer(
+      WebhookJournal webhookJournal,
+      NotificationController notificationController,
+      JournalConfig config) {
+    this.webhookJournal = webhookJournal;
+    this.notificationController = notificationController;
+    this.config = config;
+    this.retrier =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              var thread = new Thread(runnable, "webhook-journal-replay");
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  @Override
+  public void destroy() {
+    retrier.shutdownNow();
+  }
+
+  @EventListener(ApplicationReadyEvent.class)
+  public void replay() {
+    var unfinished = webhookJournal.getUnfinished();
+    if (unfinished.isEmpty()) {
+      return;
+    }
+
+    LOG.info("replaying {} unfinished webhooks from the journal", kv("count", unfinished.size()));
+    replay(unfinished, config.getReplayBackoff());
+  }
+
+  /** Replay the entries in order, scheduling the failed ones to be retried after the backoff. */
+  private void replay(List<Entry> entries, Duration backoff) {
+    var failed = new ArrayList<Entry>();
+    Set<String> failedLists = new HashSet<>();
+    for (var entry : entries) {
+      if (failedLists.contains(entry.listId())) {
+        failed.add(entry);
+        continue;
+      }
+
+      try {
+        notificationController.processListChange(entry.listId(), entry.body(), false);
+        webhookJournal.complete(entry.sequence());
+      } catch (Exception exc) {
+        LOG.error("failed to replay the webhook for {}", kv("list", entry.listId()), exc);
+        failed.add(entry);
+        failedLists.add(entry.listId());
+      }
+    }
+
+    if (failed.isEmpty()) {
+      return;
+    }
+
+    LOG.warn(
+        "retrying {} unfinished webhooks in {}",
+        kv("count", failed.size()),
+        kv("backoff", backoff));
+    var nextBackoff = backoff.multipliedBy(2);
+    if (nextBackoff.compareTo(config.getMaxReplayBackoff()) > 0) {
+      nextBackoff = config.getMaxReplayBackoff();
+    }
+    var retryBackoff = nextBackoff;
+    retrier.schedule(
+        () -> replay(failed, retryBackoff), backoff.toMillis(), TimeUnit.MILLISECONDS);
+  }
+}
@@ -0,0 +1,69 @@
+package org.miracum.recruit.notify.config;
+
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.api.SummaryEnum;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import java.time.Duration;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+/** Connection and encoding settings of the FHIR client. */
+@Configuration
+@ConfigurationProperties(prefix = "fhir.client")
+@Data
+public class FhirClientConfig {
+  private Pool pool = new Pool();
+  private Timeouts timeouts = new Timeouts();
+  private Compression compression = new Compression();
+  private Http2 http2 = new Http2();
+  private Async async = new Async();
+  private EncodingEnum encoding = EncodingEnum.JSON;
+  private boolean prettyPrint = false;
+  // _summary applied to every request if set, e.g. DATA to omit narratives
+  private SummaryEnum summary;
+  private ServerValidationModeEnum serverValidationMode = ServerValidationModeEnum.ONCE;
+
+  @Data
+  public static class Pool {
+    private int maxIdleConnections = 10;
+    private Duration keepAlive = Duration.ofMinutes(5);
+    private int maxRequests = 64;
+    private int maxRequestsPerHost = 32;
+  }
+
+  @Data
+  public static class Timeouts {
+    private Duration connect = Duration.ofSeconds(10);
+    private Duration read = Duration.ofSeconds(60);
+    private Duration write = Duration.ofSeconds(60);
+    // upper bound for a complete call, 0 means no limit
+    private Duration call = Duration.ZERO;
+  }
+
+  @Data
+  public static class Compression {
+    // compress request bodies, the server has to support Content-Encoding: gzip
+    private boolean requests = false;
+    private int requestMinBytes = 1024;
+    // ask the server for gzip-compressed responses
+    private boolean responses = true;
+  }
+
+  @Data
+  public static class Http2 {
+    // negotiate HTTP/2 via ALPN if the server supports it, only applies to TLS connections
+    private boolean enabled = true;
+    // use cleartext HTTP/2 without negotiation, only if the server is known to support it
+    private boolean priorKnowledge = false;
+  }
+
+  @Data
+  public static class Async {
+    // threads used to run FHIR interactions concurrently
+    private int poolSize = 8;
+    // once the queue is full, callers run the interaction themselves
+    private int queueCapacity = 256;
+    private Duration timeout = Duration.ofSeconds(120);
+  }
+}
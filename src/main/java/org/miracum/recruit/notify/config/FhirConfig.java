@@ -6,7 +6,14 @@ import ca.uhn.fhir.parser.IParser;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
 import io.micrometer.core.instrument.Metrics;
 import io.micrometer.core.instrument.binder.okhttp3.OkHttpMetricsEventListener;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
 import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import org.miracum.recruit.notify.resilience.GuardingInterceptor;
+import org.miracum.recruit.notify.resilience.ResourceGuards;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -15,22 +22,73 @@ import org.springframework.context.annotation.Configuration;
 public class FhirConfig {
 
   @Bean
-  public FhirContext fhirContext() {
+  public FhirContext fhirContext(ResourceGuards resourceGuards, FhirClientConfig clientConfig) {
     var fhirContext = FhirContext.forR4();
 
-    var client =
-        new OkHttpClient.Builder()
+    var clientBuilder =
+        createHttpClientBuilder(clientConfig)
             .eventListener(
-                OkHttpMetricsEventListener.builder(Metrics.globalRegistry, "fhir.client").build())
-            .build();
+                OkHttpMetricsEventListener.builder(Metrics.globalRegistry, "fhir.client").build());
+
+    resourceGuards
+        .getFhir()
+        .ifPresent(guard -> clientBuilder.addInterceptor(new GuardingInterceptor(guard)));
+
+    var client = clientBuilder.build();
 
     var okHttpFactory = new OkHttpRestfulClientFactory(fhirContext);
     okHttpFactory.setHttpClient(client);
+    okHttpFactory.setServerValidationMode(clientConfig.getServerValidationMode());
 
     fhirContext.setRestfulClientFactory(okHttpFactory);
     return fhirContext;
   }
 
+  /** Create an OkHttp client builder with the pool, timeout and protocol settings applied. */
+  public static OkHttpClient.Builder createHttpClientBuilder(FhirClientConfig clientConfig) {
+    var pool = clientConfig.getPool();
+    var dispatcher = new Dispatcher();
+    dispatcher.setMaxRequests(pool.getMaxRequests());
+    dispatcher.setMaxRequestsPerHost(pool.getMaxRequestsPerHost());
+
+    var timeouts = clientConfig.getTimeouts();
+    var builder =
+        new OkHttpClient.Builder()
+            .connectionPool(
+                new ConnectionPool(
+                    pool.getMaxIdleConnections(),
+                    pool.getKeepAlive().toMillis(),
+                    TimeUnit.MILLISECONDS))
+            .dispatcher(dispatcher)
+            .connectTimeout(timeouts.getConnect())
+            .readTimeout(timeouts.getRead())
+            .writeTimeout(timeouts.getWrite())
+            .callTimeout(timeouts.getCall());
+
+    var http2 = clientConfig.getHttp2();
+    if (http2.isEnabled() && http2.isPriorKnowledge()) {
+      builder.protocols(List.of(Protocol.H2_PRIOR_KNOWLEDGE));
+    } else if (http2.isEnabled()) {
+      builder.protocols(List.of(Protocol.HTTP_2, Protocol.HTTP_1_1));
+    } else {
+      builder.protocols(List.of(Protocol.HTTP_1_1));
+    }
+
+    var compression = clientConfig.getCompression();
+    if (compression.isRequests()) {
+      builder.addInterceptor(new GzipRequestInterceptor(compression.getRequestMinBytes()));
+    }
+    if (!compression.isResponses()) {
+      // OkHttp transparently requests and decompresses gzip unless an encoding is set explicitly
+      builder.addInterceptor(
+          chain ->
+              chain.proceed(
+                  chain.request().newBuilder().header("Accept-Encoding", "identity").build()));
+    }
+
+    return builder;
+  }
+
   @Bean
   public IParser getFhirParser(FhirContext fhirContext) {
     return fhirContext.newJsonParser();
@@ -38,7 +96,15 @@ public class FhirConfig {
 
   @Bean
   public IGenericClient getFhirClient(
-      @Value("${fhir.url}") String fhirUrl, FhirContext fhirContext) {
-    return fhirContext.newRestfulGenericClient(fhirUrl);
+      @Value("${fhir.url}") String fhirUrl,
+      FhirContext fhirContext,
+      FhirClientConfig clientConfig) {
+    var client = fhirContext.newRestfulGenericClient(fhirUrl);
+    client.setEncoding(clientConfig.getEncoding());
+    client.setPrettyPrint(clientConfig.isPrettyPrint());
+    if (clientConfig.getSummary() != null) {
+      client.setSummary(clientConfig.getSummary());
+    }
+    return client;
   }
 }
@@ -0,0 +1,61 @@
+package org.miracum.recruit.notify.config;
+
+import java.io.IOException;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.BufferedSink;
+import okio.GzipSink;
+import okio.Okio;
+
+/** Compresses request bodies larger than a threshold using gzip. */
+public class GzipRequestInterceptor implements Interceptor {
+  private final int minBytes;
+
+  public GzipRequestInterceptor(int minBytes) {
+    this.minBytes = minBytes;
+  }
+
+  @Override
+  public Response intercept(Chain chain) throws IOException {
+    var request = chain.request();
+    var body = request.body();
+
+    if (body == null
+        || request.header("Content-Encoding") != null
+        || (body.contentLength() >= 0 && body.contentLength() < minBytes)) {
+      return chain.proceed(request);
+    }
+
+    var compressedRequest =
+        request
+            .newBuilder()
+            .header("Content-Encoding", "gzip")
+            .method(request.method(), gzip(body))
+            .build();
+    return chain.proceed(compressedRequest);
+  }
+
+  private static RequestBody gzip(RequestBody body) {
+    return new RequestBody() {
+      @Override
+      public MediaType contentType() {
+        return body.contentType();
+      }
+
+      @Override
+      public long contentLength() {
+        // unknown in advance, the body is sent chunked
+        return -1;
+      }
+
+      @Override
+      public void writeTo(BufferedSink sink) throws IOException {
+        try (var gzipSink = Okio.buffer(new GzipSink(sink))) {
+          body.writeTo(gzipSink);
+        }
+      }
+    };
+  }
+}
@@ -0,0 +1,155 @@
+package org.miracum.recruit.notify.fhirserver;
+
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import org.miracum.recruit.notify.config.FhirClientConfig;
+import org.slf4j.MDC;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+/**
+ * Runs blocking FHIR interactions on a bounded pool and returns {@link CompletableFuture}s, so
+ * independent round trips can overlap. The logging context of the caller is propagated to the pool
+ * threads. Interactions must not wait for other futures of this client, which a full pool would
+ * never run.
+ */
+@Service
+public class AsyncFhirClient implements DisposableBean {
+  private final ThreadPoolExecutor executor;
+  private final Duration defaultTimeout;
+
+  @Autowired
+  public AsyncFhirClient(FhirClientConfig clientConfig) {
+    var async = clientConfig.getAsync();
+    var threadCount = new AtomicInteger();
+    this.executor =
+        new ThreadPoolExecutor(
+            async.getPoolSize(),
+            async.getPoolSize(),
+            60,
+            TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(async.getQueueCapacity()),
+            runnable -> {
+              var thread = new Thread(runnable, "fhir-async-" + threadCount.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            },
+            new ThreadPoolExecutor.CallerRunsPolicy());
+    this.executor.allowCoreThreadTimeOut(true);
+    this.defaultTimeout = async.getTimeout();
+  }
+
+  /** Run the interaction asynchronously with the default timeout. */
+  public <T> CompletableFuture<T> supply(Supplier<T> interaction) {
+    return supply(interaction, defaultTimeout);
+  }
+
+  /**
+   * Run the interaction asynchronously, failing the future if it takes longer than timeout. A zero
+   * timeout waits indefinitely.
+   */
+  public <T> CompletableFuture<T> supply(Supplier<T> interaction, Duration timeout) {
+    var context = MDC.getCopyOfContextMap();
+    var future = CompletableFuture.supplyAsync(() -> withContext(context, interaction), executor);
+    if (timeout.isZero() || timeout.isNegative()) {
+      return future;
+    }
+    return future.orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  /** Run the interaction for each input concurrently and collect the results in input order. */
+  public <I, T> CompletableFuture<List<T>> map(
+      Collection<I> inputs, Function<? super I, ? extends T> interaction) {
+    var futures = new ArrayList<CompletableFuture<T>>(inputs.size());
+    for (var input : inputs) {
+      futures.add(supply(() -> interaction.apply(input)));
+    }
+    return allOf(futures);
+  }
+
+  /** Run the interaction for each input concurrently. */
+  public <I> CompletableFuture<Void> forEach(
+      Collection<I> inputs, Consumer<? super I> interaction) {
+    return map(
+            inputs,
+            input -> {
+              interaction.accept(input);
+              return null;
+            })
+        .thenApply(results -> null);
+  }
+
+  /** Combine the futures into one completing with all results, or the first failure. */
+  public static <T> CompletableFuture<List<T>> allOf(List<CompletableFuture<T>> futures) {
+    return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+        .thenApply(
+            ignored -> {
+              var results = new ArrayList<T>(futures.size());
+              for (var future : futures) {
+                results.add(future.join());
+              }
+              return results;
+            });
+  }
+
+  /**
+   * Wait for the future and rethrow the original exception of the interaction, so callers like the
+   * RetryTemplate can classify it. Timeouts are raised as {@link FhirClientConnectionException}.
+   */
+  public static <T> T await(CompletableFuture<T> future) {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      var cause = e.getCause();
+      if (cause instanceof TimeoutException) {
+        throw new FhirClientConnectionException("FHIR interaction timed out", cause);
+      }
+      if (cause instanceof RuntimeException runtimeException) {
+        throw runtimeException;
+      }
+      if (cause instanceof Error error) {
+        throw error;
+      }
+      throw e;
+    }
+  }
+
+  private static <T> T withContext(Map<String, String> context, Supplier<T> interaction) {
+    var previous = MDC.getCopyOfContextMap();
+    if (context == null) {
+      MDC.clear();
+    } else {
+      MDC.setContextMap(context);
+    }
+
+    try {
+      return interaction.get();
+    } finally {
+      if (previous == null) {
+        MDC.clear();
+      } else {
+        MDC.setContextMap(previous);
+      }
+    }
+  }
+
+  @Override
+  public void destroy() {
+    executor.shutdown();
+  }
+}
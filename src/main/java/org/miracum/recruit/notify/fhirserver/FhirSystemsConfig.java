@@ -13,5 +13,7 @@ public class FhirSystemsConfig {
   private String subscriberId;
   private String communication;
   private String communicationStatusReason;
+  private String communicationDeliveryAttempts;
+  private String communicationListUpdated;
   private String communicationCategory;
 }
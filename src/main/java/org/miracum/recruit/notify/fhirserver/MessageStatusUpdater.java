@@ -3,7 +3,9 @@ package org.miracum.recruit.notify.fhirserver;
 import static net.logstash.logback.argument.StructuredArguments.kv;
 
 import ca.uhn.fhir.rest.client.api.IGenericClient;
+import org.hl7.fhir.r4.model.CommunicationRequest;
 import org.hl7.fhir.r4.model.CommunicationRequest.CommunicationRequestStatus;
+import org.hl7.fhir.r4.model.IntegerType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -15,11 +17,16 @@ public class MessageStatusUpdater {
 
   private static final Logger LOG = LoggerFactory.getLogger(MessageStatusUpdater.class);
 
+  /** Code from the communication status reason system used for failed deliveries. */
+  public static final String DELIVERY_FAILED_CODE = "delivery-failed";
+
   private final IGenericClient fhirClient;
+  private final FhirSystemsConfig fhirSystems;
 
   @Autowired
-  public MessageStatusUpdater(IGenericClient fhirClient) {
+  public MessageStatusUpdater(IGenericClient fhirClient, FhirSystemsConfig fhirSystems) {
     this.fhirClient = fhirClient;
+    this.fhirSystems = fhirSystems;
   }
 
   public void update(String relativeId, CommunicationRequestStatus status) {
@@ -36,6 +43,48 @@ public class MessageStatusUpdater {
         String.format(
             "[{\"op\": \"replace\", \"path\": \"/status\", \"value\": \"%s\"}]", status.toCode());
 
+    patch(relativeId, jsonPatch, status);
+  }
+
+  /**
+   * Set the status of a message whose delivery failed and record the number of failed attempts as
+   * its status reason, so the redelivery job can compute the next retry.
+   */
+  public void updateFailedDelivery(
+      String relativeId, CommunicationRequestStatus status, int attempts) {
+    var statusReason =
+        String.format(
+            "{\"coding\": [{\"system\": \"%s\", \"code\": \"%s\"}],"
+                + " \"extension\": [{\"url\": \"%s\", \"valueInteger\": %d}]}",
+            fhirSystems.getCommunicationStatusReason(),
+            DELIVERY_FAILED_CODE,
+            fhirSystems.getCommunicationDeliveryAttempts(),
+            attempts);
+
+    var jsonPatch =
+        String.format(
+            "[{\"op\": \"replace\", \"path\": \"/status\", \"value\": \"%s\"},"
+                + " {\"op\": \"add\", \"path\": \"/statusReason\", \"value\": %s}]",
+            status.toCode(), statusReason);
+
+    patch(relativeId, jsonPatch, status);
+  }
+
+  /**
+   * Number of failed delivery attempts recorded in the status reason of the given message, or 0 if
+   * none were recorded.
+   */
+  public int getFailedDeliveryAttempts(CommunicationRequest message) {
+    var extension =
+        message.getStatusReason().getExtensionByUrl(fhirSystems.getCommunicationDeliveryAttempts());
+    if (extension != null && extension.getValue() instanceof IntegerType attempts) {
+      return attempts.getValue();
+    }
+
+    return 0;
+  }
+
+  private void patch(String relativeId, String jsonPatch, CommunicationRequestStatus status) {
     // Invoke the patch
     var outcome =
         fhirClient
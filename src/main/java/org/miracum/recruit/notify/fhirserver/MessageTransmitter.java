@@ -2,39 +2,108 @@ package org.miracum.recruit.notify.fhirserver;
 
 import static net.logstash.logback.argument.StructuredArguments.kv;
 
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import com.google.common.collect.Lists;
 import java.util.List;
 import java.util.UUID;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.CommunicationRequest;
+import org.hl7.fhir.r4.model.IdType;
 import org.hl7.fhir.r4.model.ResourceType;
 import org.miracum.recruit.notify.FhirServerProvider;
+import org.miracum.recruit.notify.mailconfig.CreationConfig;
+import org.miracum.recruit.notify.metrics.NotifyMetrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
-/** Create list of messages in FHIR server to store them temporary. */
+/**
+ * Create list of messages in FHIR server to store them temporary. The messages are split into
+ * transactions of a configured size, which are submitted concurrently. A transaction the server
+ * rejects because of its content is split in halves and retried, until the offending messages are
+ * isolated, so one bad message does not take its whole chunk down.
+ */
 @Service
 public class MessageTransmitter {
 
   private static final Logger LOG = LoggerFactory.getLogger(MessageTransmitter.class);
 
   final FhirServerProvider fhirClient;
+  private final NotifyMetrics metrics;
+  private final AsyncFhirClient asyncFhirClient;
+  private final int chunkSize;
 
   @Autowired
-  public MessageTransmitter(FhirServerProvider fhirClient) {
+  public MessageTransmitter(
+      FhirServerProvider fhirClient,
+      NotifyMetrics metrics,
+      AsyncFhirClient asyncFhirClient,
+      CreationConfig creationConfig) {
     this.fhirClient = fhirClient;
+    this.metrics = metrics;
+    this.asyncFhirClient = asyncFhirClient;
+    this.chunkSize = Math.max(creationConfig.getTransactionChunkSize(), 1);
   }
 
-  /** Save message list to target FHIR server. */
-  public void transmit(List<CommunicationRequest> messages) {
+  /** Save message list to target FHIR server, reporting the outcome per message. */
+  public TransmitResult transmit(List<CommunicationRequest> messages) {
     LOG.info("transmit message list to fhir server.");
 
     if (messages.isEmpty()) {
       LOG.warn("no messages specified to send");
-      return;
+      return TransmitResult.empty();
     }
 
+    var chunks = Lists.partition(messages, chunkSize);
+    var result =
+        TransmitResult.sum(AsyncFhirClient.await(asyncFhirClient.map(chunks, this::transmitChunk)));
+
+    if (!result.rejected().isEmpty() || !result.failed().isEmpty()) {
+      LOG.error(
+          "failed to create CommunicationRequest resources: {} {} {}",
+          kv("created", result.created().size()),
+          kv("rejected", result.rejected().size()),
+          kv("failed", result.failed().size()));
+    }
+    return result;
+  }
+
+  private TransmitResult transmitChunk(List<CommunicationRequest> chunk) {
+    try {
+      var response =
+          metrics.time("create.transmit", () -> fhirClient.executeTransaction(createBundle(chunk)));
+      assignIds(chunk, response);
+      return new TransmitResult(chunk, List.of(), List.of());
+    } catch (RuntimeException exc) {
+      if (!isCausedByContent(exc)) {
+        LOG.error(
+            "failed to create {} CommunicationRequest resources",
+            kv("numMessages", chunk.size()),
+            exc);
+        return new TransmitResult(List.of(), List.of(), chunk);
+      }
+
+      if (chunk.size() == 1) {
+        LOG.error(
+            "server rejected the CommunicationRequest {}: {}",
+            kv("messageIdentifier", chunk.get(0).getIdentifierFirstRep().getValue()),
+            exc.getMessage());
+        return new TransmitResult(List.of(), chunk, List.of());
+      }
+
+      LOG.warn(
+          "server rejected a transaction of {}, retrying it in halves",
+          kv("numMessages", chunk.size()));
+      var half = chunk.size() / 2;
+      return TransmitResult.sum(
+          List.of(
+              transmitChunk(chunk.subList(0, half)),
+              transmitChunk(chunk.subList(half, chunk.size()))));
+    }
+  }
+
+  private static Bundle createBundle(List<CommunicationRequest> messages) {
     var bundle = new Bundle();
     bundle.setType(Bundle.BundleType.TRANSACTION);
 
@@ -54,11 +123,32 @@ public class MessageTransmitter {
           .setUrl(ResourceType.CommunicationRequest.name())
           .setMethod(Bundle.HTTPVerb.POST);
     }
+    return bundle;
+  }
 
-    try {
-      fhirClient.executeTransaction(bundle);
-    } catch (Exception exc) {
-      LOG.error("failed to create the CommunicationRequest resources", exc);
+  /** Take over the ids assigned by the server, whose response entries keep the request order. */
+  private static void assignIds(List<CommunicationRequest> messages, Bundle response) {
+    if (response == null || response.getEntry().size() != messages.size()) {
+      return;
+    }
+
+    for (var i = 0; i < messages.size(); i++) {
+      var location = response.getEntry().get(i).getResponse().getLocation();
+      if (location != null) {
+        messages.get(i).setId(new IdType(location).toUnqualifiedVersionless());
+      }
+    }
+  }
+
+  /**
+   * Whether the server refused the transaction because of its content, in which case a smaller
+   * transaction may succeed. Connection failures, server errors and throttling are not.
+   */
+  private static boolean isCausedByContent(RuntimeException exc) {
+    if (exc instanceof BaseServerResponseException response) {
+      var status = response.getStatusCode();
+      return status >= 400 && status < 500 && status != 408 && status != 429;
     }
+    return false;
   }
 }
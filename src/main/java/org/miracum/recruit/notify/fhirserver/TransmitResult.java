@@ -0,0 +1,36 @@
+package org.miracum.recruit.notify.fhirserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.hl7.fhir.r4.model.CommunicationRequest;
+
+/**
+ * Outcome of storing messages, per message.
+ *
+ * @param created messages stored on the server, with the id assigned by it
+ * @param rejected messages the server refused on their own, sending them again would not help
+ * @param failed messages that could not be stored for another reason, like an unavailable server,
+ *     and may be sent again
+ */
+public record TransmitResult(
+    List<CommunicationRequest> created,
+    List<CommunicationRequest> rejected,
+    List<CommunicationRequest> failed) {
+
+  public static TransmitResult empty() {
+    return new TransmitResult(List.of(), List.of(), List.of());
+  }
+
+  /** Combine the outcomes of separately stored messages. */
+  public static TransmitResult sum(List<TransmitResult> results) {
+    var created = new ArrayList<CommunicationRequest>();
+    var rejected = new ArrayList<CommunicationRequest>();
+    var failed = new ArrayList<CommunicationRequest>();
+    for (var result : results) {
+      created.addAll(result.created());
+      rejected.addAll(result.rejected());
+      failed.addAll(result.failed());
+    }
+    return new TransmitResult(created, rejected, failed);
+  }
+}
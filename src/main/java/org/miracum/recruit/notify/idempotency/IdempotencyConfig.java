@@ -0,0 +1,16 @@
+package org.miracum.recruit.notify.idempotency;
+
+import java.time.Duration;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+/** Settings for remembering screening list versions whose webhook was already handled. */
+@Configuration
+@ConfigurationProperties(prefix = "notify.idempotency")
+@Data
+public class IdempotencyConfig {
+  private boolean enabled = true;
+  private long maxSize = 10_000;
+  private Duration ttl = Duration.ofHours(24);
+}
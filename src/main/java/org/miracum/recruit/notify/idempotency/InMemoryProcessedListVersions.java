@@ -0,0 +1,37 @@
+package org.miracum.recruit.notify.idempotency;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Service;
+
+/** Keeps the handled list versions in a bounded cache local to this instance. */
+@Service
+@Profile("!ha")
+public class InMemoryProcessedListVersions implements ProcessedListVersions {
+  private final Cache<String, Boolean> processed;
+
+  @Autowired
+  public InMemoryProcessedListVersions(IdempotencyConfig config) {
+    this.processed =
+        CacheBuilder.newBuilder()
+            .maximumSize(config.getMaxSize())
+            .expireAfterWrite(config.getTtl())
+            .build();
+  }
+
+  @Override
+  public boolean contains(String listId, String versionId) {
+    return processed.getIfPresent(key(listId, versionId)) != null;
+  }
+
+  @Override
+  public void add(String listId, String versionId) {
+    processed.put(key(listId, versionId), Boolean.TRUE);
+  }
+
+  static String key(String listId, String versionId) {
+    return listId + "/_history/" + versionId;
+  }
+}
@@ -0,0 +1,103 @@
+package org.miracum.recruit.notify.idempotency;
+
+import static net.logstash.logback.argument.StructuredArguments.kv;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.sql.DataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.sql.init.dependency.DependsOnDatabaseInitialization;
+import org.springframework.context.annotation.Profile;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+/**
+ * Shares the handled list versions between all replicas through the database of the HA profile.
+ * Lookups go to a local cache first, so repeated deliveries to the same replica stay in memory.
+ * Expired rows are purged at most once per hour.
+ */
+@Service
+@Profile("ha")
+@DependsOnDatabaseInitialization
+public class JdbcProcessedListVersions implements ProcessedListVersions {
+  private static final Logger LOG = LoggerFactory.getLogger(JdbcProcessedListVersions.class);
+
+  private static final Duration PURGE_INTERVAL = Duration.ofHours(1);
+
+  private final JdbcTemplate jdbcTemplate;
+  private final Duration ttl;
+  private final Cache<String, Boolean> localCache;
+  private final AtomicReference<Instant> lastPurge = new AtomicReference<>(Instant.EPOCH);
+
+  @Autowired
+  public JdbcProcessedListVersions(DataSource dataSource, IdempotencyConfig config) {
+    this.jdbcTemplate = new JdbcTemplate(dataSource);
+    this.ttl = config.getTtl();
+    this.localCache =
+        CacheBuilder.newBuilder()
+            .maximumSize(config.getMaxSize())
+            .expireAfterWrite(config.getTtl())
+            .build();
+  }
+
+  @Override
+  public boolean contains(String listId, String versionId) {
+    var key = InMemoryProcessedListVersions.key(listId, versionId);
+    if (localCache.getIfPresent(key) != null) {
+      return true;
+    }
+
+    var count =
+        jdbcTemplate.queryForObject(
+            "SELECT COUNT(*) FROM NOTIFY_PROCESSED_LIST_VERSIONS"
+                + " WHERE LIST_ID = ? AND VERSION_ID = ? AND PROCESSED_AT > ?",
+            Integer.class,
+            listId,
+            versionId,
+            Timestamp.from(Instant.now().minus(ttl)));
+    if (count != null && count > 0) {
+      localCache.put(key, Boolean.TRUE);
+      return true;
+    }
+    return false;
+  }
+
+  @Override
+  public void add(String listId, String versionId) {
+    localCache.put(InMemoryProcessedListVersions.key(listId, versionId), Boolean.TRUE);
+    jdbcTemplate.update(
+        "INSERT INTO NOTIFY_PROCESSED_LIST_VERSIONS (LIST_ID, VERSION_ID, PROCESSED_AT)"
+            + " VALUES (?, ?, ?)"
+            + " ON CONFLICT (LIST_ID, VERSION_ID)"
+            + " DO UPDATE SET PROCESSED_AT = EXCLUDED.PROCESSED_AT",
+        listId,
+        versionId,
+        Timestamp.from(Instant.now()));
+    purgeExpired();
+  }
+
+  private void purgeExpired() {
+    var now = Instant.now();
+    var previous = lastPurge.get();
+    if (previous.plus(PURGE_INTERVAL).isAfter(now) || !lastPurge.compareAndSet(previous, now)) {
+      return;
+    }
+
+    try {
+      var purged =
+          jdbcTemplate.update(
+              "DELETE FROM NOTIFY_PROCESSED_LIST_VERSIONS WHERE PROCESSED_AT <= ?",
+              Timestamp.from(now.minus(ttl)));
+      LOG.debug("purged {} expired processed list versions", kv("count", purged));
+    } catch (DataAccessException exc) {
+      LOG.warn("failed to purge expired processed list versions: {}", exc.getMessage());
+    }
+  }
+}
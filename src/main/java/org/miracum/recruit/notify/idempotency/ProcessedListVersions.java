@@ -0,0 +1,15 @@
+package org.miracum.recruit.notify.idempotency;
+
+/**
+ * Remembers the screening list versions, identified by list id and {@code meta.versionId}, whose
+ * webhook was handled, so redeliveries of the same version can be acknowledged without any work.
+ * Entries expire after a configured time.
+ */
+public interface ProcessedListVersions {
+
+  /** Whether the version of the list was already handled and has not expired since. */
+  boolean contains(String listId, String versionId);
+
+  /** Remember that the version of the list was handled. */
+  void add(String listId, String versionId);
+}
@@ -0,0 +1,64 @@
+package org.miracum.recruit.notify.ingestion;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.Properties;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Service;
+
+/**
+ * Keeps the polling watermarks in a local properties file. The file is replaced atomically on
+ * every update, so a crash leaves either the old or the new watermark behind.
+ */
+@Service
+@Profile("!ha")
+public class FilePollingWatermark implements PollingWatermark {
+  private final Path file;
+
+  @Autowired
+  public FilePollingWatermark(IngestionConfig config) {
+    this.file = Path.of(config.getPolling().getWatermarkFile());
+  }
+
+  @Override
+  public synchronized Optional<Instant> get(String criteria) {
+    return Optional.ofNullable(load().getProperty(criteria)).map(Instant::parse);
+  }
+
+  @Override
+  public synchronized void set(String criteria, Instant watermark) {
+    var properties = load();
+    properties.setProperty(criteria, watermark.toString());
+
+    try {
+      var absolute = file.toAbsolutePath();
+      Files.createDirectories(absolute.getParent());
+      var temporary = absolute.resolveSibling(absolute.getFileName() + ".tmp");
+      try (var out = Files.newOutputStream(temporary)) {
+        properties.store(out, "meta.lastUpdated of the last screening list handled by polling");
+      }
+      Files.move(
+          temporary, absolute, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException exc) {
+      throw new UncheckedIOException("failed to store the polling watermark", exc);
+    }
+  }
+
+  private Properties load() {
+    var properties = new Properties();
+    if (Files.exists(file)) {
+      try (var in = Files.newInputStream(file)) {
+        properties.load(in);
+      } catch (IOException exc) {
+        throw new UncheckedIOException("failed to read the polling watermark", exc);
+      }
+    }
+    return properties;
+  }
+}
@@ -0,0 +1,94 @@
+package org.miracum.recruit.notify.ingestion;
+
+import java.time.Duration;
+import lombok.Data;
+import org.quartz.CronExpression;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+/** Settings for how changed screening lists reach the service. */
+@Configuration
+@ConfigurationProperties(prefix = "notify.ingestion")
+@Data
+public class IngestionConfig {
+
+  /** How changed screening lists are picked up. */
+  public enum Mode {
+    /** The FHIR server calls the webhook of a rest-hook Subscription created at startup. */
+    REST_HOOK,
+    /** The service searches the FHIR server for lists changed since the last poll. */
+    POLLING,
+    /**
+     * The service keeps a websocket connection to the FHIR server open and searches for changed
+     * lists whenever the websocket Subscription created at startup is notified.
+     */
+    WEBSOCKET,
+    /** The service consumes list change events from a Kafka topic. */
+    KAFKA
+  }
+
+  private Mode mode = Mode.REST_HOOK;
+  private Polling polling = new Polling();
+  private WebSocket websocket = new WebSocket();
+  private Kafka kafka = new Kafka();
+
+  /** Settings for the polling mode. */
+  @Data
+  public static class Polling {
+    private CronExpression schedule;
+
+    /** Number of lists fetched per search page. */
+    private int pageSize = 100;
+
+    /** Number of polled lists handled at the same time. */
+    private int concurrency = 1;
+
+    /** How far back the first poll looks if no watermark was stored yet. */
+    private Duration initialLookback = Duration.ofHours(1);
+
+    /**
+     * How far before the watermark each poll searches, so lists committed late by the FHIR server
+     * are not missed. Lists seen again are skipped via the handled list versions, so the margin is
+     * only applied if those are remembered.
+     */
+    private Duration watermarkMargin = Duration.ofSeconds(30);
+
+    /** File storing the watermark outside of the "ha" profile, should be persistent. */
+    private String watermarkFile = "polling-watermark.properties";
+  }
+
+  /** Settings for the websocket mode, which searches for changed lists like the polling mode. */
+  @Data
+  public static class WebSocket {
+    /** Websocket endpoint of the FHIR server, e.g. {@code ws://fhir:8080/websocket}. */
+    private String url;
+
+    /** Interval of websocket pings detecting a dead connection, 0 disables them. */
+    private Duration pingInterval = Duration.ofSeconds(30);
+
+    private Duration initialReconnectBackoff = Duration.ofSeconds(1);
+    private Duration maxReconnectBackoff = Duration.ofMinutes(1);
+  }
+
+  /** Settings for the Kafka mode, the connection is set up via the spring.kafka properties. */
+  @Data
+  public static class Kafka {
+    private String topic = "screening-list-changes";
+    private String groupId = "notify";
+
+    /** Number of consumers, each handling its share of the topic partitions one at a time. */
+    private int concurrency = 1;
+  }
+
+  public boolean isPolling() {
+    return mode == Mode.POLLING;
+  }
+
+  public boolean isWebSocket() {
+    return mode == Mode.WEBSOCKET;
+  }
+
+  public boolean isKafka() {
+    return mode == Mode.KAFKA;
+  }
+}
@@ -0,0 +1,47 @@
+package org.miracum.recruit.notify.ingestion;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.Optional;
+import javax.sql.DataSource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.sql.init.dependency.DependsOnDatabaseInitialization;
+import org.springframework.context.annotation.Profile;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+/**
+ * Keeps the polling watermarks in the database of the HA profile, so the replica running the next
+ * poll continues where the previous one stopped.
+ */
+@Service
+@Profile("ha")
+@DependsOnDatabaseInitialization
+public class JdbcPollingWatermark implements PollingWatermark {
+  private final JdbcTemplate jdbcTemplate;
+
+  @Autowired
+  public JdbcPollingWatermark(DataSource dataSource) {
+    this.jdbcTemplate = new JdbcTemplate(dataSource);
+  }
+
+  @Override
+  public Optional<Instant> get(String criteria) {
+    return jdbcTemplate
+        .query(
+            "SELECT WATERMARK FROM NOTIFY_POLLING_WATERMARKS WHERE CRITERIA = ?",
+            (resultSet, rowNum) -> resultSet.getTimestamp("WATERMARK").toInstant(),
+            criteria)
+        .stream()
+        .findFirst();
+  }
+
+  @Override
+  public void set(String criteria, Instant watermark) {
+    jdbcTemplate.update(
+        "INSERT INTO NOTIFY_POLLING_WATERMARKS (CRITERIA, WATERMARK) VALUES (?, ?)"
+            + " ON CONFLICT (CRITERIA) DO UPDATE SET WATERMARK = EXCLUDED.WATERMARK",
+        criteria,
+        Timestamp.from(watermark));
+  }
+}
@@ -0,0 +1,130 @@
+package org.miracum.recruit.notify.ingestion;
+
+import static net.logstash.logback.argument.StructuredArguments.kv;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Strings;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.List;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.miracum.recruit.notify.FhirServerProvider;
+import org.miracum.recruit.notify.NotificationController;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.kafka.annotation.KafkaListener;
+import org.springframework.kafka.listener.BatchListenerFailedException;
+import org.springframework.kafka.support.Acknowledgment;
+import org.springframework.stereotype.Service;
+
+/**
+ * Consumes screening list change events from a Kafka topic and handles the changed lists like
+ * their webhooks. Events are JSON objects with the {@code listId} and, optionally, the {@code
+ * versionId} of the list, keyed by list id so all changes of a list end up in the same partition.
+ *
+ * <p>Events are consumed in batches, with versions of the same list within a batch coalesced into
+ * the latest one. Partitions are spread over the configured number of consumers, while the events
+ * of each partition are handled in order. Offsets are only committed once the whole batch was
+ * handled. If a list fails, the offsets before its first event are committed and the rest of the
+ * batch is redelivered by the container's error handler, where the already handled versions are
+ * skipped as duplicates.
+ */
+@Service
+@ConditionalOnProperty(prefix = "notify.ingestion", name = "mode", havingValue = "kafka")
+public class KafkaListChangeConsumer {
+  private static final Logger LOG = LoggerFactory.getLogger(KafkaListChangeConsumer.class);
+
+  /** A change of a screening list as published on the topic. */
+  public record ListChangeEvent(String listId, String versionId) {}
+
+  private record Change(ListChangeEvent event, int firstIndex, boolean coalesced) {}
+
+  private final FhirServerProvider fhirServer;
+  private final NotificationController notificationController;
+  private final ObjectMapper objectMapper;
+
+  @Autowired
+  public KafkaListChangeConsumer(
+      FhirServerProvider fhirServer,
+      NotificationController notificationController,
+      ObjectMapper objectMapper) {
+    this.fhirServer = fhirServer;
+    this.notificationController = notificationController;
+    this.objectMapper = objectMapper;
+  }
+
+  @KafkaListener(
+      id = "listChanges",
+      topics = "${notify.ingestion.kafka.topic}",
+      groupId = "${notify.ingestion.kafka.group-id}",
+      concurrency = "${notify.ingestion.kafka.concurrency}",
+      batch = "true")
+  public void onListChanges(
+      List<ConsumerRecord<String, String>> records, Acknowledgment acknowledgment) {
+    var changes = new LinkedHashMap<String, Change>();
+    for (var index = 0; index < records.size(); index++) {
+      var event = parse(records.get(index));
+      if (event == null) {
+        continue;
+      }
+
+      changes.merge(
+          event.listId(),
+          new Change(event, index, false),
+          (previous, next) ->
+              new Change(latest(previous.event(), next.event()), previous.firstIndex(), true));
+    }
+
+    LOG.debug(
+        "consuming {} list changes for {}",
+        kv("events", records.size()),
+        kv("lists", changes.size()));
+
+    for (var change : changes.values()) {
+      var event = change.event();
+      try {
+        var list = fhirServer.getScreeningList(event.listId(), event.versionId());
+        // the coalesced versions were never handled on their own, so the list counts as changed
+        // even if it matches its previous version
+        notificationController.processFetchedList(list, change.coalesced() ? Instant.MIN : null);
+      } catch (Exception exc) {
+        throw new BatchListenerFailedException(
+            "failed to handle the change of list " + event.listId(), exc, change.firstIndex());
+      }
+    }
+
+    acknowledgment.acknowledge();
+  }
+
+  private ListChangeEvent parse(ConsumerRecord<String, String> record) {
+    try {
+      var event = objectMapper.readValue(record.value(), ListChangeEvent.class);
+      if (!Strings.isNullOrEmpty(event.listId())
+          && (event.versionId() == null || event.versionId().matches("\\d+"))) {
+        return event;
+      }
+    } catch (JsonProcessingException | IllegalArgumentException exc) {
+      LOG.debug("failed to parse the list change event", exc);
+    }
+
+    // redelivering it would not make it readable either
+    LOG.error(
+        "skipping invalid list change event at {} {}",
+        kv("partition", record.partition()),
+        kv("offset", record.offset()));
+    return null;
+  }
+
+  /** The later of two versions, where an event without version stands for the current one. */
+  private static ListChangeEvent latest(ListChangeEvent first, ListChangeEvent second) {
+    if (first.versionId() == null || second.versionId() == null) {
+      return new ListChangeEvent(first.listId(), null);
+    }
+    return Long.parseLong(second.versionId()) >= Long.parseLong(first.versionId())
+        ? second
+        : first;
+  }
+}
@@ -0,0 +1,239 @@
+package org.miracum.recruit.notify.ingestion;
+
+import static net.logstash.logback.argument.StructuredArguments.kv;
+
+import com.google.common.base.Strings;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.hl7.fhir.r4.model.ListResource;
+import org.miracum.recruit.notify.FhirServerProvider;
+import org.miracum.recruit.notify.NotificationController;
+import org.miracum.recruit.notify.idempotency.IdempotencyConfig;
+import org.miracum.recruit.notify.metrics.NotifyMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Picks up changed screening lists by searching for the subscription criteria with a {@code
+ * _lastUpdated} filter, for FHIR servers that cannot call the webhook of a Subscription.
+ *
+ * <p>The search result is streamed page by page into the same handling as the webhook, so only one
+ * page of lists is held in memory. The watermark is stored after every page worth of lists, so an
+ * interrupted poll continues about where it stopped. It never passes a list that failed, which is
+ * then fetched again by the next poll. A search only returns the latest version of each list, so
+ * versions created between two polls are coalesced into one; a list updated again while the poll
+ * pages through the result is only handled once per version.
+ */
+@Service
+public class ListPoller implements DisposableBean {
+  private static final Logger LOG = LoggerFactory.getLogger(ListPoller.class);
+
+  private final FhirServerProvider fhirServer;
+  private final NotificationController notificationController;
+  private final PollingWatermark watermark;
+  private final IngestionConfig.Polling config;
+  private final Duration watermarkMargin;
+  private final String criteria;
+  private final NotifyMetrics metrics;
+  private final int concurrency;
+  private final Semaphore inFlight;
+  private final ExecutorService workers;
+
+  @Autowired
+  public ListPoller(
+      FhirServerProvider fhirServer,
+      NotificationController notificationController,
+      PollingWatermark watermark,
+      IngestionConfig ingestionConfig,
+      NotifyMetrics metrics,
+      IdempotencyConfig idempotencyConfig,
+      @Value("${fhir.subscription.criteria}") String criteria) {
+    this.fhirServer = fhirServer;
+    this.notificationController = notificationController;
+    this.watermark = watermark;
+    this.config = ingestionConfig.getPolling();
+    // without the handled versions, the lists seen again would be handled twice
+    this.watermarkMargin =
+        idempotencyConfig.isEnabled() ? config.getWatermarkMargin() : Duration.ZERO;
+    this.metrics = metrics;
+    this.criteria = criteria;
+    this.concurrency = Math.max(config.getConcurrency(), 1);
+    this.inFlight = new Semaphore(concurrency);
+    var threadCount = new AtomicInteger();
+    this.workers =
+        Executors.newFixedThreadPool(
+            concurrency,
+            runnable -> {
+              var thread = new Thread(runnable, "list-poller-" + threadCount.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  @Override
+  public void destroy() {
+    workers.shutdownNow();
+  }
+
+  /**
+   * Handle all lists changed since the last poll, up to the configured number of lists at the same
+   * time. Calls are serialized, so overlapping triggers wait for the running poll.
+   */
+  public synchronized void poll() {
+    var since =
+        watermark.get(criteria).orElseGet(() -> Instant.now().minus(config.getInitialLookback()));
+    var state = new PollState(since, since.minus(watermarkMargin));
+
+    var sample = metrics.start();
+    var outcome = NotifyMetrics.FAILURE;
+    try {
+      fhirServer.visitListsUpdatedAfter(
+          criteria, state.searchedFrom, config.getPageSize(), list -> visit(list, state));
+      awaitInFlight();
+      storeWatermark(state);
+      outcome = NotifyMetrics.SUCCESS;
+    } finally {
+      awaitInFlight();
+      metrics.stop(sample, "poll", outcome);
+      if (!state.outcomes.isEmpty()) {
+        LOG.info("polled {} changed lists: {}", kv("count", state.claimed), state.outcomes);
+      }
+    }
+  }
+
+  private boolean visit(ListResource list, PollState state) {
+    if (!state.isNewVersion(list)) {
+      return true;
+    }
+
+    // bounds the lists held in memory as well, as paging waits for a free worker
+    inFlight.acquireUninterruptibly();
+    state.claim(list);
+    try {
+      workers.execute(
+          () -> {
+            try {
+              state.record(list, handle(list, state.searchedFrom));
+            } finally {
+              inFlight.release();
+            }
+          });
+    } catch (RejectedExecutionException exc) {
+      inFlight.release();
+      throw exc;
+    }
+
+    if (state.claimed % config.getPageSize() == 0) {
+      // the lists are sorted by update time, so the watermark is safe once all of them are done
+      awaitInFlight();
+      storeWatermark(state);
+    }
+    return true;
+  }
+
+  private String handle(ListResource list, Instant since) {
+    try {
+      return notificationController.processFetchedList(list, since);
+    } catch (Exception exc) {
+      LOG.error("failed to handle the polled {}", kv("list", list.getId()), exc);
+      return NotifyMetrics.FAILURE;
+    }
+  }
+
+  private void awaitInFlight() {
+    inFlight.acquireUninterruptibly(concurrency);
+    inFlight.release(concurrency);
+  }
+
+  private void storeWatermark(PollState state) {
+    var next = state.nextWatermark();
+    if (next.isAfter(state.since)) {
+      watermark.set(criteria, next);
+    }
+  }
+
+  /** What the current poll has handled so far. */
+  private static class PollState {
+    private final Instant since;
+    private final Instant searchedFrom;
+    // only ids and versions, so this stays small even for thousands of lists
+    private final Map<String, String> claimedVersions = new HashMap<>();
+    private final Map<String, Integer> outcomes = new TreeMap<>();
+    private Instant latestUpdate;
+    private Instant earliestFailure;
+    private int claimed;
+
+    PollState(Instant since, Instant searchedFrom) {
+      this.since = since;
+      this.searchedFrom = searchedFrom;
+      this.latestUpdate = since;
+    }
+
+    /** Whether the list is newer than any version of it claimed during this poll. */
+    boolean isNewVersion(ListResource list) {
+      var previous = claimedVersions.get(list.getIdElement().getIdPart());
+      return previous == null || isNewer(versionOf(list), previous);
+    }
+
+    synchronized void claim(ListResource list) {
+      claimedVersions.put(list.getIdElement().getIdPart(), versionOf(list));
+      claimed++;
+      var updated = lastUpdatedOf(list);
+      if (updated.isAfter(latestUpdate)) {
+        latestUpdate = updated;
+      }
+    }
+
+    synchronized void record(ListResource list, String outcome) {
+      outcomes.merge(outcome, 1, Integer::sum);
+      if (NotifyMetrics.FAILURE.equals(outcome)) {
+        var updated = lastUpdatedOf(list);
+        if (earliestFailure == null || updated.isBefore(earliestFailure)) {
+          earliestFailure = updated;
+        }
+      }
+    }
+
+    /** The watermark up to which all lists were handled, so the next poll finds failed ones. */
+    synchronized Instant nextWatermark() {
+      if (earliestFailure == null) {
+        return latestUpdate;
+      }
+      // the search is for lists updated after the watermark, with millisecond precision
+      var beforeFailure = earliestFailure.minusMillis(1);
+      return beforeFailure.isBefore(latestUpdate) ? beforeFailure : latestUpdate;
+    }
+
+    private Instant lastUpdatedOf(ListResource list) {
+      // a list without it cannot be placed, so it is treated as updated right at the watermark
+      return list.getMeta().hasLastUpdated()
+          ? list.getMeta().getLastUpdated().toInstant()
+          : since;
+    }
+
+    private static String versionOf(ListResource list) {
+      return Strings.nullToEmpty(list.getMeta().getVersionId());
+    }
+
+    private static boolean isNewer(String version, String previous) {
+      try {
+        return Long.parseLong(version) > Long.parseLong(previous);
+      } catch (NumberFormatException exc) {
+        // version ids are opaque to FHIR clients, so any other version counts as newer
+        return !version.equals(previous);
+      }
+    }
+  }
+}
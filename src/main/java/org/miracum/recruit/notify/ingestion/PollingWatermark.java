@@ -0,0 +1,17 @@
+package org.miracum.recruit.notify.ingestion;
+
+import java.time.Instant;
+import java.util.Optional;
+
+/**
+ * Stores the {@code meta.lastUpdated} of the most recent screening list handled by polling, per
+ * search criteria, so the next poll only asks for lists changed after it.
+ */
+public interface PollingWatermark {
+
+  /** The stored watermark of the criteria, if any. */
+  Optional<Instant> get(String criteria);
+
+  /** Durably store the watermark of the criteria. */
+  void set(String criteria, Instant watermark);
+}
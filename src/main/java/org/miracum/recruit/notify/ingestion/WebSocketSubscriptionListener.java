@@ -0,0 +1,197 @@
+package org.miracum.recruit.notify.ingestion;
+
+import static net.logstash.logback.argument.StructuredArguments.kv;
+
+import com.google.common.base.Strings;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+/**
+ * Keeps a websocket connection to the FHIR server bound to the websocket Subscription. The server
+ * only sends a {@code ping <subscription id>} per change, so each ping triggers a search for the
+ * lists changed since the last one via the {@link ListPoller}. Pings arriving while a search is
+ * running are coalesced into a single follow-up search.
+ *
+ * <p>Lost connections are re-established with exponential backoff. Changes missed meanwhile are
+ * caught up by searching once the subscription is bound again.
+ */
+@Service
+public class WebSocketSubscriptionListener implements DisposableBean {
+  private static final Logger LOG = LoggerFactory.getLogger(WebSocketSubscriptionListener.class);
+
+  private final IngestionConfig.WebSocket config;
+  private final ListPoller listPoller;
+  private final OkHttpClient httpClient;
+  private final ScheduledExecutorService executor;
+  private final ExecutorService puller;
+  private final AtomicBoolean pullRequested = new AtomicBoolean();
+
+  // only accessed from the executor
+  private String subscriptionId;
+  private WebSocket webSocket;
+  private Duration reconnectBackoff;
+  private boolean stopped;
+
+  @Autowired
+  public WebSocketSubscriptionListener(IngestionConfig ingestionConfig, ListPoller listPoller) {
+    this.config = ingestionConfig.getWebsocket();
+    this.listPoller = listPoller;
+    this.httpClient = new OkHttpClient.Builder().pingInterval(config.getPingInterval()).build();
+    this.executor =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              var thread = new Thread(runnable, "websocket-subscription");
+              thread.setDaemon(true);
+              return thread;
+            });
+    // a long search must not delay reconnects
+    this.puller =
+        Executors.newSingleThreadExecutor(
+            runnable -> {
+              var thread = new Thread(runnable, "websocket-subscription-pull");
+              thread.setDaemon(true);
+              return thread;
+            });
+    this.reconnectBackoff = config.getInitialReconnectBackoff();
+  }
+
+  /** Connect to the websocket endpoint and bind the subscription, reconnecting until destroyed. */
+  public void connect(String subscriptionId) {
+    if (Strings.isNullOrEmpty(config.getUrl())) {
+      throw new IllegalStateException("notify.ingestion.websocket.url is not set");
+    }
+
+    submit(
+        () -> {
+          this.subscriptionId = subscriptionId;
+          open();
+        });
+  }
+
+  @Override
+  public void destroy() {
+    submit(
+        () -> {
+          stopped = true;
+          if (webSocket != null) {
+            webSocket.close(1000, "shutting down");
+          }
+        });
+    executor.shutdown();
+    puller.shutdownNow();
+    httpClient.dispatcher().executorService().shutdown();
+  }
+
+  private void open() {
+    if (stopped) {
+      return;
+    }
+
+    LOG.info("connecting to {}", kv("websocket", config.getUrl()));
+    var request = new Request.Builder().url(config.getUrl()).build();
+    webSocket = httpClient.newWebSocket(request, new Listener());
+  }
+
+  private void onBound(WebSocket socket) {
+    if (socket != webSocket) {
+      return;
+    }
+    LOG.info("bound {} to the websocket", kv("subscription", subscriptionId));
+    reconnectBackoff = config.getInitialReconnectBackoff();
+    // catch up on the changes missed while the subscription was not bound
+    requestPull();
+  }
+
+  private void onDisconnected(WebSocket socket, String reason) {
+    if (socket != webSocket || stopped) {
+      return;
+    }
+    webSocket = null;
+
+    LOG.warn("websocket connection lost ({}), reconnecting in {}", reason, reconnectBackoff);
+    executor.schedule(this::open, reconnectBackoff.toMillis(), TimeUnit.MILLISECONDS);
+    var doubled = reconnectBackoff.multipliedBy(2);
+    reconnectBackoff =
+        doubled.compareTo(config.getMaxReconnectBackoff()) > 0
+            ? config.getMaxReconnectBackoff()
+            : doubled;
+  }
+
+  private void requestPull() {
+    if (!pullRequested.compareAndSet(false, true)) {
+      return;
+    }
+
+    try {
+      puller.execute(
+          () -> {
+            pullRequested.set(false);
+            try {
+              listPoller.poll();
+            } catch (Exception exc) {
+              // the next ping or reconnect searches again from the stored watermark
+              LOG.error("failed to search for changed lists", exc);
+            }
+          });
+    } catch (RejectedExecutionException exc) {
+      LOG.debug("ignoring websocket notification after shutdown");
+    }
+  }
+
+  private void submit(Runnable task) {
+    try {
+      executor.execute(task);
+    } catch (RejectedExecutionException exc) {
+      LOG.debug("ignoring websocket event after shutdown");
+    }
+  }
+
+  private class Listener extends WebSocketListener {
+    @Override
+    public void onOpen(WebSocket socket, Response response) {
+      submit(() -> socket.send("bind " + subscriptionId));
+    }
+
+    @Override
+    public void onMessage(WebSocket socket, String text) {
+      if (text.startsWith("bound ")) {
+        submit(() -> onBound(socket));
+      } else if (text.startsWith("ping ")) {
+        LOG.debug("received {}", kv("notification", text));
+        requestPull();
+      } else {
+        LOG.warn("unexpected websocket message: {}", text);
+      }
+    }
+
+    @Override
+    public void onClosing(WebSocket socket, int code, String reason) {
+      socket.close(1000, null);
+    }
+
+    @Override
+    public void onClosed(WebSocket socket, int code, String reason) {
+      submit(() -> onDisconnected(socket, "closed with " + code));
+    }
+
+    @Override
+    public void onFailure(WebSocket socket, Throwable exc, Response response) {
+      submit(() -> onDisconnected(socket, exc.getMessage()));
+    }
+  }
+}
@@ -0,0 +1,32 @@
+package org.miracum.recruit.notify.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/** A scheduled distribution of pending messages for one trigger. */
+@Name("org.miracum.recruit.notify.DistributionRun")
+@Label("Distribution Run")
+@Category({"MIRACUM Notify", "Distribution"})
+@Description("Distribution of the pending messages of the subscribers of a schedule")
+public class DistributionRunEvent extends jdk.jfr.Event {
+  @Label("Trigger")
+  public String trigger;
+
+  @Label("Shard")
+  public int shard;
+
+  @Label("Shards")
+  public int shards;
+
+  @Label("Pending Messages")
+  public int pendingMessages;
+
+  @Label("Recipient Groups")
+  public int groups;
+
+  @Label("Deferred")
+  @Description("Whether the run stopped early because the mail server was unavailable")
+  public boolean deferred;
+}
@@ -0,0 +1,62 @@
+package org.miracum.recruit.notify.jfr;
+
+import java.util.Collection;
+import java.util.function.Supplier;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import org.hl7.fhir.r4.model.Bundle;
+
+/** A single round trip to the FHIR server issued by the FhirServerProvider. */
+@Name("org.miracum.recruit.notify.FhirOperation")
+@Label("FHIR Operation")
+@Category({"MIRACUM Notify", "FHIR"})
+@Description("A request to the FHIR server and the provider method that issued it")
+public class FhirOperationEvent extends jdk.jfr.Event {
+  @Label("Operation")
+  @Description("Name of the FhirServerProvider method")
+  public String operation;
+
+  @Label("Interaction")
+  @Description("FHIR interaction, e.g. read, search, page or transaction")
+  public String interaction;
+
+  @Label("Resource Type")
+  public String resourceType;
+
+  @Label("Result Count")
+  @Description("Number of resources in the returned bundle or collection")
+  public int resultCount;
+
+  @Label("Succeeded")
+  public boolean succeeded;
+
+  /** Run the call and record it as an event, if the event is enabled. */
+  public static <T> T record(
+      String operation, String interaction, String resourceType, Supplier<T> call) {
+    var event = new FhirOperationEvent();
+    if (!event.isEnabled()) {
+      return call.get();
+    }
+
+    event.operation = operation;
+    event.interaction = interaction;
+    event.resourceType = resourceType;
+    event.begin();
+    try {
+      var result = call.get();
+      event.succeeded = true;
+      if (result instanceof Bundle bundle) {
+        event.resultCount = bundle.getEntry().size();
+      } else if (result instanceof Collection<?> collection) {
+        event.resultCount = collection.size();
+      } else if (result != null) {
+        event.resultCount = 1;
+      }
+      return result;
+    } finally {
+      event.commit();
+    }
+  }
+}
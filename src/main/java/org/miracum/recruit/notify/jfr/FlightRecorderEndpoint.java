@@ -0,0 +1,166 @@
+package org.miracum.recruit.notify.jfr;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import jdk.jfr.Configuration;
+import jdk.jfr.Event;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.actuate.endpoint.annotation.DeleteOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Selector;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.boot.actuate.endpoint.web.WebEndpointResponse;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+/**
+ * Actuator endpoint to control a single JDK Flight Recorder recording at runtime. The notify
+ * events are always enabled in the recording, on top of the chosen JDK settings.
+ *
+ * <ul>
+ *   <li>{@code GET /actuator/jfr} shows the state of the recording
+ *   <li>{@code POST /actuator/jfr} starts a new recording
+ *   <li>{@code DELETE /actuator/jfr} stops it, its data can still be dumped
+ *   <li>{@code GET /actuator/jfr/notify.jfr} dumps the recorded data
+ * </ul>
+ *
+ * <p>Recordings contain the environment variables and system properties, including credentials,
+ * so the endpoint is excluded from the web exposure by default. Only expose it on a separate
+ * management port that is not reachable from outside the cluster.
+ */
+@Component
+@Endpoint(id = "jfr")
+public class FlightRecorderEndpoint {
+  private static final Logger LOG = LoggerFactory.getLogger(FlightRecorderEndpoint.class);
+
+  static final String RECORDING_NAME = "notify";
+  static final String DUMP_FILE_NAME = RECORDING_NAME + ".jfr";
+
+  private static final List<Class<? extends Event>> NOTIFY_EVENTS =
+      List.of(
+          ListWebhookEvent.class,
+          FhirOperationEvent.class,
+          MailRenderEvent.class,
+          MailSendEvent.class,
+          DistributionRunEvent.class);
+
+  private Recording recording;
+
+  /** Describe the current recording. */
+  @ReadOperation
+  public synchronized Map<String, Object> status() {
+    var result = new LinkedHashMap<String, Object>();
+    if (recording == null) {
+      result.put("state", "NONE");
+      return result;
+    }
+
+    result.put("name", recording.getName());
+    result.put("state", recording.getState().name());
+    result.put("startTime", recording.getStartTime());
+    result.put("stopTime", recording.getStopTime());
+    result.put("size", recording.getSize());
+    return result;
+  }
+
+  /**
+   * Start a new recording, discarding a previous one.
+   *
+   * @param settings name of the JDK settings to use, "default" or "profile". Defaults to "default".
+   * @param maxAge how long data is kept in the recording. Defaults to 30 minutes.
+   * @param maxSize maximum size of the recording in bytes. Defaults to 100 MiB.
+   */
+  @WriteOperation
+  public synchronized Map<String, Object> start(
+      @Nullable String settings, @Nullable Duration maxAge, @Nullable Long maxSize)
+      throws IOException, ParseException {
+    closeRecording();
+
+    var configuration = Configuration.getConfiguration(settings == null ? "default" : settings);
+    var newRecording = new Recording(configuration);
+    newRecording.setName(RECORDING_NAME);
+    newRecording.setToDisk(true);
+    newRecording.setMaxAge(maxAge == null ? Duration.ofMinutes(30) : maxAge);
+    newRecording.setMaxSize(maxSize == null ? 100L * 1024 * 1024 : maxSize);
+    for (var event : NOTIFY_EVENTS) {
+      newRecording.enable(event);
+    }
+
+    newRecording.start();
+    recording = newRecording;
+    LOG.info("started flight recording with {} settings", configuration.getName());
+    return status();
+  }
+
+  /** Stop the recording, keeping its data for a dump. */
+  @DeleteOperation
+  public synchronized Map<String, Object> stop() {
+    if (recording != null && recording.getState() == RecordingState.RUNNING) {
+      recording.stop();
+      LOG.info("stopped flight recording");
+    }
+    return status();
+  }
+
+  /** Dump the data of the current recording as a JFR file. */
+  @ReadOperation(produces = "application/octet-stream")
+  public synchronized WebEndpointResponse<Resource> dump(@Selector String file)
+      throws IOException {
+    if (recording == null || !DUMP_FILE_NAME.equals(file)) {
+      return new WebEndpointResponse<>(WebEndpointResponse.STATUS_NOT_FOUND);
+    }
+
+    // streamed from the file, as a recording may be too large to buffer on the heap
+    var dumpFile = Files.createTempFile(RECORDING_NAME, ".jfr");
+    try {
+      recording.dump(dumpFile);
+      return new WebEndpointResponse<>(new DumpFileResource(dumpFile));
+    } catch (IOException | RuntimeException exc) {
+      Files.deleteIfExists(dumpFile);
+      throw exc;
+    }
+  }
+
+  /** A dumped recording that is deleted once it has been streamed. */
+  static final class DumpFileResource extends FileSystemResource {
+    DumpFileResource(Path path) {
+      super(path);
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+      var path = getFile().toPath();
+      return new FilterInputStream(super.getInputStream()) {
+        @Override
+        public void close() throws IOException {
+          try {
+            super.close();
+          } finally {
+            Files.deleteIfExists(path);
+          }
+        }
+      };
+    }
+  }
+
+  private void closeRecording() {
+    if (recording != null) {
+      recording.close();
+      recording = null;
+    }
+  }
+}
@@ -0,0 +1,22 @@
+package org.miracum.recruit.notify.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/** Processing of a single screening list webhook, from parsing the body to storing messages. */
+@Name("org.miracum.recruit.notify.ListWebhook")
+@Label("List Webhook")
+@Category({"MIRACUM Notify", "Webhook"})
+@Description("Handling of a screening list change notification")
+public class ListWebhookEvent extends jdk.jfr.Event {
+  @Label("List Id")
+  public String listId;
+
+  @Label("Entry Count")
+  public int entryCount;
+
+  @Label("Outcome")
+  public String outcome;
+}
@@ -0,0 +1,16 @@
+package org.miracum.recruit.notify.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/** Rendering of the notification templates into a MIME message. */
+@Name("org.miracum.recruit.notify.MailRender")
+@Label("Mail Render")
+@Category({"MIRACUM Notify", "Mail"})
+@Description("Rendering of the text and HTML notification templates")
+public class MailRenderEvent extends jdk.jfr.Event {
+  @Label("Study Acronym")
+  public String studyAcronym;
+}
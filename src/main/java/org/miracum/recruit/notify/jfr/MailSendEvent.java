@@ -0,0 +1,19 @@
+package org.miracum.recruit.notify.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/** Submission of a rendered message to the SMTP server. */
+@Name("org.miracum.recruit.notify.MailSend")
+@Label("Mail Send")
+@Category({"MIRACUM Notify", "Mail"})
+@Description("Submission of a notification mail to the SMTP server")
+public class MailSendEvent extends jdk.jfr.Event {
+  @Label("Study Acronym")
+  public String studyAcronym;
+
+  @Label("Succeeded")
+  public boolean succeeded;
+}
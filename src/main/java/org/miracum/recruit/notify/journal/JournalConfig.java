@@ -0,0 +1,27 @@
+package org.miracum.recruit.notify.journal;
+
+import java.time.Duration;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.util.unit.DataSize;
+
+/** Settings for the local write-ahead journal of accepted webhooks. */
+@Configuration
+@ConfigurationProperties(prefix = "notify.journal")
+@Data
+public class JournalConfig {
+  private boolean enabled = false;
+
+  /** Directory for the journal segments, must be on a persistent volume to survive restarts. */
+  private String directory = "journal";
+
+  /** A new segment is started once the current one exceeds this size. */
+  private DataSize segmentSize = DataSize.ofMegabytes(64);
+
+  /** Delay before retrying the webhooks whose replay failed, doubled after each failure. */
+  private Duration replayBackoff = Duration.ofSeconds(30);
+
+  /** Upper bound of the delay between the replays of a failed webhook. */
+  private Duration maxReplayBackoff = Duration.ofMinutes(30);
+}
@@ -0,0 +1,397 @@
+package org.miracum.recruit.notify.journal;
+
+import static net.logstash.logback.argument.StructuredArguments.kv;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+import org.miracum.recruit.notify.metrics.NotifyMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Write-ahead journal of accepted list webhooks, so a change the FHIR server considers delivered
+ * is not lost if the application dies before it has been handled.
+ *
+ * <p>The journal is a sequence of append-only segment files. Every accepted webhook is appended as
+ * a checksummed record and is durable once {@link #append} returns. Concurrent appends share a
+ * single fsync (group commit): a dedicated thread forces the segment whenever appends are waiting,
+ * and all records written until then are covered by it. Once a webhook has been handled, a
+ * completion record is appended without waiting for the disk. Segments whose webhooks have all
+ * been handled are deleted.
+ *
+ * <p>On startup the segments are read up to the first torn or corrupt record, and the webhooks
+ * without a completion record are returned by {@link #getUnfinished()} to be handled again.
+ */
+@Component
+public class WebhookJournal implements InitializingBean, DisposableBean {
+  private static final Logger LOG = LoggerFactory.getLogger(WebhookJournal.class);
+
+  /** Returned by {@link #append} if the journal is disabled. */
+  public static final long NOT_JOURNALED = -1;
+
+  private static final byte APPENDED = 1;
+  private static final byte COMPLETED = 2;
+  // length and checksum, followed by the type and sequence covered by the checksum
+  private static final int HEADER_SIZE = Integer.BYTES + Integer.BYTES;
+  private static final int RECORD_PREFIX_SIZE = Byte.BYTES + Long.BYTES;
+
+  /** A webhook whose handling had not completed when the application stopped. */
+  public record Entry(long sequence, String listId, String body) {}
+
+  private static final class Segment {
+    private final Path path;
+    private long maxAppendedSequence = -1;
+
+    private Segment(Path path) {
+      this.path = path;
+    }
+  }
+
+  private final JournalConfig config;
+  private final NotifyMetrics metrics;
+
+  private final Object writeLock = new Object();
+  private final Object syncMonitor = new Object();
+  private final ConcurrentSkipListSet<Long> unfinished = new ConcurrentSkipListSet<>();
+  // only written on startup, before the journal is used
+  private final List<Entry> recovered = new ArrayList<>();
+
+  // guarded by writeLock
+  private final TreeMap<Long, Segment> segments = new TreeMap<>();
+  private Segment activeSegment;
+  private FileChannel activeChannel;
+  private long activeSize;
+  private long nextSequence;
+  private long nextSegmentIndex;
+  private long recordsWritten;
+
+  // guarded by syncMonitor
+  private long syncRequested;
+  private long recordsSynced;
+  private boolean running;
+  private IOException syncFailure;
+
+  private Thread syncer;
+
+  @Autowired
+  public WebhookJournal(JournalConfig config, NotifyMetrics metrics) {
+    this.config = config;
+    this.metrics = metrics;
+  }
+
+  @Override
+  public void afterPropertiesSet() throws IOException {
+    if (!config.isEnabled()) {
+      return;
+    }
+
+    var directory = Path.of(config.getDirectory());
+    Files.createDirectories(directory);
+    recover(directory);
+
+    synchronized (writeLock) {
+      openSegment(directory);
+    }
+
+    synchronized (syncMonitor) {
+      running = true;
+    }
+    syncer = new Thread(this::syncLoop, "webhook-journal-sync");
+    syncer.setDaemon(true);
+    syncer.start();
+
+    LOG.info(
+        "webhook journal opened in {} with {}",
+        kv("directory", directory.toAbsolutePath()),
+        kv("unfinished", recovered.size()));
+  }
+
+  @Override
+  public void destroy() throws IOException, InterruptedException {
+    if (syncer == null) {
+      return;
+    }
+
+    synchronized (syncMonitor) {
+      running = false;
+      syncMonitor.notifyAll();
+    }
+    syncer.join();
+
+    synchronized (writeLock) {
+      activeChannel.force(false);
+      activeChannel.close();
+    }
+  }
+
+  /** The webhooks recovered on startup that have not been handled yet, in order of arrival. */
+  public List<Entry> getUnfinished() {
+    return List.copyOf(recovered);
+  }
+
+  /**
+   * Durably record an accepted webhook. Returns its sequence number, to be passed to {@link
+   * #complete} once it has been handled, or {@link #NOT_JOURNALED} if the journal is disabled.
+   */
+  public long append(String listId, String body) {
+    if (!config.isEnabled()) {
+      return NOT_JOURNALED;
+    }
+
+    return metrics.time(
+        "journal.append",
+        () -> {
+          var listIdBytes = listId.getBytes(StandardCharsets.UTF_8);
+          var bodyBytes = body.getBytes(StandardCharsets.UTF_8);
+          var payload = ByteBuffer.allocate(Integer.BYTES + listIdBytes.length + bodyBytes.length);
+          payload.putInt(listIdBytes.length).put(listIdBytes).put(bodyBytes).flip();
+
+          long sequence;
+          long recordNumber;
+          synchronized (writeLock) {
+            sequence = nextSequence++;
+            write(APPENDED, sequence, payload);
+            unfinished.add(sequence);
+            activeSegment.maxAppendedSequence = sequence;
+            recordNumber = recordsWritten;
+          }
+
+          awaitSync(recordNumber);
+          return sequence;
+        });
+  }
+
+  /** Record that the webhook has been handled, so it is not handled again after a restart. */
+  public void complete(long sequence) {
+    if (sequence == NOT_JOURNALED) {
+      return;
+    }
+
+    unfinished.remove(sequence);
+    synchronized (writeLock) {
+      write(COMPLETED, sequence, ByteBuffer.allocate(0));
+      deleteFinishedSegments();
+    }
+  }
+
+  private void write(byte type, long sequence, ByteBuffer payload) {
+    var recordLength = RECORD_PREFIX_SIZE + payload.remaining();
+    var record = ByteBuffer.allocate(HEADER_SIZE + recordLength);
+    record.putInt(recordLength).putInt(0).put(type).putLong(sequence).put(payload);
+
+    var crc = new CRC32();
+    crc.update(record.array(), HEADER_SIZE, recordLength);
+    record.putInt(Integer.BYTES, (int) crc.getValue());
+    record.flip();
+
+    try {
+      if (activeSize > 0 && activeSize + record.remaining() > config.getSegmentSize().toBytes()) {
+        rollSegment();
+      }
+      while (record.hasRemaining()) {
+        activeSize += activeChannel.write(record);
+      }
+    } catch (IOException exc) {
+      throw new UncheckedIOException("failed to write to the webhook journal", exc);
+    }
+    recordsWritten++;
+  }
+
+  private void awaitSync(long recordNumber) {
+    synchronized (syncMonitor) {
+      syncRequested = Math.max(syncRequested, recordNumber);
+      syncMonitor.notifyAll();
+      while (recordsSynced < recordNumber) {
+        if (syncFailure != null) {
+          throw new UncheckedIOException("failed to sync the webhook journal", syncFailure);
+        }
+        if (!running) {
+          throw new IllegalStateException("the webhook journal has been closed");
+        }
+        try {
+          syncMonitor.wait();
+        } catch (InterruptedException exc) {
+          Thread.currentThread().interrupt();
+          throw new IllegalStateException("interrupted while syncing the webhook journal", exc);
+        }
+      }
+    }
+  }
+
+  /** Force the active segment whenever appends are waiting for it, covering all of them at once. */
+  private void syncLoop() {
+    while (true) {
+      synchronized (syncMonitor) {
+        while (running && syncRequested <= recordsSynced) {
+          try {
+            syncMonitor.wait();
+          } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+            return;
+          }
+        }
+        if (!running) {
+          return;
+        }
+      }
+
+      long target;
+      FileChannel channel;
+      synchronized (writeLock) {
+        target = recordsWritten;
+        channel = activeChannel;
+      }
+
+      IOException failure = null;
+      try {
+        channel.force(false);
+      } catch (ClosedChannelException exc) {
+        // the segment was rolled in the meantime, which forces it before closing it
+      } catch (IOException exc) {
+        failure = exc;
+      }
+
+      synchronized (syncMonitor) {
+        if (failure == null) {
+          recordsSynced = Math.max(recordsSynced, target);
+        } else {
+          LOG.error("failed to sync the webhook journal", failure);
+          syncFailure = failure;
+        }
+        syncMonitor.notifyAll();
+      }
+    }
+  }
+
+  private void rollSegment() throws IOException {
+    activeChannel.force(false);
+    activeChannel.close();
+    openSegment(activeSegment.path.getParent());
+    deleteFinishedSegments();
+  }
+
+  private void openSegment(Path directory) throws IOException {
+    var path = directory.resolve(String.format("webhooks-%010d.journal", nextSegmentIndex++));
+    activeChannel =
+        FileChannel.open(
+            path,
+            StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.APPEND);
+    activeSize = 0;
+    activeSegment = new Segment(path);
+    segments.put(nextSegmentIndex - 1, activeSegment);
+  }
+
+  /** Delete the inactive segments that only contain handled webhooks. */
+  private void deleteFinishedSegments() {
+    var oldestUnfinished = unfinished.isEmpty() ? Long.MAX_VALUE : unfinished.first();
+    var iterator = segments.values().iterator();
+    while (iterator.hasNext()) {
+      var segment = iterator.next();
+      if (segment == activeSegment || segment.maxAppendedSequence >= oldestUnfinished) {
+        // segments are in order of their sequences, so all later ones are needed as well
+        return;
+      }
+
+      try {
+        Files.deleteIfExists(segment.path);
+        iterator.remove();
+        LOG.debug("deleted finished journal segment {}", kv("segment", segment.path));
+      } catch (IOException exc) {
+        LOG.warn("failed to delete journal segment {}: {}", segment.path, exc.getMessage());
+        return;
+      }
+    }
+  }
+
+  private void recover(Path directory) throws IOException {
+    List<Path> paths;
+    try (var files = Files.list(directory)) {
+      paths =
+          files
+              .filter(path -> path.getFileName().toString().matches("webhooks-\\d+\\.journal"))
+              .sorted()
+              .collect(Collectors.toList());
+    }
+
+    Map<Long, Entry> appended = new HashMap<>();
+    var completed = new ArrayList<Long>();
+    for (var path : paths) {
+      var index = Long.parseLong(path.getFileName().toString().replaceAll("\\D", ""));
+      var segment = new Segment(path);
+      readSegment(path, segment, appended, completed);
+      segments.put(index, segment);
+      nextSegmentIndex = Math.max(nextSegmentIndex, index + 1);
+    }
+
+    completed.forEach(appended::remove);
+    appended.values().stream()
+        .sorted((first, second) -> Long.compare(first.sequence(), second.sequence()))
+        .forEach(
+            entry -> {
+              recovered.add(entry);
+              unfinished.add(entry.sequence());
+            });
+  }
+
+  private void readSegment(
+      Path path, Segment segment, Map<Long, Entry> appended, List<Long> completed)
+      throws IOException {
+    var buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+    while (buffer.remaining() >= HEADER_SIZE) {
+      var recordLength = buffer.getInt();
+      var checksum = buffer.getInt();
+      if (recordLength < RECORD_PREFIX_SIZE || recordLength > buffer.remaining()) {
+        LOG.warn("ignoring the torn tail of journal segment {}", kv("segment", path));
+        return;
+      }
+
+      var crc = new CRC32();
+      crc.update(buffer.array(), buffer.position(), recordLength);
+      if ((int) crc.getValue() != checksum) {
+        LOG.warn("ignoring the corrupt tail of journal segment {}", kv("segment", path));
+        return;
+      }
+
+      var type = buffer.get();
+      var sequence = buffer.getLong();
+      var payloadLength = recordLength - RECORD_PREFIX_SIZE;
+      nextSequence = Math.max(nextSequence, sequence + 1);
+
+      if (type == APPENDED) {
+        var listIdLength = buffer.getInt();
+        var listId =
+            new String(buffer.array(), buffer.position(), listIdLength, StandardCharsets.UTF_8);
+        var bodyOffset = buffer.position() + listIdLength;
+        var bodyLength = payloadLength - Integer.BYTES - listIdLength;
+        var body = new String(buffer.array(), bodyOffset, bodyLength, StandardCharsets.UTF_8);
+        appended.put(sequence, new Entry(sequence, listId, body));
+        segment.maxAppendedSequence = sequence;
+        buffer.position(bodyOffset + bodyLength);
+      } else {
+        completed.add(sequence);
+        buffer.position(buffer.position() + payloadLength);
+      }
+    }
+  }
+}
@@ -0,0 +1,116 @@
+package org.miracum.recruit.notify.locking;
+
+import com.google.common.util.concurrent.Striped;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import org.miracum.recruit.notify.metrics.NotifyMetrics.Stage;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Serializes work on the same screening list and on the same (study, recipient) pair within this
+ * instance, while different lists and recipients proceed in parallel. Keys are hashed onto a fixed
+ * number of lock stripes, so unrelated keys occasionally share a lock.
+ *
+ * <p>When both are needed, the list lock must be taken before the recipient locks. Recipient locks
+ * are acquired in stripe order, so overlapping sets of recipients cannot deadlock.
+ *
+ * <p>The time spent waiting for a lock is published as {@code notify.lock.wait}, tagged by the lock
+ * and whether it was contended.
+ */
+@Component
+public class StripedLocks {
+  static final String LIST_LOCK = "list";
+  static final String RECIPIENT_LOCK = "recipient";
+
+  private final Striped<Lock> listLocks;
+  private final Striped<Lock> recipientLocks;
+  private final MeterRegistry meterRegistry;
+
+  @Autowired
+  public StripedLocks(
+      @Value("${notify.locks.stripes:64}") int stripes, MeterRegistry meterRegistry) {
+    this.listLocks = Striped.lazyWeakLock(stripes);
+    this.recipientLocks = Striped.lazyWeakLock(stripes);
+    this.meterRegistry = meterRegistry;
+  }
+
+  /** Run the action while holding the lock of the screening list. */
+  public <T, E extends Exception> T withListLock(String listId, Stage<T, E> action) throws E {
+    var lock = listLocks.get(listId);
+    acquire(lock, LIST_LOCK);
+    try {
+      return action.run();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Run the action while holding the locks of all recipients of messages about the study. */
+  public <T, E extends Exception> T withRecipientLocks(
+      String acronym, Collection<String> recipientIds, Stage<T, E> action) throws E {
+    return withRecipientLocks(
+        recipientIds.stream().map(recipientId -> recipientKey(acronym, recipientId)).toList(),
+        action);
+  }
+
+  /**
+   * Run the action while holding the locks of the given (study, recipient) pairs, which may span
+   * several studies.
+   *
+   * @param recipientKeys keys created by {@link #recipientKey(String, String)}
+   */
+  public <T, E extends Exception> T withRecipientLocks(
+      Collection<String> recipientKeys, Stage<T, E> action) throws E {
+    var keys = List.copyOf(recipientKeys);
+
+    var acquired = new ArrayList<Lock>();
+    try {
+      for (var lock : recipientLocks.bulkGet(keys)) {
+        // bulkGet may return the same stripe more than once, reentrant locks make that safe
+        acquire(lock, RECIPIENT_LOCK);
+        acquired.add(lock);
+      }
+      return action.run();
+    } finally {
+      unlockInReverse(acquired);
+    }
+  }
+
+  /** Key of the lock for messages about the study to the recipient. */
+  public static String recipientKey(String acronym, String recipientId) {
+    return acronym + "|" + recipientId;
+  }
+
+  private void acquire(Lock lock, String name) {
+    if (lock.tryLock()) {
+      recordWait(name, false, Duration.ZERO);
+      return;
+    }
+
+    var start = System.nanoTime();
+    lock.lock();
+    recordWait(name, true, Duration.ofNanos(System.nanoTime() - start));
+  }
+
+  private void recordWait(String name, boolean contended, Duration wait) {
+    Timer.builder("notify.lock.wait")
+        .description("Time spent waiting for a list or recipient lock")
+        .tag("lock", name)
+        .tag("contended", Boolean.toString(contended))
+        .register(meterRegistry)
+        .record(wait);
+  }
+
+  private static void unlockInReverse(List<Lock> locks) {
+    for (var i = locks.size() - 1; i >= 0; i--) {
+      locks.get(i).unlock();
+    }
+  }
+}
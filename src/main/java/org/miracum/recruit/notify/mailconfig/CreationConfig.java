@@ -0,0 +1,29 @@
+package org.miracum.recruit.notify.mailconfig;
+
+import java.time.Duration;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+/** Settings for the creation of messages about changed screening lists. */
+@Configuration
+@ConfigurationProperties(prefix = "notify.creation")
+@Data
+public class CreationConfig {
+  /**
+   * How long changed lists are collected before their messages are created together, sharing the
+   * FHIR lookups and the transaction. Every list waits up to this long before its messages are
+   * created, so only busy instances benefit from a window. Zero creates the messages of each list
+   * on its own.
+   */
+  private Duration batchWindow = Duration.ZERO;
+
+  /** A batch is created right away once this many lists were collected. */
+  private int maxBatchSize = 200;
+
+  /**
+   * Maximum number of messages stored in one transaction. Larger numbers of messages are split into
+   * several transactions, which are submitted concurrently.
+   */
+  private int transactionChunkSize = 100;
+}
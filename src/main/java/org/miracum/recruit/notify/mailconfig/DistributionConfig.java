@@ -0,0 +1,33 @@
+package org.miracum.recruit.notify.mailconfig;
+
+import java.time.Duration;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+/** Settings for the scheduled distribution of pending messages. */
+@Configuration
+@ConfigurationProperties(prefix = "notify.distribution")
+@Data
+public class DistributionConfig {
+  /**
+   * Number of shards a scheduled run is split into by recipient. Each shard runs as its own Quartz
+   * job, so in a cluster the shards are spread over all nodes. Each shard searches the messages of
+   * its own recipients, which takes a few more searches than one unsharded run and disables the
+   * prewarmed pending messages.
+   */
+  private int shards = 1;
+
+  /**
+   * Number of recipient groups whose message statuses are written back together. At most this
+   * many mails are sent again if a run is killed before writing them back, so larger chunks trade
+   * duplicate mails for fewer waits on the FHIR server.
+   */
+  private int chunkSize = 1;
+
+  /**
+   * How long before each scheduled run the pending messages are fetched, so the run itself only
+   * has to fetch the messages changed since. Zero fetches them when the run starts.
+   */
+  private Duration prewarmLeadTime = Duration.ofMinutes(2);
+}
@@ -0,0 +1,27 @@
+package org.miracum.recruit.notify.mailconfig;
+
+import java.time.Duration;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.util.unit.DataSize;
+
+/** Settings for the local spool of mails that could not be handed to the mail server. */
+@Configuration
+@ConfigurationProperties(prefix = "notify.mail-spool")
+@Data
+public class MailSpoolConfig {
+  private boolean enabled = false;
+
+  /** Directory for the spool segments, must be on a persistent volume to survive restarts. */
+  private String directory = "mail-spool";
+
+  /** A new segment is started once the current one exceeds this size. */
+  private DataSize segmentSize = DataSize.ofMegabytes(16);
+
+  /** How often the spool is handed to the mail server while it is not empty. */
+  private Duration drainInterval = Duration.ofSeconds(30);
+
+  /** Number of mails sent over one connection to the mail server. */
+  private int batchSize = 50;
+}
@@ -0,0 +1,32 @@
+package org.miracum.recruit.notify.mailconfig;
+
+import java.time.Duration;
+import lombok.Data;
+import org.quartz.CronExpression;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+/** Settings for the automatic redelivery of messages that failed to be sent. */
+@Configuration
+@ConfigurationProperties(prefix = "notify.redelivery")
+@Data
+public class RedeliveryConfig {
+  private boolean enabled = true;
+  private CronExpression schedule;
+  private int maxAttempts = 5;
+  private Duration initialBackoff = Duration.ofMinutes(15);
+  private double backoffMultiplier = 2.0;
+  private Duration maxBackoff = Duration.ofHours(24);
+  private int batchSize = 50;
+  private int maxScannedMessages = 1000;
+
+  /** Time to wait after the given number of failed attempts before the next one is due. */
+  public Duration getBackoff(int failedAttempts) {
+    var exponent = Math.max(failedAttempts - 1, 0);
+    var backoffMillis = initialBackoff.toMillis() * Math.pow(backoffMultiplier, exponent);
+    if (backoffMillis >= maxBackoff.toMillis()) {
+      return maxBackoff;
+    }
+    return Duration.ofMillis((long) backoffMillis);
+  }
+}
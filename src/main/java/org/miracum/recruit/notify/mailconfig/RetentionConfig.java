@@ -0,0 +1,31 @@
+package org.miracum.recruit.notify.mailconfig;
+
+import java.time.Duration;
+import lombok.Data;
+import org.quartz.CronExpression;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+/** Settings for deleting completed and revoked messages from the FHIR server. */
+@Configuration
+@ConfigurationProperties(prefix = "notify.retention")
+@Data
+public class RetentionConfig {
+  private boolean enabled = false;
+  private CronExpression schedule;
+
+  /** Completed and revoked messages not updated for this long are deleted. */
+  private Duration maxAge = Duration.ofDays(365);
+
+  /** Number of conditional deletes sent to the server in one batch Bundle. */
+  private int chunkSize = 100;
+
+  /** Number of batches sent to the server at the same time. */
+  private int concurrency = 2;
+
+  /**
+   * Directory the audit fields of the deleted messages are written to before deleting them, as one
+   * gzipped CSV file per run. Empty to delete without an archive.
+   */
+  private String archiveDirectory = "";
+}
@@ -2,27 +2,81 @@ package org.miracum.recruit.notify.mailsender;
 
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
+import org.miracum.recruit.notify.jfr.MailRenderEvent;
+import org.miracum.recruit.notify.jfr.MailSendEvent;
+import org.miracum.recruit.notify.metrics.NotifyMetrics;
+import org.miracum.recruit.notify.resilience.GuardedJavaMailSender;
+import org.springframework.mail.MailSendException;
 import org.springframework.mail.javamail.JavaMailSender;
 import org.springframework.mail.javamail.MimeMessageHelper;
 import org.thymeleaf.TemplateEngine;
 import org.thymeleaf.context.Context;
 
-/** Message will be prepared and will be sent by java mail sender and thymeleaf template. */
+/**
+ * Message will be prepared and will be sent by java mail sender and thymeleaf template. If a mail
+ * spool is enabled, mails the mail server does not accept are spooled and count as sent.
+ */
 public class MailSender {
   private final JavaMailSender javaMailSender;
   private final TemplateEngine templateEngine;
+  private final NotifyMetrics metrics;
+  private final MailSpool mailSpool;
 
-  public MailSender(JavaMailSender javaMailSender, TemplateEngine templateEngine) {
+  public MailSender(
+      JavaMailSender javaMailSender, TemplateEngine templateEngine, NotifyMetrics metrics) {
+    this(javaMailSender, templateEngine, metrics, null);
+  }
+
+  public MailSender(
+      JavaMailSender javaMailSender,
+      TemplateEngine templateEngine,
+      NotifyMetrics metrics,
+      MailSpool mailSpool) {
     this.javaMailSender = javaMailSender;
     this.templateEngine = templateEngine;
+    this.metrics = metrics;
+    this.mailSpool = mailSpool != null && mailSpool.isEnabled() ? mailSpool : null;
   }
 
   public void sendMail(NotifyInfo notifyInfo, MailInfo mailInfo) throws MessagingException {
-    var mimeMessage = prepareMessage(notifyInfo, mailInfo);
-    javaMailSender.send(mimeMessage);
+    var renderEvent = new MailRenderEvent();
+    renderEvent.studyAcronym = notifyInfo.getStudyAcronym();
+    renderEvent.begin();
+    var mimeMessage = metrics.time("mail.render", () -> prepareMessage(notifyInfo, mailInfo));
+    renderEvent.commit();
+
+    if (mailSpool != null && mailSpool.hasBacklog()) {
+      // the mail server has not taken the spooled mails yet, so don't wait for it to time out
+      mailSpool.spool(mimeMessage);
+      return;
+    }
+
+    var sendEvent = new MailSendEvent();
+    sendEvent.studyAcronym = notifyInfo.getStudyAcronym();
+    sendEvent.begin();
+    try {
+      metrics.timeVoid("mail.send", () -> javaMailSender.send(mimeMessage));
+      sendEvent.succeeded = true;
+    } catch (MailSendException e) {
+      if (mailSpool == null || !isServerUnavailable(e)) {
+        throw e;
+      }
+      mailSpool.spool(mimeMessage);
+    } finally {
+      sendEvent.commit();
+    }
+  }
+
+  /**
+   * Whether the send failed because the mail server could not be reached, not because it rejected
+   * the message. Only the former is reported with a cause by the mail sender.
+   */
+  static boolean isServerUnavailable(MailSendException exception) {
+    return exception.getCause() != null || GuardedJavaMailSender.isCallNotPermitted(exception);
   }
 
-  private MimeMessage prepareMessage(NotifyInfo notifyInfo, MailInfo mailInfo)
+  /** Render the notification templates into a MIME message ready to be sent. */
+  public MimeMessage prepareMessage(NotifyInfo notifyInfo, MailInfo mailInfo)
       throws MessagingException {
     var mimeMessage = javaMailSender.createMimeMessage();
 
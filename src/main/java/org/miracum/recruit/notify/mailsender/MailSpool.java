@@ -0,0 +1,342 @@
+package org.miracum.recruit.notify.mailsender;
+
+import static net.logstash.logback.argument.StructuredArguments.kv;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+import org.miracum.recruit.notify.mailconfig.MailSpoolConfig;
+import org.miracum.recruit.notify.metrics.NotifyMetrics;
+import org.miracum.recruit.notify.metrics.NotifyMetrics.MessageEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.mail.MailException;
+import org.springframework.mail.MailSendException;
+import org.springframework.mail.javamail.JavaMailSender;
+import org.springframework.stereotype.Component;
+
+/**
+ * On-disk spool of fully rendered mails that could not be handed to the mail server. While the
+ * spool is not empty, new mails are appended to it as well, so an outage costs a local disk write
+ * per mail instead of a connection timeout, and mails keep their order.
+ *
+ * <p>Mails are stored as checksummed MIME records in append-only segment files. A background task
+ * periodically hands the closed segments to the mail server in batches, each sent over a single
+ * connection. Mails the server did not accept atomically replace the segment they were read from,
+ * so they stay ahead of the mails spooled since, and a crash while draining may send a mail twice
+ * but never loses one.
+ */
+@Component
+public class MailSpool implements InitializingBean, DisposableBean {
+  private static final Logger LOG = LoggerFactory.getLogger(MailSpool.class);
+
+  private static final int HEADER_SIZE = Integer.BYTES + Integer.BYTES;
+
+  private final MailSpoolConfig config;
+  private final JavaMailSender javaMailSender;
+  private final NotifyMetrics metrics;
+  private final AtomicInteger spooledMails = new AtomicInteger();
+  private final ScheduledExecutorService drainer;
+
+  // guarded by this
+  private Path directory;
+  private FileChannel activeChannel;
+  private Path activeSegment;
+  private long activeSize;
+  private long nextSegmentIndex;
+
+  @Autowired
+  public MailSpool(
+      MailSpoolConfig config,
+      JavaMailSender javaMailSender,
+      NotifyMetrics metrics,
+      MeterRegistry meterRegistry) {
+    this.config = config;
+    this.javaMailSender = javaMailSender;
+    this.metrics = metrics;
+    this.drainer =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              var thread = new Thread(runnable, "mail-spool-drainer");
+              thread.setDaemon(true);
+              return thread;
+            });
+
+    Gauge.builder("notify.mail.spool.size", spooledMails, AtomicInteger::get)
+        .description("Number of mails waiting in the local spool for the mail server")
+        .register(meterRegistry);
+  }
+
+  @Override
+  public void afterPropertiesSet() throws IOException {
+    if (!config.isEnabled()) {
+      return;
+    }
+
+    synchronized (this) {
+      directory = Path.of(config.getDirectory());
+      Files.createDirectories(directory);
+      for (var segment : listSegments()) {
+        spooledMails.addAndGet(readSegment(segment).size());
+        nextSegmentIndex = Math.max(nextSegmentIndex, segmentIndex(segment) + 1);
+      }
+      openSegment();
+    }
+
+    if (spooledMails.get() > 0) {
+      LOG.info("found {} spooled mails", kv("count", spooledMails.get()));
+    }
+
+    var interval = config.getDrainInterval().toMillis();
+    drainer.scheduleWithFixedDelay(this::drain, interval, interval, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public synchronized void destroy() throws IOException {
+    drainer.shutdownNow();
+    if (activeChannel != null) {
+      activeChannel.close();
+    }
+  }
+
+  public boolean isEnabled() {
+    return config.isEnabled();
+  }
+
+  /** Whether mails are waiting in the spool, in which case new mails should be spooled too. */
+  public boolean hasBacklog() {
+    return spooledMails.get() > 0;
+  }
+
+  /** Durably append the rendered mail to the spool. */
+  public void spool(MimeMessage mimeMessage) throws MessagingException {
+    var bytes = new ByteArrayOutputStream();
+    try {
+      mimeMessage.writeTo(bytes);
+    } catch (IOException exc) {
+      throw new MessagingException("failed to serialize the mail", exc);
+    }
+
+    synchronized (this) {
+      append(bytes.toByteArray());
+    }
+    spooledMails.incrementAndGet();
+    metrics.count(MessageEvent.SPOOLED, 1);
+  }
+
+  /** Hand the spooled mails to the mail server, stopping at the first batch it does not accept. */
+  void drain() {
+    if (!hasBacklog()) {
+      return;
+    }
+
+    try {
+      List<Path> segments;
+      synchronized (this) {
+        // new mails go to a fresh segment while the current ones are drained
+        if (activeSize > 0) {
+          rollSegment();
+        }
+        segments = listSegments();
+        segments.remove(activeSegment);
+      }
+
+      for (var segment : segments) {
+        if (!drainSegment(segment)) {
+          return;
+        }
+      }
+    } catch (IOException | RuntimeException exc) {
+      LOG.warn("failed to drain the mail spool: {}", exc.getMessage());
+    }
+  }
+
+  /** Send the mails of the segment, returning false if the mail server is still unavailable. */
+  private boolean drainSegment(Path segment) throws IOException {
+    var records = readSegment(segment);
+    var remaining = new ArrayList<byte[]>();
+    var sent = 0;
+    var serverAvailable = true;
+
+    for (var start = 0; start < records.size(); start += config.getBatchSize()) {
+      var batch = records.subList(start, Math.min(start + config.getBatchSize(), records.size()));
+      if (!serverAvailable) {
+        remaining.addAll(batch);
+        continue;
+      }
+
+      var messages = new MimeMessage[batch.size()];
+      for (var i = 0; i < batch.size(); i++) {
+        messages[i] = javaMailSender.createMimeMessage(new ByteArrayInputStream(batch.get(i)));
+      }
+
+      try {
+        metrics.timeVoid("mail.spool.send", () -> javaMailSender.send(messages));
+        sent += batch.size();
+      } catch (MailSendException exc) {
+        Set<Object> failed = exc.getFailedMessages().keySet();
+        if (failed.isEmpty()) {
+          // it is unknown which mails were taken, so all of them are kept for the next attempt
+          remaining.addAll(batch);
+          serverAvailable = false;
+        } else {
+          serverAvailable = !MailSender.isServerUnavailable(exc);
+          for (var i = 0; i < batch.size(); i++) {
+            if (!failed.contains(messages[i])) {
+              sent++;
+            } else if (!serverAvailable) {
+              remaining.add(batch.get(i));
+            } else {
+              // the server rejected the mail itself, sending it again would not change that
+              LOG.error("dropping spooled mail rejected by the mail server: {}", exc.getMessage());
+            }
+          }
+        }
+        LOG.warn("mail server did not accept spooled mails: {}", exc.getMessage());
+      } catch (MailException exc) {
+        remaining.addAll(batch);
+        serverAvailable = false;
+        LOG.warn("mail server did not accept spooled mails: {}", exc.getMessage());
+      }
+    }
+
+    if (!records.isEmpty() && remaining.size() == records.size()) {
+      // nothing was taken, keep the segment as it is for the next attempt
+      return false;
+    }
+
+    if (remaining.isEmpty()) {
+      Files.delete(segment);
+    } else {
+      rewriteSegment(segment, remaining);
+    }
+    spooledMails.addAndGet(-(records.size() - remaining.size()));
+
+    if (sent > 0) {
+      LOG.info("sent {} spooled mails", kv("count", sent));
+    }
+    return serverAvailable && remaining.isEmpty();
+  }
+
+  private void append(byte[] mime) {
+    var record = encode(mime);
+    try {
+      if (activeSize > 0 && activeSize + record.remaining() > config.getSegmentSize().toBytes()) {
+        rollSegment();
+      }
+      while (record.hasRemaining()) {
+        activeSize += activeChannel.write(record);
+      }
+      activeChannel.force(false);
+    } catch (IOException exc) {
+      throw new UncheckedIOException("failed to write to the mail spool", exc);
+    }
+  }
+
+  /** Replace the closed segment with the given records, keeping its place among the segments. */
+  private static void rewriteSegment(Path segment, List<byte[]> records) throws IOException {
+    // not matched by listSegments, so a rewrite torn by a crash is never read
+    var rewritten = segment.resolveSibling(segment.getFileName() + ".tmp");
+    try (var channel =
+        FileChannel.open(
+            rewritten,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+      for (var mime : records) {
+        var record = encode(mime);
+        while (record.hasRemaining()) {
+          channel.write(record);
+        }
+      }
+      channel.force(false);
+    }
+    Files.move(
+        rewritten, segment, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private static ByteBuffer encode(byte[] mime) {
+    var record = ByteBuffer.allocate(HEADER_SIZE + mime.length);
+    var crc = new CRC32();
+    crc.update(mime);
+    record.putInt(mime.length).putInt((int) crc.getValue()).put(mime).flip();
+    return record;
+  }
+
+  private void rollSegment() throws IOException {
+    activeChannel.close();
+    openSegment();
+  }
+
+  private void openSegment() throws IOException {
+    activeSegment = directory.resolve(String.format("mails-%010d.spool", nextSegmentIndex++));
+    activeChannel =
+        FileChannel.open(
+            activeSegment,
+            StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.APPEND);
+    activeSize = 0;
+  }
+
+  private List<Path> listSegments() throws IOException {
+    try (var files = Files.list(directory)) {
+      return files
+          .filter(path -> path.getFileName().toString().matches("mails-\\d+\\.spool"))
+          .sorted()
+          .collect(Collectors.toCollection(ArrayList::new));
+    }
+  }
+
+  private static long segmentIndex(Path segment) {
+    return Long.parseLong(segment.getFileName().toString().replaceAll("\\D", ""));
+  }
+
+  /** Read the MIME records of the segment up to the first torn or corrupt one. */
+  private static List<byte[]> readSegment(Path segment) throws IOException {
+    var buffer = ByteBuffer.wrap(Files.readAllBytes(segment));
+    var records = new ArrayList<byte[]>();
+    while (buffer.remaining() >= HEADER_SIZE) {
+      var length = buffer.getInt();
+      var checksum = buffer.getInt();
+      if (length < 0 || length > buffer.remaining()) {
+        LOG.warn("ignoring the torn tail of spool segment {}", kv("segment", segment));
+        break;
+      }
+
+      var mime = new byte[length];
+      buffer.get(mime);
+      var crc = new CRC32();
+      crc.update(mime);
+      if ((int) crc.getValue() != checksum) {
+        LOG.warn("ignoring the corrupt tail of spool segment {}", kv("segment", segment));
+        break;
+      }
+      records.add(mime);
+    }
+    return records;
+  }
+}
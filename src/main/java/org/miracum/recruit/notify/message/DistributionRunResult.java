@@ -0,0 +1,31 @@
+package org.miracum.recruit.notify.message;
+
+import java.util.Collection;
+
+/**
+ * What a distribution run, or one shard of it, did with the pending messages. Of each group of
+ * messages about the same study and recipient, the first one is sent and the others are revoked.
+ */
+public record DistributionRunResult(
+    int pendingMessages, int groups, int sent, int failed, int revoked, boolean deferred) {
+
+  /** Result of a shard that failed, leaving its messages for the next run. */
+  public static final DistributionRunResult FAILED_SHARD =
+      new DistributionRunResult(0, 0, 0, 0, 0, true);
+
+  /** Add up the results of the shards of a run. */
+  public static DistributionRunResult sum(Collection<DistributionRunResult> results) {
+    var total = new DistributionRunResult(0, 0, 0, 0, 0, false);
+    for (var result : results) {
+      total =
+          new DistributionRunResult(
+              total.pendingMessages + result.pendingMessages,
+              total.groups + result.groups,
+              total.sent + result.sent,
+              total.failed + result.failed,
+              total.revoked + result.revoked,
+              total.deferred || result.deferred);
+    }
+    return total;
+  }
+}
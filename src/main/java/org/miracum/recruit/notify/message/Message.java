@@ -1,31 +1,83 @@
 package org.miracum.recruit.notify.message;
 
-import java.util.Date;
+import java.time.Instant;
 import org.hl7.fhir.r4.model.CommunicationRequest;
+import org.hl7.fhir.r4.model.ContactPoint;
+import org.hl7.fhir.r4.model.InstantType;
+import org.hl7.fhir.r4.model.Practitioner;
+import org.miracum.recruit.notify.fhirserver.FhirSystemsConfig;
+import org.miracum.recruit.notify.practitioner.PractitionerUtils;
 
-public class Message {
+/**
+ * Compact, immutable projection of a pending CommunicationRequest. It only holds the fields read
+ * while deduplicating and distributing notifications, so the HAPI resource graph (including the
+ * included Practitioner) can be dropped as soon as a search result page has been read.
+ */
+public record Message(
+    String id,
+    String acronym,
+    String listId,
+    String recipientId,
+    String recipientEmail,
+    Instant authoredOn,
+    Instant listUpdatedAt) {
 
-  Date authoredTimestamp;
-  String fhirMessageId;
-  CommunicationRequest originalMessage;
-
-  public Message(
-      Date authoredTimestamp, String fhirMessageId, CommunicationRequest originalMessage) {
-    super();
-    this.authoredTimestamp = authoredTimestamp;
-    this.fhirMessageId = fhirMessageId;
-    this.originalMessage = originalMessage;
+  /**
+   * The time the screening list change that caused this message was made, falling back to when the
+   * message was authored. Null if neither is known.
+   */
+  public Instant changedAt() {
+    return listUpdatedAt != null ? listUpdatedAt : authoredOn;
   }
 
-  public Date getAuthoredTimestamp() {
-    return authoredTimestamp;
-  }
+  /** Project the given CommunicationRequest. Fields not present in the resource are null. */
+  public static Message fromCommunicationRequest(
+      CommunicationRequest request, FhirSystemsConfig fhirSystems) {
+    String listId = null;
+    for (var reference : request.getAbout()) {
+      if (reference.hasReference() && reference.getReference().contains("List")) {
+        listId = reference.getReferenceElement().getIdPart();
+        break;
+      }
+    }
 
-  public String getFhirMessageId() {
-    return fhirMessageId;
-  }
+    String recipientId = null;
+    String recipientEmail = null;
+    for (var reference : request.getRecipient()) {
+      if (reference.getResource() instanceof Practitioner practitioner) {
+        recipientId = practitioner.getIdElement().getIdPart();
+        recipientEmail =
+            PractitionerUtils.getFirstEmailFromPractitioner(practitioner)
+                .map(ContactPoint::getValue)
+                .orElse(null);
+      }
+
+      if (reference.hasReference() && reference.getReference().contains("Practitioner")) {
+        recipientId = reference.getReferenceElement().getIdPart();
+        if (recipientEmail == null && reference.hasDisplay()) {
+          recipientEmail = reference.getDisplay();
+        }
+        break;
+      }
+    }
+
+    var authoredOn = request.hasAuthoredOn() ? request.getAuthoredOn().toInstant() : null;
+
+    Instant listUpdatedAt = null;
+    var listUpdatedExtension = request.getExtensionByUrl(fhirSystems.getCommunicationListUpdated());
+    if (listUpdatedExtension != null
+        && listUpdatedExtension.getValue() instanceof InstantType listUpdated
+        && listUpdated.hasValue()) {
+      listUpdatedAt = listUpdated.getValue().toInstant();
+    }
 
-  public CommunicationRequest getOriginalMessage() {
-    return originalMessage;
+    return new Message(
+        request.getIdElement().getIdPart(),
+        request.getReasonCodeFirstRep().getText(),
+        listId,
+        recipientId,
+        recipientEmail,
+        authoredOn,
+        listUpdatedAt);
   }
 }
@@ -2,10 +2,22 @@ package org.miracum.recruit.notify.message;
 
 import static net.logstash.logback.argument.StructuredArguments.kv;
 
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import com.google.common.annotations.VisibleForTesting;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import javax.mail.MessagingException;
 import org.apache.logging.log4j.util.Strings;
 import org.hl7.fhir.r4.model.CodeableConcept;
@@ -16,23 +28,32 @@ import org.hl7.fhir.r4.model.CommunicationRequest.CommunicationRequestPayloadCom
 import org.hl7.fhir.r4.model.CommunicationRequest.CommunicationRequestStatus;
 import org.hl7.fhir.r4.model.ContactPoint;
 import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.InstantType;
 import org.hl7.fhir.r4.model.Practitioner;
 import org.hl7.fhir.r4.model.Reference;
 import org.hl7.fhir.r4.model.StringType;
 import org.miracum.recruit.notify.FhirServerProvider;
+import org.miracum.recruit.notify.fhirserver.AsyncFhirClient;
 import org.miracum.recruit.notify.fhirserver.FhirSystemsConfig;
 import org.miracum.recruit.notify.fhirserver.MessageTransmitter;
+import org.miracum.recruit.notify.fhirserver.TransmitResult;
+import org.miracum.recruit.notify.locking.StripedLocks;
+import org.miracum.recruit.notify.mailconfig.CreationConfig;
 import org.miracum.recruit.notify.mailconfig.MailerConfig;
 import org.miracum.recruit.notify.mailconfig.UserConfig;
 import org.miracum.recruit.notify.mailconfig.UserConfig.Subscription;
 import org.miracum.recruit.notify.mailsender.MailInfo;
 import org.miracum.recruit.notify.mailsender.MailSender;
+import org.miracum.recruit.notify.mailsender.MailSpool;
 import org.miracum.recruit.notify.mailsender.NotifyInfo;
+import org.miracum.recruit.notify.metrics.NotifyMetrics;
+import org.miracum.recruit.notify.metrics.NotifyMetrics.MessageEvent;
 import org.miracum.recruit.notify.practitioner.PractitionerFilter;
 import org.miracum.recruit.notify.practitioner.PractitionerUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.mail.MailException;
 import org.springframework.mail.javamail.JavaMailSender;
 import org.springframework.stereotype.Service;
 import org.thymeleaf.TemplateEngine;
@@ -50,6 +71,26 @@ public class MessageCreator {
   private final MailerConfig mailerConfig;
   private final FhirServerProvider fhirServerProvider;
   private final FhirSystemsConfig fhirSystemConfig;
+  private final NotifyMetrics metrics;
+  private final PendingMessageMonitor pendingMessageMonitor;
+  private final StripedLocks locks;
+  private final MailSpool mailSpool;
+  private final CreationConfig creationConfig;
+
+  /** A changed list whose messages are to be created, completed once they were stored. */
+  private record CreationRequest(
+      String acronym, String listId, Instant listUpdatedAt, CompletableFuture<Void> done) {}
+
+  /** The messages created for a list, ad-hoc ones are only sent after the others were stored. */
+  private record ListMessages(
+      CreationRequest request,
+      List<CommunicationRequest> adHoc,
+      List<Practitioner> adHocRecipients,
+      List<CommunicationRequest> delayed) {}
+
+  private final Object batchLock = new Object();
+  // guarded by batchLock
+  private List<CreationRequest> openBatch;
 
   /** Prepare config items and email utils to use when sending emails just in time (ad hoc). */
   @Autowired
@@ -61,7 +102,12 @@ public class MessageCreator {
       UserConfig config,
       MailerConfig mailerConfig,
       FhirServerProvider fhirServerProvider,
-      FhirSystemsConfig fhirSystemConfig) {
+      FhirSystemsConfig fhirSystemConfig,
+      NotifyMetrics metrics,
+      PendingMessageMonitor pendingMessageMonitor,
+      StripedLocks locks,
+      MailSpool mailSpool,
+      CreationConfig creationConfig) {
     this.javaMailSender = javaMailSender;
     this.templateEngine = templateEngine;
     this.practitionerFilter = practitionerFilter;
@@ -70,20 +116,147 @@ public class MessageCreator {
     this.mailerConfig = mailerConfig;
     this.fhirServerProvider = fhirServerProvider;
     this.fhirSystemConfig = fhirSystemConfig;
+    this.metrics = metrics;
+    this.pendingMessageMonitor = pendingMessageMonitor;
+    this.locks = locks;
+    this.mailSpool = mailSpool;
+    this.creationConfig = creationConfig;
   }
 
   /**
    * Based on acronym and list id sending messages to target fhir server to store messages as
-   * communication request resources.
+   * communication request resources. The time the list was updated, if known, is kept with the
+   * messages to measure the delay until they are delivered.
+   *
+   * <p>Lists changing within the configured batch window are handled together: the practitioners
+   * of all their studies are looked up at once, the pending messages are fetched once, and the new
+   * messages of all lists are stored together. The call returns once the messages of its list were
+   * stored, and only fails if the lookups shared by the batch or the messages of its own list
+   * failed. Ad-hoc mails are only sent once the scheduled messages of their list were stored, so a
+   * list that is handled again after a failure does not mail its ad-hoc recipients twice.
    */
-  public void temporaryStoreMessagesInFhir(String acronym, String listId) {
-    LOG.info("create messages in queue for {}", kv("trial", acronym));
+  public void temporaryStoreMessagesInFhir(String acronym, String listId, Instant listUpdatedAt) {
+    var request = new CreationRequest(acronym, listId, listUpdatedAt, new CompletableFuture<>());
+    if (creationConfig.getBatchWindow().isZero()) {
+      createBatch(List.of(request));
+    } else if (joinBatch(request)) {
+      createBatch(collectBatch());
+    }
+    AsyncFhirClient.await(request.done());
+  }
+
+  /** Add the request to the open batch, returning whether it opened the batch and must run it. */
+  private boolean joinBatch(CreationRequest request) {
+    synchronized (batchLock) {
+      var opened = openBatch == null;
+      if (opened) {
+        openBatch = new ArrayList<>();
+      }
+      openBatch.add(request);
+      if (openBatch.size() >= creationConfig.getMaxBatchSize()) {
+        batchLock.notifyAll();
+      }
+      return opened;
+    }
+  }
+
+  /** Wait for the batch window to pass or the batch to fill up, and close the batch. */
+  private List<CreationRequest> collectBatch() {
+    synchronized (batchLock) {
+      var deadline = System.nanoTime() + creationConfig.getBatchWindow().toNanos();
+      var remaining = deadline - System.nanoTime();
+      while (openBatch.size() < creationConfig.getMaxBatchSize() && remaining > 0) {
+        try {
+          TimeUnit.NANOSECONDS.timedWait(batchLock, remaining);
+        } catch (InterruptedException exc) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+        remaining = deadline - System.nanoTime();
+      }
+
+      var batch = openBatch;
+      openBatch = null;
+      return batch;
+    }
+  }
+
+  /** Create the messages of the batch, completing the request of each list with its outcome. */
+  private void createBatch(List<CreationRequest> batch) {
+    try {
+      metrics.timeVoid("create", () -> createAndStoreMessages(batch));
+    } catch (RuntimeException exc) {
+      // a lookup shared by all lists failed, the lists already completed are not affected
+      batch.forEach(request -> request.done().completeExceptionally(exc));
+    }
+  }
+
+  private void createAndStoreMessages(List<CreationRequest> batch) {
+    LOG.debug("creating messages for {}", kv("lists", batch.size()));
+
+    var subscribersByAcronym = new HashMap<String, List<String>>();
+    for (var request : batch) {
+      subscribersByAcronym.computeIfAbsent(request.acronym(), this::readSubscribersFromConfig);
+    }
+    var allSubscribers = subscribersByAcronym.values().stream().flatMap(List::stream).toList();
+    Map<String, Practitioner> practitionersByEmail =
+        allSubscribers.isEmpty()
+            ? Map.of()
+            : metrics.time(
+                "create.lookup_practitioners",
+                () -> fhirServerProvider.getPractitionersByEmails(allSubscribers));
+
+    var lists = new ArrayList<ListMessages>();
+    for (var request : batch) {
+      try {
+        var practitioners =
+            resolvePractitioners(
+                subscribersByAcronym.get(request.acronym()), practitionersByEmail);
+        lists.add(createMessagesForList(request, practitioners));
+      } catch (RuntimeException exc) {
+        request.done().completeExceptionally(exc);
+      }
+    }
+
+    var delayed = lists.stream().flatMap(list -> list.delayed().stream()).toList();
+    Set<CommunicationRequest> failed = Collections.newSetFromMap(new IdentityHashMap<>());
+    if (!delayed.isEmpty()) {
+      failed.addAll(storeMessagesInFhir(delayed).failed());
+      pendingMessageMonitor.refresh();
+    }
+
+    for (var list : lists) {
+      var failedOfList = list.delayed().stream().filter(failed::contains).count();
+      if (failedOfList > 0) {
+        // the stored messages are pending now, so handling the list again only creates the others
+        list.request()
+            .done()
+            .completeExceptionally(
+                new FhirClientConnectionException(
+                    String.format(
+                        "failed to store %d of %d messages", failedOfList, list.delayed().size())));
+        continue;
+      }
 
-    List<Practitioner> practitionersFhir = retrieveSubscribersByAcronym(acronym);
+      try {
+        sendAdHoc(list);
+        list.request().done().complete(null);
+      } catch (RuntimeException exc) {
+        list.request().done().completeExceptionally(exc);
+      }
+    }
+  }
+
+  /** Create the ad-hoc and the scheduled messages about the list. */
+  private ListMessages createMessagesForList(
+      CreationRequest request, List<Practitioner> practitionersFhir) {
+    var acronym = request.acronym();
+    var listId = request.listId();
+    LOG.info("create messages in queue for {}", kv("trial", acronym));
 
     if (practitionersFhir.isEmpty()) {
       LOG.info("no practitioners available");
-      return;
+      return new ListMessages(request, List.of(), List.of(), List.of());
     }
 
     // List<Subscription> configuredSubscriptions = config.getSubscriptionsByAcronym(acronym);
@@ -93,19 +266,32 @@ public class MessageCreator {
         practitionerFilter.dividePractitioners(filteredListByAcronymOrAsterisk, practitionersFhir);
 
     List<CommunicationRequest> messagesAdHoc =
-        createMessages(acronym, listId, practitionerListContainer.getAdHocRecipients());
+        createMessages(
+            acronym,
+            listId,
+            request.listUpdatedAt(),
+            practitionerListContainer.getAdHocRecipients());
     List<CommunicationRequest> messagesDelayed =
-        createMessages(acronym, listId, practitionerListContainer.getScheduledRecipients());
-
-    var notifyInfo = generateNotifyInfo(acronym, listId);
+        createMessages(
+            acronym,
+            listId,
+            request.listUpdatedAt(),
+            practitionerListContainer.getScheduledRecipients());
+    metrics.count(MessageEvent.CREATED, messagesAdHoc.size() + messagesDelayed.size());
+
+    return new ListMessages(
+        request, messagesAdHoc, practitionerListContainer.getAdHocRecipients(), messagesDelayed);
+  }
 
-    if (!messagesAdHoc.isEmpty()) {
-      sendMessagesAdHoc(messagesAdHoc, practitionerListContainer.getAdHocRecipients(), notifyInfo);
+  private void sendAdHoc(ListMessages list) {
+    if (list.adHoc().isEmpty()) {
+      return;
     }
 
-    if (!messagesDelayed.isEmpty()) {
-      storeMessagesInFhir(messagesDelayed);
-    }
+    var notifyInfo = generateNotifyInfo(list.request().acronym(), list.request().listId());
+    metrics.timeVoid(
+        "create.send_adhoc",
+        () -> sendMessagesAdHoc(list.adHoc(), list.adHocRecipients(), notifyInfo));
   }
 
   private NotifyInfo generateNotifyInfo(String acronym, String listId) {
@@ -115,16 +301,21 @@ public class MessageCreator {
     return notifyInfo;
   }
 
-  private List<Practitioner> retrieveSubscribersByAcronym(String acronym) {
-    LOG.debug("retrieve subscribers by {}", kv("trial", acronym));
-
-    List<String> subscribers = readSubscribersFromConfig(acronym);
-
-    if (subscribers.isEmpty()) {
-      return new ArrayList<>();
+  /**
+   * The practitioners of the subscribers in their order. If any subscriber has no practitioner, no
+   * practitioner is returned at all.
+   */
+  private static List<Practitioner> resolvePractitioners(
+      List<String> subscribers, Map<String, Practitioner> practitionersByEmail) {
+    var practitioners = new ArrayList<Practitioner>();
+    for (var subscriber : subscribers) {
+      var practitioner = practitionersByEmail.get(subscriber);
+      if (practitioner == null) {
+        return List.of();
+      }
+      practitioners.add(practitioner);
     }
-
-    return fhirServerProvider.getPractitionersByEmail(subscribers);
+    return practitioners;
   }
 
   private List<String> readSubscribersFromConfig(String acronym) {
@@ -154,7 +345,7 @@ public class MessageCreator {
    * acronym and list id (will be linked in email body).
    */
   public List<CommunicationRequest> createMessages(
-      String acronym, String listId, List<Practitioner> practitioners) {
+      String acronym, String listId, Instant listUpdatedAt, List<Practitioner> practitioners) {
 
     LOG.debug(
         "creating FHIR CommunicationRequest resources about {} for {} practitioners",
@@ -197,6 +388,12 @@ public class MessageCreator {
           new Reference().setReference("List/" + listId).setDisplay(acronym);
       communication.addAbout(screeningListReference);
 
+      if (listUpdatedAt != null) {
+        communication.addExtension(
+            fhirSystemConfig.getCommunicationListUpdated(),
+            new InstantType(Date.from(listUpdatedAt)));
+      }
+
       var reasonCodeList = createReasonCodeFromAcronym(acronym);
       communication.setReasonCode(reasonCodeList);
 
@@ -231,23 +428,69 @@ public class MessageCreator {
     return List.of(identifier);
   }
 
-  // TODO: is there a potential race-condition between these calls?
-  // TODO: consider refactoring this to a conditional-create tx
-  private void storeMessagesInFhir(List<CommunicationRequest> messages) {
-    var alreadyPreparedMessages = fhirServerProvider.getPreparedMessages();
+  /**
+   * Store the messages not yet pending for their recipient. The recipients are locked from reading
+   * the pending messages until the new ones are stored, so concurrent webhooks for lists of the
+   * same study cannot both queue a message for the same recipient.
+   */
+  // TODO: consider refactoring this to a conditional-create tx to also cover multiple instances
+  private TransmitResult storeMessagesInFhir(List<CommunicationRequest> messages) {
+    var recipientKeys =
+        messages.stream()
+            .map(
+                message ->
+                    StripedLocks.recipientKey(
+                        message.getReasonCodeFirstRep().getText(),
+                        message.getRecipientFirstRep().getReferenceElement().getIdPart()))
+            .toList();
+    return locks.withRecipientLocks(recipientKeys, () -> deduplicateAndTransmit(messages));
+  }
+
+  /**
+   * Store the messages not yet pending. Messages left out as duplicates count as stored, as a
+   * message about the same study is pending for their recipient.
+   */
+  private TransmitResult deduplicateAndTransmit(List<CommunicationRequest> messages) {
+    var alreadyPreparedMessages =
+        metrics.time("create.fetch_pending", fhirServerProvider::getPreparedMessages);
     LOG.debug(
         "{} messages are pending in total",
         kv("numPendingMessages", alreadyPreparedMessages.size()));
-    var extractedMessages = extractMessagesToPrepare(messages, alreadyPreparedMessages);
+    var extractedMessages =
+        metrics.time(
+            "create.deduplicate",
+            () ->
+                keepFirstPerStudyAndRecipient(
+                    extractMessagesToPrepare(messages, alreadyPreparedMessages)));
+    metrics.count(MessageEvent.DEDUPLICATED, messages.size() - extractedMessages.size());
 
     LOG.debug(
         "adding {} new CommunicationRequests to the server",
         kv("numNewMessages", extractedMessages.size()));
-    messageTransmitter.transmit(extractedMessages);
+    return messageTransmitter.transmit(extractedMessages);
+  }
+
+  /**
+   * Keep only the first message about each study to each recipient, as lists of the same study
+   * created in one batch would otherwise queue several messages for the same recipient.
+   */
+  private static List<CommunicationRequest> keepFirstPerStudyAndRecipient(
+      List<CommunicationRequest> messages) {
+    var seen = new HashSet<String>();
+    return messages.stream()
+        .filter(
+            message ->
+                seen.add(
+                    StripedLocks.recipientKey(
+                        message.getReasonCodeFirstRep().getText(),
+                        message.getRecipientFirstRep().getReferenceElement().getIdPart())))
+        .toList();
   }
 
-  private List<CommunicationRequest> extractMessagesToPrepare(
-      List<CommunicationRequest> messages, List<CommunicationRequest> alreadyPreparedMessages) {
+  /** Keep the messages for which no message about the same study and recipient is pending. */
+  @VisibleForTesting
+  static List<CommunicationRequest> extractMessagesToPrepare(
+      List<CommunicationRequest> messages, List<Message> alreadyPreparedMessages) {
     List<CommunicationRequest> extractedMessages = new ArrayList<>();
 
     for (var messageToPrepare : messages) {
@@ -265,21 +508,19 @@ public class MessageCreator {
     return extractedMessages;
   }
 
-  private boolean checkIfMessageIsAlreadyPrepared(
-      List<CommunicationRequest> alreadyPreparedMessages,
+  private static boolean checkIfMessageIsAlreadyPrepared(
+      List<Message> alreadyPreparedMessages,
       CommunicationRequest messageToPrepare,
       String idPartReceiver) {
     var topic = messageToPrepare.getReasonCodeFirstRep().getText();
 
     for (var messageAlreadyPrepared : alreadyPreparedMessages) {
-      var topicAlreadyExists =
-          messageAlreadyPrepared.getReasonCodeFirstRep().getText().equals(topic);
-      var receiverAlreadyExists =
-          checkIfMessageHasMatchingRecipient(messageAlreadyPrepared, idPartReceiver);
+      var topicAlreadyExists = Objects.equals(messageAlreadyPrepared.acronym(), topic);
+      var receiverAlreadyExists = idPartReceiver.equals(messageAlreadyPrepared.recipientId());
 
       LOG.debug(
           "checking if {} is already pending for {} and {}: {} {}",
-          kv("communicationRequestId", messageAlreadyPrepared.getIdElement().getIdPart()),
+          kv("communicationRequestId", messageAlreadyPrepared.id()),
           kv("practitioner", idPartReceiver),
           kv("acronym", topic),
           kv("topicAlreadyExists", topicAlreadyExists),
@@ -293,27 +534,6 @@ public class MessageCreator {
     return false;
   }
 
-  private boolean checkIfMessageHasMatchingRecipient(
-      CommunicationRequest message, String recipientIdToTest) {
-    var recipientList = message.getRecipient();
-    for (var reference : recipientList) {
-      if (reference.getReference().contains("Practitioner")) {
-        var recipientId = reference.getReferenceElement().getIdPart();
-        LOG.debug(
-            "check if current {} {} matches {}",
-            kv("communicationRequestId", message.getIdElement().getIdPart()),
-            kv("recipientId", recipientId),
-            kv("recipientIdToTest", recipientIdToTest));
-
-        if (recipientIdToTest.equals(recipientId)) {
-          return true;
-        }
-      }
-    }
-
-    return false;
-  }
-
   // TODO: consolidate redundant code with MessageDistributor.distribute
   private void sendMessagesAdHoc(
       List<CommunicationRequest> messagesAdHoc, List<Practitioner> list, NotifyInfo notifyInfo) {
@@ -337,10 +557,14 @@ public class MessageCreator {
           kv("to", mailInfo.getTo()),
           kv("subject", mailInfo.getSubject()));
 
-      var mailSender = new MailSender(javaMailSender, templateEngine);
+      var mailSender = new MailSender(javaMailSender, templateEngine, metrics, mailSpool);
       try {
         mailSender.sendMail(notifyInfo, mailInfo);
-      } catch (MessagingException e) {
+        metrics.count(MessageEvent.SENT, 1);
+        metrics.recordDeliveryDelay(
+            NotifyMetrics.ADHOC,
+            Message.fromCommunicationRequest(message, fhirSystemConfig).changedAt());
+      } catch (MessagingException | MailException e) {
         LOG.error("failed to send message", e);
       }
     }
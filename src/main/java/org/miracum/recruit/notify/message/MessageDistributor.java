@@ -3,27 +3,39 @@ package org.miracum.recruit.notify.message;
 import static java.util.stream.Collectors.toList;
 import static net.logstash.logback.argument.StructuredArguments.kv;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
+import com.google.common.hash.Hashing;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.List;
-import java.util.function.Predicate;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 import javax.mail.MessagingException;
-import org.hl7.fhir.r4.model.CommunicationRequest;
 import org.hl7.fhir.r4.model.CommunicationRequest.CommunicationRequestStatus;
-import org.hl7.fhir.r4.model.Practitioner;
 import org.miracum.recruit.notify.FhirServerProvider;
+import org.miracum.recruit.notify.fhirserver.AsyncFhirClient;
 import org.miracum.recruit.notify.fhirserver.MessageStatusUpdater;
+import org.miracum.recruit.notify.jfr.DistributionRunEvent;
+import org.miracum.recruit.notify.mailconfig.DistributionConfig;
 import org.miracum.recruit.notify.mailconfig.MailerConfig;
 import org.miracum.recruit.notify.mailconfig.UserConfig;
 import org.miracum.recruit.notify.mailsender.MailInfo;
 import org.miracum.recruit.notify.mailsender.MailSender;
+import org.miracum.recruit.notify.mailsender.MailSpool;
 import org.miracum.recruit.notify.mailsender.NotifyInfo;
-import org.miracum.recruit.notify.practitioner.PractitionerUtils;
+import org.miracum.recruit.notify.metrics.NotifyMetrics;
+import org.miracum.recruit.notify.metrics.NotifyMetrics.MessageEvent;
+import org.miracum.recruit.notify.resilience.GuardedJavaMailSender;
+import org.miracum.recruit.notify.resilience.ResourceGuards;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.mail.MailException;
 import org.springframework.mail.javamail.JavaMailSender;
 import org.springframework.stereotype.Service;
 import org.thymeleaf.TemplateEngine;
@@ -33,12 +45,33 @@ import org.thymeleaf.TemplateEngine;
 public class MessageDistributor {
   private static final Logger LOG = LoggerFactory.getLogger(MessageDistributor.class);
 
+  // tolerates clock differences between the FHIR server and this instance
+  private static final Duration WATERMARK_MARGIN = Duration.ofMinutes(5);
+
   private final UserConfig notificationRuleConfig;
   private final FhirServerProvider fhirServerProvider;
   private final JavaMailSender appJavaMailSender;
   private final TemplateEngine emailTemplateEngine;
   private final MessageStatusUpdater messageUpdater;
   private final MailerConfig mailerConfig;
+  private final ResourceGuards resourceGuards;
+  private final AsyncFhirClient asyncFhirClient;
+  private final NotifyMetrics metrics;
+  private final PendingMessageMonitor pendingMessageMonitor;
+  private final PendingMessageSnapshot pendingMessageSnapshot;
+  private final int chunkSize;
+  private final MailSpool mailSpool;
+  // start of the last run of each trigger and shard that left no pending message of its
+  // subscribers behind, so later runs only need to look at messages updated since
+  private final Map<String, Instant> cleanRunStarts = new ConcurrentHashMap<>();
+
+  /** Outcome of an attempt to send a single message. */
+  public enum DeliveryOutcome {
+    SENT,
+    FAILED,
+    // the mail server is known to be unavailable, the message was not attempted
+    DEFERRED
+  }
 
   /** Prepare config items and email utils to distribute temporary stored messages. */
   @Autowired
@@ -48,17 +81,55 @@ public class MessageDistributor {
       FhirServerProvider fhirServerProvider,
       UserConfig notificationRuleConfig,
       MessageStatusUpdater messageUpdater,
-      MailerConfig mailerConfig) {
+      MailerConfig mailerConfig,
+      ResourceGuards resourceGuards,
+      AsyncFhirClient asyncFhirClient,
+      NotifyMetrics metrics,
+      PendingMessageMonitor pendingMessageMonitor,
+      DistributionConfig distributionConfig,
+      MailSpool mailSpool,
+      PendingMessageSnapshot pendingMessageSnapshot) {
     this.emailTemplateEngine = emailTemplateEngine;
     this.appJavaMailSender = appJavaMailSender;
     this.fhirServerProvider = fhirServerProvider;
     this.notificationRuleConfig = notificationRuleConfig;
     this.messageUpdater = messageUpdater;
     this.mailerConfig = mailerConfig;
+    this.resourceGuards = resourceGuards;
+    this.asyncFhirClient = asyncFhirClient;
+    this.metrics = metrics;
+    this.pendingMessageMonitor = pendingMessageMonitor;
+    this.chunkSize = Math.max(distributionConfig.getChunkSize(), 1);
+    this.mailSpool = mailSpool;
+    this.pendingMessageSnapshot = pendingMessageSnapshot;
+  }
+
+  /** Distribute the pending messages of all subscribers of the schedule. */
+  public DistributionRunResult distribute(String triggerKey) {
+    return distributeShard(triggerKey, 0, 1);
   }
 
-  public void distribute(String triggerKey) {
-    LOG.info("begin distributing messages");
+  /**
+   * Distribute the pending messages of the subscribers of the schedule that fall into the shard.
+   * Subscribers are assigned to shards by a hash of their email, so all messages about the same
+   * study and recipient are handled by the same shard.
+   */
+  public DistributionRunResult distributeShard(String triggerKey, int shard, int shards) {
+    var event = new DistributionRunEvent();
+    event.trigger = triggerKey;
+    event.shard = shard;
+    event.shards = shards;
+    event.begin();
+    try {
+      return metrics.time("distribute", () -> distributeMessages(triggerKey, shard, shards, event));
+    } finally {
+      event.commit();
+    }
+  }
+
+  private DistributionRunResult distributeMessages(
+      String triggerKey, int shard, int shards, DistributionRunEvent event) {
+    LOG.info("begin distributing messages of {}", kv("shard", shard + "/" + shards));
 
     var subscriptions =
         notificationRuleConfig.getSubscriptions().stream()
@@ -67,111 +138,239 @@ public class MessageDistributor {
 
     List<String> subscribers = new ArrayList<>();
     for (var item : subscriptions) {
-      subscribers.add(item.getEmail());
+      if (isInShard(item.getEmail(), shard, shards)) {
+        subscribers.add(item.getEmail());
+      }
     }
 
     LOG.debug("{} subscribe to schedule", kv("subscribers", subscribers));
+    if (subscribers.isEmpty()) {
+      return new DistributionRunResult(0, 0, 0, 0, 0, false);
+    }
+
+    var runKey = triggerKey + "|" + shard + "/" + shards;
+    var runStart = Instant.now();
+    if (!mayHavePendingMessages(runKey)) {
+      LOG.info("no messages pending since the last run, skipping the search");
+      return new DistributionRunResult(0, 0, 0, 0, 0, false);
+    }
 
-    var openMessages = fhirServerProvider.getOpenMessagesForSubscribers(subscribers);
+    // a shard only searches the messages of its own recipients, so the shards of a run do not
+    // each fetch all active messages
+    var openMessages =
+        metrics.time(
+            "distribute.fetch_pending",
+            () ->
+                shards > 1
+                    ? fhirServerProvider.getActiveMessagesForRecipients(subscribers)
+                    : pendingMessageSnapshot.getOpenMessagesForSubscribers(subscribers));
 
     List<TransformedMessages> transformedMessageList =
-        transformMessageListToIdentifyDuplicates(openMessages);
-
-    for (TransformedMessages transformedMessages : transformedMessageList) {
+        metrics.time(
+            "distribute.group", () -> transformMessageListToIdentifyDuplicates(openMessages));
+    event.pendingMessages = openMessages.size();
+    event.groups = transformedMessageList.size();
+
+    var sent = 0;
+    var failed = 0;
+    var revoked = 0;
+    var deferredGroups = 0;
+    // statuses are flushed after every chunk of groups, so a run that is killed midway mails at
+    // most one chunk again, and the next run resumes with the messages still active
+    var chunk = new StatusChunk();
+    try {
+      for (TransformedMessages transformedMessages : transformedMessageList) {
+        // with a spool, mails are spooled while the mail server is unavailable instead
+        if (!mailSpool.isEnabled() && !resourceGuards.isMailCallPermitted()) {
+          LOG.warn(
+              "mail server circuit breaker is open, deferring remaining messages to the next run");
+          event.deferred = true;
+          break;
+        }
 
-      List<CommunicationRequest> listFhirCommunicationRequests =
-          new ArrayList<CommunicationRequest>();
+        var messages = transformedMessages.getMessages();
+        var outcome = sendMessageList(messages, chunk);
+        if (outcome == DeliveryOutcome.DEFERRED) {
+          deferredGroups++;
+          continue;
+        }
+        if (outcome == DeliveryOutcome.SENT) {
+          sent++;
+        } else {
+          failed++;
+        }
+        revoked += messages.size() - 1;
 
-      List<Message> messageList = transformedMessages.getMessages();
-      for (Message message : messageList) {
-        listFhirCommunicationRequests.add(message.getOriginalMessage());
+        if (chunk.groups >= chunkSize) {
+          // swapped before the flush, so a failed flush is not written again by the finally block
+          var full = chunk;
+          chunk = new StatusChunk();
+          flushStatuses(full);
+        }
       }
+    } finally {
+      // a failed run keeps no watermark, so the next one searches all active messages again
+      cleanRunStarts.remove(runKey);
+      flushStatuses(chunk);
+    }
 
-      sendMessageList(listFhirCommunicationRequests);
+    if (!event.deferred && deferredGroups == 0) {
+      cleanRunStarts.put(runKey, runStart.minus(WATERMARK_MARGIN));
     }
+
+    pendingMessageMonitor.refresh();
+    return new DistributionRunResult(
+        openMessages.size(), transformedMessageList.size(), sent, failed, revoked, event.deferred);
+  }
+
+  /**
+   * Probe whether any active message may be waiting for the run, counting the active messages
+   * updated since the last clean run instead of fetching them. Messages left active by that run
+   * were not meant for its subscribers, so only messages created or reset since then matter.
+   */
+  private boolean mayHavePendingMessages(String runKey) {
+    var since = cleanRunStarts.get(runKey);
+    var count =
+        metrics.time(
+            "distribute.probe",
+            () ->
+                fhirServerProvider.countMessagesByStatus(
+                    CommunicationRequestStatus.ACTIVE, since));
+    return count.isEmpty() || count.getAsInt() > 0;
   }
 
-  private void sendMessageList(List<CommunicationRequest> openMessages) {
-    // TODO: strongly type this list by using the CommunicationRequest object instead of just the
+  /** Status changes of the groups handled since the last flush. */
+  private static class StatusChunk {
+    // TODO: strongly type these lists by using the CommunicationRequest object instead of just the
     // string id
-    var messagesSentSuccessfully = new ArrayList<String>();
-    var messagesSentFailed = new ArrayList<String>();
-    var messagesIgnored = new ArrayList<String>();
-
-    var counter = 1;
-
-    for (var message : openMessages) {
-
-      if (counter == 1) {
-        var notifyInfo = new NotifyInfo();
-        notifyInfo.setStudyAcronym(message.getReasonCodeFirstRep().getText());
-
-        var mailInfo = new MailInfo();
-        mailInfo.setFrom(mailerConfig.getFrom());
-        mailInfo.setSubject(
-            mailerConfig.getSubject().replace("[study_acronym]", notifyInfo.getStudyAcronym()));
-
-        var listId = "";
-        var referencesAbout = message.getAbout();
-        for (var reference : referencesAbout) {
-          if (reference.hasReference() && reference.getReference().contains("List")) {
-            listId = reference.getReferenceElement().getIdPart();
-            break;
-          }
-        }
+    private final List<String> messagesSentSuccessfully = new ArrayList<>();
+    private final List<String> messagesSentFailed = new ArrayList<>();
+    private final List<String> messagesIgnored = new ArrayList<>();
+    private int groups;
+  }
 
-        if (Strings.isNullOrEmpty(listId)) {
-          LOG.error(
-              "Failed to retrieve the screening list resource associated with {}. "
-                  + "Setting id to an empty string in link template.",
-              kv("communicationRequestId", message.getId()));
-        }
+  /**
+   * Send the first message of the group and mark the others to be revoked. Returns the outcome of
+   * sending the first message, the statuses are left unchanged if it was deferred.
+   */
+  private DeliveryOutcome sendMessageList(List<Message> openMessages, StatusChunk chunk) {
+    var first = openMessages.get(0);
+    var outcome = sendMessage(first);
+    if (outcome == DeliveryOutcome.DEFERRED) {
+      // leave the whole group active so it is picked up again by the next run
+      return outcome;
+    }
 
-        notifyInfo.setScreeningListLink(replaceScreeningListLinkPlaceholderByListId(listId));
+    if (outcome == DeliveryOutcome.SENT) {
+      chunk.messagesSentSuccessfully.add(first.id());
+    } else {
+      chunk.messagesSentFailed.add(first.id());
+    }
+    for (var message : openMessages.subList(1, openMessages.size())) {
+      chunk.messagesIgnored.add(message.id());
+    }
+    chunk.groups++;
+    return outcome;
+  }
 
-        var emailAddress = queryEmailFromPractitioner(message);
-        if (Strings.isNullOrEmpty(emailAddress)) {
-          LOG.error(
-              "adding {} to failed message list because no receiver email could be retrieved",
-              kv("message", message.getId()));
-          messagesSentFailed.add(message.getIdElement().getIdPart());
-          break;
-        }
+  private void flushStatuses(StatusChunk chunk) {
+    if (chunk.groups == 0) {
+      return;
+    }
 
-        mailInfo.setTo(emailAddress);
-
-        LOG.debug(
-            "sending scheduled notification mail {} {} with {}",
-            kv("from", mailInfo.getFrom()),
-            kv("to", mailInfo.getTo()),
-            kv("subject", mailInfo.getSubject()));
-
-        var mailSender = new MailSender(appJavaMailSender, emailTemplateEngine);
-        try {
-          mailSender.sendMail(notifyInfo, mailInfo);
-          messagesSentSuccessfully.add(message.getIdElement().getIdPart());
-        } catch (MessagingException e) {
-          LOG.error(
-              "failed to send {} {}",
-              kv("message", message.getId()),
-              kv("to", mailInfo.getTo()),
-              e);
-          messagesSentFailed.add(message.getIdElement().getIdPart());
-        }
-      } else {
-        messagesIgnored.add(message.getIdElement().getIdPart());
-      }
+    metrics.count(MessageEvent.ONHOLD, chunk.messagesSentFailed.size());
+    metrics.count(MessageEvent.REVOKED, chunk.messagesIgnored.size());
+
+    // the status patches are independent of each other, so run them all at once
+    var sample = metrics.start();
+    var statusUpdates =
+        CompletableFuture.allOf(
+            asyncFhirClient.forEach(
+                chunk.messagesSentFailed,
+                message -> {
+                  LOG.debug("recording first failed delivery of {}", kv("message", message));
+                  messageUpdater.updateFailedDelivery(
+                      message, CommunicationRequestStatus.ONHOLD, 1);
+                }),
+            updateMessageStatus(
+                chunk.messagesSentSuccessfully, CommunicationRequestStatus.COMPLETED),
+            updateMessageStatus(chunk.messagesIgnored, CommunicationRequestStatus.REVOKED));
+    var outcome = NotifyMetrics.FAILURE;
+    try {
+      AsyncFhirClient.await(statusUpdates);
+      outcome = NotifyMetrics.SUCCESS;
+    } finally {
+      metrics.stop(sample, "distribute.update_status", outcome);
+    }
+  }
 
-      counter++;
+  /** Render the notification mail for the given message and send it to its recipient. */
+  public DeliveryOutcome sendMessage(Message message) {
+    var notifyInfo = new NotifyInfo();
+    notifyInfo.setStudyAcronym(message.acronym());
+
+    var mailInfo = new MailInfo();
+    mailInfo.setFrom(mailerConfig.getFrom());
+    mailInfo.setSubject(
+        mailerConfig.getSubject().replace("[study_acronym]", notifyInfo.getStudyAcronym()));
+
+    var listId = Strings.nullToEmpty(message.listId());
+    if (Strings.isNullOrEmpty(listId)) {
+      LOG.error(
+          "Failed to retrieve the screening list resource associated with {}. "
+              + "Setting id to an empty string in link template.",
+          kv("communicationRequestId", message.id()));
     }
 
-    updateMessageStatus(messagesSentFailed, CommunicationRequestStatus.ONHOLD);
-    updateMessageStatus(messagesSentSuccessfully, CommunicationRequestStatus.COMPLETED);
-    updateMessageStatus(messagesIgnored, CommunicationRequestStatus.REVOKED);
+    notifyInfo.setScreeningListLink(replaceScreeningListLinkPlaceholderByListId(listId));
+
+    var emailAddress = message.recipientEmail();
+    if (Strings.isNullOrEmpty(emailAddress)) {
+      LOG.error(
+          "adding {} to failed message list because no receiver email could be retrieved",
+          kv("message", message.id()));
+      return DeliveryOutcome.FAILED;
+    }
+
+    mailInfo.setTo(emailAddress);
+
+    LOG.debug(
+        "sending scheduled notification mail {} {} with {}",
+        kv("from", mailInfo.getFrom()),
+        kv("to", mailInfo.getTo()),
+        kv("subject", mailInfo.getSubject()));
+
+    var mailSender = new MailSender(appJavaMailSender, emailTemplateEngine, metrics, mailSpool);
+    try {
+      mailSender.sendMail(notifyInfo, mailInfo);
+      metrics.count(MessageEvent.SENT, 1);
+      metrics.recordDeliveryDelay(NotifyMetrics.SCHEDULED, message.changedAt());
+      return DeliveryOutcome.SENT;
+    } catch (MailException e) {
+      if (GuardedJavaMailSender.isCallNotPermitted(e)) {
+        LOG.warn("deferring {}: {}", kv("message", message.id()), e.getMessage());
+        return DeliveryOutcome.DEFERRED;
+      }
+      LOG.error(
+          "failed to send {} {}", kv("message", message.id()), kv("to", mailInfo.getTo()), e);
+      return DeliveryOutcome.FAILED;
+    } catch (MessagingException e) {
+      LOG.error(
+          "failed to send {} {}", kv("message", message.id()), kv("to", mailInfo.getTo()), e);
+      return DeliveryOutcome.FAILED;
+    }
   }
 
-  private List<TransformedMessages> transformMessageListToIdentifyDuplicates(
-      List<CommunicationRequest> openMessages) {
+  /** Whether the subscriber with the given email is distributed to by the shard. */
+  @VisibleForTesting
+  static boolean isInShard(String email, int shard, int shards) {
+    return shards <= 1 || Hashing.consistentHash(Objects.hashCode(email), shards) == shard;
+  }
+
+  /** Group the messages by study and recipient, keeping the order of first occurrence. */
+  @VisibleForTesting
+  static List<TransformedMessages> transformMessageListToIdentifyDuplicates(
+      List<Message> openMessages) {
 
     List<TransformedMessages> messagesToSend =
         createListOfDistinctStudyRecipientPairs(openMessages);
@@ -181,38 +380,48 @@ public class MessageDistributor {
     return messagesToSend;
   }
 
-  private void addMessagesToDistinctStudyRecipientPairs(
-      List<CommunicationRequest> openMessages, List<TransformedMessages> messagesToSend) {
+  private static void addMessagesToDistinctStudyRecipientPairs(
+      List<Message> openMessages, List<TransformedMessages> messagesToSend) {
     for (TransformedMessages transformedMessages : messagesToSend) {
+      if (Strings.isNullOrEmpty(transformedMessages.emailAddress)) {
+        // holds its single message already
+        continue;
+      }
 
-      for (CommunicationRequest openMessage : openMessages) {
-        String studyName = openMessage.getAboutFirstRep().getDisplay();
-        String recipient = openMessage.getRecipientFirstRep().getDisplay();
-        String messageId = openMessage.getIdElement().getIdPart();
-        Date authoredOn = openMessage.getAuthoredOn();
+      for (Message openMessage : openMessages) {
+        String studyName = openMessage.acronym();
+        String recipient = openMessage.recipientEmail();
 
-        if (transformedMessages.studyName.equals(studyName)
-            && transformedMessages.emailAddress.equals(recipient)) {
-          Message message = new Message(authoredOn, messageId, openMessage);
-          transformedMessages.getMessages().add(message);
+        if (Objects.equals(transformedMessages.studyName, studyName)
+            && Objects.equals(transformedMessages.emailAddress, recipient)) {
+          transformedMessages.getMessages().add(openMessage);
         }
       }
     }
   }
 
-  private List<TransformedMessages> createListOfDistinctStudyRecipientPairs(
-      List<CommunicationRequest> openMessages) {
+  private static List<TransformedMessages> createListOfDistinctStudyRecipientPairs(
+      List<Message> openMessages) {
     List<TransformedMessages> messagesToSend = new ArrayList<TransformedMessages>();
 
-    for (CommunicationRequest openMessage : openMessages) {
-      String studyName = openMessage.getAboutFirstRep().getDisplay();
-      String recipient = openMessage.getRecipientFirstRep().getDisplay();
+    for (Message openMessage : openMessages) {
+      String studyName = openMessage.acronym();
+      String recipient = openMessage.recipientEmail();
       TransformedMessages transformedMessage = new TransformedMessages(recipient, studyName);
 
+      if (Strings.isNullOrEmpty(recipient)) {
+        // the message cannot be sent, which must not revoke the messages of other recipients
+        transformedMessage.getMessages().add(openMessage);
+        messagesToSend.add(transformedMessage);
+        continue;
+      }
+
       List<TransformedMessages> searchResult =
           messagesToSend.stream()
               .filter(
-                  m -> m.getStudyName().equals(studyName) && m.getEmailAddress().equals(recipient))
+                  m ->
+                      Objects.equals(m.getStudyName(), studyName)
+                          && Objects.equals(m.getEmailAddress(), recipient))
               .collect(Collectors.toList());
 
       if (searchResult.isEmpty()) {
@@ -222,39 +431,17 @@ public class MessageDistributor {
     return messagesToSend;
   }
 
-  private Predicate<? super CommunicationRequest> distinctByStudyAndRecipient(Object object) {
-    // TODO Auto-generated method stub
-    return null;
-  }
-
-  private void updateMessageStatus(List<String> messages, CommunicationRequestStatus status) {
-    for (var message : messages) {
-      LOG.debug("updating {} in server to {}", kv("message", message), kv("status", status));
-      messageUpdater.update(message, status);
-    }
+  private CompletableFuture<Void> updateMessageStatus(
+      List<String> messages, CommunicationRequestStatus status) {
+    return asyncFhirClient.forEach(
+        messages,
+        message -> {
+          LOG.debug("updating {} in server to {}", kv("message", message), kv("status", status));
+          messageUpdater.update(message, status);
+        });
   }
 
   private String replaceScreeningListLinkPlaceholderByListId(String listId) {
     return mailerConfig.getLinkTemplate().replace("[list_id]", listId);
   }
-
-  private String queryEmailFromPractitioner(CommunicationRequest message) {
-    var recipientList = message.getRecipient();
-    for (var reference : recipientList) {
-      if (reference.getResource().fhirType().equals("Practitioner")) {
-        var practitioner = (Practitioner) reference.getResource();
-        var email = PractitionerUtils.getFirstEmailFromPractitioner(practitioner);
-        if (email.isEmpty()) {
-          LOG.warn(
-              "{} could not be sent because of missing email address of {}",
-              kv("message", message.getId()),
-              kv("practitioner", practitioner.getId()));
-        } else {
-          return email.get().getValue();
-        }
-      }
-    }
-
-    return null;
-  }
 }
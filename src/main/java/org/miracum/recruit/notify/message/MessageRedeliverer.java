@@ -0,0 +1,195 @@
+package org.miracum.recruit.notify.message;
+
+import static net.logstash.logback.argument.StructuredArguments.kv;
+
+import com.google.common.base.Strings;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.hl7.fhir.r4.model.CommunicationRequest;
+import org.hl7.fhir.r4.model.CommunicationRequest.CommunicationRequestStatus;
+import org.miracum.recruit.notify.FhirServerProvider;
+import org.miracum.recruit.notify.fhirserver.FhirSystemsConfig;
+import org.miracum.recruit.notify.fhirserver.MessageStatusUpdater;
+import org.miracum.recruit.notify.mailconfig.RedeliveryConfig;
+import org.miracum.recruit.notify.message.MessageDistributor.DeliveryOutcome;
+import org.miracum.recruit.notify.metrics.NotifyMetrics;
+import org.miracum.recruit.notify.metrics.NotifyMetrics.MessageEvent;
+import org.miracum.recruit.notify.resilience.ResourceGuards;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+/**
+ * Retry sending messages that were put ONHOLD after a failed delivery. Each message is retried
+ * with an exponential backoff based on its number of failed attempts and is set to
+ * entered-in-error once the configured maximum is reached.
+ *
+ * <p>Messages that are not due yet are still visited, so each run looks at no more than the
+ * configured number of messages. A run that hits this limit makes the next one continue where it
+ * stopped, so that messages further down the list are not starved by the ones before them.
+ */
+@Service
+public class MessageRedeliverer {
+  private static final Logger LOG = LoggerFactory.getLogger(MessageRedeliverer.class);
+
+  private final FhirServerProvider fhirServerProvider;
+  private final MessageDistributor messageDistributor;
+  private final MessageStatusUpdater messageUpdater;
+  private final RedeliveryConfig config;
+  private final ResourceGuards resourceGuards;
+  private final NotifyMetrics metrics;
+  private final FhirSystemsConfig fhirSystems;
+
+  private volatile Instant resumeScanFrom;
+
+  /** Prepare config items and utils to retry the delivery of failed messages. */
+  @Autowired
+  public MessageRedeliverer(
+      FhirServerProvider fhirServerProvider,
+      MessageDistributor messageDistributor,
+      MessageStatusUpdater messageUpdater,
+      RedeliveryConfig config,
+      ResourceGuards resourceGuards,
+      NotifyMetrics metrics,
+      FhirSystemsConfig fhirSystems) {
+    this.fhirServerProvider = fhirServerProvider;
+    this.messageDistributor = messageDistributor;
+    this.messageUpdater = messageUpdater;
+    this.config = config;
+    this.resourceGuards = resourceGuards;
+    this.metrics = metrics;
+    this.fhirSystems = fhirSystems;
+  }
+
+  /** Retry at most one batch of failed messages whose backoff has elapsed. */
+  public void redeliver() {
+    LOG.info("begin redelivering failed messages");
+
+    var now = Instant.now();
+    var dueMessages = new ArrayList<FailedMessage>();
+    var exhaustedMessages = new ArrayList<String>();
+
+    var scanned = new AtomicInteger();
+    var lastScanned = new AtomicReference<Instant>();
+
+    // messages updated within the shortest backoff cannot be due yet, so they are not even fetched
+    fhirServerProvider.visitCommunicationRequestsByStatus(
+        CommunicationRequestStatus.ONHOLD,
+        now.minus(getShortestBackoff()),
+        resumeScanFrom,
+        request -> {
+          scanned.incrementAndGet();
+          var lastUpdated = request.getMeta().getLastUpdated();
+          lastScanned.set(lastUpdated == null ? null : lastUpdated.toInstant());
+
+          // messages put ONHOLD before attempts were recorded count as one failed attempt
+          var attempts = Math.max(messageUpdater.getFailedDeliveryAttempts(request), 1);
+          if (attempts >= config.getMaxAttempts()) {
+            exhaustedMessages.add(request.getIdElement().getIdPart());
+          } else if (isDue(request, attempts, now)) {
+            var message = Message.fromCommunicationRequest(request, fhirSystems);
+            dueMessages.add(new FailedMessage(message, attempts));
+          }
+          return dueMessages.size() < config.getBatchSize()
+              && exhaustedMessages.size() < config.getBatchSize()
+              && scanned.get() < config.getMaxScannedMessages();
+        });
+
+    // the next run starts at the last message scanned, so the ones updated at the same time are
+    // looked at again rather than skipped
+    resumeScanFrom =
+        scanned.get() >= config.getMaxScannedMessages() ? lastScanned.get() : null;
+
+    LOG.info(
+        "scanned {}, found {} due for redelivery and {}",
+        kv("numScannedMessages", scanned.get()),
+        kv("numDueMessages", dueMessages.size()),
+        kv("numExhaustedMessages", exhaustedMessages.size()));
+
+    for (var message : exhaustedMessages) {
+      LOG.warn("giving up on {} after too many failed attempts", kv("message", message));
+      messageUpdater.update(message, CommunicationRequestStatus.ENTEREDINERROR);
+    }
+
+    // only send one mail per study and recipient, just like the regular distribution. Messages
+    // without a recipient email fail on their own instead of taking others down with them.
+    var messagesByStudyAndRecipient = new LinkedHashMap<List<String>, List<FailedMessage>>();
+    for (var failedMessage : dueMessages) {
+      var message = failedMessage.message();
+      var key =
+          Strings.isNullOrEmpty(message.recipientEmail())
+              ? List.of(message.id())
+              : List.of(String.valueOf(message.acronym()), message.recipientEmail());
+      messagesByStudyAndRecipient.computeIfAbsent(key, k -> new ArrayList<>()).add(failedMessage);
+    }
+
+    for (var group : messagesByStudyAndRecipient.values()) {
+      if (!resourceGuards.isMailCallPermitted()) {
+        LOG.warn("mail server circuit breaker is open, deferring redelivery to the next run");
+        break;
+      }
+      redeliverGroup(group);
+    }
+  }
+
+  private void redeliverGroup(List<FailedMessage> group) {
+    var first = group.get(0);
+
+    var outcome = messageDistributor.sendMessage(first.message());
+    if (outcome == DeliveryOutcome.DEFERRED) {
+      // the mail server is unavailable, the attempt does not count
+      return;
+    }
+
+    if (outcome == DeliveryOutcome.SENT) {
+      messageUpdater.update(first.message().id(), CommunicationRequestStatus.COMPLETED);
+      for (var duplicate : group.subList(1, group.size())) {
+        messageUpdater.update(duplicate.message().id(), CommunicationRequestStatus.REVOKED);
+      }
+      metrics.count(MessageEvent.REVOKED, group.size() - 1);
+      return;
+    }
+
+    for (var failedMessage : group) {
+      var attempts = failedMessage.attempts() + 1;
+      var status =
+          attempts >= config.getMaxAttempts()
+              ? CommunicationRequestStatus.ENTEREDINERROR
+              : CommunicationRequestStatus.ONHOLD;
+      LOG.warn(
+          "redelivery of {} failed, setting to {} after {}",
+          kv("message", failedMessage.message().id()),
+          kv("status", status),
+          kv("attempts", attempts));
+      messageUpdater.updateFailedDelivery(failedMessage.message().id(), status, attempts);
+    }
+  }
+
+  private Duration getShortestBackoff() {
+    var shortest = config.getBackoff(1);
+    for (var attempts = 2; attempts < config.getMaxAttempts(); attempts++) {
+      var backoff = config.getBackoff(attempts);
+      if (backoff.compareTo(shortest) < 0) {
+        shortest = backoff;
+      }
+    }
+    return shortest;
+  }
+
+  private boolean isDue(CommunicationRequest request, int attempts, Instant now) {
+    var lastUpdated = request.getMeta().getLastUpdated();
+    if (lastUpdated == null) {
+      return true;
+    }
+
+    return !lastUpdated.toInstant().plus(config.getBackoff(attempts)).isAfter(now);
+  }
+
+  private record FailedMessage(Message message, int attempts) {}
+}
@@ -0,0 +1,267 @@
+package org.miracum.recruit.notify.message;
+
+import static net.logstash.logback.argument.StructuredArguments.kv;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CommunicationRequest;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity;
+import org.hl7.fhir.r4.model.ResourceType;
+import org.miracum.recruit.notify.FhirServerProvider;
+import org.miracum.recruit.notify.fhirserver.AsyncFhirClient;
+import org.miracum.recruit.notify.fhirserver.FhirSystemsConfig;
+import org.miracum.recruit.notify.mailconfig.RetentionConfig;
+import org.miracum.recruit.notify.metrics.NotifyMetrics;
+import org.miracum.recruit.notify.metrics.NotifyMetrics.MessageEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+/**
+ * Delete completed and revoked messages that were not updated for the configured age, so the
+ * status searches of the FHIR server do not slow down as messages pile up.
+ *
+ * <p>Messages are deleted oldest first, in batch Bundles of conditional deletes that only match
+ * while the message is still in the state it was found in. Each round searches from the last
+ * update time of the previous one, so messages that cannot be deleted do not block the others. If
+ * an archive directory is configured, the audit fields of each round of messages are durably
+ * written to it before they are deleted, so the archive may list a message whose deletion failed,
+ * but never misses a deleted one.
+ */
+@Service
+public class MessageRetention {
+  private static final Logger LOG = LoggerFactory.getLogger(MessageRetention.class);
+
+  private static final Pattern DELETED_COUNT = Pattern.compile("deleted (\\d+) resource");
+
+  private static final String ARCHIVE_HEADER =
+      "id,status,authored_on,last_updated,study,list,recipient";
+
+  private final FhirServerProvider fhirServerProvider;
+  private final AsyncFhirClient asyncFhirClient;
+  private final FhirSystemsConfig fhirSystems;
+  private final RetentionConfig config;
+  private final NotifyMetrics metrics;
+
+  @Autowired
+  public MessageRetention(
+      FhirServerProvider fhirServerProvider,
+      AsyncFhirClient asyncFhirClient,
+      FhirSystemsConfig fhirSystems,
+      RetentionConfig config,
+      NotifyMetrics metrics) {
+    this.fhirServerProvider = fhirServerProvider;
+    this.asyncFhirClient = asyncFhirClient;
+    this.fhirSystems = fhirSystems;
+    this.config = config;
+    this.metrics = metrics;
+  }
+
+  /** Delete all completed and revoked messages older than the configured age. */
+  public void purge() {
+    var now = Instant.now();
+    var cutoff = now.minus(config.getMaxAge());
+    var chunkSize = Math.max(config.getChunkSize(), 1);
+    var roundSize = chunkSize * Math.max(config.getConcurrency(), 1);
+    LOG.info("begin deleting messages last updated before {}", kv("cutoff", cutoff));
+
+    // messages that could not be deleted are found again, they must not be attempted forever
+    Set<String> attempted = new HashSet<>();
+    var deleted = 0;
+    Instant updatedFrom = null;
+    try (var archive = openArchive(now)) {
+      while (true) {
+        var from = updatedFrom;
+        var found =
+            metrics.time(
+                "retention.fetch",
+                () -> fhirServerProvider.getTerminalMessagesUpdatedBefore(cutoff, from, roundSize));
+        var candidates =
+            found.stream()
+                .filter(message -> attempted.add(message.getIdElement().getIdPart()))
+                .toList();
+        if (candidates.isEmpty()) {
+          // only happens if more than a round of attempted messages share one update time
+          break;
+        }
+
+        archive.write(candidates);
+        var deletedInRound =
+            AsyncFhirClient.await(
+                    asyncFhirClient.map(
+                        Lists.partition(candidates, chunkSize),
+                        chunk -> deleteChunk(chunk, cutoff)))
+                .stream()
+                .mapToInt(Integer::intValue)
+                .sum();
+        deleted += deletedInRound;
+        metrics.count(MessageEvent.DELETED, deletedInRound);
+
+        if (found.size() < roundSize) {
+          break;
+        }
+
+        // the messages that could not be deleted would come first again, so search past them
+        var lastUpdated = found.get(found.size() - 1).getMeta().getLastUpdated();
+        if (lastUpdated != null) {
+          updatedFrom = lastUpdated.toInstant();
+        }
+      }
+    } catch (IOException exc) {
+      throw new UncheckedIOException("failed to write the retention archive", exc);
+    } finally {
+      LOG.info(
+          "deleted {} of {} expired messages",
+          kv("deleted", deleted),
+          kv("expired", attempted.size()));
+    }
+  }
+
+  /** Delete the messages in one batch, returning the number of messages actually deleted. */
+  private int deleteChunk(List<CommunicationRequest> chunk, Instant cutoff) {
+    var batch = new Bundle().setType(Bundle.BundleType.BATCH);
+    for (var message : chunk) {
+      batch
+          .addEntry()
+          .getRequest()
+          .setMethod(Bundle.HTTPVerb.DELETE)
+          .setUrl(
+              ResourceType.CommunicationRequest.name()
+                  + "?_id="
+                  + message.getIdElement().getIdPart()
+                  + "&status="
+                  + message.getStatus().toCode()
+                  + "&_lastUpdated=lt"
+                  + cutoff);
+    }
+
+    try {
+      var response =
+          metrics.time("retention.delete", () -> fhirServerProvider.executeTransaction(batch));
+      var deleted = 0;
+      for (var entry : response.getEntry()) {
+        deleted += countDeleted(entry.getResponse());
+      }
+      return deleted;
+    } catch (RuntimeException exc) {
+      // the remaining chunks are still worth deleting, these are found again by the next run
+      LOG.error("failed to delete {} messages", kv("numMessages", chunk.size()), exc);
+      return 0;
+    }
+  }
+
+  /**
+   * The number of resources a conditional delete removed. A delete matching nothing is answered
+   * with 2xx as well, HAPI then reports a warning or "Successfully deleted 0 resource(s)" in the
+   * outcome, so only a 2xx answer without either counts as one deleted resource.
+   */
+  private static int countDeleted(Bundle.BundleEntryResponseComponent response) {
+    if (response.getStatus() == null || !response.getStatus().startsWith("2")) {
+      return 0;
+    }
+
+    if (response.getOutcome() instanceof OperationOutcome outcome) {
+      for (var issue : outcome.getIssue()) {
+        if (issue.getSeverity() != IssueSeverity.INFORMATION) {
+          return 0;
+        }
+        var matcher = DELETED_COUNT.matcher(Strings.nullToEmpty(issue.getDiagnostics()));
+        if (matcher.find()) {
+          return Integer.parseInt(matcher.group(1));
+        }
+      }
+    }
+    return 1;
+  }
+
+  private AuditArchive openArchive(Instant now) throws IOException {
+    if (Strings.isNullOrEmpty(config.getArchiveDirectory())) {
+      return new AuditArchive(null, null);
+    }
+
+    var directory = Path.of(config.getArchiveDirectory());
+    Files.createDirectories(directory);
+    var timestamp = now.truncatedTo(ChronoUnit.SECONDS).toString().replace(":", "");
+    var file = directory.resolve("communication-requests-" + timestamp + ".csv.gz");
+    var output = new FileOutputStream(file.toFile());
+    var writer =
+        new BufferedWriter(
+            new OutputStreamWriter(new GZIPOutputStream(output, true), StandardCharsets.UTF_8));
+    writer.write(ARCHIVE_HEADER);
+    writer.newLine();
+    return new AuditArchive(output, writer);
+  }
+
+  /** Gzipped CSV file of the audit fields of deleted messages, or nothing if not configured. */
+  private class AuditArchive implements Closeable {
+    private final FileOutputStream output;
+    private final BufferedWriter writer;
+
+    AuditArchive(FileOutputStream output, BufferedWriter writer) {
+      this.output = output;
+      this.writer = writer;
+    }
+
+    /** Append the messages and make sure they reached the disk. */
+    void write(List<CommunicationRequest> messages) throws IOException {
+      if (writer == null) {
+        return;
+      }
+
+      for (var request : messages) {
+        var message = Message.fromCommunicationRequest(request, fhirSystems);
+        var lastUpdated = request.getMeta().getLastUpdated();
+        writer.write(
+            String.join(
+                ",",
+                csv(message.id()),
+                csv(request.getStatus().toCode()),
+                csv(message.authoredOn() == null ? null : message.authoredOn().toString()),
+                csv(lastUpdated == null ? null : lastUpdated.toInstant().toString()),
+                csv(message.acronym()),
+                csv(message.listId()),
+                csv(message.recipientId())));
+        writer.newLine();
+      }
+      // the sync flush of the gzip stream makes everything written so far readable
+      writer.flush();
+      output.getFD().sync();
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (writer != null) {
+        writer.close();
+      }
+    }
+  }
+
+  private static String csv(String value) {
+    if (value == null) {
+      return "";
+    }
+    if (value.contains(",") || value.contains("\"") || value.contains("\n")) {
+      return "\"" + value.replace("\"", "\"\"") + "\"";
+    }
+    return value;
+  }
+}
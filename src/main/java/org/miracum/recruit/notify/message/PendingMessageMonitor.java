@@ -0,0 +1,54 @@
+package org.miracum.recruit.notify.message;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicReference;
+import org.miracum.recruit.notify.FhirServerProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+/**
+ * Publishes the age of the oldest pending active message as a gauge, so a growing queue lag can be
+ * alerted on. The oldest message is looked up again whenever messages are queued or distributed.
+ */
+@Service
+public class PendingMessageMonitor {
+  private static final Logger LOG = LoggerFactory.getLogger(PendingMessageMonitor.class);
+
+  private final FhirServerProvider fhirServerProvider;
+  private final AtomicReference<Instant> oldestPendingAuthoredOn = new AtomicReference<>();
+
+  @Autowired
+  public PendingMessageMonitor(FhirServerProvider fhirServerProvider, MeterRegistry meterRegistry) {
+    this.fhirServerProvider = fhirServerProvider;
+
+    Gauge.builder("notify.pending.oldest.age", this, PendingMessageMonitor::getOldestPendingAge)
+        .description("Age of the oldest active message waiting to be distributed")
+        .baseUnit("seconds")
+        .register(meterRegistry);
+  }
+
+  /** Look up the oldest pending message. Failures are logged and keep the previous value. */
+  public void refresh() {
+    try {
+      oldestPendingAuthoredOn.set(
+          fhirServerProvider.getOldestActiveMessageAuthoredOn().orElse(null));
+    } catch (Exception exc) {
+      LOG.warn("failed to look up the oldest pending message: {}", exc.getMessage());
+    }
+  }
+
+  /** Age of the oldest pending message in seconds, 0 if there is none. */
+  double getOldestPendingAge() {
+    var oldest = oldestPendingAuthoredOn.get();
+    if (oldest == null) {
+      return 0;
+    }
+
+    return Math.max(Duration.between(oldest, Instant.now()).toMillis(), 0) / 1000.0;
+  }
+}
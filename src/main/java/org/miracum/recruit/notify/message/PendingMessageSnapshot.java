@@ -0,0 +1,230 @@
+package org.miracum.recruit.notify.message;
+
+import static net.logstash.logback.argument.StructuredArguments.kv;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.hl7.fhir.r4.model.CommunicationRequest.CommunicationRequestStatus;
+import org.miracum.recruit.notify.FhirServerProvider;
+import org.miracum.recruit.notify.fhirserver.FhirSystemsConfig;
+import org.miracum.recruit.notify.mailconfig.DistributionConfig;
+import org.miracum.recruit.notify.mailconfig.UserConfig;
+import org.miracum.recruit.notify.metrics.NotifyMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+/**
+ * Copy of the pending messages that is fetched the configured lead time before each scheduled run,
+ * as the cron schedules tell when the next run fires. At fire time, the copy only has to catch up
+ * with the CommunicationRequests updated since it was fetched, so sending starts without waiting
+ * for the full search.
+ *
+ * <p>Runs firing shortly after each other keep catching up the same copy. It is dropped once it was
+ * not caught up for twice the lead time, so it is only held in memory around the scheduled runs.
+ * Only used by unsharded runs. With several shards, each shard searches the messages of its own
+ * recipients instead, as a copy of all pending messages would have to be fetched on every node.
+ */
+@Service
+public class PendingMessageSnapshot implements InitializingBean, DisposableBean {
+  private static final Logger LOG = LoggerFactory.getLogger(PendingMessageSnapshot.class);
+
+  // tolerates clock differences between the FHIR server and this instance
+  private static final Duration WATERMARK_MARGIN = Duration.ofMinutes(5);
+
+  private final FhirServerProvider fhirServerProvider;
+  private final FhirSystemsConfig fhirSystemsConfig;
+  private final UserConfig userConfig;
+  private final NotifyMetrics metrics;
+  private final Duration leadTime;
+  private final ScheduledExecutorService prewarmer;
+
+  /** Pending messages by id as of the start of the fetch, never modified once published. */
+  private record Snapshot(Map<String, Message> messages, Instant fetchedAt) {}
+
+  // guarded by this
+  private Snapshot snapshot;
+  private boolean dropScheduled;
+
+  @Autowired
+  public PendingMessageSnapshot(
+      FhirServerProvider fhirServerProvider,
+      FhirSystemsConfig fhirSystemsConfig,
+      UserConfig userConfig,
+      DistributionConfig distributionConfig,
+      NotifyMetrics metrics) {
+    this.fhirServerProvider = fhirServerProvider;
+    this.fhirSystemsConfig = fhirSystemsConfig;
+    this.userConfig = userConfig;
+    this.metrics = metrics;
+    this.leadTime =
+        distributionConfig.getShards() > 1
+            ? Duration.ZERO
+            : distributionConfig.getPrewarmLeadTime();
+    this.prewarmer =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              var thread = new Thread(runnable, "pending-message-prewarm");
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  @Override
+  public void afterPropertiesSet() {
+    if (isEnabled()) {
+      scheduleNextPrewarm(Instant.now());
+    }
+  }
+
+  @Override
+  public void destroy() {
+    prewarmer.shutdownNow();
+  }
+
+  private boolean isEnabled() {
+    return leadTime != null && !leadTime.isZero() && !leadTime.isNegative();
+  }
+
+  /**
+   * The active messages for the given subscribers, catching up the prewarmed copy if there is one
+   * and fetching all active messages otherwise.
+   */
+  public List<Message> getOpenMessagesForSubscribers(List<String> subscribers) {
+    if (!isEnabled()) {
+      return fhirServerProvider.getOpenMessagesForSubscribers(subscribers);
+    }
+
+    var pending = new ArrayList<>(refresh().messages().values());
+    return FhirServerProvider.filterBySubscribers(pending, subscribers);
+  }
+
+  /**
+   * Catch up the copy if it is recent enough, fetch it again otherwise. The FHIR server is searched
+   * without holding the lock, so shards do not queue up behind a slow search. Each refresh builds
+   * a new copy, of concurrent refreshes the one started last is kept.
+   */
+  private Snapshot refresh() {
+    Snapshot current;
+    synchronized (this) {
+      current = snapshot;
+    }
+
+    var start = Instant.now();
+    var refreshed =
+        current == null || current.fetchedAt().isBefore(start.minus(leadTime.multipliedBy(2)))
+            ? fetch(start)
+            : catchUp(current, start);
+
+    synchronized (this) {
+      if (snapshot == null || !snapshot.fetchedAt().isAfter(start)) {
+        snapshot = refreshed;
+      }
+    }
+    return refreshed;
+  }
+
+  private Snapshot fetch(Instant start) {
+    var active =
+        metrics.time(
+            "distribute.prewarm",
+            () -> fhirServerProvider.getMessagesByStatus(CommunicationRequestStatus.ACTIVE));
+    var messages = new LinkedHashMap<String, Message>();
+    for (var message : active) {
+      messages.put(message.id(), message);
+    }
+    LOG.info("fetched {} pending messages", kv("count", messages.size()));
+    return new Snapshot(messages, start);
+  }
+
+  private Snapshot catchUp(Snapshot current, Instant start) {
+    var messages = new LinkedHashMap<>(current.messages());
+    var changed = new int[1];
+    metrics.timeVoid(
+        "distribute.fetch_delta",
+        () ->
+            fhirServerProvider.visitCommunicationRequestsUpdatedAfter(
+                current.fetchedAt().minus(WATERMARK_MARGIN),
+                request -> {
+                  var id = request.getIdElement().getIdPart();
+                  if (request.getStatus() == CommunicationRequestStatus.ACTIVE) {
+                    messages.put(id, Message.fromCommunicationRequest(request, fhirSystemsConfig));
+                  } else {
+                    messages.remove(id);
+                  }
+                  changed[0]++;
+                  return true;
+                }));
+    LOG.debug(
+        "caught up with {} changed messages, {} pending",
+        kv("changed", changed[0]),
+        kv("count", messages.size()));
+    return new Snapshot(messages, start);
+  }
+
+  /** Drop the copy once it is too old to be caught up, checking again until then. */
+  private synchronized void dropWhenStale() {
+    if (snapshot == null) {
+      dropScheduled = false;
+      return;
+    }
+
+    var expiry = snapshot.fetchedAt().plus(leadTime.multipliedBy(2));
+    var remaining = Duration.between(Instant.now(), expiry);
+    if (remaining.isNegative()) {
+      snapshot = null;
+      dropScheduled = false;
+      return;
+    }
+    prewarmer.schedule(this::dropWhenStale, remaining.toMillis() + 1, TimeUnit.MILLISECONDS);
+    dropScheduled = true;
+  }
+
+  /** Schedule the prewarm for the earliest run of any schedule firing after the given time. */
+  private void scheduleNextPrewarm(Instant after) {
+    Instant nextFireTime = null;
+    for (var cron : userConfig.getSchedules().values()) {
+      var fireTime = cron.getNextValidTimeAfter(Date.from(after));
+      if (fireTime != null
+          && (nextFireTime == null || fireTime.toInstant().isBefore(nextFireTime))) {
+        nextFireTime = fireTime.toInstant();
+      }
+    }
+    if (nextFireTime == null) {
+      return;
+    }
+
+    var fireTime = nextFireTime;
+    var delay = Duration.between(Instant.now(), fireTime.minus(leadTime));
+    LOG.debug("prewarming pending messages for the run at {}", kv("fireTime", fireTime));
+    prewarmer.schedule(
+        () -> prewarm(fireTime), Math.max(delay.toMillis(), 0), TimeUnit.MILLISECONDS);
+  }
+
+  private void prewarm(Instant fireTime) {
+    try {
+      refresh();
+    } catch (Exception exc) {
+      // the run fetches the pending messages itself
+      LOG.warn("failed to prewarm the pending messages: {}", exc.getMessage());
+    }
+
+    synchronized (this) {
+      if (!dropScheduled) {
+        dropWhenStale();
+      }
+    }
+    scheduleNextPrewarm(fireTime);
+  }
+}
@@ -0,0 +1,157 @@
+package org.miracum.recruit.notify.metrics;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.EnumMap;
+import java.util.Map;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Times the stages of the webhook, message creation and distribution pipelines and counts what
+ * happens to messages. Stage timers are tagged by operation and outcome and publish percentile
+ * histograms. Operations are fixed names like {@code webhook.parse}, outcomes are {@code success}
+ * or {@code failure} unless a caller records a pipeline specific one, so cardinality stays bounded.
+ */
+@Component
+public class NotifyMetrics {
+  public static final String STAGE_TIMER = "notify.stage";
+  public static final String MESSAGES_COUNTER = "notify.messages";
+  public static final String DELIVERY_DELAY = "notify.delivery.delay";
+  public static final String DUPLICATE_WEBHOOKS = "notify.webhook.duplicates";
+
+  public static final String SUCCESS = "success";
+  public static final String FAILURE = "failure";
+
+  public static final String ADHOC = "adhoc";
+  public static final String SCHEDULED = "scheduled";
+
+  /** What happened to a message. */
+  public enum MessageEvent {
+    CREATED,
+    DEDUPLICATED,
+    SENT,
+    REVOKED,
+    ONHOLD,
+    SPOOLED,
+    DELETED
+  }
+
+  /** A stage returning a value, which may throw a checked exception. */
+  @FunctionalInterface
+  public interface Stage<T, E extends Exception> {
+    T run() throws E;
+  }
+
+  /** A stage without a result, which may throw a checked exception. */
+  @FunctionalInterface
+  public interface VoidStage<E extends Exception> {
+    void run() throws E;
+  }
+
+  private final MeterRegistry meterRegistry;
+  private final Map<MessageEvent, Counter> messageCounters = new EnumMap<>(MessageEvent.class);
+  private final Counter duplicateWebhooks;
+
+  @Autowired
+  public NotifyMetrics(MeterRegistry meterRegistry) {
+    this.meterRegistry = meterRegistry;
+
+    for (var event : MessageEvent.values()) {
+      messageCounters.put(
+          event,
+          Counter.builder(MESSAGES_COUNTER)
+              .description("Notification messages by what happened to them")
+              .tag("event", event.name().toLowerCase())
+              .register(meterRegistry));
+    }
+
+    duplicateWebhooks =
+        Counter.builder(DUPLICATE_WEBHOOKS)
+            .description("Webhooks for a screening list version that was already handled")
+            .register(meterRegistry);
+  }
+
+  /** Time the stage, recording a failure outcome if it throws. */
+  public <T, E extends Exception> T time(String operation, Stage<T, E> stage) throws E {
+    var sample = Timer.start(meterRegistry);
+    var outcome = FAILURE;
+    try {
+      var result = stage.run();
+      outcome = SUCCESS;
+      return result;
+    } finally {
+      stop(sample, operation, outcome);
+    }
+  }
+
+  /** Time the stage, recording a failure outcome if it throws. */
+  public <E extends Exception> void timeVoid(String operation, VoidStage<E> stage) throws E {
+    time(
+        operation,
+        () -> {
+          stage.run();
+          return null;
+        });
+  }
+
+  /** Start timing a stage whose outcome is only known at its end. */
+  public Timer.Sample start() {
+    return Timer.start(meterRegistry);
+  }
+
+  /** Record the stage started by {@link #start()} with the given outcome. */
+  public void stop(Timer.Sample sample, String operation, String outcome) {
+    sample.stop(stageTimer(operation, outcome));
+  }
+
+  /** Count messages for the given event. */
+  public void count(MessageEvent event, int messages) {
+    if (messages > 0) {
+      messageCounters.get(event).increment(messages);
+    }
+  }
+
+  /** Count a webhook acknowledged without work, because its list version was already handled. */
+  public void countDuplicateWebhook() {
+    duplicateWebhooks.increment();
+  }
+
+  /**
+   * Record the delay from the screening list change to the successful delivery of its notification.
+   * Nothing is recorded if the time of the change is unknown.
+   *
+   * @param mode either {@link #ADHOC} or {@link #SCHEDULED}
+   */
+  public void recordDeliveryDelay(String mode, Instant changedAt) {
+    if (changedAt == null) {
+      return;
+    }
+
+    var delay = Duration.between(changedAt, Instant.now());
+    DistributionSummary.builder(DELIVERY_DELAY)
+        .description("Delay from a screening list change to the delivery of its notification")
+        .baseUnit("seconds")
+        .tag("mode", mode)
+        .publishPercentileHistogram()
+        .minimumExpectedValue(1.0)
+        .maximumExpectedValue((double) Duration.ofDays(7).toSeconds())
+        .register(meterRegistry)
+        .record(Math.max(delay.toMillis(), 0) / 1000.0);
+  }
+
+  private Timer stageTimer(String operation, String outcome) {
+    return Timer.builder(STAGE_TIMER)
+        .description("Duration of a notification pipeline stage")
+        .tag("operation", operation)
+        .tag("outcome", outcome)
+        .publishPercentileHistogram()
+        .minimumExpectedValue(Duration.ofMillis(1))
+        .maximumExpectedValue(Duration.ofMinutes(5))
+        .register(meterRegistry);
+  }
+}
@@ -0,0 +1,202 @@
+package org.miracum.recruit.notify.partitioning;
+
+import static net.logstash.logback.argument.StructuredArguments.kv;
+
+import com.google.common.base.Strings;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.sql.DataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.sql.init.dependency.DependsOnDatabaseInitialization;
+import org.springframework.context.annotation.Profile;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+/**
+ * Splits the list partitions between the live replicas through lease rows in the HA database.
+ *
+ * <p>Every replica periodically records a heartbeat, renews the leases it holds and then moves
+ * towards its fair share of the partitions: surplus leases are released when replicas join, and
+ * expired or released leases are claimed when replicas leave or die. Ownership lookups are served
+ * from a snapshot taken on every renewal, so they never hit the database.
+ */
+@Service
+@Profile("ha")
+@DependsOnDatabaseInitialization
+public class LeasedListOwnership implements ListOwnership, InitializingBean, DisposableBean {
+  private static final Logger LOG = LoggerFactory.getLogger(LeasedListOwnership.class);
+
+  private record Owner(String nodeId, String url) {}
+
+  private final JdbcTemplate jdbcTemplate;
+  private final PartitioningConfig config;
+  private final String nodeId;
+  private final ScheduledExecutorService renewer;
+
+  private volatile Map<Integer, Owner> owners = Map.of();
+
+  @Autowired
+  public LeasedListOwnership(
+      DataSource dataSource, PartitioningConfig config, MeterRegistry meterRegistry) {
+    this.jdbcTemplate = new JdbcTemplate(dataSource);
+    this.config = config;
+    this.nodeId =
+        Strings.nullToEmpty(System.getenv("HOSTNAME"))
+            + "-"
+            + UUID.randomUUID().toString().substring(0, 8);
+    this.renewer =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              var thread = new Thread(runnable, "partition-leases");
+              thread.setDaemon(true);
+              return thread;
+            });
+
+    Gauge.builder("notify.partitions.owned", this, LeasedListOwnership::getOwnedPartitionCount)
+        .description("Number of screening list partitions owned by this replica")
+        .register(meterRegistry);
+  }
+
+  @Override
+  public void afterPropertiesSet() {
+    renew();
+    renewer.scheduleWithFixedDelay(
+        this::renew,
+        config.getRenewInterval().toMillis(),
+        config.getRenewInterval().toMillis(),
+        TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void destroy() {
+    renewer.shutdownNow();
+    try {
+      // hand the partitions over right away instead of waiting for the leases to expire
+      jdbcTemplate.update(
+          "UPDATE NOTIFY_PARTITION_LEASES SET OWNER = NULL, EXPIRES_AT = NULL WHERE OWNER = ?",
+          nodeId);
+      jdbcTemplate.update("DELETE FROM NOTIFY_REPLICAS WHERE NODE_ID = ?", nodeId);
+    } catch (DataAccessException exc) {
+      LOG.warn("failed to release the partition leases: {}", exc.getMessage());
+    }
+  }
+
+  @Override
+  public Optional<String> getRemoteOwnerUrl(String listId) {
+    var owner = owners.get(ListOwnership.partitionOf(listId, config.getPartitions()));
+    if (owner == null || nodeId.equals(owner.nodeId()) || Strings.isNullOrEmpty(owner.url())) {
+      return Optional.empty();
+    }
+    return Optional.of(owner.url());
+  }
+
+  String getNodeId() {
+    return nodeId;
+  }
+
+  double getOwnedPartitionCount() {
+    return owners.values().stream().filter(owner -> nodeId.equals(owner.nodeId())).count();
+  }
+
+  /** Renew the leases, rebalance towards the fair share and refresh the ownership snapshot. */
+  void renew() {
+    try {
+      var leaseMillis = config.getLeaseDuration().toMillis();
+      var partitions = config.getPartitions();
+
+      jdbcTemplate.update(
+          "INSERT INTO NOTIFY_REPLICAS (NODE_ID, URL, HEARTBEAT_AT)"
+              + " VALUES (?, ?, CURRENT_TIMESTAMP)"
+              + " ON CONFLICT (NODE_ID) DO UPDATE SET URL = EXCLUDED.URL,"
+              + " HEARTBEAT_AT = EXCLUDED.HEARTBEAT_AT",
+          nodeId,
+          config.getAdvertisedUrl());
+      jdbcTemplate.update(
+          "DELETE FROM NOTIFY_REPLICAS"
+              + " WHERE HEARTBEAT_AT < CURRENT_TIMESTAMP - ? * INTERVAL '1 millisecond'",
+          leaseMillis);
+
+      jdbcTemplate.update(
+          "INSERT INTO NOTIFY_PARTITION_LEASES (PARTITION_NO)"
+              + " SELECT GENERATE_SERIES(0, ? - 1) ON CONFLICT DO NOTHING",
+          partitions);
+      jdbcTemplate.update(
+          "DELETE FROM NOTIFY_PARTITION_LEASES WHERE PARTITION_NO >= ?", partitions);
+
+      jdbcTemplate.update(
+          "UPDATE NOTIFY_PARTITION_LEASES"
+              + " SET EXPIRES_AT = CURRENT_TIMESTAMP + ? * INTERVAL '1 millisecond'"
+              + " WHERE OWNER = ?",
+          leaseMillis,
+          nodeId);
+
+      rebalance(partitions, leaseMillis);
+      refreshSnapshot();
+    } catch (DataAccessException exc) {
+      // keep serving from the last snapshot, a replica that cannot renew loses its leases anyway
+      LOG.warn("failed to renew the partition leases: {}", exc.getMessage());
+    }
+  }
+
+  private void rebalance(int partitions, long leaseMillis) {
+    // this replica has just recorded its heartbeat, so there is at least one
+    int replicas =
+        Math.max(
+            jdbcTemplate.queryForObject("SELECT COUNT(*) FROM NOTIFY_REPLICAS", Integer.class), 1);
+    var fairShare = (partitions + replicas - 1) / replicas;
+    var owned =
+        jdbcTemplate.queryForObject(
+            "SELECT COUNT(*) FROM NOTIFY_PARTITION_LEASES WHERE OWNER = ?", Integer.class, nodeId);
+
+    if (owned > fairShare) {
+      var released =
+          jdbcTemplate.update(
+              "UPDATE NOTIFY_PARTITION_LEASES SET OWNER = NULL, EXPIRES_AT = NULL"
+                  + " WHERE PARTITION_NO IN (SELECT PARTITION_NO FROM NOTIFY_PARTITION_LEASES"
+                  + " WHERE OWNER = ? ORDER BY PARTITION_NO DESC LIMIT ?)",
+              nodeId,
+              owned - fairShare);
+      LOG.info("released {} partitions to {} replicas", kv("count", released), replicas);
+    } else if (owned < fairShare) {
+      var claimed =
+          jdbcTemplate.update(
+              "UPDATE NOTIFY_PARTITION_LEASES"
+                  + " SET OWNER = ?, EXPIRES_AT = CURRENT_TIMESTAMP + ? * INTERVAL '1 millisecond'"
+                  + " WHERE PARTITION_NO IN (SELECT PARTITION_NO FROM NOTIFY_PARTITION_LEASES"
+                  + " WHERE OWNER IS NULL OR EXPIRES_AT < CURRENT_TIMESTAMP"
+                  + " ORDER BY PARTITION_NO LIMIT ? FOR UPDATE SKIP LOCKED)",
+              nodeId,
+              leaseMillis,
+              fairShare - owned);
+      if (claimed > 0) {
+        LOG.info("claimed {} partitions from {} replicas", kv("count", claimed), replicas);
+      }
+    }
+  }
+
+  private void refreshSnapshot() {
+    var snapshot = new HashMap<Integer, Owner>();
+    jdbcTemplate.query(
+        "SELECT L.PARTITION_NO, L.OWNER, R.URL FROM NOTIFY_PARTITION_LEASES L"
+            + " LEFT JOIN NOTIFY_REPLICAS R ON R.NODE_ID = L.OWNER"
+            + " WHERE L.OWNER IS NOT NULL AND L.EXPIRES_AT > CURRENT_TIMESTAMP",
+        resultSet -> {
+          snapshot.put(
+              resultSet.getInt("PARTITION_NO"),
+              new Owner(resultSet.getString("OWNER"), resultSet.getString("URL")));
+        });
+    owners = Map.copyOf(snapshot);
+  }
+}
@@ -0,0 +1,25 @@
+package org.miracum.recruit.notify.partitioning;
+
+import com.google.common.hash.Hashing;
+import java.util.Optional;
+
+/**
+ * Decides which replica handles the webhooks of a screening list. Lists are hashed onto a fixed
+ * number of partitions, each owned by at most one replica at a time.
+ */
+public interface ListOwnership {
+
+  /**
+   * The base URL of the replica owning the list, if that is another live replica. Empty if this
+   * replica owns the list or the partition currently has no reachable owner.
+   */
+  Optional<String> getRemoteOwnerUrl(String listId);
+
+  /**
+   * The partition of the list, stable across replicas and restarts. Consistent hashing keeps most
+   * lists in their partition when the number of partitions changes.
+   */
+  static int partitionOf(String listId, int partitions) {
+    return Hashing.consistentHash(listId.hashCode(), partitions);
+  }
+}
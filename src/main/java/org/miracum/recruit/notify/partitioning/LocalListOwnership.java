@@ -0,0 +1,16 @@
+package org.miracum.recruit.notify.partitioning;
+
+import java.util.Optional;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Service;
+
+/** A single replica owns all lists. */
+@Service
+@Profile("!ha")
+public class LocalListOwnership implements ListOwnership {
+
+  @Override
+  public Optional<String> getRemoteOwnerUrl(String listId) {
+    return Optional.empty();
+  }
+}
@@ -0,0 +1,30 @@
+package org.miracum.recruit.notify.partitioning;
+
+import java.time.Duration;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+/** Settings for splitting the screening lists between the replicas of the HA profile. */
+@Configuration
+@ConfigurationProperties(prefix = "notify.partitioning")
+@Data
+public class PartitioningConfig {
+  private int partitions = 64;
+  private Duration leaseDuration = Duration.ofSeconds(30);
+  private Duration renewInterval = Duration.ofSeconds(10);
+
+  /**
+   * Base URL under which the other replicas reach this one, e.g. {@code http://10.0.0.12:8080}.
+   * Without it, webhooks are never forwarded to this replica.
+   */
+  private String advertisedUrl;
+
+  private Duration forwardTimeout = Duration.ofSeconds(10);
+
+  /**
+   * Secret shared by all replicas, sent with forwarded webhooks so the receiving replica can tell
+   * them from webhooks of the FHIR server. Without it, webhooks are never forwarded.
+   */
+  private String forwardSecret;
+}
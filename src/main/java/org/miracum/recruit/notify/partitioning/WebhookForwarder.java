@@ -0,0 +1,146 @@
+package org.miracum.recruit.notify.partitioning;
+
+import static net.logstash.logback.argument.StructuredArguments.kv;
+
+import com.google.common.base.Strings;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.concurrent.atomic.AtomicBoolean;
+import okhttp3.Call;
+import okhttp3.EventListener;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/** Passes a list webhook on to the replica owning the list. */
+@Component
+public class WebhookForwarder {
+  private static final Logger LOG = LoggerFactory.getLogger(WebhookForwarder.class);
+
+  /**
+   * Marks a forwarded webhook, which is always handled by the receiving replica. Its value is the
+   * shared forward secret, so only the other replicas can set it.
+   */
+  public static final String FORWARDED_HEADER = "X-Notify-Forwarded";
+
+  private static final MediaType FHIR_JSON = MediaType.get("application/fhir+json");
+
+  /** What became of a forwarded webhook. */
+  public enum Outcome {
+    /** The owner accepted the webhook. */
+    FORWARDED,
+    /**
+     * The owner never received the whole webhook or refused it before handling it, so it is handled
+     * locally.
+     */
+    NOT_FORWARDED,
+    /**
+     * The owner received the webhook but failed or did not answer in time, so it may have handled
+     * it in part or still be handling it. Handling it locally as well could send the same messages
+     * twice.
+     */
+    UNKNOWN
+  }
+
+  private final OkHttpClient httpClient;
+  private final MeterRegistry meterRegistry;
+  private final byte[] secret;
+
+  @Autowired
+  public WebhookForwarder(PartitioningConfig config, MeterRegistry meterRegistry) {
+    this.httpClient = new OkHttpClient.Builder().callTimeout(config.getForwardTimeout()).build();
+    this.meterRegistry = meterRegistry;
+    this.secret = Strings.nullToEmpty(config.getForwardSecret()).getBytes(StandardCharsets.UTF_8);
+
+    if (!isEnabled() && !Strings.isNullOrEmpty(config.getAdvertisedUrl())) {
+      LOG.warn("no forward secret is configured, webhooks are handled by the receiving replica");
+    }
+  }
+
+  /** Whether webhooks are forwarded at all, which requires the replicas to share a secret. */
+  public boolean isEnabled() {
+    return secret.length > 0;
+  }
+
+  /** Whether the value of the {@link #FORWARDED_HEADER} was set by another replica. */
+  public boolean isForwarded(String headerValue) {
+    if (headerValue == null) {
+      return false;
+    }
+
+    var forwarded =
+        isEnabled()
+            && MessageDigest.isEqual(secret, headerValue.getBytes(StandardCharsets.UTF_8));
+    if (!forwarded) {
+      LOG.warn("ignoring the {} header with an unknown secret", FORWARDED_HEADER);
+    }
+    return forwarded;
+  }
+
+  /** Forward the webhook body to the owner. */
+  public Outcome forward(String ownerUrl, String listId, String body) {
+    var request =
+        new Request.Builder()
+            .url(ownerUrl.replaceAll("/+$", "") + "/on-list-change/List/" + listId)
+            .header(FORWARDED_HEADER, new String(secret, StandardCharsets.UTF_8))
+            .put(RequestBody.create(FHIR_JSON, body))
+            .build();
+
+    // once the whole body is sent, the owner may handle the webhook even if the answer is lost
+    var sent = new AtomicBoolean();
+    var client =
+        httpClient
+            .newBuilder()
+            .eventListener(
+                new EventListener() {
+                  @Override
+                  public void requestBodyEnd(Call call, long byteCount) {
+                    sent.set(true);
+                  }
+                })
+            .build();
+
+    Outcome outcome;
+    try (var response = client.newCall(request).execute()) {
+      if (response.isSuccessful()) {
+        outcome = Outcome.FORWARDED;
+      } else if (response.code() >= 500) {
+        // the owner may have failed after doing part of the work
+        outcome = Outcome.UNKNOWN;
+      } else {
+        // a client error is answered before the webhook is handled
+        outcome = Outcome.NOT_FORWARDED;
+      }
+      if (outcome != Outcome.FORWARDED) {
+        LOG.warn(
+            "owner {} rejected the webhook for {} with {}",
+            kv("owner", ownerUrl),
+            kv("list", listId),
+            kv("status", response.code()));
+      }
+    } catch (IOException exc) {
+      outcome = sent.get() ? Outcome.UNKNOWN : Outcome.NOT_FORWARDED;
+      LOG.warn(
+          "failed to forward the webhook for {} to {} after {}: {}",
+          kv("list", listId),
+          kv("owner", ownerUrl),
+          kv("sent", sent.get()),
+          exc.getMessage());
+    }
+
+    Counter.builder("notify.webhook.forwarded")
+        .description("Webhooks passed on to the replica owning the list")
+        .tag("outcome", outcome.name().toLowerCase())
+        .register(meterRegistry)
+        .increment();
+    return outcome;
+  }
+}
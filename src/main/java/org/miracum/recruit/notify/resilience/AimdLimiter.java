@@ -0,0 +1,78 @@
+package org.miracum.recruit.notify.resilience;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adaptive concurrency limiter using additive increase / multiplicative decrease. The limit grows
+ * by one for each timely call made while at least half of the limit is in use and shrinks by the
+ * backoff ratio for each call that failed or exceeded the latency threshold.
+ */
+public class AimdLimiter {
+  private final int minLimit;
+  private final int maxLimit;
+  private final double backoffRatio;
+  private final long latencyThresholdNanos;
+
+  private double limit;
+  private int inflight;
+
+  public AimdLimiter(
+      int initialLimit,
+      int minLimit,
+      int maxLimit,
+      double backoffRatio,
+      Duration latencyThreshold) {
+    this.minLimit = minLimit;
+    this.maxLimit = maxLimit;
+    this.backoffRatio = backoffRatio;
+    this.latencyThresholdNanos = latencyThreshold.toNanos();
+    this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+  }
+
+  /**
+   * Wait up to the given time for a free slot.
+   *
+   * @return true if a slot was acquired, false if none became available in time
+   */
+  public synchronized boolean acquire(Duration maxWait) throws InterruptedException {
+    var deadline = System.nanoTime() + maxWait.toNanos();
+    while (inflight >= getLimit()) {
+      var remaining = deadline - System.nanoTime();
+      if (remaining <= 0) {
+        return false;
+      }
+      TimeUnit.NANOSECONDS.timedWait(this, remaining);
+    }
+    inflight++;
+    return true;
+  }
+
+  /** Release a slot and adjust the limit based on the outcome of the call. */
+  public synchronized void release(long latencyNanos, boolean dropped) {
+    var utilized = inflight * 2 >= limit;
+    inflight--;
+
+    if (dropped || latencyNanos > latencyThresholdNanos) {
+      limit = Math.max(minLimit, limit * backoffRatio);
+    } else if (utilized) {
+      limit = Math.min(maxLimit, limit + 1);
+    }
+
+    notifyAll();
+  }
+
+  /** Release a slot whose call was not executed, leaving the limit unchanged. */
+  public synchronized void cancel() {
+    inflight--;
+    notifyAll();
+  }
+
+  public synchronized int getLimit() {
+    return (int) limit;
+  }
+
+  public synchronized int getInflight() {
+    return inflight;
+  }
+}
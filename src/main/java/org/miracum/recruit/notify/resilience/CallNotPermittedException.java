@@ -0,0 +1,23 @@
+package org.miracum.recruit.notify.resilience;
+
+import java.io.IOException;
+
+/**
+ * Thrown if a call to a guarded resource is rejected because its circuit breaker is open or its
+ * concurrency limit is reached. Extends {@link IOException} so it can be raised from within an
+ * OkHttp interceptor.
+ */
+public class CallNotPermittedException extends IOException {
+  private static final long serialVersionUID = 1L;
+
+  private final String resource;
+
+  public CallNotPermittedException(String resource, String reason) {
+    super(String.format("call to %s not permitted: %s", resource, reason));
+    this.resource = resource;
+  }
+
+  public String getResource() {
+    return resource;
+  }
+}
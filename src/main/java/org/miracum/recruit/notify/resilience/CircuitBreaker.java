@@ -0,0 +1,94 @@
+package org.miracum.recruit.notify.resilience;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * Consecutive-failure circuit breaker. Opens after the configured number of failures in a row,
+ * rejects all calls while open and, once the open duration elapsed, lets a single trial call
+ * through whose outcome decides whether the breaker closes again.
+ */
+public class CircuitBreaker {
+
+  /** State of the circuit breaker. */
+  public enum State {
+    CLOSED,
+    OPEN,
+    HALF_OPEN
+  }
+
+  private final int failureThreshold;
+  private final Duration openDuration;
+  private final Clock clock;
+
+  private State state = State.CLOSED;
+  private int consecutiveFailures;
+  private Instant openedAt = Instant.MIN;
+  private boolean trialInFlight;
+
+  public CircuitBreaker(int failureThreshold, Duration openDuration, Clock clock) {
+    this.failureThreshold = failureThreshold;
+    this.openDuration = openDuration;
+    this.clock = clock;
+  }
+
+  /** Whether a call would currently be permitted, without acquiring the permission. */
+  public synchronized boolean isCallPermitted() {
+    if (state == State.CLOSED) {
+      return true;
+    }
+    if (state == State.OPEN) {
+      return isOpenDurationElapsed();
+    }
+    return !trialInFlight;
+  }
+
+  /** Acquire the permission to execute a call. Must be followed by exactly one outcome. */
+  public synchronized boolean tryAcquirePermission() {
+    if (state == State.CLOSED) {
+      return true;
+    }
+
+    if (state == State.OPEN) {
+      if (!isOpenDurationElapsed()) {
+        return false;
+      }
+      state = State.HALF_OPEN;
+    }
+
+    if (trialInFlight) {
+      return false;
+    }
+    trialInFlight = true;
+    return true;
+  }
+
+  public synchronized void onSuccess() {
+    consecutiveFailures = 0;
+    trialInFlight = false;
+    state = State.CLOSED;
+  }
+
+  public synchronized void onFailure() {
+    trialInFlight = false;
+    consecutiveFailures++;
+    if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+      state = State.OPEN;
+      openedAt = clock.instant();
+    }
+  }
+
+  /** Release a permission whose call was not executed. */
+  public synchronized void onIgnored() {
+    trialInFlight = false;
+  }
+
+  public synchronized State getState() {
+    return state;
+  }
+
+  private boolean isOpenDurationElapsed() {
+    return !openedAt.plus(openDuration).isAfter(clock.instant());
+  }
+}
@@ -0,0 +1,100 @@
+package org.miracum.recruit.notify.resilience;
+
+import java.io.InputStream;
+import javax.mail.internet.MimeMessage;
+import org.springframework.mail.MailException;
+import org.springframework.mail.MailParseException;
+import org.springframework.mail.MailPreparationException;
+import org.springframework.mail.MailSendException;
+import org.springframework.mail.SimpleMailMessage;
+import org.springframework.mail.javamail.JavaMailSender;
+import org.springframework.mail.javamail.MimeMessagePreparator;
+
+/**
+ * {@link JavaMailSender} passing every send through a {@link ResourceGuard}. Rejected sends fail
+ * with a {@link MailSendException} caused by a {@link CallNotPermittedException}.
+ */
+public class GuardedJavaMailSender implements JavaMailSender {
+  private final JavaMailSender delegate;
+  private final ResourceGuard guard;
+
+  public GuardedJavaMailSender(JavaMailSender delegate, ResourceGuard guard) {
+    this.delegate = delegate;
+    this.guard = guard;
+  }
+
+  /** Whether the given exception was caused by the guard rejecting the call. */
+  public static boolean isCallNotPermitted(Throwable exception) {
+    for (var cause = exception; cause != null; cause = cause.getCause()) {
+      if (cause instanceof CallNotPermittedException) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public JavaMailSender getDelegate() {
+    return delegate;
+  }
+
+  @Override
+  public MimeMessage createMimeMessage() {
+    return delegate.createMimeMessage();
+  }
+
+  @Override
+  public MimeMessage createMimeMessage(InputStream contentStream) throws MailException {
+    return delegate.createMimeMessage(contentStream);
+  }
+
+  @Override
+  public void send(MimeMessage mimeMessage) throws MailException {
+    guarded(() -> delegate.send(mimeMessage));
+  }
+
+  @Override
+  public void send(MimeMessage... mimeMessages) throws MailException {
+    guarded(() -> delegate.send(mimeMessages));
+  }
+
+  @Override
+  public void send(MimeMessagePreparator mimeMessagePreparator) throws MailException {
+    guarded(() -> delegate.send(mimeMessagePreparator));
+  }
+
+  @Override
+  public void send(MimeMessagePreparator... mimeMessagePreparators) throws MailException {
+    guarded(() -> delegate.send(mimeMessagePreparators));
+  }
+
+  @Override
+  public void send(SimpleMailMessage simpleMessage) throws MailException {
+    guarded(() -> delegate.send(simpleMessage));
+  }
+
+  @Override
+  public void send(SimpleMailMessage... simpleMessages) throws MailException {
+    guarded(() -> delegate.send(simpleMessages));
+  }
+
+  private void guarded(Runnable send) {
+    ResourceGuard.Permit permit;
+    try {
+      permit = guard.acquire();
+    } catch (CallNotPermittedException e) {
+      throw new MailSendException(e.getMessage(), e);
+    }
+
+    try {
+      send.run();
+      permit.onSuccess();
+    } catch (MailParseException | MailPreparationException e) {
+      // the message itself is broken, this says nothing about the mail server
+      permit.onIgnored();
+      throw e;
+    } catch (RuntimeException e) {
+      permit.onFailure();
+      throw e;
+    }
+  }
+}
@@ -0,0 +1,98 @@
+package org.miracum.recruit.notify.resilience;
+
+import java.io.IOException;
+import okhttp3.Interceptor;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.ForwardingSource;
+import okio.Okio;
+
+/**
+ * OkHttp interceptor passing every request through a {@link ResourceGuard}. Connection errors,
+ * server errors and throttling responses count as failures. The call holds its slot until the
+ * response body is read or closed, so the latency seen by the limiter includes the transfer of
+ * large search bundles.
+ */
+public class GuardingInterceptor implements Interceptor {
+  private final ResourceGuard guard;
+
+  public GuardingInterceptor(ResourceGuard guard) {
+    this.guard = guard;
+  }
+
+  @Override
+  public Response intercept(Chain chain) throws IOException {
+    var permit = guard.acquire();
+
+    Response response;
+    try {
+      response = chain.proceed(chain.request());
+    } catch (IOException | RuntimeException e) {
+      permit.onFailure();
+      throw e;
+    }
+
+    if (response.code() >= 500 || response.code() == 429) {
+      permit.onFailure();
+      return response;
+    }
+
+    var body = response.body();
+    if (body == null) {
+      permit.onSuccess();
+      return response;
+    }
+
+    var source = new PermitReleasingSource(body, permit);
+    return response
+        .newBuilder()
+        .body(ResponseBody.create(body.contentType(), body.contentLength(), Okio.buffer(source)))
+        .build();
+  }
+
+  /** Completes the permit once the body is exhausted, fails to be read or is closed. */
+  private static class PermitReleasingSource extends ForwardingSource {
+    private final ResourceGuard.Permit permit;
+    private boolean released;
+
+    PermitReleasingSource(ResponseBody body, ResourceGuard.Permit permit) {
+      super(body.source());
+      this.permit = permit;
+    }
+
+    @Override
+    public long read(Buffer sink, long byteCount) throws IOException {
+      long read;
+      try {
+        read = super.read(sink, byteCount);
+      } catch (IOException e) {
+        release(false);
+        throw e;
+      }
+      if (read == -1) {
+        release(true);
+      }
+      return read;
+    }
+
+    @Override
+    public void close() throws IOException {
+      // a body closed before its end was not wanted any more, which says nothing about the server
+      release(true);
+      super.close();
+    }
+
+    private void release(boolean success) {
+      if (released) {
+        return;
+      }
+      released = true;
+      if (success) {
+        permit.onSuccess();
+      } else {
+        permit.onFailure();
+      }
+    }
+  }
+}
@@ -0,0 +1,28 @@
+package org.miracum.recruit.notify.resilience;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.mail.javamail.JavaMailSender;
+import org.springframework.stereotype.Component;
+
+/** Wraps the auto-configured {@link JavaMailSender} in a {@link GuardedJavaMailSender}. */
+@Component
+public class MailSenderGuardPostProcessor implements BeanPostProcessor {
+  private final ObjectProvider<ResourceGuards> resourceGuards;
+
+  // the guards are looked up lazily to not initialize them before all post processors are ready
+  public MailSenderGuardPostProcessor(ObjectProvider<ResourceGuards> resourceGuards) {
+    this.resourceGuards = resourceGuards;
+  }
+
+  @Override
+  public Object postProcessAfterInitialization(Object bean, String beanName) {
+    if (bean instanceof JavaMailSender mailSender && !(bean instanceof GuardedJavaMailSender)) {
+      var guard = resourceGuards.getObject().getMail();
+      if (guard.isPresent()) {
+        return new GuardedJavaMailSender(mailSender, guard.get());
+      }
+    }
+    return bean;
+  }
+}
@@ -0,0 +1,32 @@
+package org.miracum.recruit.notify.resilience;
+
+import java.time.Duration;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+/** Circuit breaker and concurrency limit settings for the FHIR server and the mail server. */
+@Configuration
+@ConfigurationProperties(prefix = "notify.resilience")
+@Data
+public class ResilienceConfig {
+  private Guard fhir = new Guard();
+  private Guard mail = new Guard();
+
+  @Data
+  public static class Guard {
+    private boolean enabled = true;
+    // number of consecutive failures after which the circuit breaker opens
+    private int failureThreshold = 5;
+    // time the circuit breaker stays open before a single trial call is permitted
+    private Duration openDuration = Duration.ofSeconds(30);
+    private int initialLimit = 10;
+    private int minLimit = 1;
+    private int maxLimit = 50;
+    // calls slower than this are treated like drops and decrease the concurrency limit
+    private Duration latencyThreshold = Duration.ofSeconds(5);
+    private double backoffRatio = 0.9;
+    // maximum time a caller waits for a free slot before the call is rejected
+    private Duration maxWait = Duration.ofSeconds(10);
+  }
+}
@@ -0,0 +1,39 @@
+package org.miracum.recruit.notify.resilience;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.stereotype.Component;
+
+/**
+ * Reports circuit breaker states and concurrency limits. An open breaker only shows in the details,
+ * as the service keeps working by deferring the guarded calls, and restarting it or taking it out
+ * of service would not bring the resource back.
+ */
+@Component
+public class ResilienceHealthIndicator implements HealthIndicator {
+
+  private final ResourceGuards resourceGuards;
+
+  @Autowired
+  ResilienceHealthIndicator(ResourceGuards resourceGuards) {
+    this.resourceGuards = resourceGuards;
+  }
+
+  @Override
+  public Health health() {
+    var builder = Health.up();
+
+    for (var guard : resourceGuards.getAll()) {
+      Map<String, Object> details = new LinkedHashMap<>();
+      details.put("state", guard.getState());
+      details.put("limit", guard.getLimit());
+      details.put("inflight", guard.getInflight());
+      builder.withDetail(guard.getName(), details);
+    }
+
+    return builder.build();
+  }
+}
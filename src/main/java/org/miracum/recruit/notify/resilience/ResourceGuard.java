@@ -0,0 +1,147 @@
+package org.miracum.recruit.notify.resilience;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.Clock;
+import java.time.Duration;
+import org.miracum.recruit.notify.resilience.CircuitBreaker.State;
+
+/**
+ * Guards calls to a remote resource with a circuit breaker and an adaptive concurrency limit.
+ * Breaker state, the current limit and rejected calls are published as metrics.
+ */
+public class ResourceGuard {
+  private final String name;
+  private final CircuitBreaker circuitBreaker;
+  private final AimdLimiter limiter;
+  private final Duration maxWait;
+  private final Counter rejectedByCircuitBreaker;
+  private final Counter rejectedByLimit;
+
+  /** Create a guard for the resource with the given name and register its metrics. */
+  public ResourceGuard(String name, ResilienceConfig.Guard config, MeterRegistry meterRegistry) {
+    this.name = name;
+    this.maxWait = config.getMaxWait();
+    this.circuitBreaker =
+        new CircuitBreaker(
+            config.getFailureThreshold(), config.getOpenDuration(), Clock.systemUTC());
+    this.limiter =
+        new AimdLimiter(
+            config.getInitialLimit(),
+            config.getMinLimit(),
+            config.getMaxLimit(),
+            config.getBackoffRatio(),
+            config.getLatencyThreshold());
+
+    for (var state : State.values()) {
+      Gauge.builder(
+              "notify.resilience.circuit.state",
+              circuitBreaker,
+              breaker -> breaker.getState() == state ? 1 : 0)
+          .description("1 if the circuit breaker of the resource is in the given state")
+          .tag("resource", name)
+          .tag("state", state.name().toLowerCase())
+          .register(meterRegistry);
+    }
+
+    Gauge.builder("notify.resilience.limit", limiter, AimdLimiter::getLimit)
+        .description("Current adaptive concurrency limit of the resource")
+        .tag("resource", name)
+        .register(meterRegistry);
+    Gauge.builder("notify.resilience.inflight", limiter, AimdLimiter::getInflight)
+        .description("Number of calls to the resource currently in flight")
+        .tag("resource", name)
+        .register(meterRegistry);
+
+    this.rejectedByCircuitBreaker =
+        Counter.builder("notify.resilience.rejected")
+            .description("Calls rejected without contacting the resource")
+            .tag("resource", name)
+            .tag("reason", "circuit_open")
+            .register(meterRegistry);
+    this.rejectedByLimit =
+        Counter.builder("notify.resilience.rejected")
+            .description("Calls rejected without contacting the resource")
+            .tag("resource", name)
+            .tag("reason", "limit_reached")
+            .register(meterRegistry);
+  }
+
+  /**
+   * Acquire the permission to call the resource, waiting for a free slot if the concurrency limit
+   * is reached.
+   *
+   * @throws CallNotPermittedException if the circuit breaker is open or no slot became free
+   */
+  public Permit acquire() throws CallNotPermittedException {
+    if (!circuitBreaker.tryAcquirePermission()) {
+      rejectedByCircuitBreaker.increment();
+      throw new CallNotPermittedException(name, "circuit breaker is open");
+    }
+
+    boolean acquired;
+    try {
+      acquired = limiter.acquire(maxWait);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      circuitBreaker.onIgnored();
+      throw new CallNotPermittedException(name, "interrupted while waiting for a free slot");
+    }
+
+    if (!acquired) {
+      circuitBreaker.onIgnored();
+      rejectedByLimit.increment();
+      throw new CallNotPermittedException(
+          name, String.format("concurrency limit of %d reached", limiter.getLimit()));
+    }
+
+    return new Permit(System.nanoTime());
+  }
+
+  /** Whether a call would currently pass the circuit breaker, e.g. to defer work while open. */
+  public boolean isCallPermitted() {
+    return circuitBreaker.isCallPermitted();
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public State getState() {
+    return circuitBreaker.getState();
+  }
+
+  public int getLimit() {
+    return limiter.getLimit();
+  }
+
+  public int getInflight() {
+    return limiter.getInflight();
+  }
+
+  /** Permission to execute one call. Exactly one of its methods must be invoked afterwards. */
+  public final class Permit {
+    private final long startNanos;
+
+    private Permit(long startNanos) {
+      this.startNanos = startNanos;
+    }
+
+    public void onSuccess() {
+      limiter.release(System.nanoTime() - startNanos, false);
+      circuitBreaker.onSuccess();
+    }
+
+    public void onFailure() {
+      limiter.release(System.nanoTime() - startNanos, true);
+      circuitBreaker.onFailure();
+    }
+
+    /** The call failed for reasons unrelated to the health of the resource. */
+    public void onIgnored() {
+      limiter.cancel();
+      circuitBreaker.onIgnored();
+    }
+  }
+}
@@ -0,0 +1,50 @@
+package org.miracum.recruit.notify.resilience;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/** Holds the guards for the FHIR server and the mail server, if they are enabled. */
+@Component
+public class ResourceGuards {
+  public static final String FHIR = "fhir";
+  public static final String MAIL = "mail";
+
+  private final ResourceGuard fhir;
+  private final ResourceGuard mail;
+
+  @Autowired
+  public ResourceGuards(ResilienceConfig config, MeterRegistry meterRegistry) {
+    this.fhir =
+        config.getFhir().isEnabled()
+            ? new ResourceGuard(FHIR, config.getFhir(), meterRegistry)
+            : null;
+    this.mail =
+        config.getMail().isEnabled()
+            ? new ResourceGuard(MAIL, config.getMail(), meterRegistry)
+            : null;
+  }
+
+  public Optional<ResourceGuard> getFhir() {
+    return Optional.ofNullable(fhir);
+  }
+
+  public Optional<ResourceGuard> getMail() {
+    return Optional.ofNullable(mail);
+  }
+
+  /** Whether calls to the mail server are currently permitted. */
+  public boolean isMailCallPermitted() {
+    return mail == null || mail.isCallPermitted();
+  }
+
+  public List<ResourceGuard> getAll() {
+    var guards = new ArrayList<ResourceGuard>();
+    getFhir().ifPresent(guards::add);
+    getMail().ifPresent(guards::add);
+    return guards;
+  }
+}
@@ -0,0 +1,40 @@
+package org.miracum.recruit.notify.scheduler;
+
+import org.quartz.Job;
+import org.quartz.JobExecutionContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+import org.springframework.stereotype.Component;
+
+/** One-off job distributing a single shard of a scheduled distribution run. */
+@Component
+public class DistributionShardJob implements Job {
+  private static final Logger LOG = LoggerFactory.getLogger(DistributionShardJob.class);
+
+  static final String TRIGGER = "trigger";
+  static final String RUN_ID = "runId";
+  static final String SHARD = "shard";
+  static final String SHARDS = "shards";
+
+  private final NotifyMessageSchedulerService jobService;
+
+  public DistributionShardJob(NotifyMessageSchedulerService jobService) {
+    this.jobService = jobService;
+  }
+
+  @Override
+  public void execute(JobExecutionContext context) {
+    var data = context.getMergedJobDataMap();
+    var triggerName = data.getString(TRIGGER);
+    var shard = data.getInt(SHARD);
+
+    MDC.put("job", context.getJobDetail().getKey().getName());
+    MDC.put("trigger", triggerName);
+    MDC.put("shard", Integer.toString(shard));
+    LOG.debug("distribution shard started");
+
+    jobService.executeMessageDistributionShard(
+        triggerName, data.getString(RUN_ID), shard, data.getInt(SHARDS));
+  }
+}
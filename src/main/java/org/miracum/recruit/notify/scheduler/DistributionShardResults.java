@@ -0,0 +1,16 @@
+package org.miracum.recruit.notify.scheduler;
+
+import java.util.List;
+import java.util.Optional;
+import org.miracum.recruit.notify.message.DistributionRunResult;
+
+/** Collects the results of the shards of a sharded distribution run, possibly from many nodes. */
+public interface DistributionShardResults {
+
+  /**
+   * Record the result of a shard. If it was the last outstanding shard of the run, the results of
+   * all shards are returned, to exactly one caller per run.
+   */
+  Optional<List<DistributionRunResult>> complete(
+      String runId, int shards, DistributionRunResult result);
+}
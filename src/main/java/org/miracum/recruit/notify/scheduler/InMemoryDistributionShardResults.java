@@ -0,0 +1,63 @@
+package org.miracum.recruit.notify.scheduler;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import org.miracum.recruit.notify.message.DistributionRunResult;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Service;
+
+/**
+ * Collects the shard results of runs whose shards all execute on this node. Results of runs with
+ * shards that never finished, e.g. because the node was shut down, are dropped after a day.
+ */
+@Service
+@Profile("!ha")
+public class InMemoryDistributionShardResults implements DistributionShardResults {
+  private static final Duration RETENTION = Duration.ofDays(1);
+
+  private record Run(Instant startedAt, List<DistributionRunResult> results) {}
+
+  private final Map<String, Run> runs = new ConcurrentHashMap<>();
+  private final Clock clock;
+
+  @Autowired
+  public InMemoryDistributionShardResults() {
+    this(Clock.systemUTC());
+  }
+
+  InMemoryDistributionShardResults(Clock clock) {
+    this.clock = clock;
+  }
+
+  @Override
+  public Optional<List<DistributionRunResult>> complete(
+      String runId, int shards, DistributionRunResult result) {
+    var now = clock.instant();
+    runs.values().removeIf(run -> run.startedAt().isBefore(now.minus(RETENTION)));
+
+    var completed = new ArrayList<DistributionRunResult>();
+    runs.compute(
+        runId,
+        (key, previous) -> {
+          var run = previous == null ? new Run(now, new ArrayList<>()) : previous;
+          run.results().add(result);
+          if (run.results().size() < shards) {
+            return run;
+          }
+          completed.addAll(run.results());
+          return null;
+        });
+    return completed.isEmpty() ? Optional.empty() : Optional.of(completed);
+  }
+
+  int getOpenRunCount() {
+    return runs.size();
+  }
+}
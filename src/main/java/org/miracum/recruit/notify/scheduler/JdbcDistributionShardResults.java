@@ -0,0 +1,72 @@
+package org.miracum.recruit.notify.scheduler;
+
+import java.util.List;
+import java.util.Optional;
+import javax.sql.DataSource;
+import org.miracum.recruit.notify.message.DistributionRunResult;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.sql.init.dependency.DependsOnDatabaseInitialization;
+import org.springframework.context.annotation.Profile;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+/**
+ * Collects the shard results in the HA database, so shards executed on different cluster nodes
+ * add up to one summary. The last shard to finish takes all rows of the run by deleting them.
+ * Rows of runs with shards that never finished are purged after a day.
+ */
+@Service
+@Profile("ha")
+@DependsOnDatabaseInitialization
+public class JdbcDistributionShardResults implements DistributionShardResults {
+  private final JdbcTemplate jdbcTemplate;
+
+  @Autowired
+  public JdbcDistributionShardResults(DataSource dataSource) {
+    this.jdbcTemplate = new JdbcTemplate(dataSource);
+  }
+
+  @Override
+  public Optional<List<DistributionRunResult>> complete(
+      String runId, int shards, DistributionRunResult result) {
+    jdbcTemplate.update(
+        "INSERT INTO NOTIFY_DISTRIBUTION_SHARDS (RUN_ID, PENDING_MESSAGES, GROUP_COUNT, SENT,"
+            + " FAILED, REVOKED, DEFERRED, FINISHED_AT)"
+            + " VALUES (?, ?, ?, ?, ?, ?, ?, CURRENT_TIMESTAMP)",
+        runId,
+        result.pendingMessages(),
+        result.groups(),
+        result.sent(),
+        result.failed(),
+        result.revoked(),
+        result.deferred());
+    jdbcTemplate.update(
+        "DELETE FROM NOTIFY_DISTRIBUTION_SHARDS"
+            + " WHERE FINISHED_AT < CURRENT_TIMESTAMP - INTERVAL '1 day'");
+
+    var finished =
+        jdbcTemplate.queryForObject(
+            "SELECT COUNT(*) FROM NOTIFY_DISTRIBUTION_SHARDS WHERE RUN_ID = ?",
+            Integer.class,
+            runId);
+    if (finished == null || finished < shards) {
+      return Optional.empty();
+    }
+
+    // concurrent last shards both get here, only one of them deletes the rows
+    var results =
+        jdbcTemplate.query(
+            "DELETE FROM NOTIFY_DISTRIBUTION_SHARDS WHERE RUN_ID = ?"
+                + " RETURNING PENDING_MESSAGES, GROUP_COUNT, SENT, FAILED, REVOKED, DEFERRED",
+            (resultSet, rowNum) ->
+                new DistributionRunResult(
+                    resultSet.getInt("PENDING_MESSAGES"),
+                    resultSet.getInt("GROUP_COUNT"),
+                    resultSet.getInt("SENT"),
+                    resultSet.getInt("FAILED"),
+                    resultSet.getInt("REVOKED"),
+                    resultSet.getBoolean("DEFERRED")),
+            runId);
+    return results.isEmpty() ? Optional.empty() : Optional.of(results);
+  }
+}
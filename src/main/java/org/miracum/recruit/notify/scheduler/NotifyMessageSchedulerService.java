@@ -1,21 +1,108 @@
 package org.miracum.recruit.notify.scheduler;
 
+import static net.logstash.logback.argument.StructuredArguments.kv;
+
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import org.miracum.recruit.notify.mailconfig.DistributionConfig;
+import org.miracum.recruit.notify.message.DistributionRunResult;
 import org.miracum.recruit.notify.message.MessageDistributor;
+import org.quartz.JobBuilder;
+import org.quartz.Scheduler;
+import org.quartz.SchedulerException;
+import org.quartz.TriggerBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 /** Service that calls message distribution if timer event is fired. */
 @Service
 public class NotifyMessageSchedulerService {
+  private static final Logger LOG = LoggerFactory.getLogger(NotifyMessageSchedulerService.class);
+
+  static final String SHARD_JOB_GROUP = "distribution-shards";
+
   private final MessageDistributor messageDistributor;
+  private final DistributionConfig distributionConfig;
+  private final DistributionShardResults shardResults;
 
   @Autowired
-  public NotifyMessageSchedulerService(MessageDistributor messageDistributor) {
+  public NotifyMessageSchedulerService(
+      MessageDistributor messageDistributor,
+      DistributionConfig distributionConfig,
+      DistributionShardResults shardResults) {
     this.messageDistributor = messageDistributor;
+    this.distributionConfig = distributionConfig;
+    this.shardResults = shardResults;
   }
 
   /** Job to distribute messages based on jobKey (trigger name in config) will be executed. */
   public void executeMessageDistributionJob(String jobKey) {
-    messageDistributor.distribute(jobKey);
+    logSummary(jobKey, 1, List.of(messageDistributor.distribute(jobKey)));
+  }
+
+  /**
+   * Start the distribution for the trigger. With more than one shard configured, a one-off job is
+   * scheduled per shard, so in a cluster any node may pick up any shard.
+   */
+  public void startMessageDistribution(Scheduler scheduler, String triggerName)
+      throws SchedulerException {
+    var shards = distributionConfig.getShards();
+    if (shards <= 1) {
+      executeMessageDistributionJob(triggerName);
+      return;
+    }
+
+    var runId = triggerName + "-" + UUID.randomUUID();
+    for (var shard = 0; shard < shards; shard++) {
+      var job =
+          JobBuilder.newJob(DistributionShardJob.class)
+              .withIdentity(runId + "-" + shard, SHARD_JOB_GROUP)
+              .usingJobData(DistributionShardJob.TRIGGER, triggerName)
+              .usingJobData(DistributionShardJob.RUN_ID, runId)
+              .usingJobData(DistributionShardJob.SHARD, shard)
+              .usingJobData(DistributionShardJob.SHARDS, shards)
+              .build();
+      var trigger =
+          TriggerBuilder.newTrigger()
+              .withIdentity(runId + "-" + shard, SHARD_JOB_GROUP)
+              .startNow()
+              .build();
+      scheduler.scheduleJob(job, Set.of(trigger), true);
+    }
+
+    LOG.info("scheduled {} shards of {}", kv("shards", shards), kv("run", runId));
+  }
+
+  /**
+   * Distribute a single shard, summarizing the run if it was the last one to finish. A failed shard
+   * still completes, like a deferred one, as it leaves its messages active for the next run.
+   */
+  public void executeMessageDistributionShard(
+      String triggerName, String runId, int shard, int shards) {
+    var result = DistributionRunResult.FAILED_SHARD;
+    try {
+      result = messageDistributor.distributeShard(triggerName, shard, shards);
+    } finally {
+      shardResults
+          .complete(runId, shards, result)
+          .ifPresent(results -> logSummary(runId, shards, results));
+    }
+  }
+
+  private void logSummary(String run, int shards, List<DistributionRunResult> results) {
+    var total = DistributionRunResult.sum(results);
+    LOG.info(
+        "finished distribution {} in {}: {} {} {} {} {} {}",
+        kv("run", run),
+        kv("shards", shards),
+        kv("pendingMessages", total.pendingMessages()),
+        kv("groups", total.groups()),
+        kv("sent", total.sent()),
+        kv("failed", total.failed()),
+        kv("revoked", total.revoked()),
+        kv("deferred", total.deferred()));
   }
 }
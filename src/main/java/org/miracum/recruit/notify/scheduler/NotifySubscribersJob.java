@@ -2,6 +2,8 @@ package org.miracum.recruit.notify.scheduler;
 
 import org.quartz.Job;
 import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+import org.quartz.SchedulerException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
@@ -18,12 +20,16 @@ public class NotifySubscribersJob implements Job {
   }
 
   @Override
-  public void execute(JobExecutionContext context) {
+  public void execute(JobExecutionContext context) throws JobExecutionException {
     MDC.put("job", context.getJobDetail().getKey().getName());
     MDC.put("trigger", context.getTrigger().getKey().getName());
     LOG.debug("scheduled execution time reached");
 
     var triggerName = context.getTrigger().getKey().getName();
-    jobService.executeMessageDistributionJob(triggerName);
+    try {
+      jobService.startMessageDistribution(context.getScheduler(), triggerName);
+    } catch (SchedulerException e) {
+      throw new JobExecutionException(e);
+    }
   }
 }
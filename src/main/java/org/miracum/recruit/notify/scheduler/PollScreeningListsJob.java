@@ -0,0 +1,31 @@
+package org.miracum.recruit.notify.scheduler;
+
+import org.miracum.recruit.notify.ingestion.ListPoller;
+import org.quartz.DisallowConcurrentExecution;
+import org.quartz.Job;
+import org.quartz.JobExecutionContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+import org.springframework.stereotype.Component;
+
+/** Job searching for screening lists changed since the last poll. */
+@Component
+@DisallowConcurrentExecution
+public class PollScreeningListsJob implements Job {
+  private static final Logger LOG = LoggerFactory.getLogger(PollScreeningListsJob.class);
+
+  private final ListPoller listPoller;
+
+  public PollScreeningListsJob(ListPoller listPoller) {
+    this.listPoller = listPoller;
+  }
+
+  @Override
+  public void execute(JobExecutionContext context) {
+    MDC.put("job", context.getJobDetail().getKey().getName());
+    LOG.debug("scheduled poll time reached");
+
+    listPoller.poll();
+  }
+}
@@ -0,0 +1,31 @@
+package org.miracum.recruit.notify.scheduler;
+
+import org.miracum.recruit.notify.message.MessageRetention;
+import org.quartz.DisallowConcurrentExecution;
+import org.quartz.Job;
+import org.quartz.JobExecutionContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+import org.springframework.stereotype.Component;
+
+/** Job deleting completed and revoked messages older than the configured retention. */
+@Component
+@DisallowConcurrentExecution
+public class PurgeExpiredMessagesJob implements Job {
+  private static final Logger LOG = LoggerFactory.getLogger(PurgeExpiredMessagesJob.class);
+
+  private final MessageRetention messageRetention;
+
+  public PurgeExpiredMessagesJob(MessageRetention messageRetention) {
+    this.messageRetention = messageRetention;
+  }
+
+  @Override
+  public void execute(JobExecutionContext context) {
+    MDC.put("job", context.getJobDetail().getKey().getName());
+    LOG.debug("scheduled retention time reached");
+
+    messageRetention.purge();
+  }
+}
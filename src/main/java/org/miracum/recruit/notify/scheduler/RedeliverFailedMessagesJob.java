@@ -0,0 +1,31 @@
+package org.miracum.recruit.notify.scheduler;
+
+import org.miracum.recruit.notify.message.MessageRedeliverer;
+import org.quartz.DisallowConcurrentExecution;
+import org.quartz.Job;
+import org.quartz.JobExecutionContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+import org.springframework.stereotype.Component;
+
+/** Job retrying the delivery of messages that failed to be sent. */
+@Component
+@DisallowConcurrentExecution
+public class RedeliverFailedMessagesJob implements Job {
+  private static final Logger LOG = LoggerFactory.getLogger(RedeliverFailedMessagesJob.class);
+
+  private final MessageRedeliverer messageRedeliverer;
+
+  public RedeliverFailedMessagesJob(MessageRedeliverer messageRedeliverer) {
+    this.messageRedeliverer = messageRedeliverer;
+  }
+
+  @Override
+  public void execute(JobExecutionContext context) {
+    MDC.put("job", context.getJobDetail().getKey().getName());
+    LOG.debug("scheduled redelivery time reached");
+
+    messageRedeliverer.redeliver();
+  }
+}
@@ -3,11 +3,16 @@ package org.miracum.recruit.notify.scheduler;
 import static net.logstash.logback.argument.StructuredArguments.kv;
 
 import java.util.HashSet;
+import java.util.Set;
+import org.miracum.recruit.notify.ingestion.IngestionConfig;
+import org.miracum.recruit.notify.mailconfig.RedeliveryConfig;
+import org.miracum.recruit.notify.mailconfig.RetentionConfig;
 import org.miracum.recruit.notify.mailconfig.UserConfig;
 import org.quartz.CronExpression;
 import org.quartz.CronScheduleBuilder;
 import org.quartz.JobBuilder;
 import org.quartz.JobDetail;
+import org.quartz.JobKey;
 import org.quartz.Scheduler;
 import org.quartz.SchedulerException;
 import org.quartz.Trigger;
@@ -24,11 +29,27 @@ import org.springframework.scheduling.quartz.SchedulerFactoryBean;
 public class SpringQrtzScheduler {
   private static final Logger LOG = LoggerFactory.getLogger(SpringQrtzScheduler.class);
 
+  private static final JobKey REDELIVERY_JOB_KEY =
+      JobKey.jobKey("redeliverFailedMessages", "redelivery");
+  private static final JobKey POLLING_JOB_KEY = JobKey.jobKey("pollScreeningLists", "ingestion");
+  private static final JobKey RETENTION_JOB_KEY =
+      JobKey.jobKey("purgeExpiredMessages", "retention");
+
   private final UserConfig config;
+  private final RedeliveryConfig redeliveryConfig;
+  private final IngestionConfig ingestionConfig;
+  private final RetentionConfig retentionConfig;
 
   @Autowired
-  SpringQrtzScheduler(UserConfig config) {
+  SpringQrtzScheduler(
+      UserConfig config,
+      RedeliveryConfig redeliveryConfig,
+      IngestionConfig ingestionConfig,
+      RetentionConfig retentionConfig) {
     this.config = config;
+    this.redeliveryConfig = redeliveryConfig;
+    this.ingestionConfig = ingestionConfig;
+    this.retentionConfig = retentionConfig;
   }
 
   @Bean
@@ -51,12 +72,98 @@ public class SpringQrtzScheduler {
 
     scheduler.scheduleJob(job, triggers, true);
 
+    scheduleRedelivery(scheduler);
+    schedulePolling(scheduler);
+    scheduleRetention(scheduler);
+
     LOG.debug("starting scheduler instance");
     scheduler.start();
 
     return scheduler;
   }
 
+  private void scheduleRedelivery(Scheduler scheduler) throws SchedulerException {
+    if (!redeliveryConfig.isEnabled() || redeliveryConfig.getSchedule() == null) {
+      LOG.info("automatic redelivery of failed messages is disabled");
+      // the job may still be persisted in a clustered job store from an earlier configuration
+      scheduler.deleteJob(REDELIVERY_JOB_KEY);
+      return;
+    }
+
+    var job =
+        JobBuilder.newJob(RedeliverFailedMessagesJob.class)
+            .withIdentity(REDELIVERY_JOB_KEY)
+            .storeDurably(true)
+            .build();
+
+    var trigger =
+        TriggerBuilder.newTrigger()
+            .withIdentity(REDELIVERY_JOB_KEY.getName(), REDELIVERY_JOB_KEY.getGroup())
+            .withSchedule(CronScheduleBuilder.cronSchedule(redeliveryConfig.getSchedule()))
+            .build();
+
+    LOG.debug(
+        "adding {} at {}",
+        kv("job", job.getKey()),
+        kv("cron", redeliveryConfig.getSchedule(), "{0}=\"{1}\""));
+
+    scheduler.scheduleJob(job, Set.of(trigger), true);
+  }
+
+  private void schedulePolling(Scheduler scheduler) throws SchedulerException {
+    var schedule = ingestionConfig.getPolling().getSchedule();
+    if (!ingestionConfig.isPolling() || schedule == null) {
+      // the job may still be persisted in a clustered job store from an earlier configuration
+      scheduler.deleteJob(POLLING_JOB_KEY);
+      return;
+    }
+
+    var job =
+        JobBuilder.newJob(PollScreeningListsJob.class)
+            .withIdentity(POLLING_JOB_KEY)
+            .storeDurably(true)
+            .build();
+
+    var trigger =
+        TriggerBuilder.newTrigger()
+            .withIdentity(POLLING_JOB_KEY.getName(), POLLING_JOB_KEY.getGroup())
+            .withSchedule(
+                CronScheduleBuilder.cronSchedule(schedule)
+                    .withMisfireHandlingInstructionDoNothing())
+            .build();
+
+    LOG.debug("adding {} at {}", kv("job", job.getKey()), kv("cron", schedule, "{0}=\"{1}\""));
+
+    scheduler.scheduleJob(job, Set.of(trigger), true);
+  }
+
+  private void scheduleRetention(Scheduler scheduler) throws SchedulerException {
+    var schedule = retentionConfig.getSchedule();
+    if (!retentionConfig.isEnabled() || schedule == null) {
+      // the job may still be persisted in a clustered job store from an earlier configuration
+      scheduler.deleteJob(RETENTION_JOB_KEY);
+      return;
+    }
+
+    var job =
+        JobBuilder.newJob(PurgeExpiredMessagesJob.class)
+            .withIdentity(RETENTION_JOB_KEY)
+            .storeDurably(true)
+            .build();
+
+    var trigger =
+        TriggerBuilder.newTrigger()
+            .withIdentity(RETENTION_JOB_KEY.getName(), RETENTION_JOB_KEY.getGroup())
+            .withSchedule(
+                CronScheduleBuilder.cronSchedule(schedule)
+                    .withMisfireHandlingInstructionDoNothing())
+            .build();
+
+    LOG.debug("adding {} at {}", kv("job", job.getKey()), kv("cron", schedule, "{0}=\"{1}\""));
+
+    scheduler.scheduleJob(job, Set.of(trigger), true);
+  }
+
   private JobDetail createJobDetail(String jobName, String groupName) {
     return JobBuilder.newJob(NotifySubscribersJob.class)
         .withIdentity(jobName, groupName)
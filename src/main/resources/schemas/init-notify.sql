@@ -0,0 +1,51 @@
+-- screening list versions whose webhook was already handled, shared by all replicas in HA mode
+CREATE TABLE IF NOT EXISTS NOTIFY_PROCESSED_LIST_VERSIONS
+(
+    LIST_ID      VARCHAR(64)              NOT NULL,
+    VERSION_ID   VARCHAR(64)              NOT NULL,
+    PROCESSED_AT TIMESTAMP WITH TIME ZONE NOT NULL,
+    PRIMARY KEY (LIST_ID, VERSION_ID)
+);
+
+CREATE INDEX IF NOT EXISTS IDX_NOTIFY_PLV_PROCESSED_AT ON NOTIFY_PROCESSED_LIST_VERSIONS (PROCESSED_AT);
+
+-- replicas taking part in the partitioning of the screening lists, with their last heartbeat
+CREATE TABLE IF NOT EXISTS NOTIFY_REPLICAS
+(
+    NODE_ID      VARCHAR(200)             NOT NULL,
+    URL          VARCHAR(500)             NULL,
+    HEARTBEAT_AT TIMESTAMP WITH TIME ZONE NOT NULL,
+    PRIMARY KEY (NODE_ID)
+);
+
+-- the replica owning each screening list partition until its lease expires
+CREATE TABLE IF NOT EXISTS NOTIFY_PARTITION_LEASES
+(
+    PARTITION_NO INTEGER                  NOT NULL,
+    OWNER        VARCHAR(200)             NULL,
+    EXPIRES_AT   TIMESTAMP WITH TIME ZONE NULL,
+    PRIMARY KEY (PARTITION_NO)
+);
+
+-- results of the finished shards of sharded distribution runs, until the last shard sums them up
+CREATE TABLE IF NOT EXISTS NOTIFY_DISTRIBUTION_SHARDS
+(
+    RUN_ID           VARCHAR(100)             NOT NULL,
+    PENDING_MESSAGES INTEGER                  NOT NULL,
+    GROUP_COUNT      INTEGER                  NOT NULL,
+    SENT             INTEGER                  NOT NULL,
+    FAILED           INTEGER                  NOT NULL,
+    REVOKED          INTEGER                  NOT NULL,
+    DEFERRED         BOOL                     NOT NULL,
+    FINISHED_AT      TIMESTAMP WITH TIME ZONE NOT NULL
+);
+
+CREATE INDEX IF NOT EXISTS IDX_NOTIFY_DS_RUN_ID ON NOTIFY_DISTRIBUTION_SHARDS (RUN_ID);
+
+-- meta.lastUpdated of the last screening list handled by the polling ingestion, per criteria
+CREATE TABLE IF NOT EXISTS NOTIFY_POLLING_WATERMARKS
+(
+    CRITERIA  VARCHAR(1000)            NOT NULL,
+    WATERMARK TIMESTAMP WITH TIME ZONE NOT NULL,
+    PRIMARY KEY (CRITERIA)
+);
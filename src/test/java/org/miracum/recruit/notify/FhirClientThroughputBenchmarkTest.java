@@ -0,0 +1,160 @@
+package org.miracum.recruit.notify;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.okhttp.client.OkHttpRestfulClientFactory;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.CommunicationRequest;
+import org.hl7.fhir.r4.model.CommunicationRequest.CommunicationRequestStatus;
+import org.hl7.fhir.r4.model.ContactPoint;
+import org.hl7.fhir.r4.model.ContactPoint.ContactPointSystem;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Practitioner;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.miracum.recruit.notify.config.FhirClientConfig;
+import org.miracum.recruit.notify.config.FhirConfig;
+import org.miracum.recruit.notify.fhirserver.AsyncFhirClient;
+import org.miracum.recruit.notify.fhirserver.FhirSystemsConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compares the throughput of the paged CommunicationRequest search in {@link FhirServerProvider}
+ * between an untuned OkHttp client and one built from the fhir.client settings, against local FHIR
+ * server stand-ins with limited bandwidth. The untuned client talks HTTP/1.1 without compression,
+ * the tuned one gzip over cleartext HTTP/2 with prior knowledge, as the stand-in has no TLS for
+ * negotiating HTTP/2 via ALPN. Run via {@code ./gradlew benchmark}.
+ */
+@Tag("benchmark")
+class FhirClientThroughputBenchmarkTest {
+  private static final Logger LOG =
+      LoggerFactory.getLogger(FhirClientThroughputBenchmarkTest.class);
+
+  private static final int NUM_MESSAGES = 5_000;
+  private static final int PAGE_SIZE = 250;
+  private static final int ITERATIONS = 10;
+  private static final long BANDWIDTH_BYTES_PER_SECOND = 20L * 1024 * 1024;
+
+  private final FhirSystemsConfig fhirSystems = new FhirSystemsConfig();
+
+  @Test
+  void getPreparedMessages_withDefaultAndTunedClient_shouldReportThroughput() throws Exception {
+    fhirSystems.setCommunication("https://fhir.miracum.org/uc1/identifiers/notification-id");
+
+    try (var http1Stub = createStub(Protocol.HTTP_1_1);
+        var http2Stub = createStub(Protocol.H2_PRIOR_KNOWLEDGE)) {
+      // HTTP/1.1 with uncompressed responses, like a client without any tuning
+      var untunedClient =
+          new OkHttpClient.Builder()
+              .protocols(List.of(Protocol.HTTP_1_1))
+              .addInterceptor(
+                  chain ->
+                      chain.proceed(
+                          chain
+                              .request()
+                              .newBuilder()
+                              .header("Accept-Encoding", "identity")
+                              .build()))
+              .build();
+
+      var tunedConfig = new FhirClientConfig();
+      tunedConfig.getHttp2().setPriorKnowledge(true);
+      Set<Protocol> tunedProtocols = ConcurrentHashMap.newKeySet();
+      var tunedClient =
+          FhirConfig.createHttpClientBuilder(tunedConfig)
+              .addNetworkInterceptor(
+                  chain -> {
+                    tunedProtocols.add(chain.connection().protocol());
+                    return chain.proceed(chain.request());
+                  })
+              .build();
+
+      var untunedThroughput = measure(http1Stub, untunedClient);
+      var tunedThroughput = measure(http2Stub, tunedClient);
+
+      var report =
+          String.format(
+              "searching %d CommunicationRequests in pages of %d: untuned %.2f ops/s,"
+                  + " tuned %.2f ops/s (%.1fx)",
+              NUM_MESSAGES,
+              PAGE_SIZE,
+              untunedThroughput,
+              tunedThroughput,
+              tunedThroughput / untunedThroughput);
+      LOG.info("{}", report);
+
+      assertThat(tunedProtocols).containsExactly(Protocol.H2_PRIOR_KNOWLEDGE);
+      assertThat(tunedThroughput).as(report).isPositive();
+    }
+  }
+
+  private FhirServerStub createStub(Protocol protocol) throws IOException {
+    var stub =
+        new FhirServerStub(PAGE_SIZE)
+            .withBandwidth(BANDWIDTH_BYTES_PER_SECOND)
+            .withProtocols(List.of(protocol));
+    seed(stub);
+    return stub.start();
+  }
+
+  private double measure(FhirServerStub stub, OkHttpClient httpClient) {
+    var fhirContext = FhirContext.forR4();
+    var factory = new OkHttpRestfulClientFactory(fhirContext);
+    factory.setHttpClient(httpClient);
+    factory.setServerValidationMode(ServerValidationModeEnum.NEVER);
+    fhirContext.setRestfulClientFactory(factory);
+
+    var provider =
+        new FhirServerProvider(
+            fhirContext.newRestfulGenericClient(stub.getBaseUrl()),
+            fhirSystems,
+            new AsyncFhirClient(new FhirClientConfig()));
+
+    // warm-up
+    assertThat(provider.getPreparedMessages()).hasSize(NUM_MESSAGES);
+
+    var start = System.nanoTime();
+    for (var i = 0; i < ITERATIONS; i++) {
+      assertThat(provider.getPreparedMessages()).hasSize(NUM_MESSAGES);
+    }
+    var seconds = (System.nanoTime() - start) / 1e9;
+    return ITERATIONS / seconds;
+  }
+
+  private void seed(FhirServerStub stub) {
+    for (var i = 0; i < NUM_MESSAGES; i++) {
+      var email = "subscriber-" + (i % 100) + "@example.com";
+      var practitioner =
+          new Practitioner()
+              .addTelecom(new ContactPoint().setSystem(ContactPointSystem.EMAIL).setValue(email));
+      practitioner.setId("pr-" + (i % 100));
+      stub.addPractitioner(practitioner);
+
+      var communicationRequest =
+          new CommunicationRequest()
+              .setStatus(CommunicationRequestStatus.ACTIVE)
+              .setAuthoredOn(new Date())
+              .addRecipient(new Reference("Practitioner/pr-" + (i % 100)).setDisplay(email))
+              .addAbout(new Reference("List/" + (i % 50)).setDisplay("PROSa"))
+              .setReasonCode(List.of(new CodeableConcept().setText("PROSa")))
+              .setIdentifier(
+                  List.of(
+                      new Identifier()
+                          .setSystem(fhirSystems.getCommunication())
+                          .setValue("notification-" + i)));
+      communicationRequest.setId("cr-" + i);
+      stub.addCommunicationRequest(communicationRequest);
+    }
+  }
+}
@@ -0,0 +1,447 @@
+package org.miracum.recruit.notify;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import okhttp3.HttpUrl;
+import okhttp3.Protocol;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+import okio.GzipSink;
+import okio.GzipSource;
+import okio.Okio;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CapabilityStatement;
+import org.hl7.fhir.r4.model.CommunicationRequest;
+import org.hl7.fhir.r4.model.CommunicationRequest.CommunicationRequestStatus;
+import org.hl7.fhir.r4.model.ContactPoint.ContactPointSystem;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.InstantType;
+import org.hl7.fhir.r4.model.ListResource;
+import org.hl7.fhir.r4.model.Practitioner;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.ResearchStudy;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.ResearchSubject;
+import org.hl7.fhir.r4.model.ResearchSubject.ResearchSubjectStatus;
+
+/**
+ * In-process stand-in for a HAPI FHIR server. Serves the interactions the notify module issues
+ * from memory: paged CommunicationRequest searches including their recipients, transactions,
+ * status patches, List searches and vreads, ResearchStudy reads, Practitioner searches and the
+ * Subscription update. Honors gzip compression, so client settings can be compared without a real
+ * server, and counts requests by interaction.
+ */
+public class FhirServerStub extends Dispatcher implements AutoCloseable {
+  private final MockWebServer server = new MockWebServer();
+  private final IParser parser = FhirContext.forR4().newJsonParser();
+  private final ObjectMapper objectMapper = new ObjectMapper();
+  private final NavigableMap<Long, CommunicationRequest> communicationRequests =
+      new ConcurrentSkipListMap<>();
+  private final Map<String, Long> communicationRequestKeys = new ConcurrentHashMap<>();
+  private final Map<String, Practitioner> practitioners = new ConcurrentHashMap<>();
+  private final Map<String, ResearchStudy> researchStudies = new ConcurrentHashMap<>();
+  private final Map<String, NavigableMap<Integer, ListResource>> lists = new ConcurrentHashMap<>();
+  private final Map<String, AtomicInteger> requestCounts = new ConcurrentHashMap<>();
+  private final AtomicInteger requestCount = new AtomicInteger();
+  private final AtomicLong nextId = new AtomicLong();
+  private final int pageSize;
+
+  private long bytesPerSecond;
+
+  public FhirServerStub(int pageSize) {
+    this.pageSize = pageSize;
+  }
+
+  /** Limit the response bandwidth to simulate a network link, 0 for no limit. */
+  public FhirServerStub withBandwidth(long bytesPerSecond) {
+    this.bytesPerSecond = bytesPerSecond;
+    return this;
+  }
+
+  /** Serve only the given protocols, e.g. cleartext HTTP/2 with prior knowledge. */
+  public FhirServerStub withProtocols(List<Protocol> protocols) {
+    server.setProtocols(protocols);
+    return this;
+  }
+
+  public void addPractitioner(Practitioner practitioner) {
+    practitioners.put(practitioner.getIdElement().getIdPart(), practitioner);
+  }
+
+  public void addCommunicationRequest(CommunicationRequest communicationRequest) {
+    var key = nextId.incrementAndGet();
+    communicationRequests.put(key, communicationRequest);
+    communicationRequestKeys.put(communicationRequest.getIdElement().getIdPart(), key);
+  }
+
+  public void addResearchStudy(ResearchStudy researchStudy) {
+    researchStudies.put(researchStudy.getIdElement().getIdPart(), researchStudy);
+  }
+
+  /** Add a version of a List, identified by its id and meta.versionId. */
+  public void addListVersion(ListResource list) {
+    lists
+        .computeIfAbsent(list.getIdElement().getIdPart(), id -> new TreeMap<>())
+        .put(Integer.parseInt(list.getMeta().getVersionId()), list);
+  }
+
+  public FhirServerStub start() throws IOException {
+    server.setDispatcher(this);
+    server.start();
+    return this;
+  }
+
+  public String getBaseUrl() {
+    return server.url("/fhir").toString();
+  }
+
+  public int getRequestCount() {
+    return requestCount.get();
+  }
+
+  /** Number of requests received so far by route, e.g. {@code GET List/{id}/_history/{vid}}. */
+  public Map<String, Integer> getRequestCounts() {
+    var result = new TreeMap<String, Integer>();
+    requestCounts.forEach((route, count) -> result.put(route, count.get()));
+    return result;
+  }
+
+  @Override
+  public MockResponse dispatch(RecordedRequest request) {
+    requestCount.incrementAndGet();
+
+    var url = request.getRequestUrl();
+    var segments = url.pathSegments();
+    var resourceType = segments.size() > 1 ? segments.get(1) : "";
+    var route = request.getMethod() + " " + (resourceType.isEmpty() ? "transaction" : resourceType);
+    if (segments.size() > 2) {
+      route += "/{id}";
+    }
+    if (segments.size() > 4 && "_history".equals(segments.get(3))) {
+      route += "/_history/{vid}";
+    }
+    requestCounts.computeIfAbsent(route, key -> new AtomicInteger()).incrementAndGet();
+
+    return switch (route) {
+      case "GET metadata" -> respond(
+          request, new CapabilityStatement().setFhirVersion(Enumerations.FHIRVersion._4_0_1));
+      case "POST transaction" -> respond(request, transaction(readBody(request)));
+      case "GET CommunicationRequest" -> respond(request, searchCommunicationRequests(url));
+      case "PATCH CommunicationRequest/{id}" -> patchCommunicationRequest(request, segments.get(2));
+      case "GET List" -> respond(request, searchList(url));
+      case "GET List/{id}/_history/{vid}" -> respondOrNotFound(
+          request, readList(segments.get(2), segments.get(4)));
+      case "GET ResearchStudy/{id}" -> respondOrNotFound(
+          request, researchStudies.get(segments.get(2)));
+      case "GET Practitioner" -> respond(request, searchPractitioners(url));
+      case "PUT Subscription" -> updateSubscription(request);
+      default -> new MockResponse().setResponseCode(404);
+    };
+  }
+
+  private Bundle searchCommunicationRequests(HttpUrl url) {
+    var status = url.queryParameter("status");
+    var offsetParameter = url.queryParameter("_getpagesoffset");
+    var offset = offsetParameter == null ? 0 : Integer.parseInt(offsetParameter);
+    var countParameter = url.queryParameter("_count");
+    var count = countParameter == null ? pageSize : Integer.parseInt(countParameter);
+
+    var matches = new ArrayList<CommunicationRequest>();
+    for (var communicationRequest : communicationRequests.values()) {
+      if ((status == null || status.equals(communicationRequest.getStatus().toCode()))
+          && matchesLastUpdated(communicationRequest, url.queryParameterValues("_lastUpdated"))) {
+        matches.add(communicationRequest);
+      }
+    }
+
+    if ("count".equals(url.queryParameter("_summary"))) {
+      return new Bundle().setType(Bundle.BundleType.SEARCHSET).setTotal(matches.size());
+    }
+
+    var sort = url.queryParameter("_sort");
+    if ("authored".equals(sort)) {
+      matches.sort(
+          Comparator.comparing(
+              CommunicationRequest::getAuthoredOn,
+              Comparator.nullsFirst(Comparator.naturalOrder())));
+    } else if ("_lastUpdated".equals(sort)) {
+      matches.sort(
+          Comparator.comparing(
+              request -> request.getMeta().getLastUpdated(),
+              Comparator.nullsFirst(Comparator.naturalOrder())));
+    }
+
+    var bundle = new Bundle().setType(Bundle.BundleType.SEARCHSET).setTotal(matches.size());
+    var page =
+        matches.subList(
+            Math.min(offset, matches.size()), Math.min(offset + count, matches.size()));
+    for (var communicationRequest : page) {
+      addEntry(bundle, communicationRequest, Bundle.SearchEntryMode.MATCH);
+
+      var recipientId = communicationRequest.getRecipientFirstRep().getReferenceElement();
+      var practitioner = practitioners.get(recipientId.getIdPart());
+      if (practitioner != null && url.queryParameter("_include") != null) {
+        addEntry(bundle, practitioner, Bundle.SearchEntryMode.INCLUDE);
+      }
+    }
+
+    if (offset + count < matches.size()) {
+      var next =
+          url.newBuilder()
+              .setQueryParameter("_getpagesoffset", Integer.toString(offset + count))
+              .build();
+      bundle.addLink().setRelation(Bundle.LINK_NEXT).setUrl(next.toString());
+    }
+
+    return bundle;
+  }
+
+  /** Only the lt, gt and ge prefixes are used by the service. */
+  private static boolean matchesLastUpdated(IBaseResource resource, List<String> bounds) {
+    var updated = resource.getMeta().getLastUpdated();
+    for (var bound : bounds) {
+      var time = new InstantType(bound.substring(2)).getValue();
+      var matches =
+          updated != null
+              && switch (bound.substring(0, 2)) {
+                case "lt" -> updated.before(time);
+                case "gt" -> updated.after(time);
+                default -> !updated.before(time);
+              };
+      if (!matches) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private MockResponse patchCommunicationRequest(RecordedRequest request, String id) {
+    var key = communicationRequestKeys.get(id);
+    if (key == null) {
+      return new MockResponse().setResponseCode(404);
+    }
+
+    JsonNode operations;
+    try {
+      operations = objectMapper.readTree(readBody(request));
+    } catch (IOException e) {
+      return new MockResponse().setResponseCode(400);
+    }
+
+    // replace the resource instead of modifying it, it may be encoded by another request
+    var patched = communicationRequests.get(key).copy();
+    for (var operation : operations) {
+      var path = operation.get("path").asText();
+      var value = operation.get("value");
+      if ("/status".equals(path)) {
+        patched.setStatus(CommunicationRequestStatus.fromCode(value.asText()));
+      } else if ("/statusReason".equals(path)) {
+        var holder =
+            parser.parseResource(
+                CommunicationRequest.class,
+                "{\"resourceType\": \"CommunicationRequest\", \"statusReason\": " + value + "}");
+        patched.setStatusReason(holder.getStatusReason());
+      }
+    }
+
+    var previousVersionId = patched.getMeta().getVersionId();
+    var versionId = previousVersionId == null ? 2 : Integer.parseInt(previousVersionId) + 1;
+    patched.getMeta().setVersionId(Integer.toString(versionId)).setLastUpdated(new Date());
+    communicationRequests.put(key, patched);
+
+    var location = getBaseUrl() + "/CommunicationRequest/" + id + "/_history/" + versionId;
+    return respond(request, patched)
+        .setHeader("Location", location)
+        .setHeader("Content-Location", location);
+  }
+
+  private Bundle transaction(String body) {
+    var transaction = parser.parseResource(Bundle.class, body);
+    var response = new Bundle().setType(Bundle.BundleType.TRANSACTIONRESPONSE);
+
+    for (var entry : transaction.getEntry()) {
+      var resource = entry.getResource();
+      String location;
+      var status = "201 Created";
+
+      if (resource instanceof Practitioner practitioner) {
+        var ifNoneExist = entry.getRequest().getIfNoneExist();
+        var existing =
+            ifNoneExist == null ? null : findPractitionerByEmail(ifNoneExist.replace("email=", ""));
+        if (existing == null) {
+          practitioner.setId("pr-" + nextId.incrementAndGet());
+          practitioner.getMeta().setVersionId("1").setLastUpdated(new Date());
+          addPractitioner(practitioner);
+          existing = practitioner;
+        } else {
+          status = "200 OK";
+        }
+        location = "Practitioner/" + existing.getIdElement().getIdPart() + "/_history/1";
+      } else if (resource instanceof CommunicationRequest communicationRequest) {
+        communicationRequest.setId("cr-" + nextId.incrementAndGet());
+        communicationRequest.getMeta().setVersionId("1").setLastUpdated(new Date());
+        addCommunicationRequest(communicationRequest);
+        location =
+            "CommunicationRequest/"
+                + communicationRequest.getIdElement().getIdPart()
+                + "/_history/1";
+      } else {
+        response.addEntry().getResponse().setStatus("400 Bad Request");
+        continue;
+      }
+
+      response.addEntry().getResponse().setStatus(status).setLocation(location);
+    }
+
+    return response;
+  }
+
+  private ListResource readList(String id, String versionId) {
+    var versions = lists.get(id);
+    return versions == null ? null : versions.get(Integer.parseInt(versionId));
+  }
+
+  /** Search a List by _id, including the ResearchSubjects it references as candidates. */
+  private Bundle searchList(HttpUrl url) {
+    var bundle = new Bundle().setType(Bundle.BundleType.SEARCHSET);
+    var idParameter = url.queryParameter("_id");
+    var versions = idParameter == null ? null : lists.get(new IdType(idParameter).getIdPart());
+    if (versions == null) {
+      return bundle.setTotal(0);
+    }
+
+    var list = versions.lastEntry().getValue();
+    bundle.setTotal(1);
+    addEntry(bundle, list, Bundle.SearchEntryMode.MATCH);
+
+    if (url.queryParameter("_include") != null) {
+      for (var entry : list.getEntry()) {
+        var subjectId = entry.getItem().getReferenceElement().getIdPart();
+        var subject =
+            new ResearchSubject()
+                .setStatus(ResearchSubjectStatus.CANDIDATE)
+                .setStudy(new Reference("ResearchStudy/1"))
+                .setIndividual(new Reference("Patient/" + subjectId));
+        subject.setId(subjectId);
+        addEntry(bundle, subject, Bundle.SearchEntryMode.INCLUDE);
+      }
+    }
+
+    return bundle;
+  }
+
+  private Bundle searchPractitioners(HttpUrl url) {
+    var bundle = new Bundle().setType(Bundle.BundleType.SEARCHSET);
+    var emails = url.queryParameter("email");
+    if (emails == null) {
+      return bundle.setTotal(0);
+    }
+
+    // several comma-separated addresses are matched with OR semantics
+    for (var email : emails.split(",")) {
+      var practitioner = findPractitionerByEmail(email);
+      if (practitioner != null) {
+        addEntry(bundle, practitioner, Bundle.SearchEntryMode.MATCH);
+      }
+    }
+    return bundle.setTotal(bundle.getEntry().size());
+  }
+
+  private MockResponse updateSubscription(RecordedRequest request) {
+    var subscription = parser.parseResource(readBody(request));
+    subscription.setId("Subscription/1/_history/1");
+    return respond(request, subscription)
+        .setResponseCode(201)
+        .setHeader("Location", getBaseUrl() + "/Subscription/1/_history/1");
+  }
+
+  private void addEntry(Bundle bundle, Resource resource, Bundle.SearchEntryMode mode) {
+    bundle
+        .addEntry()
+        .setFullUrl(
+            getBaseUrl() + "/" + resource.fhirType() + "/" + resource.getIdElement().getIdPart())
+        .setResource(resource)
+        .getSearch()
+        .setMode(mode);
+  }
+
+  private Practitioner findPractitionerByEmail(String email) {
+    for (var practitioner : practitioners.values()) {
+      for (var telecom : practitioner.getTelecom()) {
+        if (telecom.getSystem() == ContactPointSystem.EMAIL && email.equals(telecom.getValue())) {
+          return practitioner;
+        }
+      }
+    }
+    return null;
+  }
+
+  private String readBody(RecordedRequest request) {
+    var body = request.getBody();
+    if ("gzip".equals(request.getHeader("Content-Encoding"))) {
+      try (var source = Okio.buffer(new GzipSource(body))) {
+        return source.readUtf8();
+      } catch (IOException e) {
+        throw new IllegalStateException("failed to decompress request", e);
+      }
+    }
+    return body.readUtf8();
+  }
+
+  private MockResponse respondOrNotFound(RecordedRequest request, IBaseResource resource) {
+    if (resource == null) {
+      return new MockResponse().setResponseCode(404);
+    }
+    return respond(request, resource);
+  }
+
+  private MockResponse respond(RecordedRequest request, IBaseResource resource) {
+    var body = new Buffer().writeUtf8(parser.encodeResourceToString(resource));
+    var response =
+        new MockResponse().setResponseCode(200).setHeader("Content-Type", "application/fhir+json");
+
+    var acceptEncoding = request.getHeader("Accept-Encoding");
+    if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+      var compressed = new Buffer();
+      try (var gzipSink = Okio.buffer(new GzipSink(compressed))) {
+        gzipSink.writeAll(body);
+      } catch (IOException e) {
+        throw new IllegalStateException("failed to compress response", e);
+      }
+      body = compressed;
+      response.setHeader("Content-Encoding", "gzip");
+    }
+
+    response.setBody(body);
+    if (bytesPerSecond > 0) {
+      // throttle in chunks of 1/10 s worth of bandwidth
+      response.throttleBody(Math.max(bytesPerSecond / 10, 1), 100, TimeUnit.MILLISECONDS);
+    }
+    return response;
+  }
+
+  @Override
+  public void close() throws IOException {
+    server.shutdown();
+  }
+}
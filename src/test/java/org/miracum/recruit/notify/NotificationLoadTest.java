@@ -0,0 +1,250 @@
+package org.miracum.recruit.notify;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.icegreen.greenmail.configuration.GreenMailConfiguration;
+import com.icegreen.greenmail.util.GreenMail;
+import com.icegreen.greenmail.util.ServerSetupTest;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import org.hl7.fhir.r4.model.ListResource;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.ResearchStudy;
+import org.hl7.fhir.r4.model.StringType;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.miracum.recruit.notify.scheduler.NotifyMessageSchedulerService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+/**
+ * Replays bursts of screening list webhooks against the running application, backed by the
+ * in-process {@link FhirServerStub} and an embedded GreenMail SMTP sink, while the scheduled
+ * distribution fires every few seconds. Reports webhooks/s, mails/s, the p99 webhook latency and
+ * the FHIR calls per webhook. Run via {@code ./gradlew loadTest}, sized with the system properties
+ * {@code load.studies}, {@code load.subscribers}, {@code load.versions} and {@code
+ * load.concurrency}.
+ */
+@Tag("load")
+@ActiveProfiles("load")
+@SpringBootTest(webEnvironment = WebEnvironment.RANDOM_PORT)
+class NotificationLoadTest {
+  private static final Logger LOG = LoggerFactory.getLogger(NotificationLoadTest.class);
+
+  private static final int STUDIES = Integer.getInteger("load.studies", 20);
+  private static final int SUBSCRIBERS = Integer.getInteger("load.subscribers", 20);
+  private static final int VERSIONS = Integer.getInteger("load.versions", 5);
+  private static final int CONCURRENCY = Integer.getInteger("load.concurrency", 8);
+  private static final int SUBJECTS_PER_VERSION = 50;
+  // as configured in application-load.yaml
+  private static final String SCHEDULE = "loadTest";
+
+  private static final String STUDY_ACRONYM_SYSTEM =
+      "https://fhir.miracum.org/uc1/StructureDefinition/studyAcronym";
+  private static final String SCREENING_LIST_REFERENCE_SYSTEM =
+      "https://fhir.miracum.org/uc1/StructureDefinition/belongsToStudy";
+
+  private static FhirServerStub fhirServer;
+  private static GreenMail smtpServer;
+
+  @LocalServerPort private int port;
+
+  @Autowired private NotifyMessageSchedulerService schedulerService;
+
+  private final FhirContext fhirContext = FhirContext.forR4();
+
+  @DynamicPropertySource
+  static void registerStandIns(DynamicPropertyRegistry registry) throws IOException {
+    fhirServer = new FhirServerStub(500).start();
+    smtpServer =
+        new GreenMail(ServerSetupTest.SMTP.dynamicPort())
+            .withConfiguration(GreenMailConfiguration.aConfig().withDisabledAuthentication());
+    smtpServer.start();
+
+    // the remaining settings are in application-load.yaml
+    registry.add("fhir.url", fhirServer::getBaseUrl);
+    registry.add("spring.mail.port", () -> smtpServer.getSmtp().getPort());
+
+    // every study has the same subscribers, half of them notified immediately
+    for (var study = 0; study < STUDIES; study++) {
+      var trial = "notify.rules.trials[" + study + "]";
+      var acronym = studyAcronym(study);
+      registry.add(trial + ".acronym", () -> acronym);
+      for (var subscriber = 0; subscriber < SUBSCRIBERS; subscriber++) {
+        var subscription = trial + ".subscriptions[" + subscriber + "]";
+        var email = "subscriber-" + subscriber + "@example.com";
+        registry.add(subscription + ".email", () -> email);
+        if (subscriber % 2 == 1) {
+          registry.add(subscription + ".notify", () -> SCHEDULE);
+        }
+      }
+    }
+
+    seedStudiesAndLists();
+  }
+
+  @AfterAll
+  static void stopStandIns() throws IOException {
+    smtpServer.stop();
+    fhirServer.close();
+  }
+
+  @Test
+  void onListChange_withWebhookBursts_shouldReportThroughputAndLatency() throws Exception {
+    var httpClient = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(10)).build();
+    var executor = Executors.newFixedThreadPool(CONCURRENCY);
+    var inflight = new Semaphore(CONCURRENCY);
+    var latenciesNanos = new ConcurrentLinkedQueue<Long>();
+    var failures = new ConcurrentLinkedQueue<String>();
+    var fhirCallsBefore = fhirServer.getRequestCount();
+
+    var start = System.nanoTime();
+    try {
+      // each burst delivers the next version of every list concurrently
+      for (var version = 1; version <= VERSIONS; version++) {
+        var burst = new ArrayList<CompletableFuture<Void>>();
+        for (var study = 0; study < STUDIES; study++) {
+          var body = fhirContext.newJsonParser().encodeResourceToString(list(study, version));
+          var request =
+              HttpRequest.newBuilder(
+                      URI.create(
+                          "http://localhost:" + port + "/on-list-change/List/" + listId(study)))
+                  .header("Content-Type", "application/fhir+json")
+                  .PUT(HttpRequest.BodyPublishers.ofString(body))
+                  .build();
+
+          inflight.acquire();
+          burst.add(
+              CompletableFuture.runAsync(
+                  () -> {
+                    var requestStart = System.nanoTime();
+                    try {
+                      var response =
+                          httpClient.send(request, HttpResponse.BodyHandlers.discarding());
+                      if (response.statusCode() >= 300) {
+                        failures.add(request.uri() + ": " + response.statusCode());
+                      }
+                    } catch (IOException | InterruptedException e) {
+                      failures.add(request.uri() + ": " + e);
+                    } finally {
+                      latenciesNanos.add(System.nanoTime() - requestStart);
+                      inflight.release();
+                    }
+                  },
+                  executor));
+        }
+        CompletableFuture.allOf(burst.toArray(new CompletableFuture<?>[0])).join();
+      }
+    } finally {
+      executor.shutdown();
+    }
+    var webhookSeconds = (System.nanoTime() - start) / 1e9;
+    var fhirCallsForWebhooks = fhirServer.getRequestCount() - fhirCallsBefore;
+
+    // drain whatever the scheduled runs have not picked up yet
+    schedulerService.executeMessageDistributionJob(SCHEDULE);
+    var totalSeconds = (System.nanoTime() - start) / 1e9;
+
+    var webhooks = latenciesNanos.size();
+    var mails = smtpServer.getReceivedMessages().length;
+    var sortedLatencies = new ArrayList<>(latenciesNanos);
+    Collections.sort(sortedLatencies);
+
+    var report =
+        String.format(
+            "%d studies, %d subscribers, %d list versions, concurrency %d:%n"
+                + "  %d webhooks in %.2f s: %.1f webhooks/s, p50 %.1f ms, p99 %.1f ms%n"
+                + "  %d mails in %.2f s: %.1f mails/s%n"
+                + "  %.1f FHIR calls per webhook (including scheduled runs), by interaction: %s",
+            STUDIES,
+            SUBSCRIBERS,
+            VERSIONS,
+            CONCURRENCY,
+            webhooks,
+            webhookSeconds,
+            webhooks / webhookSeconds,
+            percentile(sortedLatencies, 0.50) / 1e6,
+            percentile(sortedLatencies, 0.99) / 1e6,
+            mails,
+            totalSeconds,
+            mails / totalSeconds,
+            (double) fhirCallsForWebhooks / webhooks,
+            fhirServer.getRequestCounts());
+    LOG.info("{}", report);
+
+    assertThat(failures).as(report).isEmpty();
+    assertThat(webhooks).as(report).isEqualTo(STUDIES * VERSIONS);
+    // every version notifies the immediate subscribers of the study
+    assertThat(mails).as(report).isGreaterThanOrEqualTo(STUDIES * VERSIONS * (SUBSCRIBERS / 2));
+  }
+
+  private static void seedStudiesAndLists() {
+    for (var study = 0; study < STUDIES; study++) {
+      var researchStudy = new ResearchStudy().setTitle(studyAcronym(study));
+      researchStudy.setId(studyId(study));
+      researchStudy.addExtension(STUDY_ACRONYM_SYSTEM, new StringType(studyAcronym(study)));
+      fhirServer.addResearchStudy(researchStudy);
+
+      for (var version = 1; version <= VERSIONS; version++) {
+        fhirServer.addListVersion(list(study, version));
+      }
+    }
+  }
+
+  /** Version n of the screening list of a study, with n times the subjects of the first one. */
+  private static ListResource list(int study, int version) {
+    var list = new ListResource();
+    list.setId("List/" + listId(study) + "/_history/" + version);
+    list.getMeta().setVersionId(Integer.toString(version)).setLastUpdated(new Date());
+    list.setStatus(ListResource.ListStatus.CURRENT);
+    list.setMode(ListResource.ListMode.WORKING);
+    // without a display the study is looked up on every webhook, like for most real lists
+    list.addExtension(
+        SCREENING_LIST_REFERENCE_SYSTEM, new Reference("ResearchStudy/" + studyId(study)));
+    for (var subject = 0; subject < version * SUBJECTS_PER_VERSION; subject++) {
+      list.addEntry().setItem(new Reference("ResearchSubject/rs-" + study + "-" + subject));
+    }
+    return list;
+  }
+
+  private static String listId(int study) {
+    return "list-" + study;
+  }
+
+  private static String studyId(int study) {
+    return "study-" + study;
+  }
+
+  private static String studyAcronym(int study) {
+    return "STUDY-" + study;
+  }
+
+  private static double percentile(List<Long> sortedValues, double percentile) {
+    if (sortedValues.isEmpty()) {
+      return 0;
+    }
+    var index = (int) Math.ceil(percentile * sortedValues.size()) - 1;
+    return sortedValues.get(Math.max(index, 0));
+  }
+}
@@ -0,0 +1,117 @@
+package org.miracum.recruit.notify;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.miracum.recruit.notify.journal.JournalConfig;
+import org.miracum.recruit.notify.journal.WebhookJournal;
+import org.miracum.recruit.notify.journal.WebhookJournal.Entry;
+import org.miracum.recruit.notify.metrics.NotifyMetrics;
+
+class WebhookJournalReplayerTest {
+  @TempDir Path directory;
+
+  private NotificationController notificationController;
+  private JournalConfig config;
+  private WebhookJournalReplayer sut;
+
+  @BeforeEach
+  void setUp() {
+    notificationController = mock(NotificationController.class);
+    config = new JournalConfig();
+    config.setEnabled(true);
+    config.setDirectory(directory.toString());
+    config.setReplayBackoff(Duration.ofMillis(10));
+    config.setMaxReplayBackoff(Duration.ofMillis(20));
+  }
+
+  @AfterEach
+  void tearDown() {
+    if (sut != null) {
+      sut.destroy();
+    }
+  }
+
+  @Test
+  void replay_withFailingReplay_shouldKeepTheEntriesForTheNextStart() throws Exception {
+    var journal = openJournal();
+    journal.append("list-1", "{\"resourceType\":\"List\"}");
+    journal.append("list-2", "{\"resourceType\":\"List\"}");
+    journal.destroy();
+    doThrow(new IllegalStateException("FHIR server unavailable"))
+        .when(notificationController)
+        .processListChange(anyString(), anyString(), eq(false));
+
+    var reopened = openJournal();
+    sut = new WebhookJournalReplayer(reopened, notificationController, config);
+    sut.replay();
+    sut.destroy();
+    reopened.destroy();
+
+    assertThat(openJournal().getUnfinished())
+        .extracting(Entry::listId)
+        .containsExactly("list-1", "list-2");
+  }
+
+  @Test
+  void replay_withReplayFailingOnce_shouldRetryAndCompleteItInOrder() {
+    // long enough for the first round to be verified before the retry
+    config.setReplayBackoff(Duration.ofMillis(500));
+    config.setMaxReplayBackoff(Duration.ofSeconds(1));
+    var journal = mock(WebhookJournal.class);
+    when(journal.getUnfinished())
+        .thenReturn(
+            List.of(
+                new Entry(1, "list-1", "v1"),
+                new Entry(2, "list-1", "v2"),
+                new Entry(3, "list-2", "v1")));
+    doThrow(new IllegalStateException("FHIR server unavailable"))
+        .doNothing()
+        .when(notificationController)
+        .processListChange("list-1", "v1", false);
+    sut = new WebhookJournalReplayer(journal, notificationController, config);
+
+    sut.replay();
+
+    verify(journal).complete(3);
+    verify(journal, never()).complete(1);
+    verify(notificationController, never()).processListChange("list-1", "v2", false);
+
+    verify(journal, timeout(5_000)).complete(2);
+    var order = inOrder(journal);
+    order.verify(journal).complete(1);
+    order.verify(journal).complete(2);
+  }
+
+  @Test
+  void replay_withoutUnfinishedWebhooks_shouldNotHandleAnything() throws Exception {
+    sut = new WebhookJournalReplayer(openJournal(), notificationController, config);
+
+    sut.replay();
+
+    verify(notificationController, never()).processListChange(any(), any(), eq(false));
+  }
+
+  private WebhookJournal openJournal() throws Exception {
+    var journal = new WebhookJournal(config, new NotifyMetrics(new SimpleMeterRegistry()));
+    journal.afterPropertiesSet();
+    return journal;
+  }
+}
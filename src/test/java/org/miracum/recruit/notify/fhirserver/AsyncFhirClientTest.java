@@ -0,0 +1,145 @@
+package org.miracum.recruit.notify.fhirserver;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.miracum.recruit.notify.config.FhirClientConfig;
+import org.slf4j.MDC;
+
+class AsyncFhirClientTest {
+  private final CountDownLatch release = new CountDownLatch(1);
+  private AsyncFhirClient sut;
+
+  @AfterEach
+  void tearDown() {
+    release.countDown();
+    MDC.clear();
+    if (sut != null) {
+      sut.destroy();
+    }
+  }
+
+  @Test
+  void await_withFailedInteraction_shouldRethrowItsException() {
+    sut = createSut(2, 4);
+    var notFound = new ResourceNotFoundException("List/1");
+
+    var future =
+        sut.supply(
+            () -> {
+              throw notFound;
+            });
+
+    assertThatThrownBy(() -> AsyncFhirClient.await(future)).isSameAs(notFound);
+  }
+
+  @Test
+  void await_withInteractionTakingLongerThanTheTimeout_shouldThrowConnectionException() {
+    sut = createSut(2, 4);
+
+    var future = sut.supply(() -> block(release), Duration.ofMillis(50));
+
+    assertThatThrownBy(() -> AsyncFhirClient.await(future))
+        .isInstanceOf(FhirClientConnectionException.class)
+        .hasCauseInstanceOf(TimeoutException.class);
+  }
+
+  @Test
+  void supply_afterTimeout_shouldNotCancelTheRunningInteraction() throws Exception {
+    sut = createSut(2, 4);
+    var finished = new CountDownLatch(1);
+
+    var future =
+        sut.supply(
+            () -> {
+              // throws if the interaction is interrupted, so it would never finish
+              block(release);
+              finished.countDown();
+              return "done";
+            },
+            Duration.ofMillis(50));
+    assertThatThrownBy(() -> AsyncFhirClient.await(future))
+        .isInstanceOf(FhirClientConnectionException.class);
+    release.countDown();
+
+    assertThat(finished.await(5, TimeUnit.SECONDS)).isTrue();
+  }
+
+  @Test
+  void supply_withFullPoolAndQueue_shouldRunTheInteractionOnTheCaller() {
+    sut = createSut(1, 1);
+    var caller = Thread.currentThread();
+
+    // one interaction occupies the only thread, the next one the only queue slot
+    sut.supply(() -> block(release));
+    sut.supply(() -> block(release));
+    var future = sut.supply(Thread::currentThread);
+
+    assertThat(future).isCompletedWithValue(caller);
+  }
+
+  @Test
+  void supply_shouldPropagateTheLoggingContextOfTheCaller() {
+    sut = createSut(1, 4);
+
+    MDC.put("listId", "list-1");
+    var withContext = AsyncFhirClient.await(sut.supply(() -> MDC.get("listId")));
+    MDC.clear();
+    // the same pool thread runs the next interaction without the previous context
+    var withoutContext = AsyncFhirClient.await(sut.supply(() -> MDC.get("listId")));
+
+    assertThat(withContext).isEqualTo("list-1");
+    assertThat(withoutContext).isNull();
+  }
+
+  @Test
+  void map_shouldReturnTheResultsInInputOrder() {
+    sut = createSut(4, 4);
+
+    var results =
+        AsyncFhirClient.await(
+            sut.map(
+                List.of(30, 20, 10, 0),
+                delay -> {
+                  sleep(delay);
+                  return "m" + delay;
+                }));
+
+    assertThat(results).containsExactly("m30", "m20", "m10", "m0");
+  }
+
+  private static AsyncFhirClient createSut(int poolSize, int queueCapacity) {
+    var config = new FhirClientConfig();
+    config.getAsync().setPoolSize(poolSize);
+    config.getAsync().setQueueCapacity(queueCapacity);
+    return new AsyncFhirClient(config);
+  }
+
+  private static String block(CountDownLatch latch) {
+    try {
+      latch.await(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("interaction was interrupted", e);
+    }
+    return "released";
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,114 @@
+package org.miracum.recruit.notify.fhirserver;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.ArrayList;
+import java.util.List;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CommunicationRequest;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.miracum.recruit.notify.FhirServerProvider;
+import org.miracum.recruit.notify.config.FhirClientConfig;
+import org.miracum.recruit.notify.mailconfig.CreationConfig;
+import org.miracum.recruit.notify.metrics.NotifyMetrics;
+
+class MessageTransmitterTest {
+  private FhirServerProvider fhirServer;
+  private AsyncFhirClient asyncFhirClient;
+  private MessageTransmitter sut;
+
+  @BeforeEach
+  void setUp() {
+    fhirServer = mock(FhirServerProvider.class);
+    asyncFhirClient = new AsyncFhirClient(new FhirClientConfig());
+    var creationConfig = new CreationConfig();
+    creationConfig.setTransactionChunkSize(4);
+    var metrics = new NotifyMetrics(new SimpleMeterRegistry());
+    sut = new MessageTransmitter(fhirServer, metrics, asyncFhirClient, creationConfig);
+  }
+
+  @AfterEach
+  void tearDown() {
+    asyncFhirClient.destroy();
+  }
+
+  @Test
+  void transmit_withRejectedMessage_shouldIsolateItAndCreateTheOthers() {
+    when(fhirServer.executeTransaction(any()))
+        .thenAnswer(
+            invocation -> {
+              var transaction = invocation.getArgument(0, Bundle.class);
+              if (transaction.getEntry().stream().anyMatch(entry -> hasIdentifier(entry, "m2"))) {
+                throw new InvalidRequestException("invalid CommunicationRequest");
+              }
+              return respond(transaction);
+            });
+
+    var result = sut.transmit(createMessages(10));
+
+    assertThat(result.created()).hasSize(9).allMatch(CommunicationRequest::hasId);
+    assertThat(result.rejected())
+        .singleElement()
+        .matches(message -> message.getIdentifierFirstRep().getValue().equals("m2"));
+    assertThat(result.failed()).isEmpty();
+  }
+
+  @Test
+  void transmit_withUnavailableServer_shouldFailTheChunkWithoutSplittingIt() {
+    when(fhirServer.executeTransaction(any()))
+        .thenAnswer(
+            invocation -> {
+              var transaction = invocation.getArgument(0, Bundle.class);
+              if (transaction.getEntry().stream().anyMatch(entry -> hasIdentifier(entry, "m0"))) {
+                throw new FhirClientConnectionException("connection refused");
+              }
+              return respond(transaction);
+            });
+
+    var result = sut.transmit(createMessages(10));
+
+    assertThat(result.created()).hasSize(6);
+    assertThat(result.failed()).hasSize(4);
+    assertThat(result.rejected()).isEmpty();
+    verify(fhirServer, times(3)).executeTransaction(any());
+  }
+
+  private static List<CommunicationRequest> createMessages(int count) {
+    var messages = new ArrayList<CommunicationRequest>();
+    for (var i = 0; i < count; i++) {
+      var message = new CommunicationRequest();
+      message.addIdentifier().setSystem("urn:test").setValue("m" + i);
+      messages.add(message);
+    }
+    return messages;
+  }
+
+  private static boolean hasIdentifier(Bundle.BundleEntryComponent entry, String value) {
+    var message = (CommunicationRequest) entry.getResource();
+    return message.getIdentifierFirstRep().getValue().equals(value);
+  }
+
+  private static Bundle respond(Bundle transaction) {
+    var response = new Bundle().setType(Bundle.BundleType.TRANSACTIONRESPONSE);
+    for (var entry : transaction.getEntry()) {
+      var message = (CommunicationRequest) entry.getResource();
+      response
+          .addEntry()
+          .getResponse()
+          .setStatus("201 Created")
+          .setLocation(
+              "CommunicationRequest/" + message.getIdentifierFirstRep().getValue() + "/_history/1");
+    }
+    return response;
+  }
+}
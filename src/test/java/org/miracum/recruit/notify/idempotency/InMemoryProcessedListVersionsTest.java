@@ -0,0 +1,33 @@
+package org.miracum.recruit.notify.idempotency;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.jupiter.api.Test;
+
+class InMemoryProcessedListVersionsTest {
+
+  @Test
+  void contains_afterAdd_shouldOnlyContainTheSameVersion() {
+    var sut = new InMemoryProcessedListVersions(new IdempotencyConfig());
+
+    sut.add("list-1", "2");
+
+    assertThat(sut.contains("list-1", "2")).isTrue();
+    assertThat(sut.contains("list-1", "3")).isFalse();
+    assertThat(sut.contains("list-2", "2")).isFalse();
+  }
+
+  @Test
+  void add_beyondMaxSize_shouldEvictVersions() {
+    var config = new IdempotencyConfig();
+    config.setMaxSize(10);
+    var sut = new InMemoryProcessedListVersions(config);
+
+    for (var version = 0; version < 100; version++) {
+      sut.add("list-1", Integer.toString(version));
+    }
+
+    assertThat(sut.contains("list-1", "99")).isTrue();
+    assertThat(sut.contains("list-1", "0")).isFalse();
+  }
+}
@@ -0,0 +1,86 @@
+package org.miracum.recruit.notify.ingestion;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.hl7.fhir.r4.model.ListResource;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.miracum.recruit.notify.FhirServerProvider;
+import org.miracum.recruit.notify.NotificationController;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.ImportAutoConfiguration;
+import org.springframework.boot.autoconfigure.jackson.JacksonAutoConfiguration;
+import org.springframework.boot.autoconfigure.kafka.KafkaAutoConfiguration;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.test.context.EmbeddedKafka;
+import org.springframework.test.annotation.DirtiesContext;
+
+@SpringBootTest(
+    classes = KafkaListChangeConsumer.class,
+    properties = {
+      "notify.ingestion.mode=kafka",
+      "notify.ingestion.kafka.topic=screening-list-changes",
+      "notify.ingestion.kafka.group-id=notify-test",
+      "notify.ingestion.kafka.concurrency=2",
+      "spring.kafka.bootstrap-servers=${spring.embedded.kafka.brokers}",
+      "spring.kafka.consumer.auto-offset-reset=earliest",
+      "spring.kafka.listener.ack-mode=manual",
+    })
+@ImportAutoConfiguration({KafkaAutoConfiguration.class, JacksonAutoConfiguration.class})
+@EmbeddedKafka(partitions = 2, topics = "screening-list-changes")
+@DirtiesContext
+class KafkaListChangeConsumerTest {
+
+  @Autowired KafkaTemplate<String, String> kafkaTemplate;
+
+  @MockBean FhirServerProvider fhirServer;
+  @MockBean NotificationController notificationController;
+
+  @BeforeEach
+  void setUp() {
+    when(fhirServer.getScreeningList(anyString(), any()))
+        .thenAnswer(
+            invocation ->
+                new ListResource()
+                    .setId(invocation.getArgument(0, String.class))
+                    .setTitle(invocation.getArgument(1, String.class)));
+  }
+
+  @Test
+  void onListChanges_withPublishedEvents_shouldHandleEachListOnce() {
+    kafkaTemplate.send("screening-list-changes", "a", "{\"listId\":\"a\",\"versionId\":\"1\"}");
+    kafkaTemplate.send("screening-list-changes", "b", "{\"listId\":\"b\"}");
+    kafkaTemplate.send("screening-list-changes", "c", "not json");
+    kafkaTemplate.flush();
+
+    verify(fhirServer, timeout(30_000)).getScreeningList("a", "1");
+    verify(fhirServer, timeout(30_000)).getScreeningList(eq("b"), isNull());
+    verify(notificationController, timeout(30_000).times(2)).processFetchedList(any(), isNull());
+    verify(fhirServer, never()).getScreeningList(eq("c"), any());
+  }
+
+  @Test
+  void onListChanges_withFailingList_shouldRedeliverItBeforeCommitting() {
+    when(fhirServer.getScreeningList("d", "3"))
+        .thenThrow(new IllegalStateException("FHIR server unavailable"))
+        .thenReturn(new ListResource().setTitle("d"));
+
+    kafkaTemplate.send("screening-list-changes", "d", "{\"listId\":\"d\",\"versionId\":\"3\"}");
+    kafkaTemplate.flush();
+
+    verify(fhirServer, timeout(30_000).times(2)).getScreeningList("d", "3");
+    verify(notificationController, timeout(30_000).times(1))
+        .processFetchedList(argThat(list -> "d".equals(list.getTitle())), isNull());
+  }
+}
@@ -0,0 +1,181 @@
+package org.miracum.recruit.notify.ingestion;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Predicate;
+import org.hl7.fhir.r4.model.ListResource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.miracum.recruit.notify.FhirServerProvider;
+import org.miracum.recruit.notify.NotificationController;
+import org.miracum.recruit.notify.idempotency.IdempotencyConfig;
+import org.miracum.recruit.notify.metrics.NotifyMetrics;
+
+class ListPollerTest {
+  private static final String CRITERIA = "List?code=screening-recommendations";
+  private static final Instant WATERMARK = Instant.parse("2022-08-01T10:00:00Z");
+
+  private FhirServerProvider fhirServer;
+  private NotificationController notificationController;
+  private final RecordingWatermark watermark = new RecordingWatermark();
+  private final List<ListResource> changedLists = new ArrayList<>();
+  private IngestionConfig ingestionConfig;
+  private ListPoller sut;
+
+  @BeforeEach
+  void setUp() {
+    fhirServer = mock(FhirServerProvider.class);
+    doAnswer(
+            invocation -> {
+              Predicate<ListResource> visitor = invocation.getArgument(3);
+              for (var list : changedLists) {
+                if (!visitor.test(list)) {
+                  break;
+                }
+              }
+              return null;
+            })
+        .when(fhirServer)
+        .visitListsUpdatedAfter(any(), any(), anyInt(), any());
+
+    notificationController = mock(NotificationController.class);
+    when(notificationController.processFetchedList(any(), any())).thenReturn("sent");
+
+    ingestionConfig = new IngestionConfig();
+    ingestionConfig.getPolling().setWatermarkMargin(Duration.ofSeconds(30));
+  }
+
+  @AfterEach
+  void tearDown() {
+    sut.destroy();
+  }
+
+  private ListPoller createSut() {
+    sut =
+        new ListPoller(
+            fhirServer,
+            notificationController,
+            watermark,
+            ingestionConfig,
+            new NotifyMetrics(new SimpleMeterRegistry()),
+            new IdempotencyConfig(),
+            CRITERIA);
+    return sut;
+  }
+
+  @Test
+  void poll_withChangedLists_shouldSearchWithMarginAndAdvanceTheWatermark() {
+    changedLists.add(createList("a", "1", 1));
+    changedLists.add(createList("b", "1", 2));
+    changedLists.add(createList("c", "1", 3));
+
+    createSut().poll();
+
+    var searchedFrom = WATERMARK.minusSeconds(30);
+    verify(fhirServer).visitListsUpdatedAfter(eq(CRITERIA), eq(searchedFrom), anyInt(), any());
+    verify(notificationController, times(3)).processFetchedList(any(), eq(searchedFrom));
+    assertThat(watermark.get(CRITERIA)).contains(WATERMARK.plusSeconds(3));
+  }
+
+  @Test
+  void poll_withFailingList_shouldKeepTheWatermarkBeforeIt() {
+    changedLists.add(createList("a", "1", 1));
+    changedLists.add(createList("b", "1", 2));
+    changedLists.add(createList("c", "1", 3));
+    doThrow(new IllegalStateException("FHIR server unavailable"))
+        .when(notificationController)
+        .processFetchedList(argThat(list -> list.getIdElement().getIdPart().equals("b")), any());
+
+    createSut().poll();
+
+    // the lists after the failed one are still handled, but fetched again by the next poll
+    verify(notificationController, times(3)).processFetchedList(any(), any());
+    assertThat(watermark.get(CRITERIA)).contains(WATERMARK.plusSeconds(2).minusMillis(1));
+  }
+
+  @Test
+  void poll_withMorePagesOfLists_shouldStoreTheWatermarkAfterEveryPage() {
+    ingestionConfig.getPolling().setPageSize(2);
+    for (var i = 1; i <= 5; i++) {
+      changedLists.add(createList("list-" + i, "1", i));
+    }
+
+    createSut().poll();
+
+    assertThat(watermark.stored)
+        .containsExactly(
+            WATERMARK.plusSeconds(2), WATERMARK.plusSeconds(4), WATERMARK.plusSeconds(5));
+  }
+
+  @Test
+  void poll_withNonNumericVersions_shouldHandleEachVersionOnce() {
+    changedLists.add(createList("a", "v1", 1));
+    changedLists.add(createList("a", "v1", 1));
+    changedLists.add(createList("a", "v2", 2));
+
+    createSut().poll();
+
+    verify(notificationController, times(2)).processFetchedList(any(), any());
+  }
+
+  @Test
+  void poll_withoutRememberedVersions_shouldSearchFromTheWatermark() {
+    var idempotencyConfig = new IdempotencyConfig();
+    idempotencyConfig.setEnabled(false);
+    sut =
+        new ListPoller(
+            fhirServer,
+            notificationController,
+            watermark,
+            ingestionConfig,
+            new NotifyMetrics(new SimpleMeterRegistry()),
+            idempotencyConfig,
+            CRITERIA);
+
+    sut.poll();
+
+    verify(fhirServer).visitListsUpdatedAfter(eq(CRITERIA), eq(WATERMARK), anyInt(), any());
+  }
+
+  private static ListResource createList(String id, String version, int secondsAfterWatermark) {
+    var list = new ListResource();
+    list.setId("List/" + id + "/_history/" + version);
+    list.getMeta().setVersionId(version);
+    list.getMeta().setLastUpdated(Date.from(WATERMARK.plusSeconds(secondsAfterWatermark)));
+    return list;
+  }
+
+  private static class RecordingWatermark implements PollingWatermark {
+    private final List<Instant> stored = new ArrayList<>();
+    private Instant current = WATERMARK;
+
+    @Override
+    public Optional<Instant> get(String criteria) {
+      return Optional.of(current);
+    }
+
+    @Override
+    public void set(String criteria, Instant watermark) {
+      stored.add(watermark);
+      current = watermark;
+    }
+  }
+}
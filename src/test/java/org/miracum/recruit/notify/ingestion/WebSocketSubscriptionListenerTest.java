@@ -0,0 +1,99 @@
+package org.miracum.recruit.notify.ingestion;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+import java.time.Duration;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class WebSocketSubscriptionListenerTest {
+  private MockWebServer server;
+  private ListPoller listPoller;
+  private WebSocketSubscriptionListener sut;
+  private final CopyOnWriteArrayList<String> received = new CopyOnWriteArrayList<>();
+
+  @BeforeEach
+  void setUp() throws Exception {
+    server = new MockWebServer();
+    server.start();
+
+    var config = new IngestionConfig();
+    config.setMode(IngestionConfig.Mode.WEBSOCKET);
+    config.getWebsocket().setUrl(server.url("/websocket").toString());
+    config.getWebsocket().setInitialReconnectBackoff(Duration.ofMillis(10));
+    config.getWebsocket().setPingInterval(Duration.ZERO);
+
+    listPoller = mock(ListPoller.class);
+    sut = new WebSocketSubscriptionListener(config, listPoller);
+  }
+
+  @AfterEach
+  void tearDown() throws Exception {
+    sut.destroy();
+    server.shutdown();
+  }
+
+  @Test
+  void connect_withPingAfterBind_shouldSearchForChangedLists() throws Exception {
+    server.enqueue(new MockResponse().withWebSocketUpgrade(new FhirServerSocket(false)));
+
+    sut.connect("123");
+
+    // the catch-up after binding and the ping may be coalesced into a single search
+    verify(listPoller, timeout(5000).atLeast(1)).poll();
+    assertThat(server.takeRequest(5, TimeUnit.SECONDS)).isNotNull();
+    awaitReceived(1);
+    assertThat(received).containsExactly("bind 123");
+  }
+
+  @Test
+  void connect_withClosedConnection_shouldReconnectAndBindAgain() throws Exception {
+    server.enqueue(new MockResponse().withWebSocketUpgrade(new FhirServerSocket(true)));
+    server.enqueue(new MockResponse().withWebSocketUpgrade(new FhirServerSocket(false)));
+
+    sut.connect("123");
+
+    awaitReceived(2);
+    assertThat(received).containsExactly("bind 123", "bind 123");
+    assertThat(server.getRequestCount()).isEqualTo(2);
+    verify(listPoller, timeout(5000).atLeast(2)).poll();
+  }
+
+  private void awaitReceived(int count) throws InterruptedException {
+    var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (received.size() < count && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+  }
+
+  /** Answers like the websocket endpoint of HAPI FHIR, optionally closing after the ping. */
+  private class FhirServerSocket extends WebSocketListener {
+    private final boolean closeAfterPing;
+
+    FhirServerSocket(boolean closeAfterPing) {
+      this.closeAfterPing = closeAfterPing;
+    }
+
+    @Override
+    public void onMessage(WebSocket webSocket, String text) {
+      received.add(text);
+      var subscriptionId = text.substring("bind ".length());
+      webSocket.send("bound " + subscriptionId);
+      webSocket.send("ping " + subscriptionId);
+      if (closeAfterPing) {
+        webSocket.close(1001, "going away");
+      }
+    }
+  }
+}
@@ -0,0 +1,113 @@
+package org.miracum.recruit.notify.jfr;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.boot.actuate.endpoint.web.WebEndpointResponse;
+
+class FlightRecorderEndpointTest {
+  @TempDir Path directory;
+
+  private final FlightRecorderEndpoint sut = new FlightRecorderEndpoint();
+
+  @AfterEach
+  void tearDown() {
+    sut.stop();
+  }
+
+  @Test
+  void status_shouldFollowTheRecording() throws Exception {
+    assertThat(sut.status()).containsEntry("state", "NONE");
+
+    sut.start(null, null, null);
+    assertThat(sut.status()).containsEntry("state", "RUNNING").containsEntry("name", "notify");
+
+    sut.stop();
+    assertThat(sut.status()).containsEntry("state", "STOPPED");
+  }
+
+  @Test
+  void dump_withNotifyEvents_shouldStreamThemAndDeleteTheFile() throws Exception {
+    sut.start(null, null, null);
+    FhirOperationEvent.record(
+        "getMessagesByStatus", "search", "CommunicationRequest", () -> List.of("m1", "m2"));
+    var webhook = new ListWebhookEvent();
+    webhook.begin();
+    webhook.listId = "list-1";
+    webhook.outcome = "success";
+    webhook.commit();
+    sut.stop();
+
+    var response = sut.dump(FlightRecorderEndpoint.DUMP_FILE_NAME);
+    var dumpFile = response.getBody().getFile().toPath();
+    var copy = directory.resolve("copy.jfr");
+    try (var input = response.getBody().getInputStream()) {
+      Files.copy(input, copy);
+    }
+
+    assertThat(dumpFile).doesNotExist();
+    var events = notifyEvents(copy);
+    assertThat(events)
+        .filteredOn(event -> event.getEventType().getName().endsWith("FhirOperation"))
+        .singleElement()
+        .satisfies(
+            event -> {
+              assertThat(event.getString("operation")).isEqualTo("getMessagesByStatus");
+              assertThat(event.getInt("resultCount")).isEqualTo(2);
+              assertThat(event.getBoolean("succeeded")).isTrue();
+            });
+    assertThat(events)
+        .filteredOn(event -> event.getEventType().getName().endsWith("ListWebhook"))
+        .singleElement()
+        .satisfies(event -> assertThat(event.getString("listId")).isEqualTo("list-1"));
+  }
+
+  @Test
+  void dump_withFailedFhirOperation_shouldRecordItAsFailed() throws Exception {
+    sut.start(null, null, null);
+    assertThatThrownBy(
+            () ->
+                FhirOperationEvent.record(
+                    "getScreeningList",
+                    "read",
+                    "List",
+                    () -> {
+                      throw new IllegalStateException("FHIR server unavailable");
+                    }))
+        .isInstanceOf(IllegalStateException.class);
+    sut.stop();
+
+    var copy = directory.resolve("copy.jfr");
+    try (var input = sut.dump(FlightRecorderEndpoint.DUMP_FILE_NAME).getBody().getInputStream()) {
+      Files.copy(input, copy);
+    }
+
+    assertThat(notifyEvents(copy))
+        .singleElement()
+        .satisfies(event -> assertThat(event.getBoolean("succeeded")).isFalse());
+  }
+
+  @Test
+  void dump_withoutRecordingOrWithUnknownFile_shouldBeNotFound() throws Exception {
+    assertThat(sut.dump(FlightRecorderEndpoint.DUMP_FILE_NAME).getStatus())
+        .isEqualTo(WebEndpointResponse.STATUS_NOT_FOUND);
+
+    sut.start(null, null, null);
+
+    assertThat(sut.dump("other.jfr").getStatus()).isEqualTo(WebEndpointResponse.STATUS_NOT_FOUND);
+  }
+
+  private static List<RecordedEvent> notifyEvents(Path file) throws Exception {
+    return RecordingFile.readAllEvents(file).stream()
+        .filter(event -> event.getEventType().getName().startsWith("org.miracum.recruit.notify"))
+        .toList();
+  }
+}
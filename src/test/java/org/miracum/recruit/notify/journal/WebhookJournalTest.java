@@ -0,0 +1,82 @@
+package org.miracum.recruit.notify.journal;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.miracum.recruit.notify.metrics.NotifyMetrics;
+import org.springframework.util.unit.DataSize;
+
+class WebhookJournalTest {
+  @TempDir Path directory;
+
+  private WebhookJournal openJournal(DataSize segmentSize) throws Exception {
+    var config = new JournalConfig();
+    config.setEnabled(true);
+    config.setDirectory(directory.toString());
+    config.setSegmentSize(segmentSize);
+    var journal = new WebhookJournal(config, new NotifyMetrics(new SimpleMeterRegistry()));
+    journal.afterPropertiesSet();
+    return journal;
+  }
+
+  @Test
+  void getUnfinished_afterRestart_shouldReturnOnlyWebhooksNotCompleted() throws Exception {
+    var journal = openJournal(DataSize.ofMegabytes(1));
+    var first = journal.append("list-1", "{\"resourceType\":\"List\"}");
+    journal.append("list-2", "{\"resourceType\":\"List\",\"id\":\"list-2\"}");
+    journal.complete(first);
+    journal.destroy();
+
+    var reopened = openJournal(DataSize.ofMegabytes(1));
+
+    assertThat(reopened.getUnfinished())
+        .singleElement()
+        .satisfies(
+            entry -> {
+              assertThat(entry.listId()).isEqualTo("list-2");
+              assertThat(entry.body()).isEqualTo("{\"resourceType\":\"List\",\"id\":\"list-2\"}");
+            });
+    reopened.destroy();
+  }
+
+  @Test
+  void getUnfinished_withTornTail_shouldIgnoreTheIncompleteRecord() throws Exception {
+    var journal = openJournal(DataSize.ofMegabytes(1));
+    journal.append("list-1", "{}");
+    journal.destroy();
+    try (var files = Files.list(directory)) {
+      var segment = files.findFirst().orElseThrow();
+      Files.write(segment, new byte[] {0, 0, 1, 0, 42}, StandardOpenOption.APPEND);
+    }
+
+    var reopened = openJournal(DataSize.ofMegabytes(1));
+
+    assertThat(reopened.getUnfinished()).hasSize(1);
+    reopened.destroy();
+  }
+
+  @Test
+  void complete_withAllWebhooksOfSegmentsCompleted_shouldDeleteThem() throws Exception {
+    var journal = openJournal(DataSize.ofBytes(256));
+    var executor = Executors.newFixedThreadPool(8);
+    for (var i = 0; i < 200; i++) {
+      var listId = "list-" + i;
+      executor.submit(() -> journal.complete(journal.append(listId, "x".repeat(64))));
+    }
+    executor.shutdown();
+    assertThat(executor.awaitTermination(30, TimeUnit.SECONDS)).isTrue();
+
+    try (var files = Files.list(directory)) {
+      // only the active segment is left
+      assertThat(files.count()).isEqualTo(1);
+    }
+    journal.destroy();
+  }
+}
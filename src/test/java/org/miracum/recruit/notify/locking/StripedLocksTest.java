@@ -0,0 +1,79 @@
+package org.miracum.recruit.notify.locking;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+class StripedLocksTest {
+
+  @Test
+  void withListLock_withSameListConcurrently_shouldRunOneAtATime() throws Exception {
+    var meterRegistry = new SimpleMeterRegistry();
+    var sut = new StripedLocks(16, meterRegistry);
+    var running = new AtomicInteger();
+    var maxRunning = new AtomicInteger();
+    var executor = Executors.newFixedThreadPool(4);
+
+    for (var i = 0; i < 20; i++) {
+      executor.submit(
+          () ->
+              sut.withListLock(
+                  "list-1",
+                  () -> {
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    Thread.sleep(5);
+                    running.decrementAndGet();
+                    return null;
+                  }));
+    }
+    executor.shutdown();
+    assertThat(executor.awaitTermination(10, TimeUnit.SECONDS)).isTrue();
+
+    assertThat(maxRunning.get()).isEqualTo(1);
+    var contended =
+        meterRegistry
+            .get("notify.lock.wait")
+            .tag("lock", StripedLocks.LIST_LOCK)
+            .tag("contended", "true")
+            .timer();
+    assertThat(contended.count()).isPositive();
+  }
+
+  @Test
+  void withRecipientLocks_withDifferentRecipients_shouldNotBlockEachOther() throws Exception {
+    // with this many stripes the keys below map to distinct locks
+    var sut = new StripedLocks(1024, new SimpleMeterRegistry());
+    var insideFirst = new CountDownLatch(1);
+    var secondDone = new CountDownLatch(1);
+    var executor = Executors.newSingleThreadExecutor();
+
+    var first =
+        executor.submit(
+            () ->
+                sut.withRecipientLocks(
+                    "STUDY",
+                    List.of("a"),
+                    () -> {
+                      insideFirst.countDown();
+                      return secondDone.await(5, TimeUnit.SECONDS);
+                    }));
+
+    assertThat(insideFirst.await(5, TimeUnit.SECONDS)).isTrue();
+    sut.withRecipientLocks(
+        "OTHER-STUDY",
+        List.of("b", "c", "b"),
+        () -> {
+          secondDone.countDown();
+          return null;
+        });
+    executor.shutdown();
+
+    assertThat(first.get(5, TimeUnit.SECONDS)).isTrue();
+  }
+}
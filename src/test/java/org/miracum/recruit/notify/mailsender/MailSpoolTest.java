@@ -0,0 +1,181 @@
+package org.miracum.recruit.notify.mailsender;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.icegreen.greenmail.configuration.GreenMailConfiguration;
+import com.icegreen.greenmail.util.GreenMail;
+import com.icegreen.greenmail.util.ServerSetupTest;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.miracum.recruit.notify.mailconfig.MailSpoolConfig;
+import org.miracum.recruit.notify.metrics.NotifyMetrics;
+import org.springframework.mail.MailSendException;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+
+class MailSpoolTest {
+  @TempDir Path directory;
+
+  private GreenMail smtpServer;
+  private FlakyMailSender mailSender;
+  private MailSpool sut;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    smtpServer =
+        new GreenMail(ServerSetupTest.SMTP.dynamicPort())
+            .withConfiguration(GreenMailConfiguration.aConfig().withDisabledAuthentication());
+    smtpServer.start();
+
+    mailSender = new FlakyMailSender();
+    mailSender.setHost("localhost");
+    mailSender.setPort(smtpServer.getSmtp().getPort());
+    sut = openSpool();
+  }
+
+  @AfterEach
+  void tearDown() throws IOException {
+    sut.destroy();
+    smtpServer.stop();
+  }
+
+  private MailSpool openSpool() throws IOException {
+    var config = new MailSpoolConfig();
+    config.setEnabled(true);
+    config.setDirectory(directory.toString());
+    config.setBatchSize(2);
+    // drained by the tests themselves
+    config.setDrainInterval(Duration.ofHours(1));
+    var meterRegistry = new SimpleMeterRegistry();
+    var spool = new MailSpool(config, mailSender, new NotifyMetrics(meterRegistry), meterRegistry);
+    spool.afterPropertiesSet();
+    return spool;
+  }
+
+  @Test
+  void drain_withMailServerAvailable_shouldSendAllSpooledMails() throws MessagingException {
+    spoolMails(3);
+
+    sut.drain();
+
+    assertThat(smtpServer.getReceivedMessages()).hasSize(3);
+    assertThat(sut.hasBacklog()).isFalse();
+  }
+
+  @Test
+  void drain_withMailServerUnavailable_shouldKeepTheMailsUntilItIsBack()
+      throws MessagingException {
+    spoolMails(3);
+    mailSender.unavailable = 1;
+
+    sut.drain();
+
+    assertThat(smtpServer.getReceivedMessages()).isEmpty();
+    assertThat(sut.hasBacklog()).isTrue();
+
+    sut.drain();
+
+    assertThat(smtpServer.getReceivedMessages()).hasSize(3);
+    assertThat(sut.hasBacklog()).isFalse();
+  }
+
+  @Test
+  void drain_withFailureNotNamingTheFailedMails_shouldKeepTheWholeBatch()
+      throws MessagingException {
+    spoolMails(2);
+    mailSender.unknownFailures = 1;
+
+    sut.drain();
+
+    assertThat(sut.hasBacklog()).isTrue();
+
+    sut.drain();
+
+    assertThat(smtpServer.getReceivedMessages()).hasSize(2);
+    assertThat(sut.hasBacklog()).isFalse();
+  }
+
+  @Test
+  void drain_afterRestart_shouldSendTheMailsSpooledBefore() throws Exception {
+    spoolMails(2);
+    sut.destroy();
+
+    sut = openSpool();
+    assertThat(sut.hasBacklog()).isTrue();
+    sut.drain();
+
+    assertThat(smtpServer.getReceivedMessages()).hasSize(2);
+  }
+
+  @Test
+  void drain_withMailServerFailingWhileDraining_shouldKeepTheOrderOfTheMails() throws Exception {
+    spoolMails(3);
+    mailSender.unavailable = 1;
+    sut.drain();
+    spoolMail("spooled 3");
+    mailSender.sendsUntilOutage = 1;
+
+    sut.drain();
+    sut.drain();
+
+    assertThat(smtpServer.getReceivedMessages())
+        .extracting(message -> message.getSubject())
+        .containsExactly("spooled 0", "spooled 1", "spooled 2", "spooled 3");
+    assertThat(sut.hasBacklog()).isFalse();
+  }
+
+  private void spoolMails(int count) throws MessagingException {
+    for (var i = 0; i < count; i++) {
+      spoolMail("spooled " + i);
+    }
+  }
+
+  private void spoolMail(String subject) throws MessagingException {
+    var message = new MimeMessage((Session) null);
+    message.setFrom(new InternetAddress("notify@example.com"));
+    message.setRecipient(MimeMessage.RecipientType.TO, new InternetAddress("me@example.com"));
+    message.setSubject(subject);
+    message.setText("new candidates");
+    sut.spool(message);
+  }
+
+  /** Sends to GreenMail, after failing the given number of times like a real mail server. */
+  private static class FlakyMailSender extends JavaMailSenderImpl {
+    private int unavailable;
+    private int unknownFailures;
+    private int sendsUntilOutage = -1;
+
+    @Override
+    public void send(MimeMessage... mimeMessages) {
+      if (sendsUntilOutage-- == 0) {
+        unavailable++;
+      }
+      if (unavailable > 0) {
+        unavailable--;
+        // like the connection failure of JavaMailSenderImpl, which names every mail as failed
+        var cause = new MessagingException("connection refused");
+        Map<Object, Exception> failed = new LinkedHashMap<>();
+        for (var message : mimeMessages) {
+          failed.put(message, cause);
+        }
+        throw new MailSendException("Mail server connection failed", cause, failed);
+      }
+      if (unknownFailures > 0) {
+        unknownFailures--;
+        throw new MailSendException("connection reset while sending");
+      }
+      super.send(mimeMessages);
+    }
+  }
+}
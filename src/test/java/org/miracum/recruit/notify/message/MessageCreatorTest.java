@@ -0,0 +1,205 @@
+package org.miracum.recruit.notify.message;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import org.hl7.fhir.r4.model.CommunicationRequest;
+import org.hl7.fhir.r4.model.ContactPoint;
+import org.hl7.fhir.r4.model.ContactPoint.ContactPointSystem;
+import org.hl7.fhir.r4.model.Practitioner;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.miracum.recruit.notify.FhirServerProvider;
+import org.miracum.recruit.notify.fhirserver.FhirSystemsConfig;
+import org.miracum.recruit.notify.fhirserver.MessageTransmitter;
+import org.miracum.recruit.notify.fhirserver.TransmitResult;
+import org.miracum.recruit.notify.locking.StripedLocks;
+import org.miracum.recruit.notify.mailconfig.CreationConfig;
+import org.miracum.recruit.notify.mailconfig.MailerConfig;
+import org.miracum.recruit.notify.mailconfig.UserConfig;
+import org.miracum.recruit.notify.mailconfig.UserConfig.Subscription;
+import org.miracum.recruit.notify.mailsender.MailSpool;
+import org.miracum.recruit.notify.metrics.NotifyMetrics;
+import org.miracum.recruit.notify.practitioner.PractitionerFilter;
+import org.springframework.mail.javamail.JavaMailSender;
+import org.thymeleaf.TemplateEngine;
+import org.thymeleaf.templateresolver.StringTemplateResolver;
+
+class MessageCreatorTest {
+  private static final String AD_HOC = "adhoc@example.com";
+  private static final String SCHEDULED = "scheduled@example.com";
+
+  private FhirServerProvider fhirServer;
+  private MessageTransmitter messageTransmitter;
+  private JavaMailSender javaMailSender;
+  private CreationConfig creationConfig;
+  private ExecutorService webhooks;
+  private final List<CommunicationRequest> transmitted =
+      Collections.synchronizedList(new ArrayList<>());
+
+  @BeforeEach
+  void setUp() {
+    fhirServer = mock(FhirServerProvider.class);
+    when(fhirServer.getPractitionersByEmails(anyCollection()))
+        .thenReturn(
+            Map.of(
+                AD_HOC, createPractitioner("p1", AD_HOC),
+                SCHEDULED, createPractitioner("p2", SCHEDULED)));
+    when(fhirServer.getPreparedMessages()).thenReturn(List.of());
+
+    messageTransmitter = mock(MessageTransmitter.class);
+    when(messageTransmitter.transmit(any()))
+        .thenAnswer(
+            invocation -> {
+              List<CommunicationRequest> messages = invocation.getArgument(0);
+              transmitted.addAll(messages);
+              return new TransmitResult(messages, List.of(), List.of());
+            });
+
+    javaMailSender = mock(JavaMailSender.class);
+    when(javaMailSender.createMimeMessage()).thenAnswer(ignored -> new MimeMessage((Session) null));
+
+    creationConfig = new CreationConfig();
+    webhooks = Executors.newFixedThreadPool(2);
+  }
+
+  @AfterEach
+  void tearDown() {
+    webhooks.shutdownNow();
+  }
+
+  @Test
+  void temporaryStoreMessagesInFhir_withoutBatchWindow_shouldHandleEachListOnItsOwn() {
+    var sut = createSut();
+
+    sut.temporaryStoreMessagesInFhir("A", "list-a", null);
+    sut.temporaryStoreMessagesInFhir("B", "list-b", null);
+
+    verify(fhirServer, times(2)).getPractitionersByEmails(anyCollection());
+    verify(messageTransmitter, times(2)).transmit(any());
+    verify(javaMailSender, times(2)).send(any(MimeMessage.class));
+  }
+
+  @Test
+  void temporaryStoreMessagesInFhir_withConcurrentLists_shouldCreateThemInOneBatch() {
+    creationConfig.setBatchWindow(Duration.ofSeconds(10));
+    creationConfig.setMaxBatchSize(2);
+    var sut = createSut();
+
+    var first = store(sut, "A", "list-a");
+    var second = store(sut, "B", "list-b");
+    CompletableFuture.allOf(first, second).join();
+
+    verify(fhirServer, times(1)).getPractitionersByEmails(anyCollection());
+    verify(messageTransmitter, times(1)).transmit(any());
+    assertThat(transmitted)
+        .extracting(message -> message.getAboutFirstRep().getReference())
+        .containsExactlyInAnyOrder("List/list-a", "List/list-b");
+    verify(javaMailSender, times(2)).send(any(MimeMessage.class));
+  }
+
+  @Test
+  void temporaryStoreMessagesInFhir_withMessageOfOneListFailing_shouldOnlyFailThatList() {
+    creationConfig.setBatchWindow(Duration.ofSeconds(10));
+    creationConfig.setMaxBatchSize(2);
+    doAnswer(
+            invocation -> {
+              List<CommunicationRequest> messages = invocation.getArgument(0);
+              var created = new ArrayList<CommunicationRequest>();
+              var failed = new ArrayList<CommunicationRequest>();
+              for (var message : messages) {
+                if (message.getAboutFirstRep().getReference().equals("List/list-b")) {
+                  failed.add(message);
+                } else {
+                  created.add(message);
+                }
+              }
+              return new TransmitResult(created, List.of(), failed);
+            })
+        .when(messageTransmitter)
+        .transmit(any());
+    var sut = createSut();
+
+    var first = store(sut, "A", "list-a");
+    var second = store(sut, "B", "list-b");
+
+    first.join();
+    assertThatThrownBy(second::join)
+        .isInstanceOf(CompletionException.class)
+        .hasCauseInstanceOf(FhirClientConnectionException.class);
+    // the failed list is handled again, so its ad-hoc mail must not have been sent yet
+    verify(javaMailSender, times(1)).send(any(MimeMessage.class));
+  }
+
+  private CompletableFuture<Void> store(MessageCreator sut, String acronym, String listId) {
+    return CompletableFuture.runAsync(
+        () -> sut.temporaryStoreMessagesInFhir(acronym, listId, null), webhooks);
+  }
+
+  private MessageCreator createSut() {
+    var trial = new UserConfig.Trial();
+    trial.setAcronym("*");
+    trial.setSubscriptions(
+        List.of(
+            Subscription.builder().email(AD_HOC).build(),
+            Subscription.builder().email(SCHEDULED).notify("weekly").build()));
+    var userConfig = new UserConfig();
+    userConfig.setTrials(List.of(trial));
+
+    var mailerConfig = new MailerConfig();
+    mailerConfig.setFrom("notify@example.com");
+    mailerConfig.setSubject("new candidates for [study_acronym]");
+    mailerConfig.setLinkTemplate("http://localhost/recommendations/[list_id]");
+
+    var fhirSystems = new FhirSystemsConfig();
+    fhirSystems.setCommunication("urn:test:communication");
+    fhirSystems.setCommunicationListUpdated("urn:test:list-updated");
+
+    var templateEngine = new TemplateEngine();
+    templateEngine.setTemplateResolver(new StringTemplateResolver());
+
+    var meterRegistry = new SimpleMeterRegistry();
+    return new MessageCreator(
+        javaMailSender,
+        templateEngine,
+        new PractitionerFilter(),
+        messageTransmitter,
+        userConfig,
+        mailerConfig,
+        fhirServer,
+        fhirSystems,
+        new NotifyMetrics(meterRegistry),
+        mock(PendingMessageMonitor.class),
+        new StripedLocks(16, meterRegistry),
+        mock(MailSpool.class),
+        creationConfig);
+  }
+
+  private static Practitioner createPractitioner(String id, String email) {
+    var practitioner = new Practitioner();
+    practitioner.setId(id);
+    practitioner.addTelecom(new ContactPoint().setSystem(ContactPointSystem.EMAIL).setValue(email));
+    return practitioner;
+  }
+}
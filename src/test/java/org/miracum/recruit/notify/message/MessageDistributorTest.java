@@ -0,0 +1,193 @@
+package org.miracum.recruit.notify.message;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.ArgumentMatchers.notNull;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.OptionalInt;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import org.hl7.fhir.r4.model.CommunicationRequest.CommunicationRequestStatus;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.miracum.recruit.notify.FhirServerProvider;
+import org.miracum.recruit.notify.config.FhirClientConfig;
+import org.miracum.recruit.notify.fhirserver.AsyncFhirClient;
+import org.miracum.recruit.notify.fhirserver.MessageStatusUpdater;
+import org.miracum.recruit.notify.mailconfig.DistributionConfig;
+import org.miracum.recruit.notify.mailconfig.MailerConfig;
+import org.miracum.recruit.notify.mailconfig.UserConfig;
+import org.miracum.recruit.notify.mailconfig.UserConfig.Subscription;
+import org.miracum.recruit.notify.mailsender.MailSpool;
+import org.miracum.recruit.notify.metrics.NotifyMetrics;
+import org.miracum.recruit.notify.resilience.ResilienceConfig;
+import org.miracum.recruit.notify.resilience.ResourceGuards;
+import org.springframework.mail.javamail.JavaMailSender;
+import org.thymeleaf.TemplateEngine;
+import org.thymeleaf.templateresolver.StringTemplateResolver;
+
+class MessageDistributorTest {
+  private static final String SCHEDULE = "weekly";
+
+  private FhirServerProvider fhirServer;
+  private JavaMailSender javaMailSender;
+  private MessageStatusUpdater messageUpdater;
+  private PendingMessageSnapshot pendingMessages;
+  private AsyncFhirClient asyncFhirClient;
+  private DistributionConfig distributionConfig;
+  private final List<String> subscribers = new ArrayList<>();
+  private final List<String> events = Collections.synchronizedList(new ArrayList<>());
+
+  @BeforeEach
+  void setUp() {
+    fhirServer = mock(FhirServerProvider.class);
+    javaMailSender = mock(JavaMailSender.class);
+    when(javaMailSender.createMimeMessage()).thenAnswer(ignored -> new MimeMessage((Session) null));
+    doAnswer(invocation -> events.add("mail")).when(javaMailSender).send(any(MimeMessage.class));
+    messageUpdater = mock(MessageStatusUpdater.class);
+    doAnswer(invocation -> events.add("status"))
+        .when(messageUpdater)
+        .update(any(), eq(CommunicationRequestStatus.COMPLETED));
+    pendingMessages = mock(PendingMessageSnapshot.class);
+    asyncFhirClient = new AsyncFhirClient(new FhirClientConfig());
+    distributionConfig = new DistributionConfig();
+  }
+
+  @AfterEach
+  void tearDown() {
+    asyncFhirClient.destroy();
+  }
+
+  @Test
+  void distribute_withChunkSize_shouldWriteBackStatusesAfterEveryChunk() {
+    distributionConfig.setChunkSize(2);
+    givenPendingMessages(5);
+
+    createSut().distribute(SCHEDULE);
+
+    assertThat(String.join(" ", events))
+        .isEqualTo("mail mail status status mail mail status status mail status");
+  }
+
+  @Test
+  void distribute_withFailingStatusUpdate_shouldNotWriteBackTheChunkTwice() {
+    distributionConfig.setChunkSize(2);
+    givenPendingMessages(3);
+    doThrow(new IllegalStateException("FHIR server unavailable"))
+        .when(messageUpdater)
+        .update(eq("m0"), any());
+    var sut = createSut();
+
+    assertThatThrownBy(() -> sut.distribute(SCHEDULE)).isInstanceOf(IllegalStateException.class);
+
+    verify(messageUpdater, times(1)).update(eq("m0"), any());
+    verify(messageUpdater, times(1)).update(eq("m1"), any());
+    // the run stops at the failed chunk, the last message stays active for the next run
+    verify(javaMailSender, times(2)).send(any(MimeMessage.class));
+  }
+
+  @Test
+  void distribute_withNoActiveMessagesCounted_shouldSkipTheSearch() {
+    givenPendingMessages(2);
+    when(fhirServer.countMessagesByStatus(any(), any())).thenReturn(OptionalInt.of(0));
+
+    var result = createSut().distribute(SCHEDULE);
+
+    assertThat(result.pendingMessages()).isZero();
+    verify(pendingMessages, never()).getOpenMessagesForSubscribers(anyList());
+    verify(javaMailSender, never()).send(any(MimeMessage.class));
+  }
+
+  @Test
+  void distribute_withActiveMessagesCounted_shouldDistributeThem() {
+    givenPendingMessages(2);
+    when(fhirServer.countMessagesByStatus(any(), any())).thenReturn(OptionalInt.of(2));
+    var sut = createSut();
+
+    var result = sut.distribute(SCHEDULE);
+    sut.distribute(SCHEDULE);
+
+    assertThat(result.sent()).isEqualTo(2);
+    verify(javaMailSender, times(4)).send(any(MimeMessage.class));
+    // the first run counts all active messages, the next one only those updated since then
+    verify(fhirServer).countMessagesByStatus(eq(CommunicationRequestStatus.ACTIVE), isNull());
+    verify(fhirServer).countMessagesByStatus(eq(CommunicationRequestStatus.ACTIVE), notNull());
+  }
+
+  @Test
+  void distributeShard_withSeveralShards_shouldOnlySearchTheMessagesOfTheShard() {
+    givenPendingMessages(8);
+    when(fhirServer.getActiveMessagesForRecipients(anyList())).thenReturn(List.of());
+
+    createSut().distributeShard(SCHEDULE, 1, 2);
+
+    verify(pendingMessages, never()).getOpenMessagesForSubscribers(anyList());
+    verify(fhirServer)
+        .getActiveMessagesForRecipients(
+            argThat(
+                shardSubscribers ->
+                    !shardSubscribers.isEmpty() && shardSubscribers.size() < subscribers.size()));
+  }
+
+  private void givenPendingMessages(int count) {
+    var messages = new ArrayList<Message>();
+    for (var i = 0; i < count; i++) {
+      var email = "subscriber-" + i + "@example.com";
+      subscribers.add(email);
+      messages.add(new Message("m" + i, "Study", "list-1", "p" + i, email, null, null));
+    }
+    when(pendingMessages.getOpenMessagesForSubscribers(anyList())).thenReturn(messages);
+  }
+
+  private MessageDistributor createSut() {
+    var trial = new UserConfig.Trial();
+    trial.setAcronym("*");
+    trial.setSubscriptions(
+        subscribers.stream()
+            .map(email -> Subscription.builder().email(email).notify(SCHEDULE).build())
+            .toList());
+    var userConfig = new UserConfig();
+    userConfig.setTrials(List.of(trial));
+
+    var mailerConfig = new MailerConfig();
+    mailerConfig.setFrom("notify@example.com");
+    mailerConfig.setSubject("new candidates for [study_acronym]");
+    mailerConfig.setLinkTemplate("http://localhost/recommendations/[list_id]");
+
+    var templateEngine = new TemplateEngine();
+    templateEngine.setTemplateResolver(new StringTemplateResolver());
+
+    var meterRegistry = new SimpleMeterRegistry();
+    return new MessageDistributor(
+        templateEngine,
+        javaMailSender,
+        fhirServer,
+        userConfig,
+        messageUpdater,
+        mailerConfig,
+        new ResourceGuards(new ResilienceConfig(), meterRegistry),
+        asyncFhirClient,
+        new NotifyMetrics(meterRegistry),
+        mock(PendingMessageMonitor.class),
+        distributionConfig,
+        mock(MailSpool.class),
+        pendingMessages);
+  }
+}
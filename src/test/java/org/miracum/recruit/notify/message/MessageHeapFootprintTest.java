@@ -0,0 +1,166 @@
+package org.miracum.recruit.notify.message;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import ca.uhn.fhir.context.FhirContext;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.CommunicationRequest;
+import org.hl7.fhir.r4.model.CommunicationRequest.CommunicationPriority;
+import org.hl7.fhir.r4.model.CommunicationRequest.CommunicationRequestPayloadComponent;
+import org.hl7.fhir.r4.model.CommunicationRequest.CommunicationRequestStatus;
+import org.hl7.fhir.r4.model.ContactPoint;
+import org.hl7.fhir.r4.model.ContactPoint.ContactPointSystem;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Practitioner;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.StringType;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.miracum.recruit.notify.fhirserver.FhirSystemsConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compares the retained heap of a pending-message backlog held as parsed HAPI resources against
+ * the {@link Message} projection. Run via {@code ./gradlew benchmark}.
+ */
+@Tag("benchmark")
+class MessageHeapFootprintTest {
+  private static final Logger LOG = LoggerFactory.getLogger(MessageHeapFootprintTest.class);
+
+  private static final int BACKLOG_SIZE = 50_000;
+  private static final int PAGE_SIZE = 500;
+
+  private final FhirContext fhirContext = FhirContext.forR4();
+  private final FhirSystemsConfig fhirSystems = new FhirSystemsConfig();
+
+  @BeforeEach
+  void setUp() {
+    fhirSystems.setCommunicationListUpdated(
+        "https://fhir.miracum.org/uc1/StructureDefinition/notification-list-last-updated");
+  }
+
+  @Test
+  void fromCommunicationRequest_withLargeBacklog_shouldRetainFractionOfResourceHeap() {
+    var baseline = usedHeapAfterGc();
+
+    var resources = parseBacklog(BACKLOG_SIZE);
+    var resourceHeap = usedHeapAfterGc() - baseline;
+
+    var messages =
+        resources.stream()
+            .map(request -> Message.fromCommunicationRequest(request, fhirSystems))
+            .collect(Collectors.toList());
+    resources.clear();
+    var projectionHeap = usedHeapAfterGc() - baseline;
+
+    var report =
+        String.format(
+            "backlog of %d messages: %d KiB as CommunicationRequest, %d KiB as Message (%.1fx)",
+            messages.size(),
+            resourceHeap / 1024,
+            projectionHeap / 1024,
+            (double) resourceHeap / Math.max(projectionHeap, 1));
+    LOG.info("{}", report);
+
+    assertThat(messages).hasSize(BACKLOG_SIZE).allMatch(m -> m.recipientEmail() != null);
+    // an order of magnitude less heap than the parsed resources
+    assertThat(projectionHeap * 10).as(report).isLessThanOrEqualTo(resourceHeap);
+  }
+
+  /**
+   * Creates the backlog the same way the client sees it: as search result pages including the
+   * recipient Practitioner, parsed from JSON.
+   */
+  private List<CommunicationRequest> parseBacklog(int size) {
+    var parser = fhirContext.newJsonParser();
+    var result = new ArrayList<CommunicationRequest>(size);
+
+    for (var offset = 0; offset < size; offset += PAGE_SIZE) {
+      var page = new Bundle().setType(Bundle.BundleType.SEARCHSET);
+      for (var i = offset; i < Math.min(offset + PAGE_SIZE, size); i++) {
+        var practitioner = createPractitioner(i);
+        page.addEntry()
+            .setFullUrl("http://localhost/fhir/Practitioner/pr-" + i)
+            .setResource(practitioner);
+        page.addEntry()
+            .setFullUrl("http://localhost/fhir/CommunicationRequest/cr-" + i)
+            .setResource(createCommunicationRequest(i, practitioner));
+      }
+
+      var parsed = parser.parseResource(Bundle.class, parser.encodeResourceToString(page));
+      for (var entry : parsed.getEntry()) {
+        if (entry.getResource() instanceof CommunicationRequest request) {
+          result.add(request);
+        }
+      }
+    }
+
+    return result;
+  }
+
+  private Practitioner createPractitioner(int index) {
+    var practitioner = new Practitioner();
+    practitioner.setId("pr-" + index);
+    practitioner.setActive(true);
+    practitioner.addIdentifier(
+        new Identifier()
+            .setSystem("https://fhir.miracum.org/uc1/identifiers/notification-subscriber-id")
+            .setValue("subscriber-" + index + "@example.com"));
+    practitioner.addTelecom(
+        new ContactPoint()
+            .setSystem(ContactPointSystem.EMAIL)
+            .setValue("subscriber-" + index + "@example.com"));
+    return practitioner;
+  }
+
+  private CommunicationRequest createCommunicationRequest(int index, Practitioner practitioner) {
+    var request =
+        new CommunicationRequest()
+            .setStatus(CommunicationRequestStatus.ACTIVE)
+            .setPriority(CommunicationPriority.ROUTINE)
+            .addCategory(
+                new CodeableConcept()
+                    .addCoding(
+                        new Coding()
+                            .setSystem(
+                                "http://terminology.hl7.org/CodeSystem/communication-category")
+                            .setCode("notification")))
+            .addPayload(
+                new CommunicationRequestPayloadComponent()
+                    .setContent(
+                        new StringType(
+                            "Notification about potential new study candidates for PROSa")))
+            .setAuthoredOn(new Date())
+            .addRecipient(
+                new Reference("Practitioner/" + practitioner.getIdElement().getIdPart())
+                    .setDisplay(practitioner.getTelecomFirstRep().getValue()))
+            .addAbout(new Reference("List/" + (index % 100)).setDisplay("PROSa"))
+            .setReasonCode(List.of(new CodeableConcept().setText("PROSa")))
+            .setIdentifier(
+                List.of(
+                    new Identifier()
+                        .setSystem("https://fhir.miracum.org/uc1/identifiers/notification-id")
+                        .setValue(UUID.randomUUID().toString())));
+    request.setId("cr-" + index);
+    request.getMeta().setVersionId("1").setLastUpdated(new Date());
+    return request;
+  }
+
+  private static long usedHeapAfterGc() {
+    var memory = ManagementFactory.getMemoryMXBean();
+    for (var i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return memory.getHeapMemoryUsage().getUsed();
+  }
+}
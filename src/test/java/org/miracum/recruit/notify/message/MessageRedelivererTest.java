@@ -0,0 +1,183 @@
+package org.miracum.recruit.notify.message;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.function.Predicate;
+import org.hl7.fhir.r4.model.CommunicationRequest;
+import org.hl7.fhir.r4.model.CommunicationRequest.CommunicationRequestStatus;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.miracum.recruit.notify.FhirServerProvider;
+import org.miracum.recruit.notify.fhirserver.FhirSystemsConfig;
+import org.miracum.recruit.notify.fhirserver.MessageStatusUpdater;
+import org.miracum.recruit.notify.mailconfig.RedeliveryConfig;
+import org.miracum.recruit.notify.message.MessageDistributor.DeliveryOutcome;
+import org.miracum.recruit.notify.metrics.NotifyMetrics;
+import org.miracum.recruit.notify.resilience.ResilienceConfig;
+import org.miracum.recruit.notify.resilience.ResourceGuards;
+
+class MessageRedelivererTest {
+  private FhirServerProvider fhirServer;
+  private MessageDistributor messageDistributor;
+  private MessageStatusUpdater messageUpdater;
+  private RedeliveryConfig config;
+  private final List<CommunicationRequest> onHold = new ArrayList<>();
+  private final List<CommunicationRequest> visited = new ArrayList<>();
+
+  @BeforeEach
+  void setUp() {
+    fhirServer = mock(FhirServerProvider.class);
+    doAnswer(
+            invocation -> {
+              Instant updatedFrom = invocation.getArgument(2);
+              Predicate<CommunicationRequest> visitor = invocation.getArgument(3);
+              for (var request : onHold) {
+                var lastUpdated = request.getMeta().getLastUpdated().toInstant();
+                if (updatedFrom != null && lastUpdated.isBefore(updatedFrom)) {
+                  continue;
+                }
+                visited.add(request);
+                if (!visitor.test(request)) {
+                  break;
+                }
+              }
+              return null;
+            })
+        .when(fhirServer)
+        .visitCommunicationRequestsByStatus(any(), any(), any(), any());
+
+    messageDistributor = mock(MessageDistributor.class);
+    when(messageDistributor.sendMessage(any()))
+        .thenAnswer(
+            invocation ->
+                invocation.getArgument(0, Message.class).recipientEmail() == null
+                    ? DeliveryOutcome.FAILED
+                    : DeliveryOutcome.SENT);
+    messageUpdater = mock(MessageStatusUpdater.class);
+    config = new RedeliveryConfig();
+  }
+
+  private MessageRedeliverer createSut() {
+    var fhirSystems = new FhirSystemsConfig();
+    fhirSystems.setCommunicationListUpdated("urn:test:list-updated");
+    var meterRegistry = new SimpleMeterRegistry();
+    return new MessageRedeliverer(
+        fhirServer,
+        messageDistributor,
+        messageUpdater,
+        config,
+        new ResourceGuards(new ResilienceConfig(), meterRegistry),
+        new NotifyMetrics(meterRegistry),
+        fhirSystems);
+  }
+
+  @Test
+  void redeliver_withMessagesWithoutEmail_shouldOnlyFailThoseMessages() {
+    onHold.add(createMessage("m1", "p1", null));
+    onHold.add(createMessage("m2", "p2", null));
+    onHold.add(createMessage("m3", "p3", "me@example.com"));
+
+    createSut().redeliver();
+
+    verify(messageUpdater).updateFailedDelivery("m1", CommunicationRequestStatus.ONHOLD, 2);
+    verify(messageUpdater).updateFailedDelivery("m2", CommunicationRequestStatus.ONHOLD, 2);
+    verify(messageUpdater).update("m3", CommunicationRequestStatus.COMPLETED);
+    verify(messageUpdater, never()).update(any(), eq(CommunicationRequestStatus.REVOKED));
+  }
+
+  @Test
+  void redeliver_withMoreDueMessagesThanBatchSize_shouldStopOnceTheBatchIsFull() {
+    config.setBatchSize(2);
+    for (var i = 0; i < 5; i++) {
+      onHold.add(createMessage("m" + i, "p" + i, "subscriber-" + i + "@example.com"));
+    }
+
+    createSut().redeliver();
+
+    assertThat(visited).hasSize(2);
+    verify(messageDistributor, times(2)).sendMessage(any());
+  }
+
+  @Test
+  void redeliver_shouldNotFetchMessagesUpdatedWithinTheShortestBackoff() {
+    var backoff = Duration.ofMinutes(15);
+    config.setInitialBackoff(backoff);
+    var start = Instant.now();
+
+    createSut().redeliver();
+
+    var updatedBefore = ArgumentCaptor.forClass(Instant.class);
+    verify(fhirServer)
+        .visitCommunicationRequestsByStatus(
+            eq(CommunicationRequestStatus.ONHOLD), updatedBefore.capture(), isNull(), any());
+    assertThat(updatedBefore.getValue())
+        .isBetween(start.minus(backoff), Instant.now().minus(backoff));
+    verify(messageUpdater, never()).updateFailedDelivery(any(), any(), anyInt());
+  }
+
+  @Test
+  void redeliver_withMoreMessagesNotDueThanMaxScanned_shouldContinueWhereTheLastRunStopped() {
+    config.setMaxScannedMessages(2);
+    config.setInitialBackoff(Duration.ofDays(7));
+    var updated = Instant.now().minus(Duration.ofDays(1));
+    for (var i = 0; i < 5; i++) {
+      var request = createMessage("m" + i, "p" + i, "subscriber-" + i + "@example.com");
+      request.getMeta().setLastUpdated(Date.from(updated.plusSeconds(i)));
+      onHold.add(request);
+    }
+    var sut = createSut();
+
+    sut.redeliver();
+    sut.redeliver();
+    sut.redeliver();
+
+    // the second run starts again at the last message looked at by the first one
+    assertThat(visited)
+        .extracting(request -> request.getIdElement().getIdPart())
+        .containsExactly("m0", "m1", "m1", "m2", "m2", "m3");
+    verify(fhirServer, times(1))
+        .visitCommunicationRequestsByStatus(any(), any(), isNull(), any());
+    verify(messageDistributor, never()).sendMessage(any());
+  }
+
+  @Test
+  void redeliver_afterScanningAllMessages_shouldStartOverInTheNextRun() {
+    config.setMaxScannedMessages(2);
+    onHold.add(createMessage("m0", "p0", "subscriber@example.com"));
+    var sut = createSut();
+
+    sut.redeliver();
+    sut.redeliver();
+
+    verify(fhirServer, times(2))
+        .visitCommunicationRequestsByStatus(any(), any(), isNull(), any());
+  }
+
+  private static CommunicationRequest createMessage(String id, String recipient, String email) {
+    var request = new CommunicationRequest();
+    request.setId(id);
+    request.setStatus(CommunicationRequestStatus.ONHOLD);
+    request.addReasonCode().setText("Study");
+    request.addRecipient(new Reference("Practitioner/" + recipient).setDisplay(email));
+    request.getMeta().setLastUpdated(Date.from(Instant.now().minus(Duration.ofDays(1))));
+    return request;
+  }
+}
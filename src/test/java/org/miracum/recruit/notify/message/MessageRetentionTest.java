@@ -0,0 +1,226 @@
+package org.miracum.recruit.notify.message;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.GZIPInputStream;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CommunicationRequest;
+import org.hl7.fhir.r4.model.CommunicationRequest.CommunicationRequestStatus;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.miracum.recruit.notify.FhirServerProvider;
+import org.miracum.recruit.notify.config.FhirClientConfig;
+import org.miracum.recruit.notify.fhirserver.AsyncFhirClient;
+import org.miracum.recruit.notify.fhirserver.FhirSystemsConfig;
+import org.miracum.recruit.notify.mailconfig.RetentionConfig;
+import org.miracum.recruit.notify.metrics.NotifyMetrics;
+
+class MessageRetentionTest {
+  @TempDir Path archiveDirectory;
+
+  private FhirServerProvider fhirServer;
+  private AsyncFhirClient asyncFhirClient;
+  private SimpleMeterRegistry meterRegistry;
+  private MessageRetention sut;
+  private final List<String> deleteUrls = Collections.synchronizedList(new ArrayList<>());
+
+  @BeforeEach
+  void setUp() {
+    fhirServer = mock(FhirServerProvider.class);
+    asyncFhirClient = new AsyncFhirClient(new FhirClientConfig());
+    var config = new RetentionConfig();
+    config.setMaxAge(Duration.ofDays(30));
+    config.setChunkSize(2);
+    config.setConcurrency(2);
+    config.setArchiveDirectory(archiveDirectory.toString());
+    var fhirSystems = new FhirSystemsConfig();
+    fhirSystems.setCommunicationListUpdated("urn:test:list-updated");
+    meterRegistry = new SimpleMeterRegistry();
+    var metrics = new NotifyMetrics(meterRegistry);
+    sut = new MessageRetention(fhirServer, asyncFhirClient, fhirSystems, config, metrics);
+
+    when(fhirServer.executeTransaction(any()))
+        .thenAnswer(
+            invocation -> {
+              var batch = invocation.getArgument(0, Bundle.class);
+              var response = new Bundle().setType(Bundle.BundleType.BATCHRESPONSE);
+              for (var entry : batch.getEntry()) {
+                deleteUrls.add(entry.getRequest().getUrl());
+                response.addEntry().getResponse().setStatus("204 No Content");
+              }
+              return response;
+            });
+  }
+
+  @AfterEach
+  void tearDown() {
+    asyncFhirClient.destroy();
+  }
+
+  @Test
+  void purge_withExpiredMessages_shouldArchiveAndDeleteThemInChunks() throws IOException {
+    when(fhirServer.getTerminalMessagesUpdatedBefore(any(), any(), anyInt()))
+        .thenReturn(createMessages(0, 4), createMessages(4, 1));
+
+    sut.purge();
+
+    verify(fhirServer, times(3)).executeTransaction(any());
+    assertThat(deleteUrls)
+        .hasSize(5)
+        .allMatch(url -> url.startsWith("CommunicationRequest?_id=m"))
+        .allMatch(url -> url.contains("&status=completed&_lastUpdated=lt"));
+
+    assertThat(readArchive())
+        .first()
+        .isEqualTo("id,status,authored_on,last_updated,study,list,recipient");
+    assertThat(readArchive()).hasSize(6).contains("m4,completed,,,\"Study, 1\",,");
+  }
+
+  @Test
+  void purge_withMessagesThatCannotBeDeleted_shouldNotAttemptThemAgain() {
+    when(fhirServer.getTerminalMessagesUpdatedBefore(any(), any(), anyInt()))
+        .thenReturn(createMessages(0, 4));
+    doThrow(new IllegalStateException("rejected")).when(fhirServer).executeTransaction(any());
+
+    sut.purge();
+
+    verify(fhirServer, times(2)).getTerminalMessagesUpdatedBefore(any(), any(), anyInt());
+    verify(fhirServer, times(2)).executeTransaction(any());
+  }
+
+  @Test
+  void purge_withUndeletableMessagesFillingARound_shouldSearchPastThem() {
+    var stored = new CopyOnWriteArrayList<>(createMessages(0, 10));
+    for (var i = 0; i < stored.size(); i++) {
+      stored.get(i).getMeta().setLastUpdated(Date.from(Instant.EPOCH.plusSeconds(i)));
+    }
+    when(fhirServer.getTerminalMessagesUpdatedBefore(any(), any(), anyInt()))
+        .thenAnswer(
+            invocation -> {
+              Instant from = invocation.getArgument(1);
+              int count = invocation.getArgument(2);
+              return stored.stream()
+                  .filter(
+                      message ->
+                          from == null
+                              || !message.getMeta().getLastUpdated().toInstant().isBefore(from))
+                  .limit(count)
+                  .toList();
+            });
+    // the four oldest messages cannot be deleted, the others are removed from the server
+    doAnswer(
+            invocation -> {
+              var batch = invocation.getArgument(0, Bundle.class);
+              var response = new Bundle().setType(Bundle.BundleType.BATCHRESPONSE);
+              for (var entry : batch.getEntry()) {
+                var id = entry.getRequest().getUrl().replaceAll(".*_id=(m\\d+).*", "$1");
+                if (Integer.parseInt(id.substring(1)) < 4) {
+                  response.addEntry().getResponse().setStatus("412 Precondition Failed");
+                } else {
+                  deleteUrls.add(entry.getRequest().getUrl());
+                  stored.removeIf(message -> message.getIdElement().getIdPart().equals(id));
+                  response.addEntry().getResponse().setStatus("204 No Content");
+                }
+              }
+              return response;
+            })
+        .when(fhirServer)
+        .executeTransaction(any());
+
+    sut.purge();
+
+    assertThat(deleteUrls).hasSize(6);
+    assertThat(deletedCount()).isEqualTo(6);
+  }
+
+  @Test
+  void purge_withDeletesMatchingNothing_shouldNotCountThemAsDeleted() {
+    when(fhirServer.getTerminalMessagesUpdatedBefore(any(), any(), anyInt()))
+        .thenReturn(createMessages(0, 3));
+    doAnswer(
+            invocation -> {
+              var batch = invocation.getArgument(0, Bundle.class);
+              var response = new Bundle().setType(Bundle.BundleType.BATCHRESPONSE);
+              for (var entry : batch.getEntry()) {
+                var outcome = new OperationOutcome();
+                if (entry.getRequest().getUrl().contains("_id=m0&")) {
+                  outcome
+                      .addIssue()
+                      .setSeverity(IssueSeverity.INFORMATION)
+                      .setDiagnostics("Successfully deleted 1 resource(s) in 5ms");
+                } else if (entry.getRequest().getUrl().contains("_id=m1&")) {
+                  outcome
+                      .addIssue()
+                      .setSeverity(IssueSeverity.INFORMATION)
+                      .setDiagnostics("Successfully deleted 0 resource(s) in 2ms");
+                } else {
+                  outcome
+                      .addIssue()
+                      .setSeverity(IssueSeverity.WARNING)
+                      .setDiagnostics("Unable to find resource matching URL. Deletion failed.");
+                }
+                response.addEntry().getResponse().setStatus("200 OK").setOutcome(outcome);
+              }
+              return response;
+            })
+        .when(fhirServer)
+        .executeTransaction(any());
+
+    sut.purge();
+
+    assertThat(deletedCount()).isEqualTo(1);
+  }
+
+  private double deletedCount() {
+    return meterRegistry
+        .get(NotifyMetrics.MESSAGES_COUNTER)
+        .tag("event", "deleted")
+        .counter()
+        .count();
+  }
+
+  private List<String> readArchive() throws IOException {
+    try (var files = Files.list(archiveDirectory)) {
+      var archive = files.findFirst().orElseThrow();
+      try (var input = new GZIPInputStream(Files.newInputStream(archive))) {
+        return new String(input.readAllBytes(), StandardCharsets.UTF_8).lines().toList();
+      }
+    }
+  }
+
+  private static List<CommunicationRequest> createMessages(int first, int count) {
+    var messages = new ArrayList<CommunicationRequest>();
+    for (var i = first; i < first + count; i++) {
+      var message = new CommunicationRequest();
+      message.setId("m" + i);
+      message.setStatus(CommunicationRequestStatus.COMPLETED);
+      message.addReasonCode().setText("Study, 1");
+      messages.add(message);
+    }
+    return messages;
+  }
+}
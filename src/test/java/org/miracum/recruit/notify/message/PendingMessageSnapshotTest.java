@@ -0,0 +1,171 @@
+package org.miracum.recruit.notify.message;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import org.hl7.fhir.r4.model.CommunicationRequest;
+import org.hl7.fhir.r4.model.CommunicationRequest.CommunicationRequestStatus;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.miracum.recruit.notify.FhirServerProvider;
+import org.miracum.recruit.notify.fhirserver.FhirSystemsConfig;
+import org.miracum.recruit.notify.mailconfig.DistributionConfig;
+import org.miracum.recruit.notify.mailconfig.UserConfig;
+import org.miracum.recruit.notify.metrics.NotifyMetrics;
+
+class PendingMessageSnapshotTest {
+  private static final String SUBSCRIBER = "subscriber@example.com";
+
+  private FhirServerProvider fhirServer;
+  private FhirSystemsConfig fhirSystems;
+  private DistributionConfig distributionConfig;
+  private final List<CommunicationRequest> changed = new ArrayList<>();
+  private PendingMessageSnapshot sut;
+
+  @BeforeEach
+  void setUp() {
+    fhirSystems = new FhirSystemsConfig();
+    fhirSystems.setCommunicationListUpdated("urn:test:list-updated");
+
+    fhirServer = mock(FhirServerProvider.class);
+    when(fhirServer.getMessagesByStatus(CommunicationRequestStatus.ACTIVE))
+        .thenReturn(
+            List.of(
+                createMessage("m1", CommunicationRequestStatus.ACTIVE, SUBSCRIBER),
+                createMessage("m2", CommunicationRequestStatus.ACTIVE, SUBSCRIBER),
+                createMessage("m3", CommunicationRequestStatus.ACTIVE, "other@example.com")));
+    doAnswer(
+            invocation -> {
+              Predicate<CommunicationRequest> visitor = invocation.getArgument(1);
+              changed.forEach(visitor::test);
+              return null;
+            })
+        .when(fhirServer)
+        .visitCommunicationRequestsUpdatedAfter(any(), any());
+
+    distributionConfig = new DistributionConfig();
+    distributionConfig.setPrewarmLeadTime(Duration.ofHours(1));
+  }
+
+  @AfterEach
+  void tearDown() {
+    if (sut != null) {
+      sut.destroy();
+    }
+  }
+
+  @Test
+  void getOpenMessagesForSubscribers_withoutCopy_shouldFetchAllActiveMessages() {
+    sut = createSut();
+
+    var pending = sut.getOpenMessagesForSubscribers(List.of(SUBSCRIBER));
+
+    assertThat(pending).extracting(Message::id).containsExactly("m1", "m2");
+    verify(fhirServer, never()).visitCommunicationRequestsUpdatedAfter(any(), any());
+  }
+
+  @Test
+  void getOpenMessagesForSubscribers_withCopy_shouldOnlyCatchUpWithTheChangedMessages() {
+    sut = createSut();
+    sut.getOpenMessagesForSubscribers(List.of(SUBSCRIBER));
+    changed.add(createMessage("m1", CommunicationRequestStatus.COMPLETED, SUBSCRIBER));
+    changed.add(createMessage("m2", CommunicationRequestStatus.REVOKED, SUBSCRIBER));
+    changed.add(createMessage("m4", CommunicationRequestStatus.ACTIVE, SUBSCRIBER));
+
+    var pending = sut.getOpenMessagesForSubscribers(List.of(SUBSCRIBER));
+
+    assertThat(pending).extracting(Message::id).containsExactly("m4");
+    verify(fhirServer, times(1)).getMessagesByStatus(CommunicationRequestStatus.ACTIVE);
+    verify(fhirServer, times(1)).visitCommunicationRequestsUpdatedAfter(any(), any());
+  }
+
+  @Test
+  void getOpenMessagesForSubscribers_withStaleCopy_shouldFetchAllActiveMessagesAgain()
+      throws InterruptedException {
+    distributionConfig.setPrewarmLeadTime(Duration.ofMillis(1));
+    sut = createSut();
+    sut.getOpenMessagesForSubscribers(List.of(SUBSCRIBER));
+    Thread.sleep(10);
+
+    sut.getOpenMessagesForSubscribers(List.of(SUBSCRIBER));
+
+    verify(fhirServer, times(2)).getMessagesByStatus(CommunicationRequestStatus.ACTIVE);
+    verify(fhirServer, never()).visitCommunicationRequestsUpdatedAfter(any(), any());
+  }
+
+  @Test
+  void getOpenMessagesForSubscribers_withZeroLeadTime_shouldFetchOnEachCall() {
+    distributionConfig.setPrewarmLeadTime(Duration.ZERO);
+    sut = createSut();
+
+    sut.getOpenMessagesForSubscribers(List.of(SUBSCRIBER));
+    sut.getOpenMessagesForSubscribers(List.of(SUBSCRIBER));
+
+    verify(fhirServer, times(2)).getOpenMessagesForSubscribers(List.of(SUBSCRIBER));
+    verify(fhirServer, never()).getMessagesByStatus(any());
+  }
+
+  @Test
+  void getOpenMessagesForSubscribers_whileAnotherShardFetches_shouldNotWaitForIt()
+      throws Exception {
+    var fetches = new AtomicInteger();
+    var release = new CountDownLatch(1);
+    var active = List.of(createMessage("m1", CommunicationRequestStatus.ACTIVE, SUBSCRIBER));
+    doAnswer(
+            invocation -> {
+              if (fetches.getAndIncrement() == 0) {
+                release.await(10, TimeUnit.SECONDS);
+              }
+              return active;
+            })
+        .when(fhirServer)
+        .getMessagesByStatus(CommunicationRequestStatus.ACTIVE);
+    sut = createSut();
+
+    var slow = CompletableFuture.supplyAsync(() -> sut.getOpenMessagesForSubscribers(List.of()));
+    while (fetches.get() == 0) {
+      Thread.onSpinWait();
+    }
+    var fast =
+        CompletableFuture.supplyAsync(() -> sut.getOpenMessagesForSubscribers(List.of(SUBSCRIBER)));
+
+    assertThat(fast.get(5, TimeUnit.SECONDS)).extracting(Message::id).containsExactly("m1");
+    assertThat(slow).isNotDone();
+    release.countDown();
+    slow.get(5, TimeUnit.SECONDS);
+  }
+
+  private PendingMessageSnapshot createSut() {
+    return new PendingMessageSnapshot(
+        fhirServer,
+        fhirSystems,
+        new UserConfig(),
+        distributionConfig,
+        new NotifyMetrics(new SimpleMeterRegistry()));
+  }
+
+  private static CommunicationRequest createMessage(
+      String id, CommunicationRequestStatus status, String email) {
+    var message = new CommunicationRequest();
+    message.setId(id);
+    message.setStatus(status);
+    message.addRecipient().setReference("Practitioner/p-" + id).setDisplay(email);
+    return message;
+  }
+}
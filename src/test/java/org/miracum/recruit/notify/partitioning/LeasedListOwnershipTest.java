@@ -0,0 +1,119 @@
+package org.miracum.recruit.notify.partitioning;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.stream.IntStream;
+import javax.sql.DataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+@Testcontainers(disabledWithoutDocker = true)
+class LeasedListOwnershipTest {
+  private static final int PARTITIONS = 8;
+  private static final Duration LEASE_DURATION = Duration.ofSeconds(1);
+
+  @Container
+  private static final PostgreSQLContainer<?> POSTGRES = new PostgreSQLContainer<>("postgres:14");
+
+  private DataSource dataSource;
+
+  @BeforeEach
+  void setUp() {
+    dataSource =
+        new DriverManagerDataSource(
+            POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword());
+    new ResourceDatabasePopulator(new ClassPathResource("schemas/init-notify.sql"))
+        .execute(dataSource);
+  }
+
+  @AfterEach
+  void tearDown() {
+    new JdbcTemplate(dataSource).execute("TRUNCATE NOTIFY_PARTITION_LEASES, NOTIFY_REPLICAS");
+  }
+
+  private LeasedListOwnership createReplica(String url) {
+    var config = new PartitioningConfig();
+    config.setPartitions(PARTITIONS);
+    config.setLeaseDuration(LEASE_DURATION);
+    config.setAdvertisedUrl(url);
+    return new LeasedListOwnership(dataSource, config, new SimpleMeterRegistry());
+  }
+
+  @Test
+  void renew_withSingleReplica_shouldAcquireAllPartitions() {
+    var replica = createReplica("http://a");
+
+    replica.renew();
+
+    assertThat(replica.getOwnedPartitionCount()).isEqualTo(PARTITIONS);
+    assertThat(replica.getRemoteOwnerUrl("list-1")).isEmpty();
+  }
+
+  @Test
+  void renew_withReplicaJoining_shouldHandOverItsFairShare() {
+    var first = createReplica("http://a");
+    var second = createReplica("http://b");
+
+    first.renew();
+    second.renew();
+    // the leases of the first replica are still valid, so the second one has to wait
+    assertThat(second.getOwnedPartitionCount()).isZero();
+
+    first.renew();
+    second.renew();
+    first.renew();
+
+    assertThat(first.getOwnedPartitionCount()).isEqualTo(PARTITIONS / 2);
+    assertThat(second.getOwnedPartitionCount()).isEqualTo(PARTITIONS / 2);
+    var listOwnedBySecond =
+        IntStream.range(0, 1000)
+            .mapToObj(i -> "list-" + i)
+            .filter(listId -> second.getRemoteOwnerUrl(listId).isEmpty())
+            .findFirst()
+            .orElseThrow();
+    assertThat(first.getRemoteOwnerUrl(listOwnedBySecond)).contains("http://b");
+  }
+
+  @Test
+  void renew_withOwnerNoLongerRenewing_shouldTakeOverItsPartitionsOnceExpired()
+      throws InterruptedException {
+    var first = createReplica("http://a");
+    var second = createReplica("http://b");
+    first.renew();
+    second.renew();
+    first.renew();
+    second.renew();
+    assertThat(second.getOwnedPartitionCount()).isEqualTo(PARTITIONS / 2);
+
+    Thread.sleep(LEASE_DURATION.multipliedBy(2).toMillis());
+    second.renew();
+
+    assertThat(second.getOwnedPartitionCount()).isEqualTo(PARTITIONS);
+    assertThat(IntStream.range(0, 100).mapToObj(i -> second.getRemoteOwnerUrl("list-" + i)))
+        .allMatch(Optional::isEmpty);
+  }
+
+  @Test
+  void destroy_shouldReleaseThePartitionsRightAway() {
+    var first = createReplica("http://a");
+    var second = createReplica("http://b");
+    first.renew();
+    second.renew();
+
+    first.destroy();
+    second.renew();
+
+    assertThat(second.getOwnedPartitionCount()).isEqualTo(PARTITIONS);
+  }
+}
@@ -0,0 +1,98 @@
+package org.miracum.recruit.notify.partitioning;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.time.Duration;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.SocketPolicy;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.miracum.recruit.notify.partitioning.WebhookForwarder.Outcome;
+
+class WebhookForwarderTest {
+  private MockWebServer owner;
+  private WebhookForwarder sut;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    owner = new MockWebServer();
+    owner.start();
+    var config = new PartitioningConfig();
+    config.setForwardTimeout(Duration.ofMillis(500));
+    config.setForwardSecret("s3cret");
+    sut = new WebhookForwarder(config, new SimpleMeterRegistry());
+  }
+
+  @AfterEach
+  void tearDown() throws IOException {
+    owner.shutdown();
+  }
+
+  @Test
+  void forward_withOwnerAccepting_shouldSendTheSecret() throws InterruptedException {
+    owner.enqueue(new MockResponse().setResponseCode(200));
+
+    var outcome = sut.forward(owner.url("/").toString(), "list-1", "{}");
+
+    assertThat(outcome).isEqualTo(Outcome.FORWARDED);
+    var request = owner.takeRequest();
+    assertThat(request.getPath()).isEqualTo("/on-list-change/List/list-1");
+    assertThat(request.getHeader(WebhookForwarder.FORWARDED_HEADER)).isEqualTo("s3cret");
+  }
+
+  @Test
+  void forward_withOwnerNotAnsweringInTime_shouldBeUnknown() {
+    owner.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.NO_RESPONSE));
+
+    var outcome = sut.forward(owner.url("/").toString(), "list-1", "{}");
+
+    assertThat(outcome).isEqualTo(Outcome.UNKNOWN);
+  }
+
+  @Test
+  void forward_withOwnerFailing_shouldBeUnknown() {
+    owner.enqueue(new MockResponse().setResponseCode(500));
+
+    var outcome = sut.forward(owner.url("/").toString(), "list-1", "{}");
+
+    assertThat(outcome).isEqualTo(Outcome.UNKNOWN);
+  }
+
+  @Test
+  void forward_withOwnerRefusingTheRequest_shouldNotBeForwarded() {
+    owner.enqueue(new MockResponse().setResponseCode(415));
+
+    var outcome = sut.forward(owner.url("/").toString(), "list-1", "{}");
+
+    assertThat(outcome).isEqualTo(Outcome.NOT_FORWARDED);
+  }
+
+  @Test
+  void forward_withOwnerUnreachable_shouldNotBeForwarded() throws IOException {
+    var ownerUrl = owner.url("/").toString();
+    owner.shutdown();
+
+    var outcome = sut.forward(ownerUrl, "list-1", "{}");
+
+    assertThat(outcome).isEqualTo(Outcome.NOT_FORWARDED);
+  }
+
+  @Test
+  void isForwarded_withWrongOrMissingSecret_shouldBeFalse() {
+    assertThat(sut.isForwarded("s3cret")).isTrue();
+    assertThat(sut.isForwarded("true")).isFalse();
+    assertThat(sut.isForwarded(null)).isFalse();
+  }
+
+  @Test
+  void isForwarded_withoutSecretConfigured_shouldBeFalse() {
+    var unconfigured = new WebhookForwarder(new PartitioningConfig(), new SimpleMeterRegistry());
+
+    assertThat(unconfigured.isEnabled()).isFalse();
+    assertThat(unconfigured.isForwarded("")).isFalse();
+  }
+}
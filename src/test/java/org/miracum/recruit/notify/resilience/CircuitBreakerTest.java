@@ -0,0 +1,84 @@
+package org.miracum.recruit.notify.resilience;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import org.junit.jupiter.api.Test;
+import org.miracum.recruit.notify.resilience.CircuitBreaker.State;
+
+class CircuitBreakerTest {
+
+  private static class MutableClock extends Clock {
+    private Instant now = Instant.parse("2022-01-01T00:00:00Z");
+
+    @Override
+    public ZoneOffset getZone() {
+      return ZoneOffset.UTC;
+    }
+
+    @Override
+    public Clock withZone(ZoneId zone) {
+      return this;
+    }
+
+    @Override
+    public Instant instant() {
+      return now;
+    }
+
+    void advance(Duration duration) {
+      now = now.plus(duration);
+    }
+  }
+
+  @Test
+  void onFailure_withThresholdReached_shouldOpenAndRejectCalls() {
+    var sut = new CircuitBreaker(3, Duration.ofSeconds(30), new MutableClock());
+
+    for (var i = 0; i < 3; i++) {
+      assertThat(sut.tryAcquirePermission()).isTrue();
+      sut.onFailure();
+    }
+
+    assertThat(sut.getState()).isEqualTo(State.OPEN);
+    assertThat(sut.tryAcquirePermission()).isFalse();
+  }
+
+  @Test
+  void tryAcquirePermission_afterOpenDuration_shouldPermitSingleTrialCall() {
+    var clock = new MutableClock();
+    var sut = new CircuitBreaker(1, Duration.ofSeconds(30), clock);
+    sut.tryAcquirePermission();
+    sut.onFailure();
+
+    clock.advance(Duration.ofSeconds(31));
+
+    assertThat(sut.tryAcquirePermission()).isTrue();
+    assertThat(sut.getState()).isEqualTo(State.HALF_OPEN);
+    assertThat(sut.tryAcquirePermission()).isFalse();
+
+    sut.onSuccess();
+
+    assertThat(sut.getState()).isEqualTo(State.CLOSED);
+    assertThat(sut.tryAcquirePermission()).isTrue();
+  }
+
+  @Test
+  void onFailure_duringTrialCall_shouldOpenAgain() {
+    var clock = new MutableClock();
+    var sut = new CircuitBreaker(1, Duration.ofSeconds(30), clock);
+    sut.tryAcquirePermission();
+    sut.onFailure();
+    clock.advance(Duration.ofSeconds(31));
+    sut.tryAcquirePermission();
+
+    sut.onFailure();
+
+    assertThat(sut.getState()).isEqualTo(State.OPEN);
+    assertThat(sut.isCallPermitted()).isFalse();
+  }
+}
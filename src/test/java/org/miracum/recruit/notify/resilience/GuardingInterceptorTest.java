@@ -0,0 +1,65 @@
+package org.miracum.recruit.notify.resilience;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.miracum.recruit.notify.resilience.CircuitBreaker.State;
+
+class GuardingInterceptorTest {
+  private MockWebServer server;
+  private ResourceGuard guard;
+  private OkHttpClient client;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    server = new MockWebServer();
+    server.start();
+    var config = new ResilienceConfig.Guard();
+    config.setFailureThreshold(1);
+    guard = new ResourceGuard("fhir", config, new SimpleMeterRegistry());
+    client = new OkHttpClient.Builder().addInterceptor(new GuardingInterceptor(guard)).build();
+  }
+
+  @AfterEach
+  void tearDown() throws IOException {
+    server.shutdown();
+  }
+
+  private Request createRequest() {
+    return new Request.Builder().url(server.url("/Patient")).build();
+  }
+
+  @Test
+  void intercept_withResponseBody_shouldHoldTheSlotUntilTheBodyIsRead() throws IOException {
+    server.enqueue(new MockResponse().setBody("{\"resourceType\":\"Bundle\"}"));
+
+    try (var response = client.newCall(createRequest()).execute()) {
+      assertThat(guard.getInflight()).isEqualTo(1);
+
+      assertThat(response.body().string()).contains("Bundle");
+    }
+
+    assertThat(guard.getInflight()).isZero();
+    assertThat(guard.getState()).isEqualTo(State.CLOSED);
+  }
+
+  @Test
+  void intercept_withServerError_shouldCountAsFailure() throws IOException {
+    server.enqueue(new MockResponse().setResponseCode(503));
+
+    try (var response = client.newCall(createRequest()).execute()) {
+      assertThat(response.code()).isEqualTo(503);
+    }
+
+    assertThat(guard.getInflight()).isZero();
+    assertThat(guard.getState()).isEqualTo(State.OPEN);
+  }
+}
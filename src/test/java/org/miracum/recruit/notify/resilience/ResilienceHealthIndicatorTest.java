@@ -0,0 +1,28 @@
+package org.miracum.recruit.notify.resilience;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.assertj.core.api.InstanceOfAssertFactories;
+import org.junit.jupiter.api.Test;
+import org.miracum.recruit.notify.resilience.CircuitBreaker.State;
+import org.springframework.boot.actuate.health.Status;
+
+class ResilienceHealthIndicatorTest {
+
+  @Test
+  void health_withOpenCircuitBreaker_shouldStayUpAndReportIt() {
+    var config = new ResilienceConfig();
+    config.getMail().setFailureThreshold(1);
+    var guards = new ResourceGuards(config, new SimpleMeterRegistry());
+    guards.getMail().orElseThrow().acquire().onFailure();
+    var sut = new ResilienceHealthIndicator(guards);
+
+    var health = sut.health();
+
+    assertThat(health.getStatus()).isEqualTo(Status.UP);
+    assertThat(health.getDetails().get(ResourceGuards.MAIL))
+        .asInstanceOf(InstanceOfAssertFactories.MAP)
+        .containsEntry("state", State.OPEN);
+  }
+}
@@ -0,0 +1,56 @@
+package org.miracum.recruit.notify.scheduler;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import org.junit.jupiter.api.Test;
+import org.miracum.recruit.notify.message.DistributionRunResult;
+
+class InMemoryDistributionShardResultsTest {
+  private static final DistributionRunResult RESULT =
+      new DistributionRunResult(2, 1, 1, 0, 1, false);
+
+  @Test
+  void complete_withLastShard_shouldReturnAllResults() {
+    var sut = new InMemoryDistributionShardResults();
+
+    assertThat(sut.complete("run-1", 2, RESULT)).isEmpty();
+    assertThat(sut.complete("run-1", 2, RESULT)).hasValueSatisfying(r -> assertThat(r).hasSize(2));
+    assertThat(sut.getOpenRunCount()).isZero();
+  }
+
+  @Test
+  void complete_withRunThatNeverFinished_shouldDropItAfterADay() {
+    var clock = new MutableClock();
+    var sut = new InMemoryDistributionShardResults(clock);
+    sut.complete("abandoned", 2, RESULT);
+
+    clock.now = clock.now.plus(Duration.ofDays(1)).plusSeconds(1);
+    sut.complete("next", 2, RESULT);
+
+    assertThat(sut.getOpenRunCount()).isEqualTo(1);
+  }
+
+  private static class MutableClock extends Clock {
+    private Instant now = Instant.parse("2022-08-01T10:00:00Z");
+
+    @Override
+    public ZoneOffset getZone() {
+      return ZoneOffset.UTC;
+    }
+
+    @Override
+    public Clock withZone(ZoneId zone) {
+      return this;
+    }
+
+    @Override
+    public Instant instant() {
+      return now;
+    }
+  }
+}
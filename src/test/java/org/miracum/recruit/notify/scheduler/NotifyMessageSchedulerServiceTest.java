@@ -0,0 +1,75 @@
+package org.miracum.recruit.notify.scheduler;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+import java.util.Set;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.miracum.recruit.notify.mailconfig.DistributionConfig;
+import org.miracum.recruit.notify.message.DistributionRunResult;
+import org.miracum.recruit.notify.message.MessageDistributor;
+import org.quartz.Scheduler;
+import org.quartz.SchedulerException;
+
+class NotifyMessageSchedulerServiceTest {
+  private static final String TRIGGER = "weekly";
+
+  private MessageDistributor messageDistributor;
+  private InMemoryDistributionShardResults shardResults;
+  private NotifyMessageSchedulerService sut;
+
+  @BeforeEach
+  void setUp() {
+    messageDistributor = mock(MessageDistributor.class);
+    when(messageDistributor.distributeShard(eq(TRIGGER), anyInt(), anyInt()))
+        .thenReturn(new DistributionRunResult(2, 1, 1, 0, 1, false));
+    var config = new DistributionConfig();
+    config.setShards(3);
+    shardResults = spy(new InMemoryDistributionShardResults());
+    sut = new NotifyMessageSchedulerService(messageDistributor, config, shardResults);
+  }
+
+  @Test
+  void startMessageDistribution_withShards_shouldScheduleOneJobPerShard()
+      throws SchedulerException {
+    var scheduler = mock(Scheduler.class);
+
+    sut.startMessageDistribution(scheduler, TRIGGER);
+
+    verify(scheduler, times(3)).scheduleJob(any(), any(Set.class), eq(true));
+  }
+
+  @Test
+  void executeMessageDistributionShard_withAllShardsDone_shouldSummarizeTheRunOnce() {
+    for (var shard = 0; shard < 3; shard++) {
+      sut.executeMessageDistributionShard(TRIGGER, "run-1", shard, 3);
+    }
+
+    verify(shardResults, times(3)).complete(eq("run-1"), eq(3), any());
+    assertThat(shardResults.getOpenRunCount()).isZero();
+  }
+
+  @Test
+  void executeMessageDistributionShard_withFailingShard_shouldStillCompleteTheRun() {
+    when(messageDistributor.distributeShard(TRIGGER, 1, 3))
+        .thenThrow(new IllegalStateException("FHIR server unavailable"));
+
+    sut.executeMessageDistributionShard(TRIGGER, "run-1", 0, 3);
+    assertThatThrownBy(() -> sut.executeMessageDistributionShard(TRIGGER, "run-1", 1, 3))
+        .isInstanceOf(IllegalStateException.class);
+    sut.executeMessageDistributionShard(TRIGGER, "run-1", 2, 3);
+
+    verify(shardResults).complete("run-1", 3, DistributionRunResult.FAILED_SHARD);
+    assertThat(shardResults.getOpenRunCount()).isZero();
+  }
+}